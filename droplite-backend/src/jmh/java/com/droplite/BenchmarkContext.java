@@ -0,0 +1,46 @@
+package com.droplite;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boots the application against an in-memory H2 database for benchmarks that need the
+ * Spring context. Settings are passed as command-line arguments so that they take
+ * precedence over a local application.yml.
+ */
+public final class BenchmarkContext {
+
+    private BenchmarkContext() {
+    }
+
+    public static ConfigurableApplicationContext start() {
+        return start(List.of());
+    }
+
+    /**
+     * @param sources Configuration classes to add to the application's own
+     * @param settings Further settings, as {@code --name=value}
+     */
+    public static ConfigurableApplicationContext start(List<Class<?>> sources, String... settings) {
+        List<String> args = new ArrayList<>(List.of(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:droplite-bench;MODE=PostgreSQL;DB_CLOSE_DELAY=-1",
+                "--spring.datasource.driver-class-name=org.h2.Driver",
+                "--spring.datasource.username=sa",
+                "--spring.datasource.password=",
+                "--spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+                "--spring.jpa.hibernate.ddl-auto=create-drop",
+                "--spring.jpa.show-sql=false",
+                "--spring.flyway.enabled=false",
+                "--file.search.enabled=false",
+                "--logging.level.root=WARN",
+                "--logging.level.com.droplite=WARN"));
+        args.addAll(List.of(settings));
+        return new SpringApplicationBuilder(DropliteBackendApplication.class)
+                .sources(sources.toArray(Class<?>[]::new))
+                .run(args.toArray(String[]::new));
+    }
+}
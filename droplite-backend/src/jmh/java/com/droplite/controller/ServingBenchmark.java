@@ -0,0 +1,134 @@
+package com.droplite.controller;
+
+import com.droplite.BenchmarkContext;
+import com.droplite.model.FileEntity;
+import com.droplite.repository.FileRepository;
+import com.droplite.service.FileStorageService;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.FileResponseWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.function.RouterFunction;
+import org.springframework.web.servlet.function.RouterFunctions;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput over HTTP through {@link FileResponseWriter} ({@code writer}), against
+ * the {@code ResponseEntity<Resource>} of a {@code UrlResource} that downloads returned before
+ * it ({@code resource}), which Spring's resource converter copies through a heap buffer. Both
+ * are served by the same embedded Tomcat to clients on loopback, with rate limiting off; files
+ * of 48KB and more go through sendfile on the writer path.
+ *
+ * <p>Bytes per second are the score times {@code size}.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ServingBenchmark {
+
+    @Param({"16384", "1048576", "33554432"})
+    private int size;
+
+    @Param({"writer", "resource"})
+    private String path;
+
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private HttpRequest request;
+    private Path file;
+    private Long fileId;
+
+    @Setup
+    public void setup() throws IOException {
+        context = BenchmarkContext.start(List.of(ResourceDownload.class), "--file.rate-limit.enabled=false");
+
+        // Written directly, since uploads are limited in size and type
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        file = context.getBean(LocalStorageBackend.class).root().resolve("serving-" + size + ".bin");
+        Files.write(file, content);
+        FileEntity fileEntity = new FileEntity();
+        fileEntity.setFilename(file.getFileName().toString());
+        fileEntity.setOriginalFilename(file.getFileName().toString());
+        fileEntity.setPath(file.toString());
+        fileEntity.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        fileEntity.setSize((long) size);
+        fileId = context.getBean(FileRepository.class).save(fileEntity).getId();
+
+        String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                + context.getEnvironment().getProperty("server.servlet.context-path", "");
+        String prefix = path.equals("writer") ? "/files/download/" : ResourceDownload.PATH;
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        request = HttpRequest.newBuilder(URI.create(base + prefix + fileId)).build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.getBean(FileRepository.class).deleteById(fileId);
+        Files.deleteIfExists(file);
+        context.close();
+    }
+
+    @Benchmark
+    public int download() throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Download failed with " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+
+    /**
+     * The download endpoint as it was before {@link FileResponseWriter}. Registered as a source
+     * of this benchmark's context only, so it is not component-scanned into other benchmarks.
+     */
+    static class ResourceDownload {
+
+        static final String PATH = "/bench/resource-download/";
+
+        @Bean
+        RouterFunction<ServerResponse> resourceDownload(FileStorageService fileStorageService) {
+            return RouterFunctions.route()
+                    .GET(PATH + "{id}", request -> {
+                        Resource resource = fileStorageService.loadAsResource(Long.valueOf(request.pathVariable("id")));
+                        return ServerResponse.ok()
+                                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                                .header(HttpHeaders.CONTENT_DISPOSITION,
+                                        "attachment; filename=\"" + resource.getFilename() + "\"")
+                                .body(resource);
+                    })
+                    .build();
+        }
+    }
+}
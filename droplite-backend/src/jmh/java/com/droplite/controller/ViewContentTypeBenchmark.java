@@ -0,0 +1,56 @@
+package com.droplite.controller;
+
+import com.droplite.model.FileEntity;
+import com.droplite.util.FileValidator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content-type resolution done by {@code /files/view} on every request, for a text type that
+ * is served with a charset, a JSON type, and an image type served as stored.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ViewContentTypeBenchmark {
+
+    @Param({"notes.txt", "data.json", "photo.png"})
+    private String filename;
+
+    private FileEntity fileEntity;
+    private FileValidator fileValidator;
+
+    @Setup
+    public void setup() {
+        fileValidator = new FileValidator(new SimpleMeterRegistry(), List.of(FileValidator.DEFAULT_TYPES.split(",")));
+        fileEntity = new FileEntity();
+        fileEntity.setFilename(filename);
+        fileEntity.setOriginalFilename(filename);
+        fileEntity.setContentType(MediaTypeFactory.getMediaType(filename)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM)
+                .toString());
+    }
+
+    @Benchmark
+    public MediaType resolveViewContentType() {
+        return fileValidator.viewMediaType(fileEntity);
+    }
+}
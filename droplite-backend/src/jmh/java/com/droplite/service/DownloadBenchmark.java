@@ -0,0 +1,75 @@
+package com.droplite.service;
+
+import com.droplite.BenchmarkContext;
+import com.droplite.quota.UsageTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download latency distribution of {@link FileStorageService#loadAsResource}: resolving the
+ * resource alone (metadata lookup and file checks), and resolving plus reading the content.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    @Param({"1024", "1048576", "8388608"})
+    private int size;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService storageService;
+    private Long fileId;
+
+    @Setup
+    public void setup() throws IOException {
+        context = BenchmarkContext.start();
+        storageService = context.getBean(FileStorageService.class);
+
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        fileId = storageService.store(new MockMultipartFile("file", "payload.png", "image/png", content),
+                UsageTracker.DEFAULT_OWNER).getId();
+    }
+
+    @TearDown
+    public void tearDown() {
+        storageService.deleteFile(fileId);
+        context.close();
+    }
+
+    @Benchmark
+    public Resource loadAsResource() {
+        return storageService.loadAsResource(fileId);
+    }
+
+    @Benchmark
+    public long loadAndRead() throws IOException {
+        Resource resource = storageService.loadAsResource(fileId);
+        try (InputStream in = resource.getInputStream()) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.droplite.service;
+
+import com.droplite.BenchmarkContext;
+import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FilePage;
+import com.droplite.repository.FileRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metadata lookups against H2: a cached {@link FileStorageService#getFileById}, the
+ * underlying repository query it saves, and the first page of the file listing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataLookupBenchmark {
+
+    private static final int FILE_COUNT = 10_000;
+    private static final FileFilter NO_FILTER = new FileFilter(null, null, null, null, null, null);
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService storageService;
+    private FileRepository fileRepository;
+    private long[] ids;
+    private int next;
+
+    @Setup
+    public void setup() {
+        context = BenchmarkContext.start();
+        storageService = context.getBean(FileStorageService.class);
+        fileRepository = context.getBean(FileRepository.class);
+
+        // Metadata only; none of these lookups touch the file content
+        List<FileEntity> files = new ArrayList<>(FILE_COUNT);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            FileEntity file = new FileEntity();
+            file.setFilename("file-" + i + ".txt");
+            file.setOriginalFilename("Document " + i + ".txt");
+            file.setPath("uploads/file-" + i + ".txt");
+            file.setContentType("text/plain");
+            file.setSize(1024L + i);
+            files.add(file);
+        }
+        ids = fileRepository.saveAll(files).stream().mapToLong(FileEntity::getId).toArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    private Long nextId() {
+        next = (next + 1) % ids.length;
+        return ids[next];
+    }
+
+    @Benchmark
+    public FileEntity getFileByIdCached() {
+        return storageService.getFileById(nextId());
+    }
+
+    @Benchmark
+    public Optional<FileEntity> findByIdUncached() {
+        return fileRepository.findById(nextId());
+    }
+
+    @Benchmark
+    public FilePage listFirstPage() {
+        return storageService.listFiles(NO_FILTER, null, 50);
+    }
+}
@@ -0,0 +1,90 @@
+package com.droplite.service;
+
+import com.droplite.BenchmarkContext;
+import com.droplite.model.FileEntity;
+import com.droplite.quota.UsageTracker;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload throughput of {@link FileStorageService#store} (validation, disk write and metadata
+ * insert) across file sizes. Besides stores per second, the {@code bytes} secondary result
+ * reports upload bandwidth in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    @Param({"1024", "65536", "1048576", "8388608"})
+    private int size;
+
+    private ConfigurableApplicationContext context;
+    private FileStorageService storageService;
+    private MockMultipartFile upload;
+    private final List<Long> storedIds = new ArrayList<>();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bandwidth {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkContext.start();
+        storageService = context.getBean(FileStorageService.class);
+
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        upload = new MockMultipartFile("file", "payload.png", "image/png", content);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteStoredFiles() {
+        // Keeps the uploads directory from growing across iterations
+        storageService.deleteAll(storedIds);
+        storedIds.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public FileEntity store(Bandwidth bandwidth) throws IOException {
+        FileEntity stored = storageService.store(upload, UsageTracker.DEFAULT_OWNER);
+        storedIds.add(stored.getId());
+        bandwidth.bytes += size;
+        return stored;
+    }
+}
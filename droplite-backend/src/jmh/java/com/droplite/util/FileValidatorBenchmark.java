@@ -0,0 +1,44 @@
+package com.droplite.util;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extension check performed on every upload, for accepted names and a rejected one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileValidatorBenchmark {
+
+    @Param({"notes.txt", "Holiday Photo.JPEG", "export.2024-01-01.json", "archive.tar.gz"})
+    private String filename;
+
+    private FileValidator fileValidator;
+
+    @Setup
+    public void setup() {
+        fileValidator = new FileValidator(new SimpleMeterRegistry(), List.of(FileValidator.DEFAULT_TYPES.split(",")));
+    }
+
+    @Benchmark
+    public boolean isValidFileType() {
+        return fileValidator.isValidFileType(filename);
+    }
+}
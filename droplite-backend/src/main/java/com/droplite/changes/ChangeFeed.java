@@ -0,0 +1,438 @@
+package com.droplite.changes;
+
+import com.droplite.exception.ServiceUnavailableException;
+import com.droplite.model.FileChange;
+import com.droplite.model.FileEntity;
+import com.droplite.model.FileSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the files that are created and deleted to clients subscribed over server-sent
+ * events, so that they can keep a listing current without fetching it again.
+ *
+ * <p>Every change gets a sequence number, sent as the event ID. A client that reconnects
+ * passes the last ID it saw ({@code Last-Event-ID}, which browsers send on their own) and
+ * receives the changes it missed. The latest {@code file.changes.buffer-size} changes are kept
+ * in memory for this; a client further behind, or one whose ID is from before a restart, gets
+ * a {@code reset} event instead and fetches the listing again. Sequence numbers start at the
+ * current time in microseconds, so those of a later run are higher than those of an earlier
+ * one.</p>
+ *
+ * <p>Subscribers hold no thread while they wait, and none while their client reads slowly.
+ * Streams use the servlet container's non-blocking output: publishing appends to the buffer
+ * and returns, and a small pool of {@code file.changes.threads} sender threads writes the new
+ * changes to each subscriber whose socket can take them, one task per subscriber at a time.
+ * A subscriber whose socket is full is skipped until the container reports it writable
+ * again, so it only delays itself, and falls back to a {@code reset} once the buffer has moved
+ * past it; one that stays full for {@code file.changes.stall-timeout} is disconnected. Idle
+ * connections get a comment every {@code file.changes.heartbeat-interval}, which keeps proxies
+ * from closing them and detects clients that went away.</p>
+ *
+ * <p>Changes are published by the node that made them, after their transaction committed.</p>
+ */
+@Slf4j
+@Component
+public class ChangeFeed {
+
+    // Changes sent to one subscriber before its task yields to the others
+    private static final int MAX_CHANGES_PER_TASK = 256;
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper;
+    private final FileChange[] buffer;
+    private final long firstSequence;
+    private final long timeoutMillis;
+    private final long stallTimeoutNanos;
+    private final int maxSubscribers;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor sender;
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+    private final Counter resetCounter;
+    private final Counter stalledCounter;
+
+    // Written under the monitor of this feed
+    private volatile long lastSequence;
+
+    public ChangeFeed(MeterRegistry meterRegistry,
+                      ObjectMapper objectMapper,
+                      @Value("${file.changes.buffer-size:10000}") int bufferSize,
+                      @Value("${file.changes.threads:2}") int threads,
+                      @Value("${file.changes.timeout:PT30M}") Duration timeout,
+                      @Value("${file.changes.stall-timeout:PT1M}") Duration stallTimeout,
+                      @Value("${file.changes.max-subscribers:5000}") int maxSubscribers) {
+        this.objectMapper = objectMapper;
+        this.buffer = new FileChange[bufferSize];
+        this.firstSequence = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.lastSequence = firstSequence;
+        this.timeoutMillis = timeout.toMillis();
+        this.stallTimeoutNanos = stallTimeout.toNanos();
+        this.maxSubscribers = maxSubscribers;
+        // At most one queued task per subscriber, plus the dispatch
+        this.sender = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory("changes-"));
+        Gauge.builder("droplite.changes.subscribers", subscribers, Set::size)
+                .description("Clients subscribed to the change feed")
+                .register(meterRegistry);
+        this.resetCounter = Counter.builder("droplite.changes.resets")
+                .description("Subscribers told to fetch the listing again because they missed changes")
+                .register(meterRegistry);
+        this.stalledCounter = Counter.builder("droplite.changes.stalled")
+                .description("Subscribers disconnected because their client stopped reading")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribes a client to the changes after a sequence number, and turns the request into
+     * an asynchronous event stream. Without a sequence number, the client first receives a
+     * {@code ready} event carrying the current one, after which it should fetch the listing.
+     *
+     * @param after The last sequence number the client has seen, or null
+     * @throws ServiceUnavailableException if {@code file.changes.max-subscribers} are subscribed
+     */
+    public void subscribe(HttpServletRequest request, HttpServletResponse response, Long after) throws IOException {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new ServiceUnavailableException("Too many clients are subscribed to changes");
+        }
+        response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutMillis);
+        Subscriber subscriber = new Subscriber(asyncContext, response.getOutputStream(),
+                after != null ? after : lastSequence, after == null);
+        asyncContext.addListener(subscriber);
+        subscribers.add(subscriber);
+        // The container calls onWritePossible right away, which starts the stream and catches
+        // up on changes published before the subscriber was added
+        subscriber.out.setWriteListener(subscriber);
+    }
+
+    public void created(FileEntity fileEntity) {
+        createdAll(List.of(fileEntity));
+    }
+
+    /**
+     * Publishes files whose rows were committed.
+     */
+    public void createdAll(Collection<FileEntity> fileEntities) {
+        // Snapshot now: the caller may still change the entity, e.g. its path
+        List<FileSummary> files = fileEntities.stream()
+                .map(fileEntity -> new FileSummary(fileEntity.getId(), fileEntity.getFilename(),
+                        fileEntity.getOriginalFilename(), fileEntity.getContentType(), fileEntity.getSize(),
+                        fileEntity.getCreatedAt()))
+                .toList();
+        synchronized (this) {
+            for (FileSummary file : files) {
+                append(FileChange.Type.CREATED, file.id(), file);
+            }
+        }
+        dispatch();
+    }
+
+    public void deleted(Long id) {
+        deletedAll(List.of(id));
+    }
+
+    /**
+     * Publishes files whose rows were deleted.
+     */
+    public void deletedAll(Collection<Long> ids) {
+        synchronized (this) {
+            for (Long id : ids) {
+                append(FileChange.Type.DELETED, id, null);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Sends a comment to every subscriber, and disconnects those whose client has not taken
+     * any data for {@code file.changes.stall-timeout}.
+     */
+    @Scheduled(fixedDelayString = "${file.changes.heartbeat-interval:PT30S}")
+    public void heartbeat() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers) {
+            long blockedSince = subscriber.blockedSince;
+            if (blockedSince != 0 && now - blockedSince > stallTimeoutNanos) {
+                stalledCounter.increment();
+                log.debug("Disconnecting a subscriber at {} that stopped reading", subscriber.cursor);
+                subscriber.close();
+                continue;
+            }
+            subscriber.heartbeatDue = true;
+            subscriber.schedule();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+        // Clients reconnect to another node, or to this one once it is back
+        subscribers.forEach(Subscriber::close);
+    }
+
+    /**
+     * The sequence number of the latest change, or the starting one if nothing was published.
+     */
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    private void append(FileChange.Type type, Long id, FileSummary file) {
+        long sequence = lastSequence + 1;
+        buffer[(int) (sequence % buffer.length)] = new FileChange(sequence, type, id, file);
+        lastSequence = sequence;
+    }
+
+    /**
+     * Returns up to {@code limit} changes after a sequence number, or null if some of them are
+     * no longer buffered or the sequence number was not issued by this feed.
+     */
+    synchronized List<FileChange> changesAfter(long cursor, int limit) {
+        long oldest = Math.max(firstSequence + 1, lastSequence - buffer.length + 1);
+        if (cursor < oldest - 1 || cursor > lastSequence) {
+            return null;
+        }
+        int count = (int) Math.min(lastSequence - cursor, limit);
+        List<FileChange> changes = new ArrayList<>(count);
+        for (long sequence = cursor + 1; sequence <= cursor + count; sequence++) {
+            changes.add(buffer[(int) (sequence % buffer.length)]);
+        }
+        return changes;
+    }
+
+    /**
+     * Wakes the subscribers that are behind, from a sender thread; several publications in a
+     * row share one pass over the subscribers.
+     */
+    private void dispatch() {
+        if (subscribers.isEmpty() || !dispatchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        execute(() -> {
+            dispatchScheduled.set(false);
+            long last = lastSequence;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.cursor < last) {
+                    subscriber.schedule();
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            sender.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+        }
+    }
+
+    private byte[] event(long id, String name, Object data) throws IOException {
+        return ("id:" + id + "\nevent:" + name + "\ndata:" + objectMapper.writeValueAsString(data) + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A connected client and how far it has been sent the feed. The container calls it when
+     * its socket can take data again and when its stream ends.
+     */
+    private final class Subscriber implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Set by every request to run, so that one made while the task runs is not lost
+        private final AtomicBoolean wanted = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // Only advanced by the task of this subscriber, which never runs twice at once
+        private volatile long cursor;
+        private volatile boolean readyDue;
+        private volatile boolean heartbeatDue;
+        // System.nanoTime() since the socket stopped taking data; 0 while it takes it
+        private volatile long blockedSince;
+        // Written but not flushed; true at first, so that the response starts right away
+        private boolean unflushed = true;
+
+        private Subscriber(AsyncContext asyncContext, ServletOutputStream out, long cursor, boolean readyDue) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+            this.cursor = cursor;
+            this.readyDue = readyDue;
+        }
+
+        void schedule() {
+            wanted.set(true);
+            if (!closed.get() && scheduled.compareAndSet(false, true)) {
+                execute(this::run);
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                subscribers.remove(this);
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException ex) {
+                    // Already completed by the container
+                }
+            }
+        }
+
+        private void run() {
+            wanted.set(false);
+            try {
+                send();
+            } catch (IOException | IllegalStateException ex) {
+                // Disconnected or completed
+                close();
+            } finally {
+                scheduled.set(false);
+            }
+            // Asked to run again meanwhile; while the socket is full the container calls
+            // onWritePossible instead, once isReady has returned false
+            if (wanted.get() && writable()) {
+                schedule();
+            }
+        }
+
+        private boolean writable() {
+            try {
+                return !closed.get() && out.isReady();
+            } catch (IllegalStateException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Writes what the socket takes without blocking. Stops when it is full; the container
+         * then calls {@link #onWritePossible} once it has drained.
+         */
+        private void send() throws IOException {
+            if (!out.isReady()) {
+                blocked();
+                return;
+            }
+            blockedSince = 0;
+            if (readyDue) {
+                readyDue = false;
+                write(event(cursor, "ready", cursor));
+            }
+            if (cursor < lastSequence) {
+                heartbeatDue = false;
+                sendChanges();
+            } else if (heartbeatDue && out.isReady()) {
+                heartbeatDue = false;
+                write(KEEP_ALIVE);
+            }
+            if (unflushed && out.isReady()) {
+                out.flush();
+                unflushed = false;
+            }
+            if (!out.isReady()) {
+                blocked();
+            }
+        }
+
+        private void sendChanges() throws IOException {
+            List<FileChange> changes = changesAfter(cursor, MAX_CHANGES_PER_TASK);
+            if (changes == null) {
+                if (out.isReady()) {
+                    long last = lastSequence;
+                    resetCounter.increment();
+                    log.debug("Subscriber at {} missed changes; resetting it to {}", cursor, last);
+                    write(event(last, "reset", last));
+                    cursor = last;
+                }
+                return;
+            }
+            for (FileChange change : changes) {
+                if (!out.isReady()) {
+                    return;
+                }
+                write(event(change.sequence(), change.type().name().toLowerCase(Locale.ROOT), change));
+                cursor = change.sequence();
+            }
+            // Yields to the other subscribers before sending the rest
+            if (cursor < lastSequence) {
+                wanted.set(true);
+            }
+        }
+
+        private void write(byte[] event) throws IOException {
+            out.write(event);
+            unflushed = true;
+        }
+
+        private void blocked() {
+            if (blockedSince == 0) {
+                blockedSince = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            schedule();
+        }
+
+        @Override
+        public void onError(Throwable ex) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed.set(true);
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
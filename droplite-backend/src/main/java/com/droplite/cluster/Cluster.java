@@ -0,0 +1,160 @@
+package com.droplite.cluster;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Static membership of a cluster of nodes that share the database but not their disks, and
+ * which of them hold the content of a file.
+ *
+ * <p>Enabled with {@code cluster.enabled}. Every node is given the same {@code cluster.nodes}
+ * ({@code id=url} pairs separated by commas) and its own {@code cluster.node-id}. The content
+ * of a file belongs to the {@code cluster.replicas} nodes that a {@link HashRing} assigns to
+ * its stored name, the first of them being its primary. Names are chosen so that the node
+ * receiving an upload is the primary of the file, which is why uploads are never forwarded;
+ * reads that reach another node are forwarded to an owner.</p>
+ *
+ * <p>Requests between nodes carry {@code cluster.secret} in the {@value #SECRET_HEADER}
+ * header. Content-addressed storage is not supported in cluster mode, since a blob would be
+ * shared by files placed on different nodes.</p>
+ *
+ * <p>Without cluster mode this node owns everything.</p>
+ */
+@Slf4j
+@Component
+public class Cluster {
+
+    /** Header carrying the shared secret on requests between nodes */
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private final boolean enabled;
+    private final List<ClusterNode> nodes;
+    // Null without cluster mode
+    private final ClusterNode self;
+    private final HashRing ring;
+    private final int replicas;
+    private final byte[] secret;
+
+    public Cluster(@Value("${cluster.enabled:false}") boolean enabled,
+                   @Value("${cluster.node-id:}") String nodeId,
+                   @Value("${cluster.nodes:}") String nodes,
+                   @Value("${cluster.replicas:2}") int replicas,
+                   @Value("${cluster.virtual-nodes:128}") int virtualNodes,
+                   @Value("${cluster.secret:}") String secret,
+                   @Value("${file.storage.content-addressed:false}") boolean contentAddressed) {
+        this.enabled = enabled;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        if (!enabled) {
+            this.nodes = List.of();
+            this.self = null;
+            this.ring = null;
+            this.replicas = 1;
+            return;
+        }
+
+        this.nodes = parseNodes(nodes);
+        this.self = this.nodes.stream()
+                .filter(node -> node.id().equals(nodeId))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException(
+                        "cluster.node-id '" + nodeId + "' is not one of cluster.nodes"));
+        if (!StringUtils.hasText(secret)) {
+            throw new IllegalStateException("cluster.secret must be set in cluster mode");
+        }
+        if (replicas < 1) {
+            throw new IllegalStateException("cluster.replicas must be at least 1");
+        }
+        if (contentAddressed) {
+            throw new IllegalStateException("file.storage.content-addressed is not supported in cluster mode");
+        }
+        this.ring = new HashRing(this.nodes, virtualNodes);
+        this.replicas = Math.min(replicas, this.nodes.size());
+        log.info("Node {} of a cluster of {}, keeping {} copies of every file",
+                self.id(), this.nodes.size(), this.replicas);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ClusterNode self() {
+        return self;
+    }
+
+    public List<ClusterNode> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the nodes that hold the content stored under a name, the primary first.
+     *
+     * @param name A stored filename or an upload ID; only the part before the extension counts
+     */
+    public List<ClusterNode> owners(String name) {
+        return enabled ? ring.owners(keyOf(name), replicas) : List.of();
+    }
+
+    public boolean isOwner(String name) {
+        return !enabled || owners(name).contains(self);
+    }
+
+    public boolean isPrimary(String name) {
+        return !enabled || ring.primary(keyOf(name)).equals(self);
+    }
+
+    /**
+     * Returns a random UUID whose primary is this node. With n nodes this takes n tries on
+     * average.
+     */
+    public String newLocalId() {
+        String id;
+        do {
+            id = UUID.randomUUID().toString();
+        } while (!isPrimary(id));
+        return id;
+    }
+
+    /**
+     * Whether a request was sent by another node of the cluster.
+     */
+    public boolean isPeerRequest(HttpServletRequest request) {
+        String header = request.getHeader(SECRET_HEADER);
+        return enabled && header != null
+                && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Stored names are a UUID from newLocalId() plus the extension of the upload
+    private static String keyOf(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    String secret() {
+        return new String(secret, StandardCharsets.UTF_8);
+    }
+
+    private static List<ClusterNode> parseNodes(String nodes) {
+        List<ClusterNode> parsed = new ArrayList<>();
+        for (String entry : StringUtils.commaDelimitedListToStringArray(nodes)) {
+            String[] idAndUrl = entry.trim().split("=", 2);
+            if (idAndUrl.length != 2 || idAndUrl[0].isBlank() || idAndUrl[1].isBlank()) {
+                throw new IllegalStateException("Invalid entry in cluster.nodes, expected id=url: " + entry);
+            }
+            parsed.add(new ClusterNode(idAndUrl[0].trim(), URI.create(idAndUrl[1].trim())));
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalStateException("cluster.nodes must list the nodes of the cluster");
+        }
+        return List.copyOf(parsed);
+    }
+}
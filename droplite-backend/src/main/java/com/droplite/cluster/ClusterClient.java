@@ -0,0 +1,207 @@
+package com.droplite.cluster;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * HTTP requests from this node to the others: forwarding client requests, and copying stored
+ * content through the {@code /internal/cluster/files} endpoints. Bodies are streamed in both
+ * directions, never buffered whole.
+ */
+@Slf4j
+@Component
+public class ClusterClient {
+
+    /** Marks a request forwarded by another node; it is served where it arrives */
+    public static final String FORWARDED_HEADER = "X-Cluster-Forwarded";
+
+    private static final String CONTENT_PATH = "/internal/cluster/files/";
+    // Hop-by-hop headers, and those the HTTP client sets itself
+    private static final Set<String> REQUEST_HEADERS_NOT_FORWARDED = Set.of("connection", "keep-alive",
+            "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade", "host", "content-length",
+            "expect", "http2-settings", "x-forwarded-for", Cluster.SECRET_HEADER.toLowerCase(Locale.ROOT),
+            FORWARDED_HEADER.toLowerCase(Locale.ROOT));
+    private static final Set<String> RESPONSE_HEADERS_NOT_FORWARDED = Set.of("connection", "keep-alive",
+            "transfer-encoding", "trailer", "upgrade");
+
+    private final Cluster cluster;
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+
+    public ClusterClient(Cluster cluster,
+                         @Value("${cluster.connect-timeout:PT2S}") Duration connectTimeout,
+                         @Value("${cluster.request-timeout:PT30S}") Duration requestTimeout) {
+        this.cluster = cluster;
+        this.requestTimeout = requestTimeout;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    /**
+     * Sends a client request to another node and streams the node's response back to the
+     * client.
+     *
+     * @return Whether the node answered; if not, nothing has been written to the response and
+     * the request may be sent to another node, unless its body was already consumed
+     * @throws IOException if the node failed after its response was started
+     */
+    public boolean forward(ClusterNode node, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        String query = request.getQueryString();
+        long contentLength = request.getContentLengthLong();
+
+        HttpRequest.BodyPublisher body = contentLength > 0
+                ? HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                    try {
+                        return request.getInputStream();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }), contentLength)
+                : HttpRequest.BodyPublishers.noBody();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(node.resolve(query == null ? path : path + "?" + query))
+                .method(request.getMethod(), body);
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (!REQUEST_HEADERS_NOT_FORWARDED.contains(name.toLowerCase(Locale.ROOT))) {
+                Collections.list(request.getHeaders(name)).forEach(value -> builder.header(name, value));
+            }
+        }
+        // Lets the owner see the address of the client rather than of this node
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        builder.header("X-Forwarded-For", forwardedFor == null
+                ? request.getRemoteAddr()
+                : forwardedFor + ", " + request.getRemoteAddr());
+        builder.header(Cluster.SECRET_HEADER, cluster.secret());
+        builder.header(FORWARDED_HEADER, cluster.self().id());
+        if (contentLength <= 0) {
+            // Bounds the wait for the response headers only; the body is still streamed. A
+            // request with a body is not bounded, since its upload counts against the timeout
+            builder.timeout(requestTimeout);
+        }
+
+        HttpResponse<InputStream> upstream;
+        try {
+            upstream = send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException ex) {
+            if (contentLength > 0) {
+                throw ex;
+            }
+            log.debug("Could not forward {} {} to {}: {}", request.getMethod(), path, node.id(), ex.toString());
+            return false;
+        }
+
+        try (InputStream in = upstream.body()) {
+            response.setStatus(upstream.statusCode());
+            upstream.headers().map().forEach((name, values) -> {
+                String lowerName = name.toLowerCase(Locale.ROOT);
+                // CORS headers were already added by this node
+                if (!RESPONSE_HEADERS_NOT_FORWARDED.contains(lowerName)
+                        && !(lowerName.startsWith("access-control-") && response.containsHeader(name))) {
+                    values.forEach(value -> response.addHeader(name, value));
+                }
+            });
+            in.transferTo(response.getOutputStream());
+        }
+        return true;
+    }
+
+    /**
+     * Copies stored content to a node, which keeps it under the same name.
+     *
+     * @throws IOException if the node did not take it
+     */
+    public void push(ClusterNode node, String filename, Path file) throws IOException {
+        HttpRequest request = contentRequest(node, filename)
+                .PUT(HttpRequest.BodyPublishers.ofFile(file))
+                .build();
+        int status = send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (status != 200 && status != 204) {
+            throw new IOException(node.id() + " answered " + status + " to the copy of " + filename);
+        }
+    }
+
+    /**
+     * Copies the content a node stores under a name to a local file.
+     *
+     * @return Whether the node has the content
+     */
+    public boolean pull(ClusterNode node, String filename, Path target) throws IOException {
+        HttpRequest request = contentRequest(node, filename).GET().build();
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = response.body()) {
+            if (response.statusCode() == 404) {
+                return false;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException(node.id() + " answered " + response.statusCode() + " for " + filename);
+            }
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    }
+
+    /**
+     * Whether a node stores content under a name.
+     */
+    public boolean has(ClusterNode node, String filename) throws IOException {
+        HttpRequest request = contentRequest(node, filename)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(requestTimeout)
+                .build();
+        int status = send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (status != 200 && status != 404) {
+            throw new IOException(node.id() + " answered " + status + " for " + filename);
+        }
+        return status == 200;
+    }
+
+    /**
+     * Removes the content a node stores under a name, if it has any.
+     */
+    public void delete(ClusterNode node, String filename) throws IOException {
+        HttpRequest request = contentRequest(node, filename).DELETE().timeout(requestTimeout).build();
+        int status = send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (status != 204 && status != 404) {
+            throw new IOException(node.id() + " answered " + status + " to the removal of " + filename);
+        }
+    }
+
+    private HttpRequest.Builder contentRequest(ClusterNode node, String filename) {
+        URI uri = node.resolve(CONTENT_PATH + UriUtils.encodePathSegment(filename, StandardCharsets.UTF_8));
+        return HttpRequest.newBuilder(uri).header(Cluster.SECRET_HEADER, cluster.secret());
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.uri());
+        }
+    }
+}
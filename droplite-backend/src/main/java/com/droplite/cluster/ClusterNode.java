@@ -0,0 +1,22 @@
+package com.droplite.cluster;
+
+import java.net.URI;
+
+/**
+ * A member of the cluster.
+ *
+ * @param id  The name of the node, as in {@code cluster.node-id}
+ * @param url The base URL of its API, including the context path, e.g.
+ *            {@code http://backend-2:8080/api}
+ */
+public record ClusterNode(String id, URI url) {
+
+    /**
+     * Returns the URL of a path of the node's API.
+     *
+     * @param path The path below the context path, starting with a slash
+     */
+    public URI resolve(String path) {
+        return URI.create(url.toString().replaceAll("/+$", "") + path);
+    }
+}
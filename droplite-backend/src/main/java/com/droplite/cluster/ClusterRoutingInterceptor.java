@@ -0,0 +1,163 @@
+package com.droplite.cluster;
+
+import com.droplite.exception.ServiceUnavailableException;
+import com.droplite.model.DerivativeKind;
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.service.DerivativePipeline;
+import com.droplite.service.FileStorageService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends requests for content this node does not hold to a node that does.
+ *
+ * <p>Applies to downloads, views, derivatives and chunked uploads, which carry the ID of the
+ * file or upload in their path. A request for a file whose content is on local disk is served
+ * here, whether or not this node owns it. Otherwise it goes to the file's owners in order, so
+ * a file is still served while its primary is down; files in the cold tier and derivatives go
+ * to the primary, which promotes and generates them. Chunks of an upload always go to the node
+ * that started it, which holds the part file.</p>
+ *
+ * <p>With {@code cluster.forward-mode=proxy} (the default) this node relays the request and
+ * streams the response back. With {@code redirect} the client is sent a 307 to the other node,
+ * which saves this node the bandwidth but requires clients to reach every node.</p>
+ *
+ * <p>A forwarded request is served where it arrives, so a request never travels more than one
+ * hop.</p>
+ */
+@Slf4j
+@Component
+public class ClusterRoutingInterceptor implements HandlerInterceptor {
+
+    private final Cluster cluster;
+    private final ClusterClient client;
+    private final Replicator replicator;
+    private final FileStorageService fileStorageService;
+    private final DerivativePipeline derivativePipeline;
+    private final boolean redirect;
+    private final Counter forwardedCounter;
+
+    public ClusterRoutingInterceptor(Cluster cluster,
+                                     ClusterClient client,
+                                     Replicator replicator,
+                                     FileStorageService fileStorageService,
+                                     DerivativePipeline derivativePipeline,
+                                     MeterRegistry meterRegistry,
+                                     @Value("${cluster.forward-mode:proxy}") String forwardMode) {
+        this.cluster = cluster;
+        this.client = client;
+        this.replicator = replicator;
+        this.fileStorageService = fileStorageService;
+        this.derivativePipeline = derivativePipeline;
+        this.redirect = switch (forwardMode.toLowerCase(Locale.ROOT)) {
+            case "proxy" -> false;
+            case "redirect" -> true;
+            default -> throw new IllegalStateException(
+                    "cluster.forward-mode must be proxy or redirect, not " + forwardMode);
+        };
+        this.forwardedCounter = Counter.builder("droplite.cluster.forwarded")
+                .description("Requests sent on to the node holding the content")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws Exception {
+        if (!cluster.isEnabled()
+                || (request.getHeader(ClusterClient.FORWARDED_HEADER) != null && cluster.isPeerRequest(request))) {
+            return true;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (variables == null) {
+            return true;
+        }
+
+        String uploadId = variables.get("uploadId");
+        if (uploadId != null) {
+            if (cluster.isPrimary(uploadId)) {
+                return true;
+            }
+            // The upload's part file exists on that node only
+            if (!send(cluster.owners(uploadId).subList(0, 1), request, response)) {
+                throw new ServiceUnavailableException("The node holding upload " + uploadId + " is unavailable");
+            }
+            return false;
+        }
+
+        String id = variables.get("id");
+        if (id == null) {
+            return true;
+        }
+        FileEntity fileEntity;
+        try {
+            fileEntity = fileStorageService.getFileById(Long.valueOf(id));
+        } catch (RuntimeException ex) {
+            // Unknown or malformed IDs are answered by the controller
+            return true;
+        }
+        return !send(targets(fileEntity, variables.get("kind")), request, response);
+    }
+
+    /**
+     * Returns the nodes to try for a file, in order, or none to serve it here.
+     */
+    private List<ClusterNode> targets(FileEntity fileEntity, String kind) {
+        String filename = fileEntity.getFilename();
+        if (kind != null) {
+            boolean generated = derivativePipeline.find(fileEntity.getId(),
+                    DerivativeKind.valueOf(kind.toUpperCase(Locale.ROOT))).isPresent();
+            return generated || cluster.isPrimary(filename) ? List.of() : cluster.owners(filename).subList(0, 1);
+        }
+        if (fileEntity.getStorageTier() == StorageTier.COLD) {
+            return cluster.isPrimary(filename) ? List.of() : cluster.owners(filename).subList(0, 1);
+        }
+        if (Files.isReadable(replicator.localCopy(filename)) || Files.isReadable(Path.of(fileEntity.getPath()))) {
+            return List.of();
+        }
+        return cluster.owners(filename).stream().filter(node -> !node.equals(cluster.self())).toList();
+    }
+
+    /**
+     * Forwards a request to the first of the nodes that answers.
+     *
+     * @return Whether a node answered; if none did, the request is to be handled here
+     */
+    private boolean send(List<ClusterNode> nodes, HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        for (ClusterNode node : nodes) {
+            if (redirect) {
+                String path = request.getRequestURI().substring(request.getContextPath().length());
+                String query = request.getQueryString();
+                forwardedCounter.increment();
+                response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+                response.setHeader(HttpHeaders.LOCATION,
+                        node.resolve(query == null ? path : path + "?" + query).toString());
+                return true;
+            }
+            if (client.forward(node, request, response)) {
+                forwardedCounter.increment();
+                return true;
+            }
+            log.warn("Node {} did not answer; trying the next owner", node.id());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,89 @@
+package com.droplite.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keys onto the nodes of a cluster. Each node is placed at
+ * {@code virtualNodes} points of a ring of 64-bit hashes, and a key belongs to the nodes of
+ * the first points at or after its own hash. Adding or removing a node therefore only moves
+ * the keys next to its points, about one in n, and the many points per node spread the keys
+ * evenly.
+ */
+public final class HashRing {
+
+    // Sorted hashes of the points, and the node at each
+    private final long[] points;
+    private final ClusterNode[] pointNodes;
+    private final int nodeCount;
+
+    public HashRing(List<ClusterNode> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one point per node");
+        }
+        TreeMap<Long, ClusterNode> ring = new TreeMap<>();
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // A collision keeps the first node; it only shifts a few keys
+                ring.putIfAbsent(hash(node.id() + "#" + i), node);
+            }
+        }
+        this.points = new long[ring.size()];
+        this.pointNodes = new ClusterNode[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, ClusterNode> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            pointNodes[i++] = point.getValue();
+        }
+        this.nodeCount = nodes.size();
+    }
+
+    /**
+     * Returns the nodes responsible for a key, the primary first.
+     *
+     * @param count How many distinct nodes to return; at most the size of the cluster
+     */
+    public List<ClusterNode> owners(String key, int count) {
+        int wanted = Math.min(count, nodeCount);
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        List<ClusterNode> owners = new ArrayList<>(wanted);
+        for (int step = 0; owners.size() < wanted && step < points.length; step++) {
+            ClusterNode node = pointNodes[(start + step) % points.length];
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    public ClusterNode primary(String key) {
+        return owners(key, 1).get(0);
+    }
+
+    /**
+     * The first eight bytes of the MD5 of a key. Unlike {@link String#hashCode()}, similar keys
+     * such as the names of a node's points get unrelated hashes.
+     */
+    static long hash(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,248 @@
+package com.droplite.cluster;
+
+import com.droplite.model.FileEntity;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
+import com.droplite.util.ShardedLayout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the content of every file on the nodes that own it.
+ *
+ * <p>Once a file is stored, its content is pushed to its other owners in the background by
+ * {@code cluster.replication.threads} threads; the upload does not wait for them. Deleting a
+ * file removes the copies held by other nodes the same way. Copies that could not be made or
+ * removed, e.g. because a node was down or the queue of {@code cluster.replication.queue-capacity}
+ * transfers was full, are caught up by the row walk of the {@code StorageReconciler}: an owner
+ * missing the content fetches it from any node that has it, and a node holding a file it does
+ * not own removes its copy once every owner has one. This also moves existing files into place
+ * when cluster mode is turned on or nodes are added.</p>
+ *
+ * <p>In cluster mode a node keeps content at the {@link ShardedLayout} location under its own
+ * upload directory, whatever the path in the row says. Nodes should therefore use the same
+ * {@code file.storage.upload-dir}, each on its own disk or volume.</p>
+ */
+@Slf4j
+@Component
+public class Replicator {
+
+    private final Cluster cluster;
+    private final ClusterClient client;
+    private final Path storageRoot;
+    private final ThreadPoolExecutor executor;
+    private final Counter replicatedCounter;
+    private final Counter failedCounter;
+    private final Counter repairedCounter;
+    private final Counter handedOffCounter;
+
+    public Replicator(Cluster cluster,
+                      ClusterClient client,
+                      LocalStorageBackend hotStorage,
+                      MeterRegistry meterRegistry,
+                      @Value("${cluster.replication.threads:4}") int threads,
+                      @Value("${cluster.replication.queue-capacity:10000}") int queueCapacity) {
+        this.cluster = cluster;
+        this.client = client;
+        this.storageRoot = hotStorage.root();
+        this.replicatedCounter = Counter.builder("droplite.cluster.replicated")
+                .description("Files copied to another node")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("droplite.cluster.replication.failed")
+                .description("Copies and removals on other nodes that failed or were not queued; the reconciler retries them")
+                .register(meterRegistry);
+        this.repairedCounter = Counter.builder("droplite.cluster.repaired")
+                .description("Files this node owns that it fetched from another node")
+                .register(meterRegistry);
+        this.handedOffCounter = Counter.builder("droplite.cluster.handed-off")
+                .description("Copies removed from this node because the file's owners all hold it")
+                .register(meterRegistry);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("replication-"),
+                (task, pool) -> failedCounter.increment());
+        new ExecutorServiceMetrics(executor, "replication", List.of()).bindTo(meterRegistry);
+    }
+
+    /**
+     * Returns where this node keeps the content stored under a name.
+     */
+    public Path localCopy(String filename) {
+        return ShardedLayout.resolve(storageRoot, filename);
+    }
+
+    /**
+     * Queues copies of a stored file to its other owners. Returns immediately.
+     */
+    public void replicate(String filename) {
+        if (!cluster.isEnabled()) {
+            return;
+        }
+        for (ClusterNode node : cluster.owners(filename)) {
+            if (!node.equals(cluster.self())) {
+                executor.execute(() -> push(node, filename));
+            }
+        }
+    }
+
+    /**
+     * Queues the removal of the copies of a file held by other nodes. Returns immediately.
+     */
+    public void dropReplicas(String filename) {
+        if (!cluster.isEnabled()) {
+            return;
+        }
+        // Any node may hold a copy, e.g. one made by a read it did not own
+        for (ClusterNode node : cluster.nodes()) {
+            if (!node.equals(cluster.self())) {
+                executor.execute(() -> {
+                    try {
+                        client.delete(node, filename);
+                    } catch (IOException ex) {
+                        failedCounter.increment();
+                        log.debug("Could not remove {} from {}: {}", filename, node.id(), ex.toString());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Copies the content of a file from a node that has it to this one, owners first. Blocks
+     * until the copy is complete.
+     *
+     * @return The local copy, or null if no node could provide it
+     */
+    public Path fetch(FileEntity fileEntity) {
+        if (!cluster.isEnabled()) {
+            return null;
+        }
+        String filename = fileEntity.getFilename();
+        List<ClusterNode> sources = new ArrayList<>(cluster.owners(filename));
+        cluster.nodes().stream().filter(node -> !sources.contains(node)).forEach(sources::add);
+        sources.remove(cluster.self());
+
+        Path target = localCopy(filename);
+        for (ClusterNode node : sources) {
+            Path temp = null;
+            try {
+                Files.createDirectories(target.getParent());
+                // Unique, since concurrent reads may fetch the same file
+                temp = Files.createTempFile(target.getParent(), filename + ".", DurableFiles.TEMP_SUFFIX);
+                if (client.pull(node, filename, temp)) {
+                    DurableFiles.moveIntoPlace(temp, target);
+                    log.debug("Fetched {} from {}", filename, node.id());
+                    return target;
+                }
+            } catch (IOException ex) {
+                log.debug("Could not fetch {} from {}: {}", filename, node.id(), ex.toString());
+            } finally {
+                deleteQuietly(temp);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores content sent by another node under its name, replacing any existing copy.
+     *
+     * @return The local copy
+     */
+    public Path receive(String filename, InputStream content) throws IOException {
+        Path target = localCopy(filename);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), filename + ".", DurableFiles.TEMP_SUFFIX);
+        try {
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            DurableFiles.moveIntoPlace(temp, target);
+        } finally {
+            deleteQuietly(temp);
+        }
+        return target;
+    }
+
+    /**
+     * Brings this node's copy of a hot file in line with the file's owners, in the background:
+     * an owner without the content fetches it, and a node that is not an owner removes its copy
+     * once all owners hold the file. Called by the reconciler for every row it walks.
+     *
+     * @param hasContent Whether this node has the content
+     */
+    public void reconcile(FileEntity fileEntity, boolean hasContent) {
+        String filename = fileEntity.getFilename();
+        boolean owner = cluster.isOwner(filename);
+        if (owner && !hasContent) {
+            executor.execute(() -> {
+                if (!Files.exists(localCopy(filename)) && fetch(fileEntity) != null) {
+                    repairedCounter.increment();
+                }
+            });
+        } else if (!owner && hasContent) {
+            executor.execute(() -> handOff(filename));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void push(ClusterNode node, String filename) {
+        try {
+            client.push(node, filename, localCopy(filename));
+            replicatedCounter.increment();
+        } catch (FileNotFoundException | NoSuchFileException ex) {
+            // Deleted meanwhile
+        } catch (IOException ex) {
+            failedCounter.increment();
+            log.debug("Could not copy {} to {}: {}", filename, node.id(), ex.toString());
+        }
+    }
+
+    private void handOff(String filename) {
+        try {
+            for (ClusterNode node : cluster.owners(filename)) {
+                if (!client.has(node, filename)) {
+                    // The owner fetches it from here on its own walk
+                    return;
+                }
+            }
+            if (Files.deleteIfExists(localCopy(filename))) {
+                handedOffCounter.increment();
+                log.debug("Removed {}, which its owners all hold", filename);
+            }
+        } catch (IOException ex) {
+            log.debug("Could not hand off {}: {}", filename, ex.toString());
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Could not delete {}", file, ex);
+        }
+    }
+}
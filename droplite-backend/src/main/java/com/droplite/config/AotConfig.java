@@ -0,0 +1,37 @@
+package com.droplite.config;
+
+import com.droplite.model.ArchiveRequest;
+import com.droplite.model.BatchItemResult;
+import com.droplite.model.FileChange;
+import com.droplite.model.FilePage;
+import com.droplite.model.FileSummary;
+import com.droplite.model.SearchResults;
+import com.droplite.model.UploadStatus;
+import com.droplite.model.UsageReport;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
+
+/**
+ * Reflection hints for the ahead-of-time build ({@code -Paot}). Spring AOT derives most hints
+ * itself; these cover types it cannot see being used reflectively, so that a GraalVM native
+ * image keeps them. The hints have no effect on a regular JVM.
+ */
+@Configuration(proxyBeanMethods = false)
+@RegisterReflectionForBinding({FileSummary.class, FilePage.class, BatchItemResult.class,
+        UploadStatus.class, ArchiveRequest.class, SearchResults.class, UsageReport.class, FileChange.class})
+@ImportRuntimeHints(AotConfig.DropliteRuntimeHints.class)
+public class AotConfig {
+
+    static class DropliteRuntimeHints implements RuntimeHintsRegistrar {
+
+        @Override
+        public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+            // Listing queries select FileSummary through a JPQL constructor expression
+            hints.reflection().registerType(FileSummary.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.droplite.config;
+
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.storage.S3StorageBackend;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.StringUtils;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+import java.net.URI;
+import java.nio.file.Paths;
+
+@Configuration
+public class StorageConfig {
+
+    /**
+     * Bounded pool for blocking disk I/O that runs in parallel with the request thread,
+     * such as the per-file writes of a batch upload.
+     */
+    @Bean("storageExecutor")
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public ThreadPoolTaskExecutor storageExecutor(@Value("${file.storage.io-threads:8}") int ioThreads) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(ioThreads);
+        executor.setMaxPoolSize(ioThreads);
+        executor.setThreadNamePrefix("storage-io-");
+        return executor;
+    }
+
+    /**
+     * With {@code spring.threads.virtual.enabled} (Java 21), storage I/O runs on a fresh virtual
+     * thread per task instead of a fixed pool; the concurrency limit only guards the disk
+     * against unbounded parallelism from a single batch.
+     */
+    @Bean("storageExecutor")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public SimpleAsyncTaskExecutor virtualStorageExecutor(@Value("${file.storage.io-concurrency:64}") int ioConcurrency) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("storage-io-");
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(ioConcurrency);
+        return executor;
+    }
+
+    /**
+     * The hot tier: the local upload directory that new files are written to and downloads
+     * are served from. Everything else the application stores on disk (staging, blobs,
+     * derivatives) lives underneath it.
+     */
+    @Bean
+    @Primary
+    public LocalStorageBackend hotStorage(@Value("${file.storage.upload-dir:uploads}") String uploadDir) {
+        return new LocalStorageBackend(Paths.get(uploadDir));
+    }
+
+    /**
+     * A cold tier on another local directory, typically a larger and slower disk or a network
+     * mount.
+     */
+    @Bean("coldStorage")
+    @ConditionalOnProperty(name = "file.storage.cold.type", havingValue = "local")
+    public LocalStorageBackend localColdStorage(@Value("${file.storage.cold.dir:uploads-cold}") String coldDir) {
+        return new LocalStorageBackend(Paths.get(coldDir));
+    }
+
+    /**
+     * A cold tier in an S3-compatible object store. Set {@code file.storage.s3.endpoint} for
+     * anything other than AWS, e.g. {@code http://minio:9000}; path-style access is the default
+     * since most S3-compatible stores need it.
+     */
+    @Bean("coldStorage")
+    @ConditionalOnProperty(name = "file.storage.cold.type", havingValue = "s3")
+    public S3StorageBackend s3ColdStorage(@Value("${file.storage.s3.bucket}") String bucket,
+                                          @Value("${file.storage.s3.prefix:}") String prefix,
+                                          @Value("${file.storage.s3.endpoint:}") String endpoint,
+                                          @Value("${file.storage.s3.region:us-east-1}") String region,
+                                          @Value("${file.storage.s3.access-key:}") String accessKey,
+                                          @Value("${file.storage.s3.secret-key:}") String secretKey,
+                                          @Value("${file.storage.s3.path-style:true}") boolean pathStyle) {
+        S3ClientBuilder builder = S3Client.builder()
+                .region(Region.of(region))
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(pathStyle).build());
+        if (StringUtils.hasText(endpoint)) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        // Without explicit keys the SDK looks in the environment, profiles and instance roles
+        builder.credentialsProvider(StringUtils.hasText(accessKey)
+                ? StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey))
+                : DefaultCredentialsProvider.create());
+        return new S3StorageBackend(builder.build(), bucket, prefix);
+    }
+}
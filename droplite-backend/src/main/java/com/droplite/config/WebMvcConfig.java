@@ -1,13 +1,20 @@
 package com.droplite.config;
 
+import com.droplite.cluster.ClusterRoutingInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
 public class WebMvcConfig implements WebMvcConfigurer {
 
+    private final ClusterRoutingInterceptor clusterRoutingInterceptor;
+
+    public WebMvcConfig(ClusterRoutingInterceptor clusterRoutingInterceptor) {
+        this.clusterRoutingInterceptor = clusterRoutingInterceptor;
+    }
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
@@ -18,9 +25,10 @@ public class WebMvcConfig implements WebMvcConfigurer {
     }
 
     @Override
-    public void addResourceHandlers(ResourceHandlerRegistry registry) {
-        // Serve uploaded files
-        registry.addResourceHandler("/uploads/**")
-                .addResourceLocations("file:uploads/");
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Requests for the content of one file or upload, which may be held by another node
+        registry.addInterceptor(clusterRoutingInterceptor)
+                .addPathPatterns("/files/download/*", "/files/view/*", "/files/*/thumbnail", "/files/*/preview",
+                        "/files/uploads/**");
     }
 }
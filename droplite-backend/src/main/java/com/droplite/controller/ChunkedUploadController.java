@@ -0,0 +1,83 @@
+package com.droplite.controller;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.UploadStatus;
+import com.droplite.quota.UsageTracker;
+import com.droplite.service.ChunkedUploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Resumable upload API for large files.
+ *
+ * <pre>
+ * POST   /files/uploads?filename=&amp;size=          - Initiate an upload session
+ * PUT    /files/uploads/{uploadId}?offset=       - Upload one chunk (raw request body)
+ * GET    /files/uploads/{uploadId}               - Get the chunks still missing
+ * POST   /files/uploads/{uploadId}/complete      - Register the assembled file
+ * DELETE /files/uploads/{uploadId}               - Abort the upload
+ * </pre>
+ *
+ * <p>Chunk bodies are read directly from the servlet input stream rather than through
+ * multipart parsing, so they are not subject to the multipart size limits.</p>
+ */
+@RestController
+@RequestMapping("/files/uploads")
+@RequiredArgsConstructor
+public class ChunkedUploadController {
+
+    private final ChunkedUploadService chunkedUploadService;
+
+    @PostMapping
+    public ResponseEntity<UploadStatus> initiateUpload(@RequestParam String filename,
+                                                       @RequestParam long size,
+                                                       @RequestHeader(value = UsageTracker.OWNER_HEADER, required = false)
+                                                       String owner) {
+        UploadStatus status = chunkedUploadService.initiate(filename, size, UsageTracker.ownerOf(owner));
+        URI location = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQuery(null)
+                .path("/{uploadId}")
+                .buildAndExpand(status.uploadId())
+                .toUri();
+        return ResponseEntity.created(location).body(status);
+    }
+
+    /**
+     * Streams one chunk from the request body into the upload's part file.
+     * @param uploadId The ID of the upload session
+     * @param offset The byte offset of the chunk within the file
+     * @return The status of the session after the chunk was written
+     */
+    @PutMapping("/{uploadId}")
+    public ResponseEntity<UploadStatus> uploadChunk(@PathVariable String uploadId,
+                                                    @RequestParam long offset,
+                                                    HttpServletRequest request) throws IOException {
+        UploadStatus status = chunkedUploadService.writeChunk(
+                uploadId, offset, request.getContentLengthLong(), request.getInputStream());
+        return ResponseEntity.ok(status);
+    }
+
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<UploadStatus> getUploadStatus(@PathVariable String uploadId) {
+        return ResponseEntity.ok(chunkedUploadService.getStatus(uploadId));
+    }
+
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<FileEntity> completeUpload(@PathVariable String uploadId) {
+        FileEntity fileEntity = chunkedUploadService.complete(uploadId);
+        return ResponseEntity.status(HttpStatus.CREATED).body(fileEntity);
+    }
+
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable String uploadId) {
+        chunkedUploadService.abort(uploadId);
+        return ResponseEntity.noContent().build();
+    }
+}
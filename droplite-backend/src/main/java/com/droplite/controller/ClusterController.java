@@ -0,0 +1,109 @@
+package com.droplite.controller;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
+import com.droplite.exception.BadRequestException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.repository.FileRepository;
+import com.droplite.search.SearchIndex;
+import com.droplite.service.DerivativePipeline;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Copies of stored content exchanged between the nodes of a cluster, addressed by stored
+ * filename.
+ *
+ * <pre>
+ * GET    /internal/cluster/files/{filename}  - Read this node's copy
+ * HEAD   /internal/cluster/files/{filename}  - Whether this node has a copy
+ * PUT    /internal/cluster/files/{filename}  - Store a copy (raw request body)
+ * DELETE /internal/cluster/files/{filename}  - Remove this node's copy and derivatives
+ * </pre>
+ *
+ * <p>Only requests from other nodes are served; to anyone else these endpoints do not exist.</p>
+ */
+@RestController
+@RequestMapping("/internal/cluster/files")
+@RequiredArgsConstructor
+public class ClusterController {
+
+    // A name from Cluster#newLocalId, plus the extension of the upload
+    private static final Pattern STORED_FILENAME = Pattern.compile("[0-9a-f-]{36}(\\.[^/\\\\]+)?");
+
+    private final Cluster cluster;
+    private final Replicator replicator;
+    private final FileRepository fileRepository;
+    private final SearchIndex searchIndex;
+    private final DerivativePipeline derivativePipeline;
+
+    @GetMapping("/{filename}")
+    public void getCopy(@PathVariable String filename, HttpServletRequest request,
+                        HttpServletResponse response) throws IOException {
+        Path copy = localCopy(filename, request);
+        if (!Files.isReadable(copy)) {
+            throw new ResourceNotFoundException("No copy of " + filename);
+        }
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(Files.size(copy));
+        Files.copy(copy, response.getOutputStream());
+    }
+
+    @RequestMapping(value = "/{filename}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> hasCopy(@PathVariable String filename, HttpServletRequest request) {
+        return Files.isReadable(localCopy(filename, request))
+                ? ResponseEntity.ok().build()
+                : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Stores a copy of a file. Content of files that do not exist, or no longer do, is not
+     * kept, so a copy arriving after a delete does not outlive it.
+     */
+    @PutMapping("/{filename}")
+    public ResponseEntity<Void> putCopy(@PathVariable String filename,
+                                        HttpServletRequest request) throws IOException {
+        Path copy = localCopy(filename, request);
+        if (!fileRepository.existsByFilename(filename)) {
+            throw new ResourceNotFoundException("No file is stored as " + filename);
+        }
+        replicator.receive(filename, request.getInputStream());
+
+        FileEntity fileEntity = fileRepository.findByFilename(filename).orElse(null);
+        if (fileEntity == null) {
+            // Deleted while the copy was received
+            Files.deleteIfExists(copy);
+            throw new ResourceNotFoundException("No file is stored as " + filename);
+        }
+        searchIndex.submit(fileEntity);
+        return ResponseEntity.noContent().build();
+    }
+
+    @DeleteMapping("/{filename}")
+    public ResponseEntity<Void> deleteCopy(@PathVariable String filename,
+                                           HttpServletRequest request) throws IOException {
+        Files.deleteIfExists(localCopy(filename, request));
+        derivativePipeline.deleteDerivatives(filename);
+        return ResponseEntity.noContent().build();
+    }
+
+    private Path localCopy(String filename, HttpServletRequest request) {
+        if (!cluster.isPeerRequest(request)) {
+            throw new ResourceNotFoundException("Not found");
+        }
+        if (!STORED_FILENAME.matcher(filename).matches()) {
+            throw new BadRequestException("Invalid stored filename: " + filename);
+        }
+        return replicator.localCopy(filename);
+    }
+}
@@ -1,48 +1,90 @@
 package com.droplite.controller;
 
+import com.droplite.changes.ChangeFeed;
+import com.droplite.exception.BadRequestException;
 import com.droplite.exception.FileStorageException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.ArchiveRequest;
+import com.droplite.model.BatchItemResult;
+import com.droplite.model.DerivativeKind;
 import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FilePage;
+import com.droplite.model.FileSummary;
+import com.droplite.model.SearchResults;
+import com.droplite.model.UsageReport;
+import com.droplite.quota.UsageTracker;
+import com.droplite.search.SearchIndex;
+import com.droplite.service.DerivativePipeline;
+import com.droplite.service.FileContentCache;
 import com.droplite.service.FileStorageService;
+import com.droplite.util.FileResponseWriter;
 import com.droplite.util.FileValidator;
+import com.droplite.util.ZipArchiveWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.Resource;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @RestController
 @RequestMapping("/files")
 @RequiredArgsConstructor
 public class FileController {
 
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-fA-F]{64}");
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int MAX_ARCHIVE_SIZE = 10000;
+    private static final int MAX_SEARCH_PAGE_SIZE = 100;
+    // Deeper pages get slower and are rarely useful; refine the query instead
+    private static final int MAX_SEARCH_WINDOW = 10000;
+
     private final FileStorageService fileStorageService;
+    private final FileContentCache fileContentCache;
+    private final FileResponseWriter fileResponseWriter;
+    private final DerivativePipeline derivativePipeline;
+    private final ZipArchiveWriter zipArchiveWriter;
+    private final FileValidator fileValidator;
+    private final SearchIndex searchIndex;
+    private final UsageTracker usageTracker;
+    private final ChangeFeed changeFeed;
+    private final ObjectMapper objectMapper;
 
     /**
-     * Handles file upload with validation
+     * Handles file upload with validation. The type is checked against the content while the
+     * file is stored.
      * @param file The file to be uploaded
+     * @param owner The owner of the file, from the {@code X-Owner} header
      * @return ResponseEntity containing the saved file metadata
      * @throws FileStorageException if file validation fails
+     * @throws QuotaExceededException if the file would exceed a storage quota
      */
     @PostMapping("/upload")
-    public ResponseEntity<FileEntity> uploadFile(@RequestParam("file") MultipartFile file) {
-        // Validate file type against allowed extensions
-        if (!FileValidator.isValidFileType(file)) {
-            throw new FileStorageException("File type not allowed. Allowed types: " + 
-                String.join(", ", FileValidator.getAllowedExtensions()));
-        }
-
+    public ResponseEntity<FileEntity> uploadFile(@RequestParam("file") MultipartFile file,
+                                                 @RequestHeader(value = UsageTracker.OWNER_HEADER, required = false)
+                                                 String owner) {
         // Check if file size is within limits
-        if (!FileValidator.isValidFileSize(file)) {
+        if (!fileValidator.isValidFileSize(file)) {
             throw new FileStorageException("File size exceeds the maximum limit (10MB)");
         }
 
         try {
-            FileEntity fileEntity = fileStorageService.store(file);
+            FileEntity fileEntity = fileStorageService.store(file, UsageTracker.ownerOf(owner));
             
             String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
                     .path("/api/files/download/")
@@ -57,60 +99,257 @@ public class FileController {
         }
     }
 
+    /**
+     * Uploads several files in one request. Files are validated and stored independently,
+     * and the response reports the outcome of each one in request order.
+     * @param files The files to be uploaded
+     * @param owner The owner of the files, from the {@code X-Owner} header
+     * @return ResponseEntity containing one result per file
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<List<BatchItemResult>> uploadFiles(@RequestParam("files") List<MultipartFile> files,
+                                                             @RequestHeader(value = UsageTracker.OWNER_HEADER, required = false)
+                                                             String owner) {
+        if (files.isEmpty() || files.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("A batch must contain between 1 and " + MAX_BATCH_SIZE + " files");
+        }
+        return ResponseEntity.ok(fileStorageService.storeAll(files, UsageTracker.ownerOf(owner)));
+    }
+
+    /**
+     * Deletes several files in one request.
+     * @param ids The IDs of the files to delete
+     * @return ResponseEntity containing one result per ID
+     */
+    @DeleteMapping("/batch")
+    public ResponseEntity<List<BatchItemResult>> deleteFiles(@RequestBody List<Long> ids) {
+        if (ids.isEmpty() || ids.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("A batch must contain between 1 and " + MAX_BATCH_SIZE + " ids");
+        }
+        return ResponseEntity.ok(fileStorageService.deleteAll(ids));
+    }
+
+    /**
+     * Registers a file by the SHA-256 of its content, skipping the upload of the body when the
+     * server already stores identical content. Responds with 404 when the content is unknown,
+     * in which case the client falls back to a regular upload.
+     * @param sha256 The hex SHA-256 of the file content
+     * @param filename The original filename
+     * @param owner The owner of the file, from the {@code X-Owner} header
+     * @return ResponseEntity containing the saved file metadata
+     */
+    @PostMapping("/dedup")
+    public ResponseEntity<FileEntity> uploadByDigest(@RequestParam String sha256,
+                                                     @RequestParam String filename,
+                                                     @RequestHeader(value = UsageTracker.OWNER_HEADER, required = false)
+                                                     String owner) {
+        if (!SHA256_HEX.matcher(sha256).matches()) {
+            throw new BadRequestException("sha256 must be 64 hexadecimal characters");
+        }
+
+        FileEntity fileEntity = fileStorageService.storeByDigest(sha256, filename, UsageTracker.ownerOf(owner));
+        
+        String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/files/download/")
+                .path(fileEntity.getId().toString())
+                .toUriString();
+        
+        fileEntity.setPath(fileDownloadUri);
+        
+        return ResponseEntity.ok(fileEntity);
+    }
+
+    /**
+     * Lists the newest {@value #MAX_PAGE_SIZE} files. Kept for existing clients; it no longer
+     * returns every file, nor their storage paths. Use {@code /files/page} to list them all,
+     * or {@code /files/export} to stream them.
+     * @return ResponseEntity containing the metadata of the newest files
+     */
     @GetMapping
-    public ResponseEntity<List<FileEntity>> getAllFiles() {
-        List<FileEntity> files = fileStorageService.getAllFiles();
-        return ResponseEntity.ok(files);
+    public ResponseEntity<List<FileSummary>> getAllFiles() {
+        FileFilter noFilter = new FileFilter(null, null, null, null, null, null);
+        return ResponseEntity.ok(fileStorageService.listFiles(noFilter, null, MAX_PAGE_SIZE).items());
     }
 
+    /**
+     * Lists files newest first, one page at a time. Pass the returned {@code nextCursor}
+     * back as {@code cursor} to fetch the following page.
+     * @param cursor Cursor from the previous page; omitted for the first page
+     * @param limit Page size, between 1 and {@value #MAX_PAGE_SIZE}
+     * @return ResponseEntity containing the page and the cursor of the next one
+     */
+    @GetMapping("/page")
+    public ResponseEntity<FilePage> getFilePage(@RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "50") int limit,
+                                                @RequestParam(required = false) String contentType,
+                                                @RequestParam(required = false) Long minSize,
+                                                @RequestParam(required = false) Long maxSize,
+                                                @RequestParam(required = false)
+                                                @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdFrom,
+                                                @RequestParam(required = false)
+                                                @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdTo,
+                                                @RequestParam(required = false) String q) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        FileFilter filter = new FileFilter(contentType, minSize, maxSize, createdFrom, createdTo, q);
+        return ResponseEntity.ok(fileStorageService.listFiles(filter, cursor, limit));
+    }
+
+    /**
+     * Reports the storage used by the requesting owner and by all owners, with their quotas.
+     * Served from running totals, so it takes the same time however many files are stored.
+     * @param owner The owner to report, from the {@code X-Owner} header
+     * @return ResponseEntity containing the usage
+     */
+    @GetMapping("/usage")
+    public ResponseEntity<UsageReport> getUsage(@RequestHeader(value = UsageTracker.OWNER_HEADER, required = false)
+                                                String owner) {
+        String resolved = UsageTracker.ownerOf(owner);
+        return ResponseEntity.ok(new UsageReport(resolved, usageTracker.usage(resolved), usageTracker.totalUsage()));
+    }
+
+    /**
+     * Streams the files created and deleted as server-sent events: {@code created} events carry
+     * the file's metadata, {@code deleted} events its ID. A new subscriber first receives a
+     * {@code ready} event and should fetch the listing after it. A {@code reset} event means
+     * that changes were missed, and the listing has to be fetched again.
+     * @param lastEventId The ID of the last event received, sent by a reconnecting browser
+     * @param after The same for clients that cannot set the header
+     */
+    @GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public void streamChanges(@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                              @RequestParam(required = false) Long after,
+                              HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        if (lastEventId != null && !lastEventId.isBlank()) {
+            try {
+                after = Long.valueOf(lastEventId.trim());
+            } catch (NumberFormatException ex) {
+                throw new BadRequestException("Invalid Last-Event-ID: " + lastEventId);
+            }
+        }
+        // Streams the events asynchronously; idle and slow subscribers hold no server thread
+        changeFeed.subscribe(request, response, after);
+    }
+
+    /**
+     * Searches filenames and the content of text and JSON files, best matches first. Each hit
+     * carries a highlighted snippet of the content where it matched. Files become searchable
+     * about a second after they are uploaded.
+     * @param q The query; see {@link SearchIndex#search} for the syntax
+     * @param offset Number of hits to skip
+     * @param limit Page size, between 1 and {@value #MAX_SEARCH_PAGE_SIZE}
+     * @return ResponseEntity containing the page of hits and the total number of matches
+     */
+    @GetMapping("/search")
+    public ResponseEntity<SearchResults> searchFiles(@RequestParam String q,
+                                                     @RequestParam(defaultValue = "0") int offset,
+                                                     @RequestParam(defaultValue = "20") int limit) throws IOException {
+        if (!searchIndex.isEnabled()) {
+            throw new ResourceNotFoundException("Search is not enabled");
+        }
+        if (q.isBlank()) {
+            throw new BadRequestException("q must not be blank");
+        }
+        if (limit < 1 || limit > MAX_SEARCH_PAGE_SIZE) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_SEARCH_PAGE_SIZE);
+        }
+        if (offset < 0 || offset + limit > MAX_SEARCH_WINDOW) {
+            throw new BadRequestException("Only the first " + MAX_SEARCH_WINDOW + " hits can be paged through");
+        }
+        return ResponseEntity.ok(searchIndex.search(q, offset, limit));
+    }
+
+    /**
+     * Exports the metadata of all matching files as newline-delimited JSON. Rows are streamed
+     * from the database to the response, so the export size is not bounded by memory.
+     */
+    @GetMapping(value = "/export", produces = "application/x-ndjson")
+    public void exportFiles(@RequestParam(required = false) String contentType,
+                            @RequestParam(required = false) Long minSize,
+                            @RequestParam(required = false) Long maxSize,
+                            @RequestParam(required = false)
+                            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdFrom,
+                            @RequestParam(required = false)
+                            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdTo,
+                            @RequestParam(required = false) String q,
+                            HttpServletResponse response) throws IOException {
+        FileFilter filter = new FileFilter(contentType, minSize, maxSize, createdFrom, createdTo, q);
+        response.setContentType("application/x-ndjson");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.ndjson\"");
+
+        try (SequenceWriter writer = objectMapper.writer()
+                .withRootValueSeparator("\n")
+                .writeValues(response.getOutputStream())) {
+            fileStorageService.exportFiles(filter, summary -> {
+                try {
+                    writer.write(summary);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Downloads several files as one ZIP archive, streamed to the client while the files are
+     * read. The metadata of all files is loaded with one query up front, so unknown IDs are
+     * rejected before the response starts.
+     * @param request The IDs of the files, or a filter selecting up to {@value #MAX_ARCHIVE_SIZE} files
+     */
+    @PostMapping(value = "/archive", produces = "application/zip")
+    public void downloadArchive(@RequestBody ArchiveRequest request, HttpServletResponse response) throws IOException {
+        List<FileEntity> files;
+        if (request.ids() != null && !request.ids().isEmpty()) {
+            if (request.ids().size() > MAX_BATCH_SIZE) {
+                throw new BadRequestException("An archive can list at most " + MAX_BATCH_SIZE + " ids");
+            }
+            files = fileStorageService.getFilesById(request.ids());
+        } else {
+            // Fetch one extra row to learn whether the filter matches too many files
+            files = fileStorageService.findFiles(request.filter(), MAX_ARCHIVE_SIZE + 1);
+            if (files.size() > MAX_ARCHIVE_SIZE) {
+                throw new BadRequestException("The filter matches more than " + MAX_ARCHIVE_SIZE + " files");
+            }
+        }
+
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"");
+        zipArchiveWriter.write(files, response.getOutputStream());
+    }
+
+    /**
+     * Serves a file as an attachment. Supports conditional requests and single or multiple
+     * byte ranges, so interrupted downloads can resume where they stopped.
+     * @param id The ID of the file to download
+     */
     @GetMapping("/download/{id}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable Long id, HttpServletResponse response) {
-        Resource resource = fileStorageService.loadAsResource(id);
+    public void downloadFile(@PathVariable Long id, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        FileEntity fileEntity = fileStorageService.getFileById(id);
+        Path file = fileStorageService.getContentPath(fileEntity);
         
-        String contentType = "application/octet-stream";
-        String headerValue = "attachment; filename=\"" + resource.getFilename() + "\"";
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileEntity.getFilename() + "\"");
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, headerValue)
-                .body(resource);
+        fileResponseWriter.write(request, response, fileEntity, file, headers);
     }
 
     /**
-     * Serves file content with appropriate content type for inline viewing
+     * Serves file content with appropriate content type for inline viewing. Range requests
+     * are supported so that media can be scrubbed without re-sending the whole file.
      * @param id The ID of the file to view
-     * @return ResponseEntity containing the file resource with proper headers
      */
     @GetMapping("/view/{id}")
-    public ResponseEntity<Resource> viewFile(@PathVariable Long id) {
-        // Retrieve file metadata and content
+    public void viewFile(@PathVariable Long id, HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        // Retrieve file metadata
         FileEntity fileEntity = fileStorageService.getFileById(id);
-        Resource resource = fileStorageService.loadFileContent(id);
-        
-        // Initialize content type from file metadata
-        String contentType = fileEntity.getContentType();
-        String filename = fileEntity.getFilename().toLowerCase();
-        
-        // Override content types for text-based formats to ensure proper browser rendering
-        // and set charset to UTF-8 for proper character encoding
-        if (filename.endsWith(".txt")) {
-            contentType = "text/plain; charset=utf-8";
-        } else if (filename.endsWith(".json")) {
-            contentType = "application/json; charset=utf-8";
-        } else if (filename.endsWith(".csv")) {
-            contentType = "text/csv; charset=utf-8";
-        } else if (filename.endsWith(".xml")) {
-            contentType = "application/xml; charset=utf-8";
-        } else if (filename.endsWith(".html")) {
-            contentType = "text/html; charset=utf-8";
-        } else if (filename.endsWith(".css")) {
-            contentType = "text/css; charset=utf-8";
-        } else if (filename.endsWith(".js")) {
-            contentType = "application/javascript; charset=utf-8";
-        }
         
         HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType(contentType));
+        headers.setContentType(fileValidator.viewMediaType(fileEntity));
         headers.set("Content-Disposition", "inline; filename=\"" + fileEntity.getOriginalFilename() + "\"");
         
         // CORS headers for cross-origin embedding
@@ -118,7 +357,45 @@ public class FileController {
         headers.set("Access-Control-Allow-Methods", "GET, OPTIONS");
         headers.set("Access-Control-Allow-Headers", "Content-Type, Authorization");
         
-        return new ResponseEntity<>(resource, headers, HttpStatus.OK);
+        // Small, popular files are served from memory when the content cache is enabled; the
+        // content is only located (and possibly promoted or fetched) on a miss
+        FileContentCache.CachedContent cached = fileContentCache.getIfPresent(fileEntity);
+        if (cached != null) {
+            fileStorageService.recordAccess(fileEntity);
+            fileResponseWriter.write(request, response, fileEntity, cached.buffer(), cached.lastModified(), headers);
+            return;
+        }
+        Path file = fileStorageService.getContentPath(fileEntity);
+        cached = fileContentCache.admit(fileEntity, file);
+        if (cached != null) {
+            fileResponseWriter.write(request, response, fileEntity, cached.buffer(), cached.lastModified(), headers);
+        } else {
+            fileResponseWriter.write(request, response, fileEntity, file, headers);
+        }
+    }
+
+    /**
+     * Serves the thumbnail or preview generated from an image. Derivatives never change once
+     * generated, so they may be cached for a year. Until generation has finished, and for
+     * images too small to need a preview, the response is 404.
+     * @param id The ID of the image file
+     * @param kind {@code thumbnail} or {@code preview}
+     */
+    @GetMapping("/{id}/{kind:thumbnail|preview}")
+    public void getDerivative(@PathVariable Long id, @PathVariable String kind, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        Path file = derivativePipeline.find(id, DerivativeKind.valueOf(kind.toUpperCase(Locale.ROOT)))
+                .orElseThrow(() -> new ResourceNotFoundException("No " + kind + " available for file " + id));
+
+        // Describes the derivative rather than the original for the ETag and download metrics
+        FileEntity derivative = new FileEntity();
+        derivative.setId(id);
+        derivative.setContentType(MediaType.IMAGE_JPEG_VALUE);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.IMAGE_JPEG);
+        headers.setCacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable());
+        fileResponseWriter.write(request, response, derivative, file, headers);
     }
 
     @DeleteMapping("/{id}")
@@ -0,0 +1,25 @@
+package com.droplite.model;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Files to put in a ZIP archive: either explicit IDs, or every file matching the filter
+ * fields, which have the same meaning as the listing parameters.
+ *
+ * @param ids IDs of the files, in archive order; when present the filter fields are ignored
+ */
+public record ArchiveRequest(
+        List<Long> ids,
+        String contentType,
+        Long minSize,
+        Long maxSize,
+        LocalDateTime createdFrom,
+        LocalDateTime createdTo,
+        String q
+) {
+
+    public FileFilter filter() {
+        return new FileFilter(contentType, minSize, maxSize, createdFrom, createdTo, q);
+    }
+}
@@ -0,0 +1,21 @@
+package com.droplite.model;
+
+/**
+ * Outcome of one item of a batch upload or delete. Items succeed or fail independently.
+ *
+ * @param id       ID of the file, if it is known
+ * @param filename Original filename of the uploaded file, if it is known
+ * @param success  Whether the item was stored or deleted
+ * @param file     The stored or deleted file's metadata, on success
+ * @param error    Reason of the failure, otherwise
+ */
+public record BatchItemResult(Long id, String filename, boolean success, FileEntity file, String error) {
+
+    public static BatchItemResult succeeded(FileEntity file) {
+        return new BatchItemResult(file.getId(), file.getOriginalFilename(), true, file, null);
+    }
+
+    public static BatchItemResult failed(Long id, String filename, String error) {
+        return new BatchItemResult(id, filename, false, null, error);
+    }
+}
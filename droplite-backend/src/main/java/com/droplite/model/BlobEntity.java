@@ -0,0 +1,34 @@
+package com.droplite.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+/**
+ * A content-addressed blob shared by every {@link FileEntity} with the same SHA-256 digest.
+ * The blob file is unlinked when the last referencing file is deleted.
+ */
+@Entity
+@Table(name = "blobs")
+@Data
+public class BlobEntity {
+
+    @Id
+    @Column(length = 64)
+    private String digest;
+
+    @Column(nullable = false)
+    private String path;
+
+    @Column(nullable = false)
+    private Long size;
+
+    @Column(name = "ref_count", nullable = false)
+    private Long refCount;
+
+    @CreationTimestamp
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,22 @@
+package com.droplite.model;
+
+import java.util.Locale;
+
+/**
+ * Kinds of artifacts derived from an uploaded image.
+ */
+public enum DerivativeKind {
+
+    /** Small fixed-size image for file listings */
+    THUMBNAIL,
+
+    /** Downscaled, web-optimised image for previews; only made for images larger than it */
+    PREVIEW;
+
+    /**
+     * The lower-case name used in URLs and derived filenames.
+     */
+    public String slug() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,17 @@
+package com.droplite.model;
+
+/**
+ * An event of the change feed ({@code GET /files/changes}).
+ *
+ * @param sequence Position of the change in the feed; later changes have higher numbers
+ * @param type     What happened to the file
+ * @param id       The ID of the file
+ * @param file     The metadata of a created file; null for a deleted one
+ */
+public record FileChange(long sequence, Type type, Long id, FileSummary file) {
+
+    public enum Type {
+        CREATED,
+        DELETED
+    }
+}
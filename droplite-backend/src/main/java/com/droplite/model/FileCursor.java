@@ -0,0 +1,43 @@
+package com.droplite.model;
+
+import com.droplite.exception.BadRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Keyset position in the file listing, which is ordered by {@code (created_at, id)}
+ * descending. Encoded as an opaque URL-safe token for clients.
+ *
+ * @param createdAt Creation time of the last file on the previous page
+ * @param id        ID of the last file on the previous page
+ */
+public record FileCursor(LocalDateTime createdAt, Long id) {
+
+    public static FileCursor after(FileSummary last) {
+        return new FileCursor(last.createdAt(), last.id());
+    }
+
+    public String encode() {
+        String raw = createdAt + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a token produced by {@link #encode()}.
+     *
+     * @throws BadRequestException If the token is malformed
+     */
+    public static FileCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            return new FileCursor(LocalDateTime.parse(raw.substring(0, separator)),
+                    Long.parseLong(raw.substring(separator + 1)));
+        } catch (IllegalArgumentException | DateTimeParseException | IndexOutOfBoundsException ex) {
+            throw new BadRequestException("Invalid cursor: " + token, ex);
+        }
+    }
+}
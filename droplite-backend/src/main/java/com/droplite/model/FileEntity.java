@@ -2,6 +2,7 @@ package com.droplite.model;
 
 import jakarta.persistence.*;
 import lombok.Data;
+import org.hibernate.annotations.ColumnDefault;
 import org.hibernate.annotations.CreationTimestamp;
 
 import java.time.LocalDateTime;
@@ -11,8 +12,10 @@ import java.time.LocalDateTime;
 @Data
 public class FileEntity {
     
+    // Pooled sequence: IDs are handed out 50 at a time, which lets Hibernate batch inserts
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "files_seq")
+    @SequenceGenerator(name = "files_seq", sequenceName = "files_id_seq", allocationSize = 50)
     private Long id;
     
     @Column(nullable = false)
@@ -30,6 +33,35 @@ public class FileEntity {
     @Column(nullable = false)
     private Long size;
     
+    // Who stored the file; storage quotas and usage are accounted per owner
+    @ColumnDefault("'anonymous'")
+    @Column(nullable = false, length = 64)
+    private String owner = "anonymous";
+    
+    // Hex SHA-256 of the content as uploaded; computed while it is written, or by the first scrub
+    // for chunked uploads and files stored before digests were kept
+    @Column(length = 64)
+    private String digest;
+    
+    // Codec of the bytes on disk (e.g. "gzip"); null if stored as uploaded. size is always the original size
+    @Column(name = "content_encoding", length = 16)
+    private String contentEncoding;
+    
+    // True if path points at a shared, reference-counted blob rather than a file of its own
+    @ColumnDefault("false")
+    @Column(nullable = false)
+    private boolean deduplicated;
+    
+    // Where the content is: on local disk (path is a file) or in the cold tier (path is its key)
+    @Enumerated(EnumType.STRING)
+    @ColumnDefault("'HOT'")
+    @Column(name = "storage_tier", nullable = false, length = 8)
+    private StorageTier storageTier = StorageTier.HOT;
+    
+    // Last time the content was read, to the hour; null if never read since tracking began
+    @Column(name = "last_accessed_at")
+    private LocalDateTime lastAccessedAt;
+    
     @CreationTimestamp
     @Column(name = "created_at", nullable = false, updatable = false)
     private LocalDateTime createdAt;
@@ -0,0 +1,23 @@
+package com.droplite.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Optional criteria for listing files. {@code null} fields do not restrict the result.
+ *
+ * @param contentType    Exact MIME type
+ * @param minSize        Minimum size in bytes, inclusive
+ * @param maxSize        Maximum size in bytes, inclusive
+ * @param createdFrom    Earliest upload time, inclusive
+ * @param createdTo      Latest upload time, exclusive
+ * @param filenamePrefix Case-insensitive prefix of the original filename
+ */
+public record FileFilter(
+        String contentType,
+        Long minSize,
+        Long maxSize,
+        LocalDateTime createdFrom,
+        LocalDateTime createdTo,
+        String filenamePrefix
+) {
+}
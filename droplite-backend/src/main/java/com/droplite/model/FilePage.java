@@ -0,0 +1,12 @@
+package com.droplite.model;
+
+import java.util.List;
+
+/**
+ * One page of the file listing.
+ *
+ * @param items      The files on this page, newest first
+ * @param nextCursor Cursor for the following page, or {@code null} on the last page
+ */
+public record FilePage(List<FileSummary> items, String nextCursor) {
+}
@@ -0,0 +1,17 @@
+package com.droplite.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read-only projection of a {@link FileEntity} for listings and exports. Selected directly as
+ * a constructor expression, so listing rows are never loaded as managed entities.
+ */
+public record FileSummary(
+        Long id,
+        String filename,
+        String originalFilename,
+        String contentType,
+        Long size,
+        LocalDateTime createdAt
+) {
+}
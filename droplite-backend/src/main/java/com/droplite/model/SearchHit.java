@@ -0,0 +1,21 @@
+package com.droplite.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * A file matching a search, with the current metadata of the file.
+ *
+ * @param score   Relevance of the match; higher is better
+ * @param snippet HTML-escaped excerpt of the content with the matched terms in {@code <mark>}
+ *                tags, or {@code null} for files whose content is not indexed
+ */
+public record SearchHit(
+        Long id,
+        String originalFilename,
+        String contentType,
+        Long size,
+        LocalDateTime createdAt,
+        float score,
+        String snippet
+) {
+}
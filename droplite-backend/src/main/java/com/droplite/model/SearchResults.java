@@ -0,0 +1,13 @@
+package com.droplite.model;
+
+import java.util.List;
+
+/**
+ * One page of search results.
+ *
+ * @param total      Number of matching files; a lower bound unless {@code totalExact}
+ * @param totalExact Whether {@code total} is the exact count
+ * @param hits       The matches on this page, best first
+ */
+public record SearchResults(long total, boolean totalExact, List<SearchHit> hits) {
+}
@@ -0,0 +1,13 @@
+package com.droplite.model;
+
+/**
+ * Storage tiers a file's content can live in.
+ */
+public enum StorageTier {
+
+    /** Local disk that downloads are served from */
+    HOT,
+
+    /** Cheaper, slower storage for files nobody has read in a while; promoted back on access */
+    COLD
+}
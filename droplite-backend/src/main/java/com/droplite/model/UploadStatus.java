@@ -0,0 +1,26 @@
+package com.droplite.model;
+
+import java.util.List;
+
+/**
+ * Progress of a chunked upload session as reported to the client.
+ *
+ * <p>A client that lost its connection calls the status endpoint and re-sends only the
+ * chunks listed in {@code missingOffsets}.</p>
+ *
+ * @param uploadId       Identifier of the upload session
+ * @param filename       Original filename supplied when the upload was initiated
+ * @param size           Total size of the file in bytes
+ * @param chunkSize      Size of every chunk except the last one
+ * @param receivedBytes  Number of bytes the server has fully written to disk
+ * @param missingOffsets Byte offsets of the chunks that still have to be sent
+ */
+public record UploadStatus(
+        String uploadId,
+        String filename,
+        long size,
+        long chunkSize,
+        long receivedBytes,
+        List<Long> missingOffsets
+) {
+}
@@ -0,0 +1,11 @@
+package com.droplite.model;
+
+/**
+ * Storage used by an owner, or by all owners together.
+ *
+ * @param files Number of stored files
+ * @param bytes Total original size of the stored files
+ * @param quota Bytes that may be stored, or {@code null} if unlimited
+ */
+public record Usage(long files, long bytes, Long quota) {
+}
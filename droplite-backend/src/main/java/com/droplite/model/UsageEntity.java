@@ -0,0 +1,29 @@
+package com.droplite.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Running totals of the files of one owner, or of all files under {@code "*"}. Maintained by
+ * the {@code UsageTracker}, which adds its accumulated changes every few seconds.
+ */
+@Entity
+@Table(name = "storage_usage")
+@Data
+public class UsageEntity {
+
+    @Id
+    @Column(length = 64)
+    private String owner;
+
+    @Column(name = "file_count", nullable = false)
+    private Long fileCount;
+
+    @Column(nullable = false)
+    private Long bytes;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+}
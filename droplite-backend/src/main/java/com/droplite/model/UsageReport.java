@@ -0,0 +1,11 @@
+package com.droplite.model;
+
+/**
+ * Response of {@code GET /files/usage}.
+ *
+ * @param owner The owner the request was made for
+ * @param usage Storage used by that owner
+ * @param total Storage used by all owners
+ */
+public record UsageReport(String owner, Usage usage, Usage total) {
+}
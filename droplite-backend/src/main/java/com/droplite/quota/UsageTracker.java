@@ -0,0 +1,358 @@
+package com.droplite.quota;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.exception.BadRequestException;
+import com.droplite.exception.QuotaExceededException;
+import com.droplite.model.Usage;
+import com.droplite.model.UsageEntity;
+import com.droplite.repository.UsageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Storage used per owner and in total, and the quotas that limit it.
+ *
+ * <p>Usage is never computed from the {@code files} table on a request. Each owner has the
+ * totals last written to the {@code storage_usage} table plus {@link LongAdder}s of the
+ * changes since; uploads and deletes only add to the adders, whose cells are striped across
+ * threads, so concurrent uploads of one owner do not contend. Every
+ * {@code file.quota.flush-interval} the changes are added to the table in one transaction.
+ * Changes are recorded once the row of the file is committed, so they never count files whose
+ * upload failed. Those not yet flushed when the application crashes are lost; the totals are
+ * therefore recounted from the {@code files} table at startup
+ * ({@code file.quota.recount-on-startup}). The recount runs once all beans exist but before
+ * the web server and scheduled jobs start, so no file can be committed between the recount
+ * and the changes it replaces, and none is counted twice.</p>
+ *
+ * <p>In cluster mode every node adds its changes to the same rows. Each flush therefore
+ * reloads the totals from the table, so quotas cover the whole cluster, lagging other nodes
+ * by up to a flush interval. The startup recount is skipped: the other nodes are still
+ * serving, and their unflushed changes would be counted again.</p>
+ *
+ * <p>Uploads are checked against {@code file.quota.per-owner} and {@code file.quota.total}
+ * (0 for unlimited) before any content is written. A checked upload {@link #reserve reserves}
+ * its size until it is stored or fails, so concurrent uploads cannot together overshoot a
+ * quota that each of them would fit on its own.</p>
+ */
+@Slf4j
+@Component
+public class UsageTracker implements SmartInitializingSingleton {
+
+    /** Request header naming the owner of uploaded files; set by an authenticating proxy */
+    public static final String OWNER_HEADER = "X-Owner";
+    /** Owner of files stored without an {@code X-Owner} header */
+    public static final String DEFAULT_OWNER = "anonymous";
+    // Key of the totals of all owners; not a valid owner name
+    private static final String TOTAL = "*";
+    private static final Pattern OWNER_PATTERN = Pattern.compile("[A-Za-z0-9._@-]{1,64}");
+
+    private final UsageRepository usageRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final long perOwnerQuota;
+    private final long totalQuota;
+    private final boolean recountOnStartup;
+    private final boolean clustered;
+    // Loaded when an owner first reserves, stores or deletes; includes the totals of all owners under TOTAL
+    private final Map<String, Totals> owners = new ConcurrentHashMap<>();
+    private final Counter rejectedCounter;
+
+    public UsageTracker(UsageRepository usageRepository,
+                        TransactionTemplate transactionTemplate,
+                        MeterRegistry meterRegistry,
+                        Cluster cluster,
+                        @Value("${file.quota.per-owner:0}") DataSize perOwnerQuota,
+                        @Value("${file.quota.total:0}") DataSize totalQuota,
+                        @Value("${file.quota.recount-on-startup:true}") boolean recountOnStartup) {
+        this.usageRepository = usageRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.perOwnerQuota = perOwnerQuota.toBytes();
+        this.totalQuota = totalQuota.toBytes();
+        this.recountOnStartup = recountOnStartup;
+        this.clustered = cluster.isEnabled();
+        this.rejectedCounter = Counter.builder("droplite.quota.rejected")
+                .description("Uploads rejected because they would exceed a storage quota")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the owner named by a request, or {@link #DEFAULT_OWNER} if it names none.
+     *
+     * @throws BadRequestException if the name is not a valid owner name
+     */
+    public static String ownerOf(String header) {
+        if (header == null || header.isBlank()) {
+            return DEFAULT_OWNER;
+        }
+        String owner = header.trim();
+        if (!OWNER_PATTERN.matcher(owner).matches()) {
+            throw new BadRequestException("Invalid owner: " + owner);
+        }
+        return owner;
+    }
+
+    public Usage usage(String owner) {
+        Totals totals = owners.get(owner);
+        if (totals == null) {
+            // Not tracked for an owner that has not stored or deleted anything here; reading
+            // usage must not grow the map for every name a client sends
+            UsageEntity row = usageRepository.findById(owner).orElse(null);
+            return new Usage(row == null ? 0 : row.getFileCount(), row == null ? 0 : row.getBytes(),
+                    perOwnerQuota > 0 ? perOwnerQuota : null);
+        }
+        return totals.usage(perOwnerQuota);
+    }
+
+    public Usage totalUsage() {
+        return totalsOf(TOTAL).usage(totalQuota);
+    }
+
+    /**
+     * Reserves space for content that is about to be stored.
+     *
+     * @param bytes The original size of the content
+     * @return The reservation, to be released once the file is stored or has failed
+     * @throws QuotaExceededException if the content would exceed the owner's or the total quota
+     */
+    public Reservation reserve(String owner, long bytes) {
+        Totals totals = totalsOf(owner);
+        Totals total = totalsOf(TOTAL);
+        totals.reserved.add(bytes);
+        total.reserved.add(bytes);
+        // Added before checking: two uploads that only fit one at a time see each other
+        boolean ownerFull = perOwnerQuota > 0 && totals.used() > perOwnerQuota;
+        boolean totalFull = totalQuota > 0 && total.used() > totalQuota;
+        if (ownerFull || totalFull) {
+            totals.reserved.add(-bytes);
+            total.reserved.add(-bytes);
+            rejectedCounter.increment();
+            throw new QuotaExceededException(ownerFull
+                    ? "Storage quota of " + DataSize.ofBytes(perOwnerQuota) + " exceeded for " + owner
+                    : "Storage quota of " + DataSize.ofBytes(totalQuota) + " exceeded");
+        }
+        return new Reservation(totals, total, bytes);
+    }
+
+    /**
+     * Records a stored file. Call once its row is committed.
+     */
+    public void recordStored(String owner, long bytes) {
+        record(totalsOf(owner), 1, bytes);
+    }
+
+    /**
+     * Records a deleted file. Call once its row is deleted.
+     */
+    public void recordDeleted(String owner, long bytes) {
+        record(totalsOf(owner), -1, -bytes);
+    }
+
+    /**
+     * Adds the changes accumulated since the last flush to the usage table.
+     */
+    @Scheduled(fixedDelayString = "${file.quota.flush-interval:PT5S}")
+    public synchronized void flush() {
+        List<Delta> deltas = new ArrayList<>();
+        for (Totals totals : owners.values()) {
+            addDelta(deltas, totals);
+        }
+        if (deltas.isEmpty() && !clustered) {
+            return;
+        }
+
+        if (!deltas.isEmpty()) {
+            transactionTemplate.executeWithoutResult(status -> deltas.forEach(this::save));
+        }
+        if (clustered) {
+            // The rows include the changes of the other nodes, and those just written
+            reloadAll();
+        }
+        // Moved from the pending changes to the flushed totals only once they are in the table
+        for (Delta delta : deltas) {
+            Totals totals = delta.totals();
+            if (!clustered) {
+                totals.flushedFiles += delta.files();
+                totals.flushedBytes += delta.bytes();
+            }
+            totals.pendingFiles.add(-delta.files());
+            totals.pendingBytes.add(-delta.bytes());
+        }
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (recountOnStartup && clustered) {
+            log.info("Not recounting storage usage: the other nodes of the cluster add to the same table");
+        } else if (recountOnStartup) {
+            recount();
+        }
+    }
+
+    /**
+     * Recomputes the usage table from the {@code files} table, correcting changes lost in a
+     * crash. One aggregate query. Files stored or deleted while it runs would be counted both
+     * by the query and as pending changes, so it must run while no requests are served.
+     */
+    public synchronized void recount() {
+        long startNanos = System.nanoTime();
+        flush();
+        transactionTemplate.executeWithoutResult(status -> {
+            usageRepository.deleteAllUsage();
+            usageRepository.recountUsage(TOTAL);
+        });
+        for (Totals totals : owners.values()) {
+            reload(totals);
+        }
+        Usage total = totalUsage();
+        log.info("Recounted storage usage in {} ms: {} files, {} bytes",
+                (System.nanoTime() - startNanos) / 1_000_000, total.files(), total.bytes());
+    }
+
+    @PreDestroy
+    public void close() {
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            log.warn("Could not save storage usage", ex);
+        }
+    }
+
+    private void record(Totals totals, long files, long bytes) {
+        Totals total = totalsOf(TOTAL);
+        totals.pendingFiles.add(files);
+        totals.pendingBytes.add(bytes);
+        total.pendingFiles.add(files);
+        total.pendingBytes.add(bytes);
+    }
+
+    private void save(Delta delta) {
+        String owner = delta.totals().owner;
+        if (usageRepository.addUsage(owner, delta.files(), delta.bytes()) == 0) {
+            UsageEntity row = new UsageEntity();
+            row.setOwner(owner);
+            row.setFileCount(delta.files());
+            row.setBytes(delta.bytes());
+            row.setUpdatedAt(LocalDateTime.now());
+            usageRepository.save(row);
+        }
+    }
+
+    /**
+     * Returns the totals of an owner, loading them on first use. The row is read outside the
+     * map's locks, which would otherwise be held across a database query; of two concurrent
+     * loads the first one added wins.
+     */
+    private Totals totalsOf(String owner) {
+        Totals totals = owners.get(owner);
+        if (totals != null) {
+            return totals;
+        }
+        Totals loaded = new Totals(owner);
+        reload(loaded);
+        Totals existing = owners.putIfAbsent(owner, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    /**
+     * Reloads the totals of every tracked owner with one query.
+     */
+    private void reloadAll() {
+        Map<String, UsageEntity> rows = new HashMap<>();
+        for (UsageEntity row : usageRepository.findAllById(owners.keySet())) {
+            rows.put(row.getOwner(), row);
+        }
+        for (Totals totals : owners.values()) {
+            UsageEntity row = rows.get(totals.owner);
+            totals.flushedFiles = row == null ? 0 : row.getFileCount();
+            totals.flushedBytes = row == null ? 0 : row.getBytes();
+        }
+    }
+
+    private void reload(Totals totals) {
+        UsageEntity row = usageRepository.findById(totals.owner).orElse(null);
+        totals.flushedFiles = row == null ? 0 : row.getFileCount();
+        totals.flushedBytes = row == null ? 0 : row.getBytes();
+    }
+
+    private static void addDelta(List<Delta> deltas, Totals totals) {
+        long files = totals.pendingFiles.sum();
+        long bytes = totals.pendingBytes.sum();
+        if (files != 0 || bytes != 0) {
+            deltas.add(new Delta(totals, files, bytes));
+        }
+    }
+
+    /**
+     * Space reserved by an upload that is in progress.
+     */
+    public static final class Reservation {
+
+        private final Totals totals;
+        private final Totals total;
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(Totals totals, Totals total, long bytes) {
+            this.totals = totals;
+            this.total = total;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Gives the reserved space back. Releasing twice has no effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                totals.reserved.add(-bytes);
+                total.reserved.add(-bytes);
+            }
+        }
+    }
+
+    /**
+     * Usage of one owner: the totals in the table plus the changes since they were written.
+     */
+    private static final class Totals {
+
+        private final String owner;
+        private final LongAdder pendingFiles = new LongAdder();
+        private final LongAdder pendingBytes = new LongAdder();
+        private final LongAdder reserved = new LongAdder();
+        // Written under the tracker's monitor
+        private volatile long flushedFiles;
+        private volatile long flushedBytes;
+
+        private Totals(String owner) {
+            this.owner = owner;
+        }
+
+        long used() {
+            return flushedBytes + pendingBytes.sum() + reserved.sum();
+        }
+
+        Usage usage(long quota) {
+            return new Usage(flushedFiles + pendingFiles.sum(), flushedBytes + pendingBytes.sum(),
+                    quota > 0 ? quota : null);
+        }
+    }
+
+    private record Delta(Totals totals, long files, long bytes) {
+    }
+}
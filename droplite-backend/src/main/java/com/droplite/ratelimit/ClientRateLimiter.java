@@ -0,0 +1,127 @@
+package com.droplite.ratelimit;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-client request rate and bandwidth limits.
+ *
+ * <p>Off unless {@code file.rate-limit.enabled} is set. Every client (by remote address) has two {@link TokenBucket}s: one of requests, refilled
+ * at {@code file.rate-limit.requests-per-second} and holding {@code file.rate-limit.request-burst},
+ * and one of bytes, refilled at {@code file.rate-limit.bytes-per-second} and holding
+ * {@code file.rate-limit.byte-burst}. Requests beyond the request rate are rejected up front.
+ * Bytes beyond the bandwidth are never rejected; the transfer waits until the bucket allows
+ * them, so a client that is over its limit is slowed down rather than cut off.</p>
+ *
+ * <p>Buckets live in a Caffeine cache, whose reads are lock-free and whose bookkeeping is
+ * striped, and are dropped after ten idle minutes, by which time they would be full again.
+ * Different clients never contend, and a client's own requests contend only on one CAS.</p>
+ */
+@Component
+public class ClientRateLimiter {
+
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final int MAX_CLIENTS = 100_000;
+
+    private final boolean enabled;
+    private final double requestsPerSecond;
+    private final long requestBurst;
+    private final long bytesPerSecond;
+    private final long byteBurst;
+    private final Cache<String, ClientLimits> clients;
+    private final Counter rejectedCounter;
+    private final Timer throttleTimer;
+
+    public ClientRateLimiter(MeterRegistry meterRegistry,
+                             @Value("${file.rate-limit.enabled:false}") boolean enabled,
+                             @Value("${file.rate-limit.requests-per-second:20}") double requestsPerSecond,
+                             @Value("${file.rate-limit.request-burst:100}") long requestBurst,
+                             @Value("${file.rate-limit.bytes-per-second:50MB}") DataSize bytesPerSecond,
+                             @Value("${file.rate-limit.byte-burst:16MB}") DataSize byteBurst) {
+        this.enabled = enabled;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = requestBurst;
+        this.bytesPerSecond = bytesPerSecond.toBytes();
+        this.byteBurst = byteBurst.toBytes();
+        this.clients = Caffeine.newBuilder()
+                .expireAfterAccess(IDLE_TIMEOUT)
+                .maximumSize(MAX_CLIENTS)
+                .build();
+        this.rejectedCounter = Counter.builder("droplite.ratelimit.rejected")
+                .description("Requests rejected because the client exceeded its request rate")
+                .register(meterRegistry);
+        this.throttleTimer = Timer.builder("droplite.ratelimit.throttled")
+                .description("Time transfers waited because the client exceeded its bandwidth")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the limits of a client, creating them on its first request.
+     */
+    public ClientLimits limitsFor(String client) {
+        return clients.get(client, key -> new ClientLimits(
+                new TokenBucket(requestsPerSecond, requestBurst),
+                new TokenBucket(bytesPerSecond, byteBurst)));
+    }
+
+    /**
+     * The request and byte buckets of one client.
+     */
+    public final class ClientLimits {
+
+        private final TokenBucket requests;
+        private final TokenBucket bytes;
+
+        private ClientLimits(TokenBucket requests, TokenBucket bytes) {
+            this.requests = requests;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Admits one request if the client is within its request rate.
+         *
+         * @return 0 if the request is admitted, otherwise the nanoseconds until one would be
+         */
+        public long tryAdmit() {
+            if (requests.tryAcquire(1)) {
+                return 0;
+            }
+            rejectedCounter.increment();
+            return Math.max(1, requests.nanosUntilAvailable(1));
+        }
+
+        /**
+         * Blocks until the client may transfer the given number of bytes.
+         *
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+         */
+        public void throttle(long byteCount) throws InterruptedIOException {
+            long waitNanos = bytes.reserve(byteCount);
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling the transfer");
+            } finally {
+                throttleTimer.record(waitNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
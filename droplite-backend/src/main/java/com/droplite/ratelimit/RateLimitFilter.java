@@ -0,0 +1,171 @@
+package com.droplite.ratelimit;
+
+import com.droplite.cluster.Cluster;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Applies the {@link ClientRateLimiter} to the file API ({@code /files/**}).
+ *
+ * <p>A request over the client's request rate is answered with 429 and {@code Retry-After}
+ * before any work is done. Admitted requests have their bodies read, and their responses
+ * written, at the client's bandwidth limit. Multipart bodies are parsed by the container
+ * without going through a wrapped input stream, so their full length is charged before they
+ * are read; the client is then held back by TCP flow control while the request waits.</p>
+ *
+ * <p>Clients are identified by remote address. Behind a reverse proxy, set
+ * {@code server.forward-headers-strategy=native} so that this is the client's address rather
+ * than the proxy's.</p>
+ *
+ * <p>Thumbnails and previews are not counted against the request rate: a listing requests one
+ * per image, and they are small, immutable and cached by the browser. Their bytes still count
+ * against the bandwidth.</p>
+ *
+ * <p>The change feed ({@code GET /files/changes}) counts against the request rate but not the
+ * bandwidth: its events are small, and it writes them from a few shared sender threads, which
+ * waiting for a client's bandwidth would block for every other subscriber.</p>
+ *
+ * <p>Requests forwarded by another node of a cluster were limited where they arrived and are
+ * not limited again.</p>
+ */
+@Slf4j
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    // Request attribute through which Tomcat offers sendfile (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    // GET /files/{id}/thumbnail and /files/{id}/preview
+    private static final Pattern DERIVATIVE_PATH = Pattern.compile("/files/\\d+/(thumbnail|preview)");
+    private static final String CHANGES_PATH = "/files/changes";
+
+    private final ClientRateLimiter rateLimiter;
+    private final Cluster cluster;
+
+    public RateLimitFilter(ClientRateLimiter rateLimiter, Cluster cluster) {
+        this.rateLimiter = rateLimiter;
+        this.cluster = cluster;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !rateLimiter.isEnabled() || !(path.equals("/files") || path.startsWith("/files/"))
+                || cluster.isPeerRequest(request);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        ClientRateLimiter.ClientLimits limits = rateLimiter.limitsFor(request.getRemoteAddr());
+
+        long waitNanos = isDerivativeRequest(request) ? 0 : limits.tryAdmit();
+        if (waitNanos > 0) {
+            log.debug("Rejected {} {} from {}: request rate exceeded",
+                    request.getMethod(), request.getRequestURI(), request.getRemoteAddr());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests");
+            return;
+        }
+
+        String contentType = request.getContentType();
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith(MediaType.MULTIPART_FORM_DATA_VALUE)
+                && request.getContentLengthLong() > 0) {
+            limits.throttle(request.getContentLengthLong());
+        }
+
+        if (isChangesRequest(request)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        filterChain.doFilter(new ThrottledRequest(request, limits), new ThrottledResponse(response, limits));
+    }
+
+    private static boolean isChangesRequest(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return HttpMethod.GET.matches(request.getMethod()) && path.equals(CHANGES_PATH);
+    }
+
+    private static boolean isDerivativeRequest(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return HttpMethod.GET.matches(request.getMethod()) && DERIVATIVE_PATH.matcher(path).matches();
+    }
+
+    /**
+     * Request whose body is read at the client's bandwidth limit, and which does not offer
+     * sendfile, since the connector would send the file without passing the limit.
+     */
+    private static final class ThrottledRequest extends HttpServletRequestWrapper {
+
+        private final ClientRateLimiter.ClientLimits limits;
+        private ServletInputStream inputStream;
+
+        ThrottledRequest(HttpServletRequest request, ClientRateLimiter.ClientLimits limits) {
+            super(request);
+            this.limits = limits;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return SENDFILE_SUPPORTED_ATTR.equals(name) ? Boolean.FALSE : super.getAttribute(name);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                ServletInputStream delegate = super.getInputStream();
+                inputStream = new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        int b = delegate.read();
+                        if (b >= 0) {
+                            limits.throttle(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = delegate.read(buffer, offset, length);
+                        if (read > 0) {
+                            limits.throttle(read);
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return delegate.isFinished();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return delegate.isReady();
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener readListener) {
+                        delegate.setReadListener(readListener);
+                    }
+                };
+            }
+            return inputStream;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.droplite.ratelimit;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+
+/**
+ * Response whose body is written at the client's bandwidth limit. Writes block until the
+ * client's byte bucket allows them, so streaming responses slow down instead of failing.
+ *
+ * <p>Code that bypasses the output stream (sendfile, writing to the container's stream
+ * directly) must not do so for a throttled response.</p>
+ */
+public class ThrottledResponse extends HttpServletResponseWrapper {
+
+    // Largest write charged to the bucket at once, so that a big write does not stall for long
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ClientRateLimiter.ClientLimits limits;
+    private ThrottledOutputStream outputStream;
+
+    public ThrottledResponse(HttpServletResponse response, ClientRateLimiter.ClientLimits limits) {
+        super(response);
+        this.limits = limits;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new ThrottledOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    private final class ThrottledOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream delegate;
+
+        ThrottledOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            limits.throttle(1);
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, CHUNK_SIZE);
+                limits.throttle(chunk);
+                delegate.write(buffer, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
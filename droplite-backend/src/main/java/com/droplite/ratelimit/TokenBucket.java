@@ -0,0 +1,85 @@
+package com.droplite.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ *
+ * <p>Instead of a token count and a refill timestamp, the whole state is one {@link AtomicLong}:
+ * the time at which the bucket will be full again (the "theoretical arrival time" of GCRA).
+ * Taking {@code n} tokens pushes that time {@code n} token intervals into the future, and the
+ * bucket is empty once it lies a full bucket's worth of intervals ahead. Acquiring is a read
+ * and a compare-and-set, with no lock and no background refill.</p>
+ */
+public final class TokenBucket {
+
+    private final double nanosPerToken;
+    // Time to refill an empty bucket
+    private final long capacityNanos;
+    // System.nanoTime() at which the bucket is full; a time in the past also means full
+    private final AtomicLong fullAt;
+
+    /**
+     * @param tokensPerSecond Refill rate
+     * @param capacity Tokens the bucket holds when full, i.e. the allowed burst
+     */
+    public TokenBucket(double tokensPerSecond, long capacity) {
+        this.nanosPerToken = 1_000_000_000d / tokensPerSecond;
+        this.capacityNanos = (long) (capacity * nanosPerToken);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens if the bucket holds enough of them.
+     *
+     * @return Whether the tokens were taken
+     */
+    boolean tryAcquire(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = later(current, now) + cost;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens unconditionally, going into debt if the bucket holds too few.
+     *
+     * @return Nanoseconds the caller must wait before using the tokens; 0 if they were available
+     */
+    public long reserve(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = later(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - capacityNanos);
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds until the given number of tokens will be available.
+     */
+    long nanosUntilAvailable(long tokens) {
+        long now = System.nanoTime();
+        return Math.max(0, later(fullAt.get(), now) + cost(tokens) - now - capacityNanos);
+    }
+
+    private long cost(long tokens) {
+        return (long) Math.ceil(tokens * nanosPerToken);
+    }
+
+    private static long later(long first, long second) {
+        // nanoTime values may overflow, so they are only compared by difference
+        return first - second > 0 ? first : second;
+    }
+}
@@ -0,0 +1,38 @@
+package com.droplite.repository;
+
+import com.droplite.model.BlobEntity;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BlobRepository extends JpaRepository<BlobEntity, String> {
+
+    /**
+     * Inserts an unreferenced blob row unless one already exists for the digest, so that
+     * concurrent uploads of the same new content converge on a single row.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO blobs (digest, path, size, ref_count, created_at) " +
+            "VALUES (:digest, :path, :size, 0, CURRENT_TIMESTAMP) ON CONFLICT (digest) DO NOTHING",
+            nativeQuery = true)
+    int insertIfAbsent(@Param("digest") String digest, @Param("path") String path, @Param("size") long size);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM BlobEntity b WHERE b.digest = :digest")
+    Optional<BlobEntity> findByDigestForUpdate(@Param("digest") String digest);
+
+    /**
+     * Returns those of the given digests whose blob is referenced by at least one file.
+     */
+    @Query("SELECT b.digest FROM BlobEntity b WHERE b.digest IN :digests AND b.refCount > 0")
+    List<String> findReferencedDigests(@Param("digests") Collection<String> digests);
+}
@@ -0,0 +1,16 @@
+package com.droplite.repository;
+
+import com.droplite.model.DerivativeEntity;
+import com.droplite.model.DerivativeKind;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface DerivativeRepository extends JpaRepository<DerivativeEntity, Long> {
+
+    Optional<DerivativeEntity> findByFileIdAndKind(Long fileId, DerivativeKind kind);
+
+    boolean existsByFileId(Long fileId);
+}
@@ -1,10 +1,139 @@
 package com.droplite.repository;
 
 import com.droplite.model.FileEntity;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
-public interface FileRepository extends JpaRepository<FileEntity, Long> {
-    // Custom query methods can be added here if needed
+public interface FileRepository extends JpaRepository<FileEntity, Long>, FileRepositoryCustom {
+
+    /**
+     * Finds files stored directly in the given directory (rather than in a subdirectory of the
+     * sharded layout), in ID order after the given ID.
+     *
+     * @param directory The storage directory, including the trailing separator
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.deduplicated = false AND f.path = CONCAT(:directory, f.filename) " +
+            "AND f.id > :afterId ORDER BY f.id")
+    List<FileEntity> findFlatFiles(@Param("directory") String directory, @Param("afterId") Long afterId,
+                                   Pageable pageable);
+
+    /**
+     * Finds files of the given content types that have no derived artifacts yet, in ID order
+     * after the given ID.
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.contentType IN :contentTypes AND f.id > :afterId " +
+            "AND f.storageTier = com.droplite.model.StorageTier.HOT " +
+            "AND NOT EXISTS (SELECT d.id FROM DerivativeEntity d WHERE d.fileId = f.id) ORDER BY f.id")
+    List<FileEntity> findWithoutDerivatives(@Param("contentTypes") Collection<String> contentTypes,
+                                            @Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Finds files in ID order after the given ID.
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.id > :afterId ORDER BY f.id")
+    List<FileEntity> findAfter(@Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Returns those of the given storage filenames that belong to a file.
+     */
+    @Query("SELECT f.filename FROM FileEntity f WHERE f.filename IN :filenames")
+    List<String> findExistingFilenames(@Param("filenames") Collection<String> filenames);
+
+    boolean existsByFilename(String filename);
+
+    /**
+     * Deletes a file, unless a concurrent delete removed it first.
+     *
+     * @return The number of deleted rows, 0 or 1
+     */
+    @Modifying
+    @Query("DELETE FROM FileEntity f WHERE f.id = :id")
+    int deleteRow(@Param("id") Long id);
+
+    /**
+     * Locks the given files for deletion, in ID order so that concurrent batches cannot
+     * deadlock. Files deleted by a transaction that committed first are not returned.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f FROM FileEntity f WHERE f.id IN :ids ORDER BY f.id")
+    List<FileEntity> findAllByIdForUpdate(@Param("ids") Collection<Long> ids);
+
+    Optional<FileEntity> findByFilename(String filename);
+
+    /**
+     * Changes the stored path of a file, unless the file was deleted or its path changed since
+     * it was read.
+     *
+     * @return The number of updated rows, 0 or 1
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.path = :newPath WHERE f.id = :id AND f.path = :oldPath")
+    int updatePath(@Param("id") Long id, @Param("oldPath") String oldPath, @Param("newPath") String newPath);
+
+    /**
+     * Records the content digest of a file stored without one, unless the file was deleted or
+     * moved since it was read.
+     *
+     * @return The number of updated rows, 0 or 1
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.digest = :digest " +
+            "WHERE f.id = :id AND f.path = :path AND f.digest IS NULL")
+    int recordDigest(@Param("id") Long id, @Param("path") String path, @Param("digest") String digest);
+
+    /**
+     * Finds files on local disk that have not been read since the given time (or, if never
+     * read, were created before it), in ID order after the given ID. Deduplicated files share
+     * their blob with other files and are never demoted.
+     *
+     * @param maxSize Size limit of the cold tier for a single file
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.storageTier = com.droplite.model.StorageTier.HOT " +
+            "AND f.deduplicated = false AND COALESCE(f.lastAccessedAt, f.createdAt) < :cutoff " +
+            "AND f.size <= :maxSize AND f.id > :afterId ORDER BY f.id")
+    List<FileEntity> findIdleFiles(@Param("cutoff") LocalDateTime cutoff, @Param("maxSize") long maxSize,
+                                   @Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Records that the given files were read.
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.lastAccessedAt = :accessedAt WHERE f.id IN :ids")
+    int updateLastAccessed(@Param("ids") Collection<Long> ids, @Param("accessedAt") LocalDateTime accessedAt);
+
+    /**
+     * Points a file at its copy in the cold tier, unless the file was deleted, moved or
+     * demoted since it was read.
+     *
+     * @return The number of updated rows, 0 or 1
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.storageTier = com.droplite.model.StorageTier.COLD, f.path = :key " +
+            "WHERE f.id = :id AND f.storageTier = com.droplite.model.StorageTier.HOT AND f.path = :oldPath")
+    int markCold(@Param("id") Long id, @Param("oldPath") String oldPath, @Param("key") String key);
+
+    /**
+     * Points a file in the cold tier back at a local copy, and records the access that
+     * promoted it.
+     *
+     * @return The number of updated rows, 0 or 1
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.storageTier = com.droplite.model.StorageTier.HOT, f.path = :newPath, " +
+            "f.lastAccessedAt = :accessedAt " +
+            "WHERE f.id = :id AND f.storageTier = com.droplite.model.StorageTier.COLD AND f.path = :key")
+    int markHot(@Param("id") Long id, @Param("key") String key, @Param("newPath") String newPath,
+                @Param("accessedAt") LocalDateTime accessedAt);
 }
@@ -0,0 +1,43 @@
+package com.droplite.repository;
+
+import com.droplite.model.FileCursor;
+import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FileSummary;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Listing queries with optional filters, which cannot be expressed as derived queries.
+ */
+public interface FileRepositoryCustom {
+
+    /**
+     * Reads one page of file summaries, newest first, strictly after the given cursor.
+     *
+     * @param filter The filter criteria
+     * @param after The position to continue from, or {@code null} for the first page
+     * @param limit The maximum number of rows to return
+     * @return The matching summaries in {@code (created_at, id)} descending order
+     */
+    List<FileSummary> findSummaries(FileFilter filter, FileCursor after, int limit);
+
+    /**
+     * Streams every matching file summary, newest first. Must be consumed inside a transaction
+     * and closed afterwards; rows are fetched from the database in batches.
+     *
+     * @param filter The filter criteria
+     * @return A stream of the matching summaries
+     */
+    Stream<FileSummary> streamSummaries(FileFilter filter);
+
+    /**
+     * Reads the full metadata of matching files, newest first, in a single query.
+     *
+     * @param filter The filter criteria
+     * @param limit The maximum number of rows to return
+     * @return The matching files in {@code (created_at, id)} descending order
+     */
+    List<FileEntity> findFiles(FileFilter filter, int limit);
+}
@@ -0,0 +1,126 @@
+package com.droplite.repository;
+
+import com.droplite.model.FileCursor;
+import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FileSummary;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.util.StringUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Criteria-based implementation of {@link FileRepositoryCustom}.
+ *
+ * <p>Pagination is keyset based: the page after {@code (c, i)} is
+ * {@code created_at <= c AND (created_at < c OR id < i)}, which the
+ * {@code (created_at, id)} index answers directly regardless of how deep the client pages.
+ * The leading {@code created_at <= c} bound is redundant logically but lets the planner
+ * start the index scan at the cursor.</p>
+ */
+public class FileRepositoryCustomImpl implements FileRepositoryCustom {
+
+    private static final int EXPORT_FETCH_SIZE = 500;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<FileSummary> findSummaries(FileFilter filter, FileCursor after, int limit) {
+        return entityManager.createQuery(summaryQuery(filter, after))
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public Stream<FileSummary> streamSummaries(FileFilter filter) {
+        return entityManager.createQuery(summaryQuery(filter, null))
+                .setHint(HibernateHints.HINT_FETCH_SIZE, EXPORT_FETCH_SIZE)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultStream();
+    }
+
+    @Override
+    public List<FileEntity> findFiles(FileFilter filter, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<FileEntity> query = cb.createQuery(FileEntity.class);
+        Root<FileEntity> file = query.from(FileEntity.class);
+        query.where(filterPredicates(cb, file, filter).toArray(new Predicate[0]));
+        query.orderBy(cb.desc(file.get("createdAt")), cb.desc(file.get("id")));
+        return entityManager.createQuery(query)
+                .setMaxResults(limit)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultList();
+    }
+
+    private CriteriaQuery<FileSummary> summaryQuery(FileFilter filter, FileCursor after) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<FileSummary> query = cb.createQuery(FileSummary.class);
+        Root<FileEntity> file = query.from(FileEntity.class);
+        Path<LocalDateTime> createdAt = file.get("createdAt");
+        Path<Long> id = file.get("id");
+
+        query.select(cb.construct(FileSummary.class,
+                id,
+                file.get("filename"),
+                file.get("originalFilename"),
+                file.get("contentType"),
+                file.get("size"),
+                createdAt));
+
+        List<Predicate> predicates = filterPredicates(cb, file, filter);
+        if (after != null) {
+            predicates.add(cb.lessThanOrEqualTo(createdAt, after.createdAt()));
+            predicates.add(cb.or(
+                    cb.lessThan(createdAt, after.createdAt()),
+                    cb.lessThan(id, after.id())));
+        }
+
+        query.where(predicates.toArray(new Predicate[0]));
+        query.orderBy(cb.desc(createdAt), cb.desc(id));
+        return query;
+    }
+
+    private static List<Predicate> filterPredicates(CriteriaBuilder cb, Root<FileEntity> file, FileFilter filter) {
+        Path<LocalDateTime> createdAt = file.get("createdAt");
+        List<Predicate> predicates = new ArrayList<>();
+        if (filter != null) {
+            if (StringUtils.hasText(filter.contentType())) {
+                predicates.add(cb.equal(file.get("contentType"), filter.contentType()));
+            }
+            if (filter.minSize() != null) {
+                predicates.add(cb.greaterThanOrEqualTo(file.get("size"), filter.minSize()));
+            }
+            if (filter.maxSize() != null) {
+                predicates.add(cb.lessThanOrEqualTo(file.get("size"), filter.maxSize()));
+            }
+            if (filter.createdFrom() != null) {
+                predicates.add(cb.greaterThanOrEqualTo(createdAt, filter.createdFrom()));
+            }
+            if (filter.createdTo() != null) {
+                predicates.add(cb.lessThan(createdAt, filter.createdTo()));
+            }
+            if (StringUtils.hasText(filter.filenamePrefix())) {
+                // Matches the lower(original_filename) text_pattern_ops index
+                String pattern = escapeLike(filter.filenamePrefix().toLowerCase(Locale.ROOT)) + "%";
+                predicates.add(cb.like(cb.lower(file.get("originalFilename")), pattern, '\\'));
+            }
+        }
+        return predicates;
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
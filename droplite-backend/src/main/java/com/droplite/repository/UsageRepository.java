@@ -0,0 +1,37 @@
+package com.droplite.repository;
+
+import com.droplite.model.UsageEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UsageRepository extends JpaRepository<UsageEntity, String> {
+
+    /**
+     * Adds to the totals of an owner.
+     *
+     * @return The number of updated rows; 0 if the owner has no row yet
+     */
+    @Modifying
+    @Query("UPDATE UsageEntity u SET u.fileCount = u.fileCount + :files, u.bytes = u.bytes + :bytes, " +
+            "u.updatedAt = CURRENT_TIMESTAMP WHERE u.owner = :owner")
+    int addUsage(@Param("owner") String owner, @Param("files") long files, @Param("bytes") long bytes);
+
+    @Modifying
+    @Query(value = "DELETE FROM storage_usage", nativeQuery = true)
+    int deleteAllUsage();
+
+    /**
+     * Recomputes the totals of every owner, and of all files under the given key, from the
+     * {@code files} table. Runs after {@link #deleteAllUsage} in the same transaction.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO storage_usage (owner, file_count, bytes, updated_at) " +
+            "SELECT owner, COUNT(*), SUM(size), CURRENT_TIMESTAMP FROM files GROUP BY owner " +
+            "UNION ALL SELECT :total, COUNT(*), COALESCE(SUM(size), 0), CURRENT_TIMESTAMP FROM files",
+            nativeQuery = true)
+    int recountUsage(@Param("total") String total);
+}
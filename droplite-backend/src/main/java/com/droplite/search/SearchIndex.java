@@ -0,0 +1,441 @@
+package com.droplite.search;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.SearchHit;
+import com.droplite.model.SearchResults;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.FileRepository;
+import com.droplite.service.ContentCompressor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.pattern.PatternTokenizer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text index over the filenames and text content of stored files.
+ *
+ * <p>The index is an embedded Lucene index in {@code file.search.index-dir}, opened through
+ * {@link MMapDirectory} so that searches read segments from the page cache without copying
+ * them onto the heap. Lucene writes new documents to small segments and merges them on its
+ * own background threads, so indexing never stops searches. Every file is indexed by its
+ * original filename; {@code .txt} and {@code .json} files also by their content, up to
+ * {@code file.search.max-content-chars} characters.</p>
+ *
+ * <p>Stored files are submitted after their metadata is committed and indexed on a single
+ * background thread fed by a bounded queue, like {@link com.droplite.service.DerivativePipeline}.
+ * New documents become searchable within {@code file.search.refresh-interval}. A backfill job
+ * walks the files table in ID order and indexes any file the index does not have, which
+ * covers files stored before the index existed, uploads skipped because the queue was full,
+ * and documents lost in a crash before the last commit. The position it has verified is
+ * recorded with each commit, so a restart resumes where it stopped.</p>
+ *
+ * <p>Hits are resolved against the database before they are returned, so results always carry
+ * current metadata and never include files that have been deleted meanwhile.</p>
+ */
+@Slf4j
+@Service
+public class SearchIndex {
+
+    private static final String ID = "id";
+    private static final String NAME = "name";
+    private static final String CONTENT = "content";
+    private static final String BACKFILL_POSITION = "backfillPosition";
+
+    private static final Set<String> TEXT_EXTENSIONS = Set.of("txt", "json");
+    // Filenames are split on anything but letters and digits, so "q3_report-final.txt" matches "report"
+    private static final Pattern NAME_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    // Stored with offsets in the postings, so snippets are cut without re-analyzing the text
+    private static final FieldType HIGHLIGHTED_TEXT = new FieldType(TextField.TYPE_STORED);
+
+    static {
+        HIGHLIGHTED_TEXT.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        HIGHLIGHTED_TEXT.freeze();
+    }
+
+    private final FileRepository fileRepository;
+    private final boolean enabled;
+    private final int maxContentChars;
+    private final int backfillBatchSize;
+    private final Analyzer analyzer;
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ThreadPoolExecutor executor;
+    private final Counter droppedCounter;
+    private final Timer queryTimer;
+
+    // Every file up to this ID is in the index, or was when it was checked
+    private volatile long backfillPosition;
+
+    public SearchIndex(FileRepository fileRepository,
+                       MeterRegistry meterRegistry,
+                       @Value("${file.search.enabled:true}") boolean enabled,
+                       @Value("${file.search.index-dir:search-index}") String indexDir,
+                       @Value("${file.search.max-content-chars:1000000}") int maxContentChars,
+                       @Value("${file.search.ram-buffer-mb:32}") double ramBufferMb,
+                       @Value("${file.search.queue-capacity:10000}") int queueCapacity,
+                       @Value("${file.search.backfill-batch-size:1000}") int backfillBatchSize) throws IOException {
+        this.fileRepository = fileRepository;
+        this.enabled = enabled;
+        this.maxContentChars = maxContentChars;
+        this.backfillBatchSize = backfillBatchSize;
+        this.analyzer = createAnalyzer();
+        this.droppedCounter = Counter.builder("droplite.search.dropped")
+                .description("Files not indexed on upload because the indexing queue was full; the backfill job indexes them")
+                .register(meterRegistry);
+        this.queryTimer = Timer.builder("droplite.search.query")
+                .description("Time to search the index and build a page of results")
+                .register(meterRegistry);
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("search-index-"),
+                (task, pool) -> droppedCounter.increment());
+
+        if (!enabled) {
+            this.directory = null;
+            this.writer = null;
+            this.searcherManager = null;
+            return;
+        }
+        Path indexLocation = Path.of(indexDir).toAbsolutePath().normalize();
+        Files.createDirectories(indexLocation);
+        this.directory = new MMapDirectory(indexLocation);
+        IndexWriterConfig config = new IndexWriterConfig(analyzer)
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(ramBufferMb);
+        this.writer = new IndexWriter(directory, config);
+        this.searcherManager = new SearcherManager(writer, null);
+        this.backfillPosition = committedBackfillPosition(writer);
+        Gauge.builder("droplite.search.documents", writer, indexWriter -> indexWriter.getDocStats().numDocs)
+                .description("Files in the search index")
+                .register(meterRegistry);
+        log.info("Search index in {} ({} documents, backfilled up to file {})",
+                indexLocation, writer.getDocStats().numDocs, backfillPosition);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues indexing of a stored file. Returns immediately.
+     */
+    public void submit(FileEntity fileEntity) {
+        if (enabled) {
+            IndexTask task = IndexTask.of(fileEntity);
+            executor.execute(() -> {
+                try {
+                    index(task);
+                } catch (IOException | RuntimeException ex) {
+                    log.warn("Could not index file {}", task.id(), ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes deleted files from the index.
+     */
+    public void delete(Collection<Long> ids) {
+        if (!enabled || ids.isEmpty()) {
+            return;
+        }
+        try {
+            writer.deleteDocuments(ids.stream().map(SearchIndex::idTerm).toArray(Term[]::new));
+        } catch (IOException ex) {
+            // Stale documents are dropped from results, and from the index, when they match a search
+            log.warn("Could not remove files {} from the search index", ids, ex);
+        }
+    }
+
+    /**
+     * Searches filenames and content. The query supports {@code "phrases"}, {@code prefix*},
+     * {@code -exclusions} and {@code a | b}; all other terms must match. Filename matches
+     * weigh twice as much as content matches.
+     *
+     * @param text The query
+     * @param offset Number of hits to skip
+     * @param limit Maximum number of hits to return
+     */
+    public SearchResults search(String text, int offset, int limit) throws IOException {
+        long startNanos = System.nanoTime();
+        SimpleQueryParser parser = new SimpleQueryParser(analyzer, Map.of(NAME, 2f, CONTENT, 1f));
+        parser.setDefaultOperator(BooleanClause.Occur.MUST);
+        Query query = parser.parse(text);
+
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopDocs top = searcher.search(query, offset + limit);
+            ScoreDoc[] page = Arrays.copyOfRange(top.scoreDocs, Math.min(offset, top.scoreDocs.length),
+                    top.scoreDocs.length);
+            boolean totalExact = top.totalHits.relation == TotalHits.Relation.EQUAL_TO;
+            if (page.length == 0) {
+                return new SearchResults(top.totalHits.value, totalExact, List.of());
+            }
+
+            // Snippets are only cut for the documents on this page
+            String[] snippets = UnifiedHighlighter.builder(searcher, analyzer)
+                    .withFormatter(new DefaultPassageFormatter("<mark>", "</mark>", "... ", true))
+                    .withMaxLength(maxContentChars)
+                    .build()
+                    .highlight(CONTENT, query, new TopDocs(top.totalHits, page), 1);
+
+            StoredFields storedFields = searcher.storedFields();
+            List<Long> ids = new ArrayList<>(page.length);
+            for (ScoreDoc scoreDoc : page) {
+                ids.add(Long.valueOf(storedFields.document(scoreDoc.doc, Set.of(ID)).get(ID)));
+            }
+            Map<Long, FileEntity> files = new HashMap<>();
+            for (FileEntity fileEntity : fileRepository.findAllById(ids)) {
+                files.put(fileEntity.getId(), fileEntity);
+            }
+
+            List<SearchHit> hits = new ArrayList<>(page.length);
+            List<Long> stale = new ArrayList<>();
+            for (int i = 0; i < page.length; i++) {
+                FileEntity fileEntity = files.get(ids.get(i));
+                if (fileEntity == null) {
+                    stale.add(ids.get(i));
+                    continue;
+                }
+                hits.add(new SearchHit(fileEntity.getId(), fileEntity.getOriginalFilename(),
+                        fileEntity.getContentType(), fileEntity.getSize(), fileEntity.getCreatedAt(),
+                        page[i].score, snippets[i]));
+            }
+            // Deleted while its delete was not yet visible, or removed while it was being indexed
+            delete(stale);
+            return new SearchResults(top.totalHits.value, totalExact, hits);
+        } finally {
+            searcherManager.release(searcher);
+            queryTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Makes recently indexed documents and deletions visible to searches.
+     */
+    @Scheduled(fixedDelayString = "${file.search.refresh-interval:PT1S}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException ex) {
+            log.warn("Could not refresh the search index", ex);
+        }
+    }
+
+    /**
+     * Makes the index durable, together with the position of the backfill.
+     */
+    @Scheduled(fixedDelayString = "${file.search.commit-interval:PT1M}")
+    public void commit() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // Read before committing: every file up to this position has been added to the writer
+            long position = backfillPosition;
+            writer.setLiveCommitData(Map.of(BACKFILL_POSITION, Long.toString(position)).entrySet());
+            writer.commit();
+        } catch (IOException ex) {
+            log.warn("Could not commit the search index", ex);
+        }
+    }
+
+    /**
+     * Indexes one batch of files that the index does not have yet, in ID order.
+     */
+    @Scheduled(fixedDelayString = "${file.search.backfill-interval:PT5S}", initialDelay = 30, timeUnit = TimeUnit.SECONDS)
+    public void backfill() {
+        if (!enabled) {
+            return;
+        }
+        List<FileEntity> files = fileRepository.findAfter(backfillPosition, PageRequest.of(0, backfillBatchSize));
+        if (files.isEmpty()) {
+            return;
+        }
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                for (FileEntity fileEntity : files) {
+                    // Documents added since the last refresh look missing and are indexed again,
+                    // which replaces them with an identical copy
+                    if (searcher.count(new TermQuery(idTerm(fileEntity.getId()))) == 0) {
+                        index(IndexTask.of(fileEntity));
+                    }
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+            backfillPosition = files.get(files.size() - 1).getId();
+        } catch (IOException ex) {
+            log.warn("Could not backfill the search index after file {}", backfillPosition, ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException, InterruptedException {
+        executor.shutdown();
+        if (!enabled) {
+            return;
+        }
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            // Whatever is left is picked up by the backfill after the restart
+            executor.shutdownNow();
+        }
+        commit();
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    private void index(IndexTask task) throws IOException {
+        Document document = new Document();
+        document.add(new StringField(ID, task.id().toString(), Field.Store.YES));
+        document.add(new Field(NAME, task.originalFilename(), HIGHLIGHTED_TEXT));
+        if (task.content() != null) {
+            try {
+                document.add(new Field(CONTENT, readText(task.content(), task.compressed()), HIGHLIGHTED_TEXT));
+            } catch (NoSuchFileException ex) {
+                // Deleted before it got its turn
+                log.debug("Skipping index of deleted file {}", task.id());
+                return;
+            }
+        }
+        writer.updateDocument(idTerm(task.id()), document);
+    }
+
+    /**
+     * Reads the beginning of a text file as UTF-8, decompressing it if it is stored compressed.
+     */
+    private String readText(Path file, boolean compressed) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        try (Reader reader = new InputStreamReader(compressed ? ContentCompressor.decompress(in) : in,
+                StandardCharsets.UTF_8)) {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            int read;
+            while (text.length() < maxContentChars
+                    && (read = reader.read(buffer, 0, Math.min(buffer.length, maxContentChars - text.length()))) >= 0) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        }
+    }
+
+    private static Term idTerm(Long id) {
+        return new Term(ID, id.toString());
+    }
+
+    private static long committedBackfillPosition(IndexWriter writer) {
+        Iterable<Map.Entry<String, String>> commitData = writer.getLiveCommitData();
+        if (commitData != null) {
+            for (Map.Entry<String, String> entry : commitData) {
+                if (BACKFILL_POSITION.equals(entry.getKey())) {
+                    return Long.parseLong(entry.getValue());
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static Analyzer createAnalyzer() {
+        Analyzer nameAnalyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new PatternTokenizer(NAME_SEPARATOR, -1);
+                return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+            }
+
+            @Override
+            protected TokenStream normalize(String fieldName, TokenStream in) {
+                // Applied to prefix queries, which are not tokenized
+                return new LowerCaseFilter(in);
+            }
+        };
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), Map.of(NAME, nameAnalyzer));
+    }
+
+    /**
+     * What indexing needs to know about a file, copied when it is submitted since callers may
+     * go on to modify the entity.
+     *
+     * @param content The local file to index the content of, or {@code null} to index only the name
+     */
+    private record IndexTask(Long id, String originalFilename, Path content, boolean compressed) {
+
+        static IndexTask of(FileEntity fileEntity) {
+            String name = fileEntity.getOriginalFilename();
+            int dot = name.lastIndexOf('.');
+            boolean text = dot >= 0 && TEXT_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            // Files in the cold tier are only indexed by name; reading them would move them back
+            Path content = text && fileEntity.getStorageTier() != StorageTier.COLD
+                    ? Path.of(fileEntity.getPath())
+                    : null;
+            return new IndexTask(fileEntity.getId(), name, content,
+                    ContentCompressor.GZIP.equals(fileEntity.getContentEncoding()));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.droplite.service;
+
+import com.droplite.exception.FileStorageException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.BlobEntity;
+import com.droplite.repository.BlobRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+
+/**
+ * Content-addressed blob storage with reference counting.
+ *
+ * <p>Content is first staged to a temporary file while its SHA-256 digest is computed in the
+ * same pass. {@link #acquire} then either adds a reference to an existing blob with that
+ * digest (discarding the staged copy) or renames the staged file into
+ * {@code uploads/blobs/<d0d1>/<digest>}. Blob rows are locked with {@code SELECT ... FOR UPDATE}
+ * so that adding a reference can never race with the removal of the last one.</p>
+ *
+ * <p>A blob whose last reference is released is deleted only once that release has committed,
+ * in a transaction of its own that checks the count again, so a rolled-back delete never
+ * loses content. Blobs left without references by a crash in between are removed by the
+ * {@link StorageReconciler}.</p>
+ */
+@Slf4j
+@Service
+public class BlobStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Lookups of a blob row that a concurrent purge deleted before acquire could lock it
+    private static final int MAX_ACQUIRE_ATTEMPTS = 3;
+
+    private final BlobRepository blobRepository;
+    // Runs purges after the releasing transaction, which is committed but still bound
+    private final TransactionTemplate purgeTransaction;
+    private final Path blobLocation;
+    private final Path stagingLocation;
+
+    /**
+     * Content written to a staging file, ready to be turned into a blob reference.
+     *
+     * @param file   The staged file
+     * @param digest Lower-case hex SHA-256 of the content
+     * @param size   Size of the content in bytes
+     */
+    public record StagedBlob(Path file, String digest, long size) {
+    }
+
+    public BlobStore(BlobRepository blobRepository, LocalStorageBackend hotStorage,
+                     TransactionTemplate transactionTemplate) {
+        this.blobRepository = blobRepository;
+        this.purgeTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        this.purgeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.blobLocation = hotStorage.root().resolve("blobs");
+        this.stagingLocation = hotStorage.root().resolve(".incoming");
+
+        try {
+            Files.createDirectories(this.blobLocation);
+            Files.createDirectories(this.stagingLocation);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not create the blob directory: " + this.blobLocation, ex);
+        }
+    }
+
+    /**
+     * Streams content into a staging file, hashing it on the way.
+     */
+    public StagedBlob stage(InputStream content) throws IOException {
+        Path stagedFile = stagingLocation.resolve(UUID.randomUUID() + ".blob");
+        MessageDigest digest = newDigest();
+        try (InputStream in = content;
+             OutputStream out = new DigestOutputStream(Files.newOutputStream(stagedFile), digest)) {
+            long size = in.transferTo(out);
+            out.close();
+            DurableFiles.force(stagedFile);
+            return new StagedBlob(stagedFile, HexFormat.of().formatHex(digest.digest()), size);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(stagedFile);
+            throw ex;
+        }
+    }
+
+    /**
+     * Hashes a file that has already been fully written, e.g. an assembled chunked upload whose
+     * chunks arrived out of order. The file itself becomes the staged copy.
+     */
+    public StagedBlob stage(Path assembledFile) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(assembledFile), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Reading is enough; the digest stream sees every byte
+            }
+        }
+        DurableFiles.force(assembledFile);
+        return new StagedBlob(assembledFile, HexFormat.of().formatHex(digest.digest()), Files.size(assembledFile));
+    }
+
+    /**
+     * Adds a reference to the blob for the staged content, creating the blob if this is the
+     * first copy. Must run inside the transaction that saves the referencing file metadata.
+     *
+     * @return The referenced blob
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public BlobEntity acquire(StagedBlob staged) {
+        Path blobPath = resolveBlobPath(staged.digest());
+        BlobEntity blob = null;
+        for (int attempt = 0; blob == null && attempt < MAX_ACQUIRE_ATTEMPTS; attempt++) {
+            blobRepository.insertIfAbsent(staged.digest(), blobPath.toString(), staged.size());
+            // Empty if a purge deleted the row the insert found
+            blob = blobRepository.findByDigestForUpdate(staged.digest()).orElse(null);
+        }
+        if (blob == null) {
+            throw new FileStorageException("Blob row vanished for digest " + staged.digest());
+        }
+
+        try {
+            if (blob.getRefCount() == 0 || !Files.exists(blobPath)) {
+                // First reference (or a blob whose file went missing): the staged copy becomes the blob
+                Files.createDirectories(blobPath.getParent());
+                // Forced when staged; the rename is made durable before the row can commit
+                Files.move(staged.file(), blobPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                DurableFiles.forceDirectory(blobPath.getParent());
+            } else {
+                Files.deleteIfExists(staged.file());
+                log.debug("Deduplicated upload against blob {}", staged.digest());
+            }
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not store blob " + staged.digest(), ex);
+        }
+
+        blob.setRefCount(blob.getRefCount() + 1);
+        return blob;
+    }
+
+    /**
+     * Adds a reference to an existing blob without any content, for clients that announce the
+     * digest of a file the server already has.
+     *
+     * @throws ResourceNotFoundException If no blob with the digest exists
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public BlobEntity acquireExisting(String digest) {
+        BlobEntity blob = blobRepository.findByDigestForUpdate(digest)
+                .filter(b -> b.getRefCount() > 0 && Files.exists(Path.of(b.getPath())))
+                .orElseThrow(() -> new ResourceNotFoundException("No blob found with digest " + digest));
+        blob.setRefCount(blob.getRefCount() + 1);
+        return blob;
+    }
+
+    /**
+     * Removes a reference to a blob. When it was the last one, the blob file and row are deleted
+     * after the transaction commits, unless the blob has been referenced again by then.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void release(String digest) {
+        BlobEntity blob = blobRepository.findByDigestForUpdate(digest).orElse(null);
+        if (blob == null) {
+            log.warn("Released a reference to unknown blob {}", digest);
+            return;
+        }
+
+        long remaining = blob.getRefCount() - 1;
+        blob.setRefCount(remaining);
+        if (remaining > 0) {
+            return;
+        }
+
+        // Unlinking now would lose the content if the transaction rolls back and restores the count
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                purge(digest);
+            }
+        });
+    }
+
+    /**
+     * Deletes a staged file that was never turned into a blob reference.
+     */
+    public void discard(StagedBlob staged) {
+        try {
+            Files.deleteIfExists(staged.file());
+        } catch (IOException ex) {
+            log.warn("Could not remove staged file {}: {}", staged.file(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Deletes a blob without references, holding its row lock so that a concurrent acquire
+     * either re-references it first or finds no row and creates the blob anew. If the
+     * transaction fails after the unlink, the row remains without references or content, which
+     * acquire handles like a new blob.
+     */
+    private void purge(String digest) {
+        try {
+            purgeTransaction.executeWithoutResult(status -> blobRepository.findByDigestForUpdate(digest)
+                    .filter(blob -> blob.getRefCount() == 0)
+                    .ifPresent(blob -> {
+                        blobRepository.delete(blob);
+                        try {
+                            Files.deleteIfExists(Path.of(blob.getPath()));
+                        } catch (IOException ex) {
+                            throw new FileStorageException("Could not delete blob " + digest, ex);
+                        }
+                    }));
+        } catch (RuntimeException ex) {
+            log.warn("Could not delete unreferenced blob {}; the reconciler will remove it", digest, ex);
+        }
+    }
+
+    private Path resolveBlobPath(String digest) {
+        return blobLocation.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * Returns a SHA-256 digest, the algorithm of every content digest stored in
+     * {@code files.digest} and {@code blobs.digest}.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.UploadStatus;
+
+import java.io.InputStream;
+
+/**
+ * Service interface for resumable, chunked uploads.
+ *
+ * <p>A client initiates an upload session, sends the file as fixed-size chunks (in any order
+ * and in parallel) and completes the session once every chunk has been received. Each chunk
+ * is streamed from the request body straight into its position in the target file, so large
+ * uploads are never buffered in memory or in multipart temp files.</p>
+ */
+public interface ChunkedUploadService {
+
+    /**
+     * Starts a new upload session.
+     *
+     * @param originalFilename The filename provided by the user
+     * @param size The total size of the file in bytes
+     * @param owner The owner whose quota the file counts against; the size is reserved until
+     *              the session completes or ends
+     * @return The status of the new session, including the chunk size the client must use
+     * @throws BadRequestException If the file type or size is not allowed
+     * @throws QuotaExceededException If the file would exceed a storage quota
+     */
+    UploadStatus initiate(String originalFilename, long size, String owner);
+
+    /**
+     * Writes one chunk of an upload session.
+     *
+     * @param uploadId The ID of the upload session
+     * @param offset The byte offset of the chunk; must be a multiple of the chunk size
+     * @param contentLength The length of the request body, or -1 if unknown
+     * @param content The chunk content, read until the chunk is complete
+     * @return The status of the session after the chunk has been written
+     * @throws ResourceNotFoundException If the session does not exist, or ends while the chunk is written
+     * @throws BadRequestException If the offset or length do not match a chunk
+     */
+    UploadStatus writeChunk(String uploadId, long offset, long contentLength, InputStream content);
+
+    /**
+     * Retrieves the progress of an upload session so that an interrupted client can resume.
+     *
+     * @param uploadId The ID of the upload session
+     * @return The status of the session
+     * @throws ResourceNotFoundException If the session does not exist
+     */
+    UploadStatus getStatus(String uploadId);
+
+    /**
+     * Completes an upload session and registers the assembled file.
+     *
+     * @param uploadId The ID of the upload session
+     * @return The saved file entity
+     * @throws ResourceNotFoundException If the session does not exist
+     * @throws BadRequestException If chunks are still missing
+     */
+    FileEntity complete(String uploadId);
+
+    /**
+     * Aborts an upload session and discards the chunks received so far.
+     *
+     * @param uploadId The ID of the upload session
+     * @throws ResourceNotFoundException If the session does not exist
+     */
+    void abort(String uploadId);
+}
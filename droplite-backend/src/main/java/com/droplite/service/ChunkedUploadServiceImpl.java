@@ -0,0 +1,260 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.exception.BadRequestException;
+import com.droplite.exception.FileStorageException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.model.UploadStatus;
+import com.droplite.quota.UsageTracker;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.FileValidator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link ChunkedUploadService} that assembles uploads in a staging
+ * directory next to the storage location.
+ *
+ * <p>Every session owns a pre-sized part file. Chunks are transferred from the request body
+ * into their position with {@link FileChannel#transferFrom}, so concurrent requests for the
+ * same session write to disk in parallel. On completion the part file is handed to
+ * {@link FileStorageService#storeAssembled}, which renames it into place. The declared size is
+ * reserved against the owner's quota when the session starts, before any chunk is written,
+ * and released when it ends.</p>
+ *
+ * <p>Sessions are kept in memory; part files left over from a previous run are removed at
+ * startup and idle sessions expire after {@code file.storage.chunked.session-timeout}.</p>
+ *
+ * <p>In cluster mode the upload ID is chosen so that this node is its primary; requests for
+ * the session that reach other nodes are forwarded here.</p>
+ */
+@Slf4j
+@Service
+public class ChunkedUploadServiceImpl implements ChunkedUploadService {
+
+    private final FileStorageService fileStorageService;
+    private final FileValidator fileValidator;
+    private final UsageTracker usageTracker;
+    private final Cluster cluster;
+    // Staging directory for part files; lives inside the upload directory so completion is a rename
+    private final Path incomingLocation;
+    private final long chunkSize;
+    private final long maxFileSize;
+    private final Duration sessionTimeout;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public ChunkedUploadServiceImpl(FileStorageService fileStorageService,
+                                    FileValidator fileValidator,
+                                    UsageTracker usageTracker,
+                                    Cluster cluster,
+                                    LocalStorageBackend hotStorage,
+                                    @Value("${file.storage.chunked.chunk-size:8MB}") DataSize chunkSize,
+                                    @Value("${file.storage.chunked.max-file-size:10GB}") DataSize maxFileSize,
+                                    @Value("${file.storage.chunked.session-timeout:24h}") Duration sessionTimeout) {
+        this.fileStorageService = fileStorageService;
+        this.fileValidator = fileValidator;
+        this.usageTracker = usageTracker;
+        this.cluster = cluster;
+        this.incomingLocation = hotStorage.root().resolve(".incoming");
+        this.chunkSize = chunkSize.toBytes();
+        this.maxFileSize = maxFileSize.toBytes();
+        this.sessionTimeout = sessionTimeout;
+
+        try {
+            // Sessions do not survive a restart, so neither do their part files
+            FileSystemUtils.deleteRecursively(this.incomingLocation);
+            Files.createDirectories(this.incomingLocation);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not create the upload staging directory: " + this.incomingLocation, ex);
+        }
+    }
+
+    @Override
+    public UploadStatus initiate(String originalFilename, long size, String owner) {
+        // The content is checked once it is complete
+        if (!fileValidator.isValidFileType(originalFilename)) {
+            throw new BadRequestException("File type not allowed. Allowed types: " + fileValidator.getAllowedExtensions());
+        }
+        if (size <= 0 || size > maxFileSize) {
+            throw new BadRequestException("File size must be between 1 byte and " + DataSize.ofBytes(maxFileSize));
+        }
+
+        String filename = StringUtils.cleanPath(originalFilename);
+        UsageTracker.Reservation reservation = usageTracker.reserve(owner, size);
+
+        String uploadId = cluster.newLocalId();
+        Path partFile = incomingLocation.resolve(uploadId + ".part");
+        try {
+            FileChannel channel = FileChannel.open(partFile,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Extend the file to its final size up front; transferFrom never writes past the end of a file
+            channel.write(ByteBuffer.allocate(1), size - 1);
+
+            UploadSession session = new UploadSession(uploadId, filename, size, chunkSize, partFile, channel,
+                    owner, reservation);
+            sessions.put(uploadId, session);
+            log.debug("Initiated chunked upload {} for {} ({} bytes)", uploadId, filename, size);
+            return session.toStatus();
+        } catch (IOException ex) {
+            reservation.release();
+            throw new FileStorageException("Could not initiate upload for " + filename, ex);
+        }
+    }
+
+    @Override
+    public UploadStatus writeChunk(String uploadId, long offset, long contentLength, InputStream content) {
+        UploadSession session = getSession(uploadId);
+        session.touch();
+
+        int index = session.chunkIndexAt(offset);
+        if (index < 0) {
+            throw new BadRequestException("Offset " + offset + " is not the start of a chunk");
+        }
+        long expected = session.chunkLength(index);
+        if (contentLength >= 0 && contentLength != expected) {
+            throw new BadRequestException("Chunk at offset " + offset + " must be " + expected +
+                    " bytes but was " + contentLength);
+        }
+
+        if (!session.tryBeginChunk(index)) {
+            if (session.isEnded()) {
+                // Completed, aborted or expired since it was looked up
+                throw new ResourceNotFoundException("Upload not found with id " + uploadId);
+            }
+            if (session.isReceived(index)) {
+                // Retried chunk the server already has; acknowledge without rewriting it
+                return session.toStatus();
+            }
+            throw new BadRequestException("Chunk at offset " + offset + " is already being uploaded");
+        }
+
+        boolean written = false;
+        try {
+            ReadableByteChannel source = Channels.newChannel(content);
+            long transferred = 0;
+            while (transferred < expected) {
+                long count = session.getChannel().transferFrom(source, offset + transferred, expected - transferred);
+                if (count <= 0) {
+                    break;
+                }
+                transferred += count;
+            }
+            if (transferred != expected) {
+                throw new BadRequestException("Chunk at offset " + offset + " ended after " + transferred +
+                        " of " + expected + " bytes");
+            }
+            written = true;
+        } catch (IOException ex) {
+            if (session.isEnded()) {
+                // The channel was closed by an abort, not by a disk error
+                throw new ResourceNotFoundException("Upload not found with id " + uploadId);
+            }
+            throw new FileStorageException("Could not write chunk at offset " + offset + " of upload " + uploadId, ex);
+        } finally {
+            session.finishChunk(index, written);
+        }
+        return session.toStatus();
+    }
+
+    @Override
+    public UploadStatus getStatus(String uploadId) {
+        UploadSession session = getSession(uploadId);
+        session.touch();
+        return session.toStatus();
+    }
+
+    @Override
+    public FileEntity complete(String uploadId) {
+        UploadSession session = getSession(uploadId);
+        int missing = session.missingChunkCount();
+        if (missing > 0) {
+            throw new BadRequestException("Upload " + uploadId + " is missing " + missing + " chunk(s)");
+        }
+        // Removing the session first makes a concurrent second completion fail with 404
+        if (!sessions.remove(uploadId, session)) {
+            throw new ResourceNotFoundException("Upload not found with id " + uploadId);
+        }
+        session.end();
+
+        try {
+            session.getChannel().force(false);
+            session.close();
+            FileEntity fileEntity = fileStorageService.storeAssembled(
+                    session.getPartFile(), session.getOriginalFilename(), session.getOwner());
+            session.getReservation().release();
+            log.debug("Completed chunked upload {} as file {}", uploadId, fileEntity.getId());
+            return fileEntity;
+        } catch (IOException ex) {
+            discard(session);
+            throw new FileStorageException("Could not complete upload " + uploadId, ex);
+        } catch (RuntimeException ex) {
+            discard(session);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void abort(String uploadId) {
+        UploadSession session = sessions.remove(uploadId);
+        if (session == null) {
+            throw new ResourceNotFoundException("Upload not found with id " + uploadId);
+        }
+        session.end();
+        discard(session);
+    }
+
+    /**
+     * Discards sessions that have not been touched within the session timeout. A session with a
+     * chunk still being written is not idle, however long ago the chunk started.
+     */
+    @Scheduled(fixedDelay = 10, timeUnit = TimeUnit.MINUTES)
+    public void expireIdleSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTimeout.toMillis();
+        sessions.values().removeIf(session -> {
+            if (!session.endIfIdleSince(cutoff)) {
+                return false;
+            }
+            log.info("Expiring idle upload {}", session.getId());
+            discard(session);
+            return true;
+        });
+    }
+
+    private UploadSession getSession(String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null) {
+            throw new ResourceNotFoundException("Upload not found with id " + uploadId);
+        }
+        return session;
+    }
+
+    private void discard(UploadSession session) {
+        session.getReservation().release();
+        try {
+            session.close();
+            Files.deleteIfExists(session.getPartFile());
+        } catch (IOException ex) {
+            log.warn("Could not remove part file {}: {}", session.getPartFile(), ex.getMessage());
+        }
+    }
+}
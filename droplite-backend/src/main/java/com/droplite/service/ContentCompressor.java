@@ -0,0 +1,110 @@
+package com.droplite.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses text-like uploads with gzip while they are written to disk.
+ *
+ * <p>Only content types that compress well (text, JSON, XML, JavaScript) above
+ * {@code file.storage.compression.min-size} are compressed; images and other binary formats
+ * are already compressed. The codec is recorded in {@link com.droplite.model.FileEntity#getContentEncoding()},
+ * and the stored bytes are sent as-is to clients that accept gzip, so serving them costs no
+ * CPU. Other clients get the content decompressed as a stream.</p>
+ */
+@Component
+public class ContentCompressor {
+
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "image/svg+xml");
+
+    private final boolean enabled;
+    private final long minSize;
+    private final int level;
+
+    public ContentCompressor(@Value("${file.storage.compression.enabled:true}") boolean enabled,
+                             @Value("${file.storage.compression.min-size:1KB}") DataSize minSize,
+                             @Value("${file.storage.compression.level:6}") int level) {
+        this.enabled = enabled;
+        this.minSize = minSize.toBytes();
+        this.level = level;
+    }
+
+    /**
+     * Whether content of the given type and size should be stored compressed.
+     */
+    public boolean shouldCompress(String contentType, long size) {
+        if (!enabled || contentType == null || size < minSize) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mimeType = (parameters < 0 ? contentType : contentType.substring(0, parameters))
+                .trim()
+                .toLowerCase(Locale.ROOT);
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("+json")
+                || mimeType.endsWith("+xml")
+                || COMPRESSIBLE_TYPES.contains(mimeType);
+    }
+
+    /**
+     * Writes content to a file, compressing it with gzip.
+     *
+     * @return The size of the compressed file
+     */
+    public long writeCompressed(InputStream content, Path target) throws IOException {
+        try (InputStream in = content;
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target), BUFFER_SIZE) {
+                 {
+                     def.setLevel(level);
+                 }
+             }) {
+            in.transferTo(out);
+        }
+        return Files.size(target);
+    }
+
+    /**
+     * Wraps a stream of stored gzip bytes so that it yields the original content.
+     */
+    public static InputStream decompress(InputStream compressed) throws IOException {
+        return new GZIPInputStream(compressed, BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a resource that reads a compressed file as its original content.
+     *
+     * @param file The compressed file
+     * @param size The original size of the content
+     */
+    public static Resource decompressingResource(Path file, long size) {
+        return new FileSystemResource(file) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return decompress(super.getInputStream());
+            }
+
+            @Override
+            public long contentLength() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,337 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.model.DerivativeEntity;
+import com.droplite.model.DerivativeKind;
+import com.droplite.model.FileEntity;
+import com.droplite.repository.DerivativeRepository;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.ShardedLayout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates thumbnails and previews of uploaded images in the background.
+ *
+ * <p>Stored images are submitted after their metadata is committed and processed on a small
+ * fixed pool ({@code file.derivatives.threads}) fed by a bounded queue
+ * ({@code file.derivatives.queue-capacity}). Submitting never blocks the upload: when the
+ * queue is full the image is skipped, and a backfill job later picks up images without
+ * derivatives at the rate the queue drains. The same job covers images stored before
+ * derivatives existed.</p>
+ *
+ * <p>Images are decoded with source subsampling, so a large photo is never decoded at full
+ * resolution. Derivatives are JPEGs stored under {@code uploads/derived} in the
+ * {@link ShardedLayout} and recorded as {@link DerivativeEntity} rows.</p>
+ *
+ * <p>In cluster mode the derivatives of an image are generated and kept by its primary node
+ * only, to which other nodes forward requests for them.</p>
+ */
+@Slf4j
+@Service
+public class DerivativePipeline {
+
+    private static final Set<String> IMAGE_TYPES = Set.of("image/jpeg", "image/png");
+    private static final String DERIVATIVE_CONTENT_TYPE = "image/jpeg";
+
+    private final DerivativeRepository derivativeRepository;
+    private final FileRepository fileRepository;
+    private final Cluster cluster;
+    private final boolean enabled;
+    private final int thumbnailSize;
+    private final int previewSize;
+    private final Path derivedLocation;
+    private final ThreadPoolExecutor executor;
+    private final Counter droppedCounter;
+    private final Timer generationTimer;
+
+    // Images skipped because the queue was full; the backfill pass restarts while this grows
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean backlog = true;
+    private long droppedAtPassStart;
+    private long backfillPosition;
+
+    public DerivativePipeline(DerivativeRepository derivativeRepository,
+                              FileRepository fileRepository,
+                              Cluster cluster,
+                              MeterRegistry meterRegistry,
+                              LocalStorageBackend hotStorage,
+                              @Value("${file.derivatives.enabled:true}") boolean enabled,
+                              @Value("${file.derivatives.threads:2}") int threads,
+                              @Value("${file.derivatives.queue-capacity:1000}") int queueCapacity,
+                              @Value("${file.derivatives.thumbnail-size:256}") int thumbnailSize,
+                              @Value("${file.derivatives.preview-size:1280}") int previewSize) {
+        this.derivativeRepository = derivativeRepository;
+        this.fileRepository = fileRepository;
+        this.cluster = cluster;
+        this.enabled = enabled;
+        this.thumbnailSize = thumbnailSize;
+        this.previewSize = previewSize;
+        this.derivedLocation = hotStorage.root().resolve("derived");
+        this.droppedCounter = Counter.builder("droplite.derivatives.dropped")
+                .description("Images skipped because the derivative queue was full; the backfill job retries them")
+                .register(meterRegistry);
+        this.generationTimer = Timer.builder("droplite.derivatives.generation")
+                .description("Time to generate the derivatives of an image")
+                .register(meterRegistry);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("derivatives-"),
+                (task, pool) -> {
+                    dropped.incrementAndGet();
+                    droppedCounter.increment();
+                    backlog = true;
+                });
+        new ExecutorServiceMetrics(executor, "derivatives", List.of()).bindTo(meterRegistry);
+    }
+
+    /**
+     * Queues derivative generation for a stored file, if it is an image. Returns immediately.
+     */
+    public void submit(FileEntity fileEntity) {
+        if (enabled && IMAGE_TYPES.contains(fileEntity.getContentType())
+                && cluster.isPrimary(fileEntity.getFilename())) {
+            Long id = fileEntity.getId();
+            Path source = Path.of(fileEntity.getPath());
+            String fileName = fileEntity.getFilename();
+            executor.execute(() -> derive(id, source, fileName));
+        }
+    }
+
+    /**
+     * Returns the location of a derivative of a file, if it has been generated.
+     */
+    public Optional<Path> find(Long fileId, DerivativeKind kind) {
+        return derivativeRepository.findByFileIdAndKind(fileId, kind)
+                .map(derivative -> Path.of(derivative.getPath()))
+                .filter(Files::isReadable);
+    }
+
+    /**
+     * Removes the generated files of a deleted file; the rows are removed with the file row.
+     */
+    public void deleteDerivatives(FileEntity fileEntity) {
+        if (IMAGE_TYPES.contains(fileEntity.getContentType())) {
+            deleteDerivatives(fileEntity.getFilename());
+        }
+    }
+
+    /**
+     * Removes the generated files of a deleted file by its stored name, whatever its type.
+     */
+    public void deleteDerivatives(String filename) {
+        for (DerivativeKind kind : DerivativeKind.values()) {
+            deleteQuietly(derivativePath(filename, kind));
+        }
+    }
+
+    /**
+     * Feeds images without derivatives to the queue, no faster than it drains.
+     */
+    @Scheduled(fixedDelay = 10, initialDelay = 60, timeUnit = TimeUnit.SECONDS)
+    public void backfill() {
+        if (!enabled || !backlog) {
+            return;
+        }
+        int capacity = executor.getQueue().remainingCapacity();
+        if (capacity == 0) {
+            return;
+        }
+        if (backfillPosition == 0) {
+            droppedAtPassStart = dropped.get();
+        }
+
+        List<FileEntity> files = fileRepository.findWithoutDerivatives(IMAGE_TYPES, backfillPosition,
+                PageRequest.of(0, capacity));
+        if (files.isEmpty()) {
+            // Start another pass only if images were skipped during this one
+            backfillPosition = 0;
+            backlog = dropped.get() != droppedAtPassStart;
+            return;
+        }
+        files.forEach(this::submit);
+        backfillPosition = files.get(files.size() - 1).getId();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void derive(Long fileId, Path source, String fileName) {
+        if (derivativeRepository.existsByFileId(fileId)) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        List<DerivativeEntity> derivatives = new ArrayList<>(2);
+        try {
+            DecodedImage decoded = decode(source, previewSize);
+            BufferedImage base = decoded.image();
+            if (Math.max(decoded.width(), decoded.height()) > previewSize) {
+                base = scale(base, previewSize);
+                derivatives.add(write(fileId, fileName, DerivativeKind.PREVIEW, base, 0.8f));
+            }
+            derivatives.add(write(fileId, fileName, DerivativeKind.THUMBNAIL, scale(base, thumbnailSize), 0.75f));
+            derivativeRepository.saveAll(derivatives);
+            generationTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        } catch (NoSuchFileException ex) {
+            // Deleted before it got its turn
+            log.debug("Skipping derivatives of deleted file {}", fileId);
+        } catch (DataIntegrityViolationException ex) {
+            // The file was deleted meanwhile, or another node generated the same derivatives
+            log.debug("Discarding derivatives of file {}: {}", fileId, ex.getMessage());
+            derivatives.forEach(derivative -> deleteQuietly(Path.of(derivative.getPath())));
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Could not generate derivatives of file {}", fileId, ex);
+            derivatives.forEach(derivative -> deleteQuietly(Path.of(derivative.getPath())));
+        }
+    }
+
+    /**
+     * Decodes an image at the coarsest resolution that is still at least twice the target
+     * size, so that large images never occupy memory at full resolution.
+     */
+    private static DecodedImage decode(Path source, int targetSize) throws IOException {
+        if (!Files.exists(source)) {
+            throw new NoSuchFileException(source.toString());
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + source);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * targetSize));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return new DecodedImage(reader.read(0, param), width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales an image to fit within a square of the given size. Large ratios are reduced by
+     * repeated halving before the final bilinear step, which avoids aliasing.
+     */
+    private static BufferedImage scale(BufferedImage source, int maxDimension) {
+        double factor = Math.min(1.0, (double) maxDimension / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * factor));
+
+        BufferedImage current = source;
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            current = resize(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current == source || current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            // Always redraw the source once: JPEG output needs an opaque RGB image
+            current = resize(current, targetWidth, targetHeight);
+        }
+        return current;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            // Transparent areas of PNGs end up white rather than black
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private DerivativeEntity write(Long fileId, String fileName, DerivativeKind kind, BufferedImage image,
+                                   float quality) throws IOException {
+        Path target = derivativePath(fileName, kind);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(temp);
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            // Progressive JPEGs render a coarse version first and are usually smaller
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        DerivativeEntity derivative = new DerivativeEntity();
+        derivative.setFileId(fileId);
+        derivative.setKind(kind);
+        derivative.setPath(target.toString());
+        derivative.setContentType(DERIVATIVE_CONTENT_TYPE);
+        derivative.setWidth(image.getWidth());
+        derivative.setHeight(image.getHeight());
+        derivative.setSize(Files.size(target));
+        return derivative;
+    }
+
+    private Path derivativePath(String fileName, DerivativeKind kind) {
+        return ShardedLayout.resolve(derivedLocation, fileName + "." + kind.slug() + ".jpg");
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Could not delete {}", file, ex);
+        }
+    }
+
+    private record DecodedImage(BufferedImage image, int width, int height) {
+    }
+}
@@ -0,0 +1,150 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Optional cache of the content of small, frequently viewed files, held off-heap in direct
+ * {@link ByteBuffer}s so that it adds no GC pressure however large the budget is.
+ *
+ * <p>The cache is bounded by a byte budget rather than an entry count. Admission is
+ * frequency-aware at two levels: a file is only read into memory on its second request
+ * within the doorkeeper window, and Caffeine's W-TinyLFU policy then only admits it if it is
+ * requested more often than the entries it would evict. A one-off scan over many files
+ * therefore never displaces the working set.</p>
+ *
+ * <p>Entries are looked up before the file's storage is touched, and are only served for the
+ * size and digest they were loaded with.</p>
+ *
+ * <p>Enabled with {@code file.content-cache.enabled}. Cached buffers are shared and must only
+ * be read through views (e.g. {@link ByteBuffer#asReadOnlyBuffer()}).</p>
+ */
+@Slf4j
+@Component
+public class FileContentCache {
+
+    /**
+     * File content held by the cache.
+     *
+     * @param buffer       Read-only direct buffer with the complete file content
+     * @param lastModified Modification time of the file when it was cached, in millis
+     * @param digest       SHA-256 of the content as recorded for the file, if known
+     */
+    public record CachedContent(ByteBuffer buffer, long lastModified, String digest) {
+
+        boolean matches(FileEntity fileEntity) {
+            return buffer.capacity() == fileEntity.getSize() && Objects.equals(digest, fileEntity.getDigest());
+        }
+    }
+
+    private final boolean enabled;
+    private final long maxFileSize;
+    private final Cache<Long, CachedContent> cache;
+    // Files requested once recently; a second request within the window loads them into the cache
+    private final Cache<Long, Boolean> doorkeeper;
+
+    public FileContentCache(@Value("${file.content-cache.enabled:false}") boolean enabled,
+                            @Value("${file.content-cache.max-file-size:256KB}") DataSize maxFileSize,
+                            @Value("${file.content-cache.budget:64MB}") DataSize budget,
+                            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxFileSize = maxFileSize.toBytes();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(budget.toBytes())
+                .weigher((Long id, CachedContent content) -> content.buffer().capacity())
+                .recordStats()
+                .build();
+        this.doorkeeper = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofMinutes(10))
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "fileContent");
+    }
+
+    /**
+     * Returns the cached content of a file without touching its storage, so that a hit costs
+     * neither a disk access nor, for a file in the cold tier or on another node, a fetch.
+     *
+     * @param fileEntity The file being served
+     * @return The cached content, or {@code null} if the file should be loaded with {@link #admit}
+     *         or served from disk
+     */
+    public CachedContent getIfPresent(FileEntity fileEntity) {
+        if (!isCacheable(fileEntity)) {
+            return null;
+        }
+        CachedContent cached = cache.getIfPresent(fileEntity.getId());
+        if (cached != null && !cached.matches(fileEntity)) {
+            // Other content under the same ID, e.g. after the database was restored
+            cache.invalidate(fileEntity.getId());
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Loads the content of a file that was not cached, if the file is small enough and has
+     * been requested before.
+     *
+     * @param fileEntity The file being served
+     * @param file The location of the file content
+     * @return The cached content, or {@code null} if the file should be served from disk
+     */
+    public CachedContent admit(FileEntity fileEntity, Path file) {
+        if (!isCacheable(fileEntity)) {
+            return null;
+        }
+        Long id = fileEntity.getId();
+        if (doorkeeper.asMap().putIfAbsent(id, Boolean.TRUE) == null) {
+            // First sighting; not worth an allocation yet
+            return null;
+        }
+
+        try {
+            CachedContent loaded = load(file, fileEntity.getDigest());
+            cache.put(id, loaded);
+            return loaded;
+        } catch (IOException ex) {
+            log.warn("Could not cache content of file {}: {}", id, ex.getMessage());
+            return null;
+        }
+    }
+
+    public void invalidate(Long id) {
+        cache.invalidate(id);
+        doorkeeper.invalidate(id);
+    }
+
+    private boolean isCacheable(FileEntity fileEntity) {
+        // Compressed files are served from disk, where the stored bytes can be sent as they are
+        return enabled && fileEntity.getSize() <= maxFileSize && fileEntity.getContentEncoding() == null;
+    }
+
+    private CachedContent load(Path file, String digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until the buffer is full
+            }
+            buffer.flip();
+            return new CachedContent(buffer.asReadOnlyBuffer(), lastModified, digest);
+        }
+    }
+}
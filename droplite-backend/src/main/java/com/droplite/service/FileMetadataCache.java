@@ -0,0 +1,108 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Bounded in-process cache of file metadata keyed by file ID, so that repeated views and
+ * downloads of popular files do not query the database every time.
+ *
+ * <p>Backed by Caffeine, whose W-TinyLFU policy only admits entries that are accessed more
+ * often than the ones they would evict. Entries expire after a TTL as a safety net; every
+ * code path that changes or deletes a file row must also call {@link #invalidate(Long)}.
+ * The cache holds its own copies of the entities, and every caller gets a copy of its own,
+ * so a caller changing an entity never changes what other requests see.</p>
+ *
+ * <p>Hit, miss, eviction and size counters are published as the {@code cache.*} meters
+ * tagged {@code cache=fileMetadata}.</p>
+ */
+@Component
+public class FileMetadataCache {
+
+    private final AsyncCache<Long, FileEntity> cache;
+
+    public FileMetadataCache(@Value("${file.metadata-cache.maximum-size:10000}") long maximumSize,
+                             @Value("${file.metadata-cache.ttl:10m}") Duration ttl,
+                             MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "fileMetadata");
+    }
+
+    /**
+     * Returns the cached metadata for a file, loading it on a miss.
+     *
+     * <p>A miss maps the ID to a pending future, which the calling thread then completes by
+     * running the loader; concurrent misses for the same ID wait for that one load. An
+     * {@link #invalidate(Long)} while the load runs removes the pending entry, so what it
+     * loaded is returned to the waiting callers but never cached. The loader does not run
+     * inside the cache's compute lock, where a database query would pin the carrier thread
+     * when requests run on virtual threads.</p>
+     *
+     * @param id The file ID
+     * @param loader Loads the metadata, returning {@code null} if the file does not exist
+     * @return A copy of the metadata, or {@code null} if the file does not exist (which is not cached)
+     */
+    public FileEntity get(Long id, Function<Long, FileEntity> loader) {
+        CompletableFuture<FileEntity> loading = new CompletableFuture<>();
+        CompletableFuture<FileEntity> future = cache.get(id, (key, executor) -> loading);
+        if (future == loading) {
+            try {
+                FileEntity loaded = loader.apply(id);
+                loading.complete(loaded == null ? null : copy(loaded));
+            } catch (RuntimeException ex) {
+                loading.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+        try {
+            FileEntity cached = future.join();
+            return cached == null ? null : copy(cached);
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+
+    public void invalidate(Long id) {
+        cache.synchronous().invalidate(id);
+    }
+
+    public CacheStats stats() {
+        return cache.synchronous().stats();
+    }
+
+    private static FileEntity copy(FileEntity fileEntity) {
+        FileEntity copy = new FileEntity();
+        copy.setId(fileEntity.getId());
+        copy.setFilename(fileEntity.getFilename());
+        copy.setOriginalFilename(fileEntity.getOriginalFilename());
+        copy.setPath(fileEntity.getPath());
+        copy.setContentType(fileEntity.getContentType());
+        copy.setSize(fileEntity.getSize());
+        copy.setOwner(fileEntity.getOwner());
+        copy.setDigest(fileEntity.getDigest());
+        copy.setContentEncoding(fileEntity.getContentEncoding());
+        copy.setDeduplicated(fileEntity.isDeduplicated());
+        copy.setStorageTier(fileEntity.getStorageTier());
+        copy.setLastAccessedAt(fileEntity.getLastAccessedAt());
+        copy.setCreatedAt(fileEntity.getCreatedAt());
+        return copy;
+    }
+}
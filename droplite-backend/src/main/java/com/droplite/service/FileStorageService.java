@@ -1,11 +1,17 @@
 package com.droplite.service;
 
+import com.droplite.model.BatchItemResult;
 import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FilePage;
+import com.droplite.model.FileSummary;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Service interface for file storage operations.
@@ -17,27 +23,98 @@ public interface FileStorageService {
      * Stores a file in the filesystem and saves its metadata to the database.
      *
      * @param file The file to be stored
+     * @param owner The owner whose quota and usage the file counts against
      * @return The saved file entity with generated ID and metadata
      * @throws IOException If an I/O error occurs during file storage
      * @throws FileStorageException If the file is invalid or storage fails
+     * @throws QuotaExceededException If the file would exceed a storage quota; checked before it is written
      */
-    FileEntity store(MultipartFile file) throws IOException;
+    FileEntity store(MultipartFile file, String owner) throws IOException;
+    
+    /**
+     * Stores several files. Their content is written to storage in parallel and their metadata
+     * is saved in a single transaction, so the inserts are sent to the database in batches.
+     *
+     * @param files The files to be stored
+     * @param owner The owner whose quota and usage the files count against
+     * @return One result per file, in the order of the input
+     */
+    List<BatchItemResult> storeAll(List<MultipartFile> files, String owner);
+    
+    /**
+     * Adopts a file whose bytes were already written to disk by another upload path,
+     * such as a chunked upload. The file is moved into the storage location with a rename,
+     * so its content is never copied, and its metadata is saved to the database. Its type is
+     * detected from the beginning of the content.
+     *
+     * @param source The fully written file; must be on the same filesystem as the storage location
+     * @param originalFilename The filename provided by the user
+     * @param owner The owner whose usage the file counts against; its quota was checked when
+     *              the upload began
+     * @return The saved file entity with generated ID and metadata
+     * @throws IOException If the file cannot be moved into the storage location
+     */
+    FileEntity storeAssembled(Path source, String originalFilename, String owner) throws IOException;
+    
+    /**
+     * Registers a new file for content the server already holds, without receiving its bytes.
+     * Clients send the SHA-256 of a file before uploading it and only upload the body if
+     * this fails with {@link ResourceNotFoundException}.
+     *
+     * @param digest The hex SHA-256 of the file content
+     * @param originalFilename The filename provided by the user; the stored content must suit its extension
+     * @param owner The owner whose quota and usage the file counts against
+     * @return The saved file entity sharing the existing blob
+     * @throws ResourceNotFoundException If no stored content has the digest
+     * @throws QuotaExceededException If the file would exceed a storage quota
+     */
+    FileEntity storeByDigest(String digest, String originalFilename, String owner);
     
     /**
      * Loads a file as a Spring Resource for download.
      *
      * @param id The ID of the file to load
-     * @return The file as a Resource
+     * @return The file as a Resource, yielding the content as uploaded even if it is stored compressed
      * @throws ResourceNotFoundException If the file is not found
      */
     Resource loadAsResource(Long id);
     
     /**
-     * Retrieves metadata for all files in the system.
+     * Resolves the location of a file's content without another metadata lookup.
      *
-     * @return List of all file entities
+     * @param fileEntity The file whose content is requested
+     * @return The path of the readable file content, holding the stored (possibly compressed) bytes
+     * @throws ResourceNotFoundException If the content is missing from storage
      */
-    List<FileEntity> getAllFiles();
+    Path getContentPath(FileEntity fileEntity);
+
+    /**
+     * Notes that a file was read without resolving its content, e.g. when it was served from
+     * memory, so that it stays on local disk.
+     *
+     * @param fileEntity The file that was read
+     */
+    void recordAccess(FileEntity fileEntity);
+    
+    /**
+     * Retrieves one page of file summaries, newest first, using keyset pagination.
+     *
+     * @param filter The filter criteria
+     * @param cursor The cursor returned with the previous page, or {@code null} for the first page
+     * @param limit The maximum number of files on the page
+     * @return The page of summaries and the cursor of the next page
+     * @throws BadRequestException If the cursor is malformed
+     */
+    FilePage listFiles(FileFilter filter, String cursor, int limit);
+    
+    /**
+     * Streams every file summary matching the filter to a consumer, newest first, without
+     * holding the full result in memory.
+     *
+     * @param filter The filter criteria
+     * @param consumer Receives each summary in order
+     */
+    void exportFiles(FileFilter filter, Consumer<FileSummary> consumer);
     
     /**
      * Loads file content for viewing in the browser.
@@ -57,11 +134,39 @@ public interface FileStorageService {
     void deleteFile(Long id);
     
     /**
-     * Retrieves file metadata by ID.
+     * Deletes several files. Their metadata is removed in a single transaction before the
+     * files are unlinked from storage in parallel.
+     *
+     * @param ids The IDs of the files to delete
+     * @return One result per ID, in the order of the input; unknown IDs are reported as failures
+     */
+    List<BatchItemResult> deleteAll(List<Long> ids);
+    
+    /**
+     * Retrieves file metadata by ID. Served from an in-process cache when possible; the
+     * returned entity may be shared and must not be modified.
      *
      * @param id The ID of the file to retrieve
      * @return The file entity
      * @throws ResourceNotFoundException If the file is not found
      */
     FileEntity getFileById(Long id);
+    
+    /**
+     * Retrieves the metadata of several files with a single query.
+     *
+     * @param ids The IDs of the files to retrieve
+     * @return The file entities in the order of the IDs, without duplicates
+     * @throws ResourceNotFoundException If any of the files is not found
+     */
+    List<FileEntity> getFilesById(List<Long> ids);
+    
+    /**
+     * Retrieves the metadata of every file matching the filter, newest first, with a single query.
+     *
+     * @param filter The filter criteria
+     * @param limit The maximum number of files to return
+     * @return The matching file entities
+     */
+    List<FileEntity> findFiles(FileFilter filter, int limit);
 }
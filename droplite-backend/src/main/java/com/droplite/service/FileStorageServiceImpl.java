@@ -1,156 +1,380 @@
 package com.droplite.service;
 
+import com.droplite.changes.ChangeFeed;
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
 import com.droplite.exception.FileStorageException;
 import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.BatchItemResult;
+import com.droplite.model.BlobEntity;
+import com.droplite.model.FileCursor;
 import com.droplite.model.FileEntity;
+import com.droplite.model.FileFilter;
+import com.droplite.model.FilePage;
+import com.droplite.model.FileSummary;
+import com.droplite.model.StorageTier;
+import com.droplite.quota.UsageTracker;
 import com.droplite.repository.FileRepository;
+import com.droplite.search.SearchIndex;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
 import com.droplite.util.FileValidator;
+import com.droplite.util.ShardedLayout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Implementation of {@link FileStorageService} that stores files on the local filesystem
  * and maintains file metadata in a database.
  * 
  * <p>Files are stored with UUID-based filenames to prevent naming conflicts, while
- * the original filenames are preserved in the database for user reference.</p>
+ * the original filenames are preserved in the database for user reference. They are spread
+ * over hash-prefix subdirectories ({@link ShardedLayout}); files stored flat in the upload
+ * directory by earlier versions are moved there by the {@link StorageRebalancer}.</p>
+ *
+ * <p>Every upload is checked by the {@link FileValidator} when its content is first read; the
+ * stored content type is the type it detected, not the one the client sent.</p>
+ *
+ * <p>Text-like uploads are compressed on the way to disk ({@link ContentCompressor}); the codec
+ * is recorded in {@link FileEntity#getContentEncoding()} and {@link FileEntity#getSize()} keeps
+ * the original size.</p>
+ *
+ * <p>Uploads are hashed (SHA-256) while they are written, and the digest is kept in
+ * {@link FileEntity#getDigest()} for the {@link IntegrityScrubber} and the {@code ETag} of
+ * downloads. When {@code file.storage.content-addressed} is enabled, uploads are instead
+ * stored once per distinct digest in the {@link BlobStore}; files with identical bytes then
+ * share a single reference-counted blob.</p>
+ *
+ * <p>Files nobody reads for a while may be moved to a cold storage backend by
+ * {@link TieredStorage}; reading one moves it back to local disk first.</p>
+ *
+ * <p>Stored files are submitted to the {@link SearchIndex} once their metadata is committed,
+ * and removed from it when they are deleted.</p>
+ *
+ * <p>Content is written to a temporary file, forced to disk and renamed into place
+ * ({@link DurableFiles}) before its row is committed; rows are deleted before their content.
+ * Both operations are recorded in the {@link IntentJournal}, so that a crash between the disk
+ * and the database leaves at worst a file without a row, which the {@link StorageReconciler}
+ * removes.</p>
+ *
+ * <p>Every file belongs to an owner. Uploads reserve their size with the {@link UsageTracker}
+ * before any content is written, so an upload over quota is rejected up front, and the usage
+ * of the owner changes once the row is committed or deleted.</p>
+ *
+ * <p>Committed uploads and deletes are published to the {@link ChangeFeed}, from which clients
+ * learn about them without listing the files again.</p>
+ *
+ * <p>In cluster mode ({@link Cluster}) new files are named so that this node is their primary,
+ * and are copied to their other owners by the {@link Replicator} once committed. A file whose
+ * content is on another node is fetched from there when it is read here.</p>
  */
+@Slf4j
 @Service
 public class FileStorageServiceImpl implements FileStorageService {
 
     private final FileRepository fileRepository;
+    private final FileMetadataCache metadataCache;
+    private final FileContentCache contentCache;
+    private final BlobStore blobStore;
+    private final ContentCompressor contentCompressor;
+    private final DerivativePipeline derivativePipeline;
+    private final TieredStorage tieredStorage;
+    private final SearchIndex searchIndex;
+    private final IntentJournal intentJournal;
+    private final UsageTracker usageTracker;
+    private final ChangeFeed changeFeed;
+    private final Cluster cluster;
+    private final Replicator replicator;
+    private final StorageMetrics storageMetrics;
+    private final FileValidator fileValidator;
+    private final TransactionTemplate transactionTemplate;
+    // Runs the disk I/O of batch uploads and deletes in parallel
+    private final Executor storageExecutor;
+    // Whether new uploads are deduplicated through the blob store
+    private final boolean contentAddressed;
     // Base directory where uploaded files are stored
     private final Path fileStorageLocation;
 
     /**
-     * Initializes the file storage service and ensures the upload directory exists.
+     * Initializes the file storage service.
      *
      * @param fileRepository The repository for file metadata operations
-     * @throws FileStorageException if the upload directory cannot be created
+     * @param metadataCache Cache of file metadata by ID, invalidated when a file is deleted
+     * @param contentCache Cache of small file contents, invalidated when a file is deleted
+     * @param blobStore The content-addressed store used for deduplicated uploads
+     * @param contentCompressor Decides which uploads are stored compressed, and compresses them
+     * @param derivativePipeline Generates thumbnails and previews of stored images in the background
+     * @param hotStorage The local upload directory ({@code file.storage.upload-dir})
+     * @param tieredStorage Moves files between local disk and the cold tier
+     * @param searchIndex Full-text index of filenames and text content
+     * @param intentJournal Records writes and deletes that are not yet reflected in the database
+     * @param usageTracker Checks storage quotas and keeps the usage of each owner
+     * @param changeFeed Publishes created and deleted files to subscribed clients
+     * @param cluster Membership of the cluster, if this node is part of one
+     * @param replicator Copies stored files to the other nodes that own them
+     * @param storageMetrics Records upload latency and throughput
+     * @param fileValidator Checks the type and content of uploads
+     * @param transactionTemplate Template for transactions spanning blob references and metadata
+     * @param storageExecutor Executor for parallel disk I/O of batch operations
+     * @param contentAddressed Whether new uploads are stored as deduplicated blobs
      */
-    public FileStorageServiceImpl(FileRepository fileRepository) {
+    public FileStorageServiceImpl(FileRepository fileRepository,
+                                  FileMetadataCache metadataCache,
+                                  FileContentCache contentCache,
+                                  BlobStore blobStore,
+                                  ContentCompressor contentCompressor,
+                                  DerivativePipeline derivativePipeline,
+                                  LocalStorageBackend hotStorage,
+                                  TieredStorage tieredStorage,
+                                  SearchIndex searchIndex,
+                                  IntentJournal intentJournal,
+                                  UsageTracker usageTracker,
+                                  ChangeFeed changeFeed,
+                                  Cluster cluster,
+                                  Replicator replicator,
+                                  StorageMetrics storageMetrics,
+                                  FileValidator fileValidator,
+                                  TransactionTemplate transactionTemplate,
+                                  @Qualifier("storageExecutor") Executor storageExecutor,
+                                  @Value("${file.storage.content-addressed:false}") boolean contentAddressed) {
         this.fileRepository = fileRepository;
-        // Initialize the base directory for file storage
-        this.fileStorageLocation = Paths.get("uploads").toAbsolutePath().normalize();
+        this.metadataCache = metadataCache;
+        this.contentCache = contentCache;
+        this.blobStore = blobStore;
+        this.contentCompressor = contentCompressor;
+        this.derivativePipeline = derivativePipeline;
+        this.tieredStorage = tieredStorage;
+        this.searchIndex = searchIndex;
+        this.intentJournal = intentJournal;
+        this.usageTracker = usageTracker;
+        this.changeFeed = changeFeed;
+        this.cluster = cluster;
+        this.replicator = replicator;
+        this.storageMetrics = storageMetrics;
+        this.fileValidator = fileValidator;
+        this.transactionTemplate = transactionTemplate;
+        this.storageExecutor = storageExecutor;
+        this.contentAddressed = contentAddressed;
+        // Base directory for file storage; created by the backend if it doesn't exist
+        this.fileStorageLocation = hotStorage.root();
+        log.info("Storing uploaded files in {} (writable: {})",
+                this.fileStorageLocation, Files.isWritable(this.fileStorageLocation));
+    }
+
+    @Override
+    public FileEntity store(MultipartFile file, String owner) throws IOException {
+        long startNanos = System.nanoTime();
+        log.debug("Processing file upload: {} ({}, {} bytes)",
+                file.getOriginalFilename(), file.getContentType(), file.getSize());
         
+        // Validated and checked against the quota before the content is written
+        PendingFile pending = writeContent(file, owner);
+        FileEntity savedEntity;
         try {
-            // Create the upload directory if it doesn't exist
-            System.out.println("Creating upload directory: " + this.fileStorageLocation);
-            Files.createDirectories(this.fileStorageLocation);
-            System.out.println("Upload directory exists: " + Files.exists(this.fileStorageLocation));
-            System.out.println("Upload directory is writable: " + Files.isWritable(this.fileStorageLocation));
-        } catch (Exception ex) {
-            String errorMsg = "Could not create the directory where the uploaded files will be stored: " + 
-                           this.fileStorageLocation + 
-                           ". Error: " + ex.getMessage();
-            System.err.println(errorMsg);
+            // Save file metadata to database
+            savedEntity = transactionTemplate.execute(status -> persist(pending));
+        } catch (RuntimeException ex) {
+            discard(pending);
+            String errorMsg = "Could not store file " + pending.entity().getFilename() + ". Error: " + ex.getMessage();
+            log.error(errorMsg, ex);
             throw new FileStorageException(errorMsg, ex);
         }
+        log.debug("File metadata saved with ID: {}", savedEntity.getId());
+        stored(savedEntity, pending, System.nanoTime() - startNanos);
+        afterCommit("publish the creation", savedEntity, () -> changeFeed.created(savedEntity));
+        return savedEntity;
     }
 
     @Override
-    public FileEntity store(MultipartFile file) throws IOException {
-        // Log file information for debugging
-        System.out.println("Processing file upload: " + file.getOriginalFilename());
-        System.out.println("Content type: " + file.getContentType());
-        System.out.println("File size: " + file.getSize());
-        
-        // Note: In production, consider using a proper logging framework (e.g., SLF4J)
-        // instead of System.out.println
-        
-        // Validate file
-        if (!FileValidator.isValidFileType(file)) {
-            String errorMsg = "File type not allowed: " + file.getContentType() + 
-                           ". Allowed types: " + FileValidator.getAllowedExtensions();
-            System.err.println(errorMsg);
-            throw new FileStorageException(errorMsg);
-        }
+    public List<BatchItemResult> storeAll(List<MultipartFile> files, String owner) {
+        long startNanos = System.nanoTime();
+        // Validate and write every file to disk in parallel; a failure only affects its own item
+        List<CompletableFuture<PendingFile>> writes = files.stream()
+                .map(file -> CompletableFuture.supplyAsync(() -> {
+                    if (!fileValidator.isValidFileSize(file)) {
+                        throw new FileStorageException("File size exceeds the maximum limit (10MB)");
+                    }
+                    return writeContent(file, owner);
+                }, storageExecutor))
+                .toList();
 
-        // Normalize file name
-        String originalFileName = StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename()));
-        String fileExtension = "";
-        if (originalFileName.contains(".")) {
-            fileExtension = originalFileName.substring(originalFileName.lastIndexOf("."));
+        BatchItemResult[] results = new BatchItemResult[files.size()];
+        List<PendingFile> written = new ArrayList<>();
+        List<Integer> writtenIndexes = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                written.add(writes.get(i).join());
+                writtenIndexes.add(i);
+            } catch (CompletionException ex) {
+                results[i] = BatchItemResult.failed(null, files.get(i).getOriginalFilename(), ex.getCause().getMessage());
+            }
         }
-        String fileName = UUID.randomUUID() + fileExtension;
 
+        if (written.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        List<FileEntity> saved;
         try {
-            // Check if the file's name contains invalid characters
-            if (fileName.contains("..")) {
-                String errorMsg = "Sorry! Filename contains invalid path sequence " + fileName;
-                System.err.println(errorMsg);
-                throw new FileStorageException(errorMsg);
+            // One transaction for all rows, so the inserts go to the database as JDBC batches
+            saved = transactionTemplate.execute(status -> persistAll(written));
+        } catch (RuntimeException ex) {
+            log.error("Could not save metadata of batch upload", ex);
+            for (int i = 0; i < written.size(); i++) {
+                discard(written.get(i));
+                results[writtenIndexes.get(i)] = BatchItemResult.failed(
+                        null, files.get(writtenIndexes.get(i)).getOriginalFilename(), ex.getMessage());
             }
+            return Arrays.asList(results);
+        }
+        // Every item of the batch completes when the shared transaction commits
+        long durationNanos = System.nanoTime() - startNanos;
+        for (int i = 0; i < saved.size(); i++) {
+            results[writtenIndexes.get(i)] = BatchItemResult.succeeded(saved.get(i));
+            stored(saved.get(i), written.get(i), durationNanos);
+        }
+        try {
+            changeFeed.createdAll(saved);
+        } catch (RuntimeException ex) {
+            log.error("Could not publish the creation of {} files", saved.size(), ex);
+        }
+        return Arrays.asList(results);
+    }
 
-            System.out.println("Original filename: " + originalFileName);
-            System.out.println("Generated filename: " + fileName);
-            
-            // Create target location
-            Path targetLocation = this.fileStorageLocation.resolve(fileName);
-            System.out.println("Target location: " + targetLocation);
-            
-            // Ensure parent directory exists
-            Path parentDir = targetLocation.getParent();
-            if (parentDir != null) {
-                Files.createDirectories(parentDir);
-            }
+    @Override
+    public FileEntity storeAssembled(Path source, String originalFilename, String owner) throws IOException {
+        long startNanos = System.nanoTime();
+        FileValidator.FileType type = fileValidator.check(originalFilename, source);
 
-            // Copy file to the target location (Replacing existing file with the same name)
-            System.out.println("Copying file to target location...");
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-            System.out.println("File copied successfully");
+        String originalFileName = StringUtils.cleanPath(originalFilename);
+        String fileName = generateFileName(originalFileName);
+        if (fileName.contains("..")) {
+            throw new FileStorageException("Sorry! Filename contains invalid path sequence " + fileName);
+        }
 
-            // Save file metadata to database
-            System.out.println("Saving file metadata to database...");
-            FileEntity fileEntity = new FileEntity();
-            fileEntity.setFilename(fileName);
-            fileEntity.setOriginalFilename(originalFileName);
+        FileEntity fileEntity = new FileEntity();
+        fileEntity.setFilename(fileName);
+        fileEntity.setOriginalFilename(originalFileName);
+        fileEntity.setContentType(type.contentType());
+        fileEntity.setOwner(owner);
+
+        PendingFile pending;
+        if (contentAddressed) {
+            // Chunks arrive out of order, so the digest needs one sequential read of the assembled file
+            pending = new PendingFile(fileEntity, null, blobStore.stage(source), IntentJournal.NO_INTENT, null);
+        } else {
+            // A rename within the same filesystem; the assembled bytes are never copied
+            Path targetLocation = ShardedLayout.resolve(this.fileStorageLocation, fileName);
+            Files.createDirectories(targetLocation.getParent());
+            long intent = intentJournal.begin(IntentJournal.Kind.STORE, targetLocation);
+            try {
+                DurableFiles.moveIntoPlace(source, targetLocation);
+            } catch (IOException | RuntimeException ex) {
+                intentJournal.end(intent);
+                throw ex;
+            }
             fileEntity.setPath(targetLocation.toString());
-            fileEntity.setContentType(file.getContentType());
-            fileEntity.setSize(file.getSize());
+            fileEntity.setSize(Files.size(targetLocation));
+            pending = new PendingFile(fileEntity, targetLocation, null, intent, null);
+        }
 
-            FileEntity savedEntity = fileRepository.save(fileEntity);
-            System.out.println("File metadata saved with ID: " + savedEntity.getId());
-            
-            return savedEntity;
-        } catch (Exception ex) {
-            String errorMsg = "Could not store file " + fileName + ". Error: " + ex.getMessage();
-            System.err.println(errorMsg);
-            ex.printStackTrace();
-            throw new FileStorageException(errorMsg, ex);
+        FileEntity savedEntity;
+        try {
+            savedEntity = transactionTemplate.execute(status -> persist(pending));
+        } catch (RuntimeException ex) {
+            // Do not leave an unreferenced file behind if the metadata cannot be saved
+            discard(pending);
+            throw ex;
+        }
+        // Chunked uploads are timed from assembly; the chunk transfers are not included
+        stored(savedEntity, pending, System.nanoTime() - startNanos);
+        afterCommit("publish the creation", savedEntity, () -> changeFeed.created(savedEntity));
+        return savedEntity;
+    }
+
+    @Override
+    public FileEntity storeByDigest(String digest, String originalFilename, String owner) {
+        fileValidator.checkFilename(originalFilename);
+
+        String originalFileName = StringUtils.cleanPath(originalFilename);
+        String fileName = generateFileName(originalFileName);
+        FileEntity fileEntity = new FileEntity();
+        fileEntity.setFilename(fileName);
+        fileEntity.setOriginalFilename(originalFileName);
+        fileEntity.setOwner(owner);
+        // The size is only known once the blob is found
+        AtomicReference<UsageTracker.Reservation> reservation = new AtomicReference<>();
+        FileEntity savedEntity;
+        try {
+            savedEntity = transactionTemplate.execute(status -> {
+                BlobEntity blob = blobStore.acquireExisting(digest.toLowerCase(Locale.ROOT));
+                reservation.set(usageTracker.reserve(owner, blob.getSize()));
+                try {
+                    // The content was stored under another name; it must also suit this one
+                    fileEntity.setContentType(fileValidator.check(originalFileName, Path.of(blob.getPath())).contentType());
+                } catch (IOException ex) {
+                    throw new FileStorageException("Could not read stored content " + digest, ex);
+                }
+                referenceBlob(fileEntity, blob);
+                return fileRepository.save(fileEntity);
+            });
+        } catch (RuntimeException ex) {
+            if (reservation.get() != null) {
+                reservation.get().release();
+            }
+            throw ex;
         }
+        afterCommit("record the usage", savedEntity, () -> usageTracker.recordStored(owner, savedEntity.getSize()));
+        reservation.get().release();
+        afterCommit("submit derivatives", savedEntity, () -> derivativePipeline.submit(savedEntity));
+        afterCommit("index", savedEntity, () -> searchIndex.submit(savedEntity));
+        afterCommit("publish the creation", savedEntity, () -> changeFeed.created(savedEntity));
+        return savedEntity;
     }
 
     @Override
     public Resource loadAsResource(Long id) {
-        // Retrieve file metadata from database
-        FileEntity fileEntity = fileRepository.findById(id)
-                .orElseThrow(() -> new ResourceNotFoundException("File not found with id " + id));
+        // Retrieve file metadata (from the cache when it is hot)
+        FileEntity fileEntity = getFileById(id);
 
         try {
-            // Convert stored path to a Path object
-            Path filePath = Path.of(fileEntity.getPath());
-            // Create a URL resource for the file
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            // Verify the file exists and is readable
-            if (resource.exists() && resource.isReadable()) {
-                return resource;
-            } else {
-                // File exists in DB but not on filesystem - log and throw
-                System.err.println("File exists in database but not on filesystem: " + fileEntity.getPath());
-                throw new ResourceNotFoundException("File not found " + fileEntity.getFilename());
+            // Resolve the local file, moving it back from the cold tier if needed
+            Path filePath = getContentPath(fileEntity);
+            if (ContentCompressor.GZIP.equals(fileEntity.getContentEncoding())) {
+                // Callers expect the content as uploaded
+                return ContentCompressor.decompressingResource(filePath, fileEntity.getSize());
             }
+            // Create a URL resource for the file
+            return new UrlResource(filePath.toUri());
         } catch (MalformedURLException ex) {
             // Handle invalid file path format
             throw new ResourceNotFoundException("Invalid file path " + fileEntity.getFilename(), ex);
@@ -158,8 +382,56 @@ public class FileStorageServiceImpl implements FileStorageService {
     }
 
     @Override
-    public List<FileEntity> getAllFiles() {
-        return fileRepository.findAll();
+    public Path getContentPath(FileEntity fileEntity) {
+        Path filePath = fileEntity.getStorageTier() == StorageTier.COLD
+                ? tieredStorage.promote(fileEntity)
+                : locateContent(fileEntity);
+        if (!Files.isReadable(filePath) && cluster.isEnabled() && fileEntity.getStorageTier() == StorageTier.HOT) {
+            // Held by other nodes; the reconciler removes the copy later if this node is not an owner
+            Path fetched = replicator.fetch(fileEntity);
+            if (fetched != null) {
+                filePath = fetched;
+            }
+        }
+        if (!Files.isReadable(filePath)) {
+            // The cached metadata may be stale, e.g. a file deleted while it was being loaded,
+            // or moved to the cold tier
+            metadataCache.invalidate(fileEntity.getId());
+            FileEntity current = fileRepository.findById(fileEntity.getId()).orElse(null);
+            if (current == null || current.getStorageTier() != StorageTier.COLD) {
+                log.warn("File exists in database but not on filesystem: {}", fileEntity.getPath());
+                throw new ResourceNotFoundException("File not found " + fileEntity.getFilename());
+            }
+            filePath = tieredStorage.promote(current);
+        }
+        tieredStorage.recordAccess(fileEntity);
+        return filePath;
+    }
+
+    @Override
+    public void recordAccess(FileEntity fileEntity) {
+        tieredStorage.recordAccess(fileEntity);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public FilePage listFiles(FileFilter filter, String cursor, int limit) {
+        FileCursor after = cursor == null || cursor.isEmpty() ? null : FileCursor.decode(cursor);
+        // Fetch one extra row to learn whether another page follows
+        List<FileSummary> rows = fileRepository.findSummaries(filter, after, limit + 1);
+        if (rows.size() <= limit) {
+            return new FilePage(rows, null);
+        }
+        List<FileSummary> items = rows.subList(0, limit);
+        return new FilePage(items, FileCursor.after(items.get(limit - 1)).encode());
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void exportFiles(FileFilter filter, Consumer<FileSummary> consumer) {
+        try (Stream<FileSummary> summaries = fileRepository.streamSummaries(filter)) {
+            summaries.forEach(consumer);
+        }
     }
 
     @Override
@@ -174,31 +446,377 @@ public class FileStorageServiceImpl implements FileStorageService {
         FileEntity fileEntity = fileRepository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("File not found with id " + id));
         
+        if (fileEntity.isDeduplicated()) {
+            // The blob is shared; drop this file's reference and let the blob store unlink the last one
+            transactionTemplate.executeWithoutResult(status -> {
+                // A concurrent delete of the same file already dropped its reference
+                if (fileRepository.deleteRow(id) == 0) {
+                    throw new ResourceNotFoundException("File not found with id " + id);
+                }
+                blobStore.release(fileEntity.getDigest());
+            });
+            usageTracker.recordDeleted(fileEntity.getOwner(), fileEntity.getSize());
+            changeFeed.deleted(id);
+            metadataCache.invalidate(id);
+            contentCache.invalidate(id);
+            derivativePipeline.deleteDerivatives(fileEntity);
+            searchIndex.delete(List.of(id));
+            return;
+        }
+        
+        long intent = fileEntity.getStorageTier() == StorageTier.HOT
+                ? intentJournal.begin(IntentJournal.Kind.DELETE, Path.of(fileEntity.getPath()))
+                : IntentJournal.NO_INTENT;
         try {
-            // Delete the physical file from storage
-            Path filePath = Path.of(fileEntity.getPath());
-            boolean fileDeleted = Files.deleteIfExists(filePath);
-            
+            // Delete the file metadata from database first; from here on the content is unreferenced
+            if (transactionTemplate.execute(status -> fileRepository.deleteRow(id)) == 0) {
+                // Deleted concurrently; that delete removes the content
+                throw new ResourceNotFoundException("File not found with id " + id);
+            }
+            usageTracker.recordDeleted(fileEntity.getOwner(), fileEntity.getSize());
+            changeFeed.deleted(id);
+            metadataCache.invalidate(id);
+            contentCache.invalidate(id);
+            derivativePipeline.deleteDerivatives(fileEntity);
+            searchIndex.delete(List.of(id));
+
+            replicator.dropReplicas(fileEntity.getFilename());
+
+            // Delete the physical file from storage, whichever tier it is in
+            boolean fileDeleted = tieredStorage.deleteContent(fileEntity);
             if (!fileDeleted) {
-                System.err.println("File not found on filesystem during deletion: " + filePath);
-                // Continue with DB deletion to maintain consistency
+                log.warn("File not found in storage during deletion: {}", fileEntity.getPath());
             }
-            
-            // Delete the file metadata from database
-            fileRepository.delete(fileEntity);
-            
         } catch (IOException ex) {
-            // Log the error and wrap in a more specific exception
-            String errorMsg = String.format("Failed to delete file %s (ID: %d): %s", 
-                fileEntity.getFilename(), id, ex.getMessage());
-            System.err.println(errorMsg);
-            throw new FileStorageException(errorMsg, ex);
+            // The file is deleted; its content is left for the reconciler
+            log.warn("Failed to delete content of file {} (ID: {})", fileEntity.getFilename(), id, ex);
+        } finally {
+            intentJournal.end(intent);
         }
     }
     
+    @Override
+    public List<BatchItemResult> deleteAll(List<Long> ids) {
+        Map<Long, FileEntity> found = new HashMap<>();
+        for (FileEntity fileEntity : fileRepository.findAllById(ids)) {
+            found.put(fileEntity.getId(), fileEntity);
+        }
+
+        if (!found.isEmpty()) {
+            List<FileEntity> hotFiles = found.values().stream()
+                    .filter(fileEntity -> !fileEntity.isDeduplicated() && fileEntity.getStorageTier() == StorageTier.HOT)
+                    .toList();
+            List<Long> intents = intentJournal.beginAll(IntentJournal.Kind.DELETE,
+                    hotFiles.stream().map(fileEntity -> Path.of(fileEntity.getPath())).toList());
+
+            // Lock the rows, remove them with a single statement and release blob references in
+            // the same transaction. Rows a concurrent delete removed first are not locked, so
+            // their blobs are released once; blobs are locked in digest order so concurrent
+            // batches cannot deadlock
+            List<FileEntity> doomed;
+            try {
+                doomed = transactionTemplate.execute(status -> {
+                    List<FileEntity> locked = fileRepository.findAllByIdForUpdate(found.keySet());
+                    if (locked.isEmpty()) {
+                        return locked;
+                    }
+                    fileRepository.deleteAllByIdInBatch(locked.stream().map(FileEntity::getId).toList());
+                    locked.stream()
+                            .filter(FileEntity::isDeduplicated)
+                            .map(FileEntity::getDigest)
+                            .sorted()
+                            .forEach(blobStore::release);
+                    return locked;
+                });
+            } catch (RuntimeException ex) {
+                intentJournal.endAll(intents);
+                throw ex;
+            }
+            // The others are reported as not found
+            found.clear();
+            doomed.forEach(fileEntity -> found.put(fileEntity.getId(), fileEntity));
+
+            doomed.forEach(fileEntity -> usageTracker.recordDeleted(fileEntity.getOwner(), fileEntity.getSize()));
+            changeFeed.deletedAll(found.keySet());
+
+            // Rows are gone; unlink the private files in parallel
+            CompletableFuture.allOf(doomed.stream()
+                    .filter(fileEntity -> !fileEntity.isDeduplicated())
+                    .map(fileEntity -> CompletableFuture.runAsync(() -> {
+                        try {
+                            tieredStorage.deleteContent(fileEntity);
+                        } catch (IOException ex) {
+                            log.warn("Could not delete file {}", fileEntity.getPath(), ex);
+                        }
+                    }, storageExecutor))
+                    .toArray(CompletableFuture[]::new)).join();
+            intentJournal.endAll(intents);
+
+            for (FileEntity fileEntity : doomed) {
+                metadataCache.invalidate(fileEntity.getId());
+                contentCache.invalidate(fileEntity.getId());
+                derivativePipeline.deleteDerivatives(fileEntity);
+                if (!fileEntity.isDeduplicated()) {
+                    replicator.dropReplicas(fileEntity.getFilename());
+                }
+            }
+            searchIndex.delete(found.keySet());
+        }
+
+        List<BatchItemResult> results = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            FileEntity fileEntity = found.get(id);
+            results.add(fileEntity != null
+                    ? BatchItemResult.succeeded(fileEntity)
+                    : BatchItemResult.failed(id, null, "File not found with id " + id));
+        }
+        return results;
+    }
+    
     @Override
     public FileEntity getFileById(Long id) {
-        return fileRepository.findById(id)
-                .orElseThrow(() -> new ResourceNotFoundException("File not found with id " + id));
+        FileEntity fileEntity = metadataCache.get(id, key -> fileRepository.findById(key).orElse(null));
+        if (fileEntity == null) {
+            throw new ResourceNotFoundException("File not found with id " + id);
+        }
+        return fileEntity;
+    }
+
+    @Override
+    public List<FileEntity> getFilesById(List<Long> ids) {
+        Map<Long, FileEntity> found = new HashMap<>();
+        for (FileEntity fileEntity : fileRepository.findAllById(ids)) {
+            found.put(fileEntity.getId(), fileEntity);
+        }
+        List<Long> missing = ids.stream().filter(id -> !found.containsKey(id)).distinct().toList();
+        if (!missing.isEmpty()) {
+            throw new ResourceNotFoundException("Files not found with ids " + missing);
+        }
+        return ids.stream().distinct().map(found::get).toList();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<FileEntity> findFiles(FileFilter filter, int limit) {
+        return fileRepository.findFiles(filter, limit);
+    }
+
+    /**
+     * Resolves the location of a file's content. A file stored flat may have been moved into
+     * the sharded layout after its metadata was read, in which case the flat path no longer
+     * exists and the sharded location is returned (and the stale metadata evicted).
+     */
+    private Path locateContent(FileEntity fileEntity) {
+        Path filePath = Path.of(fileEntity.getPath());
+        if (fileEntity.isDeduplicated() || Files.isReadable(filePath)) {
+            return filePath;
+        }
+        Path sharded = ShardedLayout.resolve(this.fileStorageLocation, fileEntity.getFilename());
+        if (!sharded.equals(filePath) && Files.isReadable(sharded)) {
+            metadataCache.invalidate(fileEntity.getId());
+            return sharded;
+        }
+        return filePath;
+    }
+
+    /**
+     * Writes the content of an uploaded file to storage without saving its metadata. In
+     * content-addressed mode the content is only staged and hashed; the blob reference is
+     * taken by {@link #persist}. The size is reserved against the owner's quota before anything
+     * else; the reservation is held by the returned file until its row is committed.
+     */
+    private PendingFile writeContent(MultipartFile file, String owner) {
+        UsageTracker.Reservation reservation = usageTracker.reserve(owner, file.getSize());
+        FileValidator.CheckedContent checked;
+        try {
+            checked = fileValidator.check(file);
+        } catch (IOException ex) {
+            reservation.release();
+            throw new FileStorageException("Could not read file " + file.getOriginalFilename() + ". Error: " + ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            reservation.release();
+            throw ex;
+        }
+
+        // Normalize file name
+        String originalFileName = StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename()));
+        String fileName = generateFileName(originalFileName);
+
+        long intent = IntentJournal.NO_INTENT;
+        try (InputStream content = checked.content()) {
+            // Check if the file's name contains invalid characters
+            if (fileName.contains("..")) {
+                String errorMsg = "Sorry! Filename contains invalid path sequence " + fileName;
+                throw new FileStorageException(errorMsg);
+            }
+            
+            FileEntity fileEntity = new FileEntity();
+            fileEntity.setFilename(fileName);
+            fileEntity.setOriginalFilename(originalFileName);
+            fileEntity.setContentType(checked.type().contentType());
+            fileEntity.setOwner(owner);
+            
+            if (contentAddressed) {
+                // Hash while staging; persist() references an existing blob or promotes the staged copy
+                return new PendingFile(fileEntity, null, blobStore.stage(content), IntentJournal.NO_INTENT, reservation);
+            }
+            
+            // Create target location
+            Path targetLocation = ShardedLayout.resolve(this.fileStorageLocation, fileName);
+            log.debug("Writing {} to {}", originalFileName, targetLocation);
+            
+            // Ensure parent directory exists
+            Path parentDir = targetLocation.getParent();
+            if (parentDir != null) {
+                Files.createDirectories(parentDir);
+            }
+
+            // Written next to the target and renamed into place once it is on disk
+            Path tempLocation = DurableFiles.tempFor(targetLocation);
+            intent = intentJournal.begin(IntentJournal.Kind.STORE, targetLocation);
+            // Hashes the original bytes as they are written, so the digest costs no extra read
+            MessageDigest digest = BlobStore.newDigest();
+            InputStream hashed = new DigestInputStream(content, digest);
+            boolean compressible = contentCompressor.shouldCompress(fileEntity.getContentType(), file.getSize());
+            if (compressible && contentCompressor.writeCompressed(hashed, tempLocation) < file.getSize()) {
+                fileEntity.setContentEncoding(ContentCompressor.GZIP);
+            } else {
+                // Copy file to the temporary location (Replacing existing file with the same name);
+                // this also replaces a compressed copy that turned out no smaller than the original,
+                // whose attempt used up the checked stream and already hashed all of it
+                try (InputStream uncompressed = compressible ? file.getInputStream() : hashed) {
+                    Files.copy(uncompressed, tempLocation, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            DurableFiles.moveIntoPlace(tempLocation, targetLocation);
+
+            fileEntity.setPath(targetLocation.toString());
+            fileEntity.setSize(file.getSize());
+            fileEntity.setDigest(HexFormat.of().formatHex(digest.digest()));
+            return new PendingFile(fileEntity, targetLocation, null, intent, reservation);
+        } catch (Exception ex) {
+            reservation.release();
+            if (intent != IntentJournal.NO_INTENT) {
+                Path targetLocation = ShardedLayout.resolve(this.fileStorageLocation, fileName);
+                deleteQuietly(DurableFiles.tempFor(targetLocation));
+                deleteQuietly(targetLocation);
+                intentJournal.end(intent);
+            }
+            String errorMsg = "Could not store file " + fileName + ". Error: " + ex.getMessage();
+            log.error(errorMsg, ex);
+            throw new FileStorageException(errorMsg, ex);
+        }
+    }
+
+    /**
+     * Saves the metadata of a written file. Must run inside a transaction, which also covers
+     * the blob reference of a content-addressed file.
+     */
+    private FileEntity persist(PendingFile pending) {
+        if (pending.staged() != null) {
+            referenceBlob(pending.entity(), blobStore.acquire(pending.staged()));
+        }
+        return fileRepository.save(pending.entity());
+    }
+
+    /**
+     * Saves the metadata of several written files in the current transaction. Blob references
+     * are taken in digest order so that concurrent batches lock blob rows in the same order.
+     */
+    private List<FileEntity> persistAll(List<PendingFile> pendingFiles) {
+        pendingFiles.stream()
+                .filter(pending -> pending.staged() != null)
+                .sorted(Comparator.comparing((PendingFile pending) -> pending.staged().digest()))
+                .forEach(pending -> referenceBlob(pending.entity(), blobStore.acquire(pending.staged())));
+        return fileRepository.saveAll(pendingFiles.stream().map(PendingFile::entity).toList());
+    }
+
+    /**
+     * Runs the work that follows the commit of an upload's row: ends its intent, moves its size
+     * from the reservation to the owner's usage and hands it to metrics, the background
+     * pipelines and replication. The file exists from here on, so a failed step is logged
+     * rather than undoing the upload.
+     */
+    private void stored(FileEntity savedEntity, PendingFile pending, long durationNanos) {
+        afterCommit("end the store intent", savedEntity, () -> intentJournal.end(pending.intent()));
+        afterCommit("record the usage", savedEntity,
+                () -> usageTracker.recordStored(savedEntity.getOwner(), savedEntity.getSize()));
+        if (pending.reservation() != null) {
+            pending.reservation().release();
+        }
+        afterCommit("record metrics", savedEntity, () -> storageMetrics.recordUpload(
+                savedEntity.getContentType(), savedEntity.getSize(), durationNanos));
+        afterCommit("submit derivatives", savedEntity, () -> derivativePipeline.submit(savedEntity));
+        afterCommit("index", savedEntity, () -> searchIndex.submit(savedEntity));
+        afterCommit("replicate", savedEntity, () -> replicator.replicate(savedEntity.getFilename()));
+    }
+
+    /**
+     * Runs a step that follows the commit of a file's row, logging its failure.
+     */
+    private static void afterCommit(String step, FileEntity fileEntity, Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException ex) {
+            log.error("Could not {} for file {} (ID: {})", step, fileEntity.getFilename(), fileEntity.getId(), ex);
+        }
+    }
+
+    /**
+     * Removes the content written for a file whose metadata could not be saved.
+     */
+    private void discard(PendingFile pending) {
+        if (pending.reservation() != null) {
+            pending.reservation().release();
+        }
+        if (pending.staged() != null) {
+            blobStore.discard(pending.staged());
+            return;
+        }
+        deleteQuietly(pending.file());
+        intentJournal.end(pending.intent());
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Could not remove unreferenced file {}", file, ex);
+        }
+    }
+
+    private static void referenceBlob(FileEntity fileEntity, BlobEntity blob) {
+        fileEntity.setPath(blob.getPath());
+        fileEntity.setSize(blob.getSize());
+        fileEntity.setDigest(blob.getDigest());
+        fileEntity.setDeduplicated(true);
+    }
+
+    /**
+     * Generates a collision-free storage filename that keeps the original extension. In
+     * cluster mode this node is the primary of the name.
+     */
+    private String generateFileName(String originalFileName) {
+        String fileExtension = "";
+        if (originalFileName.contains(".")) {
+            fileExtension = originalFileName.substring(originalFileName.lastIndexOf("."));
+        }
+        return cluster.newLocalId() + fileExtension;
+    }
+
+    /**
+     * A file whose content has been written (or, in content-addressed mode, staged) but whose
+     * metadata has not been saved yet.
+     *
+     * @param entity The unsaved metadata
+     * @param file The written file, or {@code null} if the content was staged as a blob
+     * @param staged The staged blob content, or {@code null} for a file of its own
+     * @param intent The journal intent of the written file, ended once its row is committed or
+     *               the file discarded
+     * @param reservation The quota reserved for the file, or {@code null} if it was reserved
+     *                    by the caller
+     */
+    private record PendingFile(FileEntity entity, Path file, BlobStore.StagedBlob staged, long intent,
+                               UsageTracker.Reservation reservation) {
     }
 }
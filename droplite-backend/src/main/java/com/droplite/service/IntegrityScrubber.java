@@ -0,0 +1,284 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.ratelimit.TokenBucket;
+import com.droplite.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+/**
+ * Re-reads stored files in the background and checks them against their SHA-256, so that
+ * content damaged on disk is noticed before a client downloads it.
+ *
+ * <p>Every {@code file.scrub.interval} the next {@code file.scrub.batch-size} rows are taken
+ * in ID order, once the previous batch has been verified, and their hot files are hashed on
+ * {@code file.scrub.threads} low-priority threads (one per core by default). Files are read
+ * through memory-mapped windows, so the bytes go from the page cache into the digest without
+ * being copied onto the heap; gzip-compressed files are decompressed, since their digest is
+ * of the content as uploaded. All threads together read at most
+ * {@code file.scrub.bytes-per-second}, which keeps the scrub from competing with downloads
+ * for the disk. A pass over all files starts at most every {@code file.scrub.pass-interval}.</p>
+ *
+ * <p>A file whose content does not match its digest is reported in the log and counted in
+ * {@code droplite.scrub.mismatches}; it is left in place for an operator to restore. Files
+ * stored without a digest (chunked uploads, files from earlier versions) get the digest of
+ * their first verification. Files in the cold tier are left to the object store, which
+ * checks its own content, and files this node does not hold are skipped.</p>
+ */
+@Slf4j
+@Component
+public class IntegrityScrubber {
+
+    // Mapped at a time; bounds the address space held by each thread
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    // Hashed between two rate-limit checks
+    private static final int SLICE_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final FileRepository fileRepository;
+    private final FileMetadataCache metadataCache;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration passInterval;
+    private final TokenBucket bandwidth;
+    private final ThreadPoolExecutor executor;
+    private final Counter verifiedCounter;
+    private final Counter bytesCounter;
+    private final Counter mismatchCounter;
+
+    // Files of the current batch not verified yet; the next batch waits for 0
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong passMismatches = new AtomicLong();
+    // Keyset position of the pass; 0 between passes
+    private long lastId;
+    private Instant passStartedAt;
+
+    public IntegrityScrubber(FileRepository fileRepository,
+                             FileMetadataCache metadataCache,
+                             TransactionTemplate transactionTemplate,
+                             MeterRegistry meterRegistry,
+                             @Value("${file.scrub.enabled:true}") boolean enabled,
+                             @Value("${file.scrub.threads:0}") int threads,
+                             @Value("${file.scrub.batch-size:100}") int batchSize,
+                             @Value("${file.scrub.bytes-per-second:32MB}") DataSize bytesPerSecond,
+                             @Value("${file.scrub.pass-interval:P7D}") Duration passInterval) {
+        this.fileRepository = fileRepository;
+        this.metadataCache = metadataCache;
+        this.transactionTemplate = transactionTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.passInterval = passInterval;
+        this.bandwidth = new TokenBucket(bytesPerSecond.toBytes(), SLICE_SIZE);
+        this.verifiedCounter = Counter.builder("droplite.scrub.verified")
+                .description("Stored files whose content was read back and hashed")
+                .register(meterRegistry);
+        this.bytesCounter = Counter.builder("droplite.scrub.bytes")
+                .description("Bytes read back by the scrubber")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.mismatchCounter = Counter.builder("droplite.scrub.mismatches")
+                .description("Stored files whose content no longer matches their digest")
+                .register(meterRegistry);
+
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("scrub-");
+        // Downloads and uploads go first when the CPU is busy
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        // At most one batch is queued at a time
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        new ExecutorServiceMetrics(executor, "scrub", List.of()).bindTo(meterRegistry);
+    }
+
+    /**
+     * Queues the next batch of files for verification, once the previous one is done.
+     */
+    @Scheduled(fixedDelayString = "${file.scrub.interval:PT10S}",
+            initialDelayString = "${file.scrub.initial-delay:PT10M}")
+    public void scrub() {
+        if (!enabled || inFlight.get() > 0) {
+            return;
+        }
+        Instant now = Instant.now();
+        if (lastId == 0) {
+            if (passStartedAt != null && now.isBefore(passStartedAt.plus(passInterval))) {
+                return;
+            }
+            passStartedAt = now;
+            passMismatches.set(0);
+        }
+
+        List<FileEntity> batch = fileRepository.findAfter(lastId, PageRequest.of(0, batchSize));
+        if (batch.isEmpty()) {
+            log.info("Verified all stored files up to ID {}; {} did not match their digest",
+                    lastId, passMismatches.get());
+            lastId = 0;
+            return;
+        }
+        lastId = batch.get(batch.size() - 1).getId();
+
+        List<FileEntity> hotFiles = batch.stream()
+                .filter(fileEntity -> fileEntity.getStorageTier() == StorageTier.HOT)
+                .toList();
+        inFlight.set(hotFiles.size());
+        for (FileEntity fileEntity : hotFiles) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        verify(fileEntity);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Shutting down
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void verify(FileEntity fileEntity) {
+        Path file = Path.of(fileEntity.getPath());
+        String actual;
+        try {
+            actual = ContentCompressor.GZIP.equals(fileEntity.getContentEncoding())
+                    ? hashCompressed(file)
+                    : hashMapped(file);
+        } catch (NoSuchFileException ex) {
+            // Deleted, demoted or moved meanwhile, or held by another node
+            return;
+        } catch (ZipException | EOFException ex) {
+            // A damaged gzip stream
+            actual = "unreadable (" + ex.getMessage() + ")";
+        } catch (InterruptedIOException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException ex) {
+            log.warn("Could not verify file {} at {}", fileEntity.getId(), file, ex);
+            return;
+        }
+        verifiedCounter.increment();
+
+        if (fileEntity.getDigest() == null) {
+            String digest = actual;
+            boolean recorded = Boolean.TRUE.equals(transactionTemplate.execute(status ->
+                    fileRepository.recordDigest(fileEntity.getId(), fileEntity.getPath(), digest) == 1));
+            if (recorded) {
+                metadataCache.invalidate(fileEntity.getId());
+            }
+            return;
+        }
+        if (!actual.equals(fileEntity.getDigest())) {
+            reportMismatch(fileEntity, actual);
+        }
+    }
+
+    private void reportMismatch(FileEntity fileEntity, String actual) {
+        // Not a mismatch if the file was deleted or replaced while it was read
+        FileEntity current = fileRepository.findById(fileEntity.getId()).orElse(null);
+        if (current == null || !Objects.equals(current.getPath(), fileEntity.getPath())
+                || current.getStorageTier() != StorageTier.HOT || !Files.exists(Path.of(current.getPath()))) {
+            return;
+        }
+        mismatchCounter.increment();
+        passMismatches.incrementAndGet();
+        log.error("Content of file {} ({}) at {} does not match its digest: expected {}, read {}",
+                current.getId(), current.getOriginalFilename(), current.getPath(), current.getDigest(), actual);
+    }
+
+    /**
+     * Hashes a file through memory-mapped windows. Stored files are never truncated in place,
+     * which would fault a read of a mapped page.
+     */
+    private String hashMapped(Path file) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, size - position));
+                while (window.hasRemaining()) {
+                    int slice = Math.min(SLICE_SIZE, window.remaining());
+                    throttle(slice);
+                    window.limit(window.position() + slice);
+                    // Advances the position to the limit
+                    digest.update(window);
+                    window.limit(window.capacity());
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Hashes the original content of a gzip-compressed file. The stored bytes are streamed,
+     * since they are inflated on the heap anyway.
+     */
+    private String hashCompressed(Path file) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        try (InputStream in = ContentCompressor.decompress(Files.newInputStream(file))) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                throttle(read);
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void throttle(long bytes) throws InterruptedIOException {
+        bytesCounter.increment(bytes);
+        long waitNanos = bandwidth.reserve(bytes);
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scrubbing");
+        }
+    }
+}
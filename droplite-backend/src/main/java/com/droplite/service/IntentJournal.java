@@ -0,0 +1,311 @@
+package com.droplite.service;
+
+import com.droplite.exception.FileStorageException;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead log of storage operations that span the upload directory and the database.
+ *
+ * <p>Storing a file writes its content before the row is committed, and deleting one removes
+ * the row before the content; a crash in between leaves a file without a row. Before such an
+ * operation touches the disk it records an intent ({@link #begin}), and once both sides agree
+ * it records the end ({@link #end}). Intents still open at startup are handed to the
+ * {@link StorageReconciler}, which checks the database and removes the files that lost their
+ * row, instead of waiting for its walk over the whole upload directory to find them.</p>
+ *
+ * <p>The journal is an append-only text file, {@code uploads/.journal/intents.log}. Only begin
+ * records are forced to disk, and concurrent writers share one force (group commit); end
+ * records may be lost in a crash, which only makes recovery check an operation that had
+ * completed. Once the file outgrows {@code file.storage.journal.max-size} it is replaced by
+ * one holding just the open intents.</p>
+ */
+@Slf4j
+@Component
+public class IntentJournal {
+
+    /** Returned by {@link #begin} when the journal is disabled; {@link #end} ignores it. */
+    public static final long NO_INTENT = 0;
+
+    private static final String FILE_NAME = "intents.log";
+
+    /**
+     * What an intent is about to do to its file.
+     */
+    public enum Kind {
+        /** Write a file whose row is not committed yet */
+        STORE,
+        /** Unlink a file whose row is deleted first */
+        DELETE
+    }
+
+    /**
+     * An operation recorded in the journal.
+     *
+     * @param sequence Identifies the intent in the journal
+     * @param kind     What the operation does
+     * @param file     The file it writes or unlinks
+     */
+    public record Intent(long sequence, Kind kind, Path file) {
+    }
+
+    private final boolean enabled;
+    private final long maxSize;
+    private final Path journalFile;
+    // Intents that have begun but not ended, in sequence order
+    private final Map<Long, Intent> open = new LinkedHashMap<>();
+    // Taken for a force and for rotation; never acquired while holding the monitor of this
+    private final Object syncLock = new Object();
+    // Open intents found at startup, for the reconciler to resolve
+    private final List<Intent> recovered;
+
+    private FileChannel channel;
+    private long lastSequence;
+    private volatile long writtenPosition;
+    private volatile long syncedPosition;
+
+    public IntentJournal(LocalStorageBackend hotStorage,
+                         @Value("${file.storage.journal.enabled:true}") boolean enabled,
+                         @Value("${file.storage.journal.max-size:4MB}") DataSize maxSize) {
+        this.enabled = enabled;
+        this.maxSize = maxSize.toBytes();
+        this.journalFile = hotStorage.root().resolve(".journal").resolve(FILE_NAME);
+        if (!enabled) {
+            this.recovered = List.of();
+            return;
+        }
+
+        try {
+            Files.createDirectories(journalFile.getParent());
+            if (Files.exists(journalFile)) {
+                replay(Files.readAllLines(journalFile, StandardCharsets.UTF_8));
+            }
+            this.recovered = List.copyOf(open.values());
+            rewrite();
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not open the intent journal " + journalFile, ex);
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Found {} unfinished storage operations in {}", recovered.size(), journalFile);
+        }
+    }
+
+    /**
+     * Intents that were open when the application last stopped. They stay open until the
+     * reconciler ends them.
+     */
+    public List<Intent> recoveredIntents() {
+        return recovered;
+    }
+
+    /**
+     * Records that an operation is about to write or unlink a file. Returns once the record is
+     * on disk.
+     *
+     * @return The sequence number to pass to {@link #end}
+     */
+    public long begin(Kind kind, Path file) {
+        if (!enabled) {
+            return NO_INTENT;
+        }
+        long sequence;
+        long position;
+        synchronized (this) {
+            sequence = append(kind, file);
+            position = writtenPosition;
+        }
+        sync(position);
+        return sequence;
+    }
+
+    /**
+     * Records several operations with a single force.
+     *
+     * @return The sequence numbers, in the order of the files
+     */
+    public List<Long> beginAll(Kind kind, Collection<Path> files) {
+        if (!enabled || files.isEmpty()) {
+            return files.stream().map(file -> NO_INTENT).toList();
+        }
+        List<Long> sequences = new ArrayList<>(files.size());
+        long position;
+        synchronized (this) {
+            for (Path file : files) {
+                sequences.add(append(kind, file));
+            }
+            position = writtenPosition;
+        }
+        sync(position);
+        return sequences;
+    }
+
+    /**
+     * Records that an operation finished, successfully or not; either way its file and row
+     * agree again. The record is not forced.
+     */
+    public void end(long sequence) {
+        if (sequence == NO_INTENT) {
+            return;
+        }
+        boolean full;
+        synchronized (this) {
+            if (open.remove(sequence) == null) {
+                return;
+            }
+            write("E " + sequence + "\n");
+            full = writtenPosition > maxSize;
+        }
+        if (full) {
+            rotate();
+        }
+    }
+
+    public void endAll(Collection<Long> sequences) {
+        sequences.forEach(this::end);
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    channel.force(false);
+                    channel.close();
+                } catch (IOException ex) {
+                    log.warn("Could not close the intent journal {}", journalFile, ex);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private long append(Kind kind, Path file) {
+        long sequence = ++lastSequence;
+        open.put(sequence, new Intent(sequence, kind, file));
+        write("B " + sequence + " " + kind + " " + file + "\n");
+        return sequence;
+    }
+
+    /**
+     * Appends a record. Must be called while holding the monitor of this journal.
+     */
+    private void write(String record) {
+        if (channel == null) {
+            throw new FileStorageException("The intent journal is closed");
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            writtenPosition = channel.position();
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not write to the intent journal " + journalFile, ex);
+        }
+    }
+
+    /**
+     * Forces the journal up to the given position. Threads arriving while a force is running
+     * wait for it, and the next force covers all of their records at once.
+     */
+    private void sync(long position) {
+        if (syncedPosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            if (channel == null) {
+                throw new FileStorageException("The intent journal is closed");
+            }
+            long target = writtenPosition;
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                throw new FileStorageException("Could not force the intent journal " + journalFile, ex);
+            }
+            syncedPosition = target;
+        }
+    }
+
+    /**
+     * Replaces the journal by one holding only the open intents.
+     */
+    private void rotate() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (channel == null || writtenPosition <= maxSize) {
+                    return;
+                }
+                try {
+                    channel.close();
+                    rewrite();
+                } catch (IOException ex) {
+                    throw new FileStorageException("Could not rotate the intent journal " + journalFile, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the open intents to a new journal file, moves it into place and continues
+     * appending to it. Called from the constructor, or while holding both locks.
+     */
+    private void rewrite() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (Intent intent : open.values()) {
+            records.append("B ").append(intent.sequence()).append(' ').append(intent.kind())
+                    .append(' ').append(intent.file()).append('\n');
+        }
+        Path temp = DurableFiles.tempFor(journalFile);
+        Files.writeString(temp, records, StandardCharsets.UTF_8);
+        DurableFiles.moveIntoPlace(temp, journalFile);
+
+        channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writtenPosition = channel.position();
+        syncedPosition = writtenPosition;
+    }
+
+    /**
+     * Rebuilds the open intents from the records of an earlier run. A torn last record, cut off
+     * by the crash, is skipped; its operation had not started yet.
+     */
+    private void replay(List<String> records) {
+        for (String record : records) {
+            String[] fields = record.split(" ", 4);
+            try {
+                long sequence = Long.parseLong(fields[1]);
+                lastSequence = Math.max(lastSequence, sequence);
+                if (fields[0].equals("B") && fields.length == 4) {
+                    open.put(sequence, new Intent(sequence, Kind.valueOf(fields[2]), Path.of(fields[3])));
+                } else if (fields[0].equals("E")) {
+                    open.remove(sequence);
+                }
+            } catch (RuntimeException ex) {
+                log.warn("Skipping malformed record in {}: {}", journalFile, record);
+            }
+        }
+    }
+}
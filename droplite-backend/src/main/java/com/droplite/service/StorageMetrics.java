@@ -0,0 +1,149 @@
+package com.droplite.service;
+
+import com.droplite.quota.UsageTracker;
+import com.droplite.storage.LocalStorageBackend;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload, download and storage metrics, exposed through Actuator ({@code /actuator/prometheus}).
+ *
+ * <p>Transfers are recorded as a latency timer ({@code droplite.upload}, {@code droplite.download})
+ * and a bytes summary ({@code droplite.upload.bytes}, {@code droplite.download.bytes}) whose
+ * rate gives bytes/sec. Both are tagged with the content type and a size bucket. Content types
+ * come from clients, so they are mapped onto a fixed set (anything else is {@code other}); all
+ * meters are registered up front and the hot path only indexes into an array.</p>
+ *
+ * <p>The stored bytes and file count come from the {@link UsageTracker}, which keeps them in
+ * memory, so a scrape neither counts rows nor walks the uploads directory. Free space is read
+ * from the file store holding the uploads directory.</p>
+ */
+@Component
+public class StorageMetrics {
+
+    private static final List<String> CONTENT_TYPES = List.of(
+            "text/plain", "application/json", "image/jpeg", "image/png", "other");
+    private static final int OTHER_CONTENT_TYPE = CONTENT_TYPES.size() - 1;
+
+    private static final long[] SIZE_BUCKET_LIMITS = {64 * 1024, 1024 * 1024, 10 * 1024 * 1024};
+    private static final List<String> SIZE_BUCKETS = List.of("0-64KB", "64KB-1MB", "1MB-10MB", "10MB+");
+
+    // Held here since gauges only keep a weak reference to their state
+    private final Path storageLocation;
+    private final TransferMeters[][] uploads;
+    private final TransferMeters[][] downloads;
+
+    public StorageMetrics(MeterRegistry meterRegistry, UsageTracker usageTracker, LocalStorageBackend hotStorage) {
+        this.storageLocation = hotStorage.root();
+        this.uploads = register(meterRegistry, "droplite.upload", "Time to validate, write and record an upload");
+        this.downloads = register(meterRegistry, "droplite.download", "Time to serve a file download or view");
+
+        Gauge.builder("droplite.storage.used", usageTracker, tracker -> tracker.totalUsage().bytes())
+                .description("Bytes of stored files, as uploaded")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("droplite.files", usageTracker, tracker -> tracker.totalUsage().files())
+                .description("Number of stored files")
+                .register(meterRegistry);
+        Gauge.builder("droplite.storage.free", storageLocation, StorageMetrics::usableSpace)
+                .description("Bytes available to the uploads directory on its disk")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records a completed upload.
+     *
+     * @param contentType Content type of the file as sent by the client
+     * @param size Size of the file in bytes
+     * @param durationNanos Time taken to store the file
+     */
+    public void recordUpload(String contentType, long size, long durationNanos) {
+        uploads[contentTypeIndex(contentType)][sizeBucketIndex(size)].record(size, durationNanos);
+    }
+
+    /**
+     * Records a served download.
+     *
+     * @param contentType Content type of the file
+     * @param fileSize Size of the whole file, which determines the size bucket
+     * @param bytesSent Body bytes sent; less than the file size for range and conditional requests
+     * @param durationNanos Time taken to serve the request
+     */
+    public void recordDownload(String contentType, long fileSize, long bytesSent, long durationNanos) {
+        downloads[contentTypeIndex(contentType)][sizeBucketIndex(fileSize)].record(bytesSent, durationNanos);
+    }
+
+    private static double usableSpace(Path directory) {
+        try {
+            return Files.getFileStore(directory).getUsableSpace();
+        } catch (IOException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static TransferMeters[][] register(MeterRegistry meterRegistry, String name, String description) {
+        TransferMeters[][] meters = new TransferMeters[CONTENT_TYPES.size()][SIZE_BUCKETS.size()];
+        for (int type = 0; type < CONTENT_TYPES.size(); type++) {
+            for (int bucket = 0; bucket < SIZE_BUCKETS.size(); bucket++) {
+                String contentType = CONTENT_TYPES.get(type);
+                String sizeBucket = SIZE_BUCKETS.get(bucket);
+                Timer timer = Timer.builder(name)
+                        .description(description)
+                        .tags("content_type", contentType, "size_bucket", sizeBucket)
+                        .publishPercentileHistogram()
+                        .minimumExpectedValue(Duration.ofMillis(1))
+                        .maximumExpectedValue(Duration.ofMinutes(1))
+                        .register(meterRegistry);
+                DistributionSummary bytes = DistributionSummary.builder(name + ".bytes")
+                        .description("Bytes transferred")
+                        .baseUnit("bytes")
+                        .tags("content_type", contentType, "size_bucket", sizeBucket)
+                        .register(meterRegistry);
+                meters[type][bucket] = new TransferMeters(timer, bytes);
+            }
+        }
+        return meters;
+    }
+
+    private static int contentTypeIndex(String contentType) {
+        if (contentType == null) {
+            return OTHER_CONTENT_TYPE;
+        }
+        int parameters = contentType.indexOf(';');
+        String mimeType = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim();
+        for (int i = 0; i < OTHER_CONTENT_TYPE; i++) {
+            if (CONTENT_TYPES.get(i).equalsIgnoreCase(mimeType)) {
+                return i;
+            }
+        }
+        return OTHER_CONTENT_TYPE;
+    }
+
+    private static int sizeBucketIndex(long size) {
+        for (int i = 0; i < SIZE_BUCKET_LIMITS.length; i++) {
+            if (size < SIZE_BUCKET_LIMITS[i]) {
+                return i;
+            }
+        }
+        return SIZE_BUCKET_LIMITS.length;
+    }
+
+    private record TransferMeters(Timer timer, DistributionSummary bytes) {
+
+        void record(long byteCount, long durationNanos) {
+            timer.record(durationNanos, TimeUnit.NANOSECONDS);
+            bytes.record(byteCount);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.ShardedLayout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Moves files stored flat in the upload directory into the {@link ShardedLayout}, online and
+ * in small batches.
+ *
+ * <p>Each run takes one batch of flat files in ID order. Every file is first hard-linked at its
+ * sharded location, so both paths refer to the same content, then the paths of the whole batch
+ * are updated in one transaction. The flat links are only removed by the next run, giving
+ * readers that still hold the old metadata time to open the file; after that,
+ * {@link FileStorageServiceImpl} falls back to the sharded location for a missing flat path.
+ * Downloads therefore keep working throughout the migration.</p>
+ *
+ * <p>The rate is bounded by {@code file.storage.rebalance.batch-size} files per
+ * {@code file.storage.rebalance.interval}. Once no flat files remain the job stops.</p>
+ */
+@Slf4j
+@Component
+public class StorageRebalancer {
+
+    private final FileRepository fileRepository;
+    private final FileMetadataCache metadataCache;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Path fileStorageLocation;
+    // Stored paths of flat files start with this prefix
+    private final String flatPrefix;
+
+    // Keyset position of the migration
+    private long lastId;
+    // Files moved by the previous run, whose flat links are still in place
+    private List<MovedFile> pendingUnlinks = List.of();
+    private volatile boolean completed;
+
+    public StorageRebalancer(FileRepository fileRepository,
+                             FileMetadataCache metadataCache,
+                             TransactionTemplate transactionTemplate,
+                             LocalStorageBackend hotStorage,
+                             @Value("${file.storage.rebalance.enabled:true}") boolean enabled,
+                             @Value("${file.storage.rebalance.batch-size:100}") int batchSize) {
+        this.fileRepository = fileRepository;
+        this.metadataCache = metadataCache;
+        this.transactionTemplate = transactionTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.fileStorageLocation = hotStorage.root();
+        this.flatPrefix = this.fileStorageLocation + File.separator;
+    }
+
+    @Scheduled(fixedDelayString = "${file.storage.rebalance.interval:PT1S}",
+            initialDelayString = "${file.storage.rebalance.initial-delay:PT1M}")
+    public void rebalance() {
+        if (!enabled || completed) {
+            return;
+        }
+
+        unlinkFlatCopies(pendingUnlinks);
+        pendingUnlinks = List.of();
+
+        List<FileEntity> batch = fileRepository.findFlatFiles(flatPrefix, lastId, PageRequest.of(0, batchSize));
+        if (batch.isEmpty()) {
+            removeLeftoverLinks();
+            completed = true;
+            log.info("All files in {} use the sharded layout", fileStorageLocation);
+            return;
+        }
+        lastId = batch.get(batch.size() - 1).getId();
+
+        List<MovedFile> linked = new ArrayList<>(batch.size());
+        for (FileEntity fileEntity : batch) {
+            MovedFile movedFile = link(fileEntity);
+            if (movedFile != null) {
+                linked.add(movedFile);
+            }
+        }
+
+        // Only rows that still point at the flat path are updated; a concurrent delete wins
+        List<MovedFile> moved = transactionTemplate.execute(status -> linked.stream()
+                .filter(file -> fileRepository.updatePath(file.id(), file.from().toString(), file.to().toString()) == 1)
+                .toList());
+        for (MovedFile file : linked) {
+            if (!moved.contains(file)) {
+                deleteQuietly(file.to());
+            }
+        }
+        moved.forEach(file -> metadataCache.invalidate(file.id()));
+        pendingUnlinks = moved;
+        log.debug("Moved {} files into the sharded layout (up to ID {})", moved.size(), lastId);
+    }
+
+    /**
+     * Hard-links a flat file at its sharded location.
+     *
+     * @return The move, or {@code null} if the file cannot be moved
+     */
+    private MovedFile link(FileEntity fileEntity) {
+        Path from = Path.of(fileEntity.getPath());
+        Path to = ShardedLayout.resolve(fileStorageLocation, fileEntity.getFilename());
+        try {
+            Files.createDirectories(to.getParent());
+            Files.createLink(to, from);
+        } catch (FileAlreadyExistsException ex) {
+            // Left behind by an interrupted run
+            if (!isSameFile(to, from)) {
+                log.warn("Cannot move {}: {} already exists", from, to);
+                return null;
+            }
+        } catch (NoSuchFileException ex) {
+            log.warn("Cannot move {}: file not found", from);
+            return null;
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.warn("Cannot move {} to {}", from, to, ex);
+            return null;
+        }
+        return new MovedFile(fileEntity.getId(), from, to);
+    }
+
+    /**
+     * Removes the flat links of moved files. A file deleted while it was being moved may have
+     * lost only its flat link, so the sharded link is removed too if the row is gone.
+     */
+    private void unlinkFlatCopies(List<MovedFile> movedFiles) {
+        if (movedFiles.isEmpty()) {
+            return;
+        }
+        Set<Long> remaining = fileRepository.findAllById(movedFiles.stream().map(MovedFile::id).toList())
+                .stream()
+                .map(FileEntity::getId)
+                .collect(Collectors.toSet());
+        for (MovedFile file : movedFiles) {
+            deleteQuietly(file.from());
+            if (!remaining.contains(file.id())) {
+                deleteQuietly(file.to());
+            }
+        }
+    }
+
+    /**
+     * Removes flat links whose sharded link is in place, which remain if the application
+     * stopped between updating a batch and the following run.
+     */
+    private void removeLeftoverLinks() {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(fileStorageLocation, Files::isRegularFile)) {
+            for (Path flat : entries) {
+                String fileName = flat.getFileName().toString();
+                if (fileName.length() > 4 && isSameFile(flat, ShardedLayout.resolve(fileStorageLocation, fileName))) {
+                    deleteQuietly(flat);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Could not clean up {}", fileStorageLocation, ex);
+        }
+    }
+
+    private static boolean isSameFile(Path first, Path second) {
+        try {
+            return Files.exists(second) && Files.isSameFile(first, second);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Could not delete {}", file, ex);
+        }
+    }
+
+    private record MovedFile(Long id, Path from, Path to) {
+    }
+}
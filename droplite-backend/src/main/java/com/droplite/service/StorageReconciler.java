@@ -0,0 +1,291 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.BlobRepository;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
+import com.droplite.util.ShardedLayout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Finds and repairs differences between the upload directory and the {@code files} table,
+ * online and in small batches.
+ *
+ * <p>At startup the intents left open in the {@link IntentJournal} are resolved first: a
+ * stored file whose row was never committed, or a deleted file whose row is gone, is removed.
+ * Both checks look at the current state, so resolving an intent twice is harmless.</p>
+ *
+ * <p>Crashes without a journal record, e.g. of earlier versions, are found by two walks that
+ * advance a little on every run:</p>
+ * <ul>
+ *   <li>The disk walk lists {@code file.storage.reconcile.directories-per-run} leaf directories
+ *   of the {@link ShardedLayout} (and then the 256 blob directories), and looks all of their
+ *   entries up in one query. Files without a row, blobs without references and temporary
+ *   files are removed once they are older than {@code file.storage.reconcile.grace-period},
+ *   so that uploads whose row is about to be committed are never touched.</li>
+ *   <li>The row walk reads {@code file.storage.reconcile.batch-size} rows in ID order and checks
+ *   that the local content of each hot file exists. Files whose content is gone are deleted
+ *   like any other file, so downloads no longer fail on them. If most of a batch is missing,
+ *   the upload directory is more likely unmounted than damaged, and nothing is deleted.</li>
+ * </ul>
+ *
+ * <p>In cluster mode a node holds only the files it owns, so the row walk deletes nothing.
+ * It hands each hot file to the {@link Replicator} instead, which fetches the content this
+ * node owns but lacks and removes copies of files it does not own.</p>
+ *
+ * <p>Each run holds at most one batch of names in memory and no locks beyond single-row
+ * deletes, so a full pass over millions of files takes hours rather than stalling uploads.
+ * When a walk reaches its end it starts over.</p>
+ */
+@Slf4j
+@Component
+public class StorageReconciler {
+
+    private static final int LEAF_DIRECTORIES = 256 * 256;
+    private static final int BLOB_DIRECTORIES = 256;
+    // A batch with more missing files than this is not repaired
+    private static final double MAX_MISSING_RATIO = 0.5;
+
+    private final FileRepository fileRepository;
+    private final BlobRepository blobRepository;
+    private final FileStorageService fileStorageService;
+    private final IntentJournal intentJournal;
+    private final Cluster cluster;
+    private final Replicator replicator;
+    private final boolean enabled;
+    private final int directoriesPerRun;
+    private final int batchSize;
+    private final Duration gracePeriod;
+    private final Path fileStorageLocation;
+    private final Path blobLocation;
+    private final Counter orphanCounter;
+    private final Counter temporaryCounter;
+    private final Counter danglingCounter;
+
+    // Position of the disk walk: leaf directories first, then blob directories
+    private int nextDirectory;
+    // Keyset position of the row walk
+    private long lastId;
+
+    public StorageReconciler(FileRepository fileRepository,
+                             BlobRepository blobRepository,
+                             FileStorageService fileStorageService,
+                             IntentJournal intentJournal,
+                             Cluster cluster,
+                             Replicator replicator,
+                             LocalStorageBackend hotStorage,
+                             MeterRegistry meterRegistry,
+                             @Value("${file.storage.reconcile.enabled:true}") boolean enabled,
+                             @Value("${file.storage.reconcile.directories-per-run:64}") int directoriesPerRun,
+                             @Value("${file.storage.reconcile.batch-size:500}") int batchSize,
+                             @Value("${file.storage.reconcile.grace-period:PT1H}") Duration gracePeriod) {
+        this.fileRepository = fileRepository;
+        this.blobRepository = blobRepository;
+        this.fileStorageService = fileStorageService;
+        this.intentJournal = intentJournal;
+        this.cluster = cluster;
+        this.replicator = replicator;
+        this.enabled = enabled;
+        this.directoriesPerRun = directoriesPerRun;
+        this.batchSize = batchSize;
+        this.gracePeriod = gracePeriod;
+        this.fileStorageLocation = hotStorage.root();
+        this.blobLocation = hotStorage.root().resolve("blobs");
+        this.orphanCounter = Counter.builder("droplite.reconcile.orphans")
+                .description("Stored files and blobs removed because no row referenced them")
+                .register(meterRegistry);
+        this.temporaryCounter = Counter.builder("droplite.reconcile.temporary")
+                .description("Temporary files of interrupted writes removed")
+                .register(meterRegistry);
+        this.danglingCounter = Counter.builder("droplite.reconcile.dangling")
+                .description("Files whose content was missing from storage")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Resolves the operations that were in progress when the application last stopped.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recover() {
+        for (IntentJournal.Intent intent : intentJournal.recoveredIntents()) {
+            Path file = intent.file();
+            try {
+                if (!fileRepository.existsByFilename(file.getFileName().toString())) {
+                    // Never committed (STORE) or committed as deleted (DELETE): the file has no row
+                    Files.deleteIfExists(DurableFiles.tempFor(file));
+                    if (Files.deleteIfExists(file)) {
+                        orphanCounter.increment();
+                        log.info("Removed {} left behind by an interrupted {}", file, intent.kind());
+                    }
+                }
+                intentJournal.end(intent.sequence());
+            } catch (IOException | RuntimeException ex) {
+                // Stays open and is retried at the next startup; the disk walk also finds it
+                log.warn("Could not resolve interrupted {} of {}", intent.kind(), file, ex);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${file.storage.reconcile.interval:PT10S}",
+            initialDelayString = "${file.storage.reconcile.initial-delay:PT5M}")
+    public void reconcile() {
+        if (!enabled || !Files.isDirectory(fileStorageLocation)) {
+            return;
+        }
+        Instant cutoff = Instant.now().minus(gracePeriod);
+        for (int i = 0; i < directoriesPerRun; i++) {
+            reconcileDirectory(nextDirectory, cutoff);
+            nextDirectory = (nextDirectory + 1) % (LEAF_DIRECTORIES + BLOB_DIRECTORIES);
+        }
+        reconcileRows();
+    }
+
+    private void reconcileDirectory(int index, Instant cutoff) {
+        if (index < LEAF_DIRECTORIES) {
+            Path directory = fileStorageLocation
+                    .resolve(String.format("%02x", index >> 8))
+                    .resolve(String.format("%02x", index & 0xff));
+            removeOrphans(directory, cutoff, fileRepository::findExistingFilenames);
+        } else {
+            Path directory = blobLocation.resolve(String.format("%02x", index - LEAF_DIRECTORIES));
+            removeOrphans(directory, cutoff, blobRepository::findReferencedDigests);
+        }
+    }
+
+    /**
+     * Removes the files of one directory that are older than the cutoff and have no row.
+     *
+     * @param existing Returns which of the given file names have a row
+     */
+    private void removeOrphans(Path directory, Instant cutoff, Function<Set<String>, List<String>> existing) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Map<String, Path> candidates = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                if (!attributes.isRegularFile() || !attributes.lastModifiedTime().toInstant().isBefore(cutoff)) {
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                if (name.endsWith(DurableFiles.TEMP_SUFFIX)) {
+                    if (Files.deleteIfExists(entry)) {
+                        temporaryCounter.increment();
+                    }
+                } else {
+                    candidates.put(name, entry);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Could not reconcile {}", directory, ex);
+            return;
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        Set<String> orphans = new HashSet<>(candidates.keySet());
+        existing.apply(candidates.keySet()).forEach(orphans::remove);
+        for (String name : orphans) {
+            Path orphan = candidates.get(name);
+            // Checked once more in case the row was committed after the lookup
+            if (!existing.apply(Set.of(name)).isEmpty()) {
+                continue;
+            }
+            try {
+                if (Files.deleteIfExists(orphan)) {
+                    orphanCounter.increment();
+                    log.info("Removed {}, which no row references", orphan);
+                }
+            } catch (IOException ex) {
+                log.warn("Could not remove {}", orphan, ex);
+            }
+        }
+    }
+
+    /**
+     * Checks the next batch of rows for hot files whose content is missing.
+     */
+    private void reconcileRows() {
+        List<FileEntity> batch = fileRepository.findAfter(lastId, PageRequest.of(0, batchSize));
+        if (batch.isEmpty()) {
+            lastId = 0;
+            return;
+        }
+        lastId = batch.get(batch.size() - 1).getId();
+
+        if (cluster.isEnabled()) {
+            batch.stream()
+                    .filter(fileEntity -> fileEntity.getStorageTier() == StorageTier.HOT)
+                    .forEach(fileEntity -> replicator.reconcile(fileEntity, hasContent(fileEntity)));
+            return;
+        }
+
+        List<FileEntity> missing = batch.stream()
+                .filter(fileEntity -> fileEntity.getStorageTier() == StorageTier.HOT && !hasContent(fileEntity))
+                .toList();
+        if (missing.isEmpty()) {
+            return;
+        }
+        if (batch.size() >= 10 && missing.size() > batch.size() * MAX_MISSING_RATIO) {
+            log.error("{} of {} files up to ID {} are missing from {}; is the upload directory mounted? " +
+                    "Leaving them in place", missing.size(), batch.size(), lastId, fileStorageLocation);
+            return;
+        }
+
+        for (FileEntity fileEntity : missing) {
+            // Re-read the row: the file may have been moved, demoted or deleted meanwhile
+            FileEntity current = fileRepository.findById(fileEntity.getId()).orElse(null);
+            if (current == null || current.getStorageTier() != StorageTier.HOT || hasContent(current)) {
+                continue;
+            }
+            danglingCounter.increment();
+            log.warn("Content of file {} ({}) is missing from {}; deleting the file",
+                    current.getId(), current.getOriginalFilename(), current.getPath());
+            try {
+                fileStorageService.deleteFile(current.getId());
+            } catch (ResourceNotFoundException ex) {
+                // Deleted meanwhile
+            } catch (RuntimeException ex) {
+                log.warn("Could not delete file {}", current.getId(), ex);
+            }
+        }
+    }
+
+    private boolean hasContent(FileEntity fileEntity) {
+        if (Files.exists(Path.of(fileEntity.getPath()))) {
+            return true;
+        }
+        // Flat files are linked into the sharded layout before their row is updated
+        return !fileEntity.isDeduplicated()
+                && Files.exists(ShardedLayout.resolve(fileStorageLocation, fileEntity.getFilename()));
+    }
+}
@@ -0,0 +1,338 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
+import com.droplite.exception.FileStorageException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.storage.S3StorageBackend;
+import com.droplite.storage.StorageBackend;
+import com.droplite.util.ShardedLayout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps only the working set on local disk by moving files nobody has read in a while to a
+ * cold {@link StorageBackend}, and moving them back when they are read again.
+ *
+ * <p>The cold tier is configured with {@code file.storage.cold.type} ({@code s3} or
+ * {@code local}); without it, tiering is off and every file stays on local disk. Reads are
+ * tracked to the hour: the first read of a file in an hour is remembered in memory and
+ * written to {@code files.last_accessed_at} in one batched update per minute, so downloads
+ * do not pay for a database write.</p>
+ *
+ * <p>A demotion job ({@code file.storage.tiering.interval}, default hourly) copies files not
+ * read for {@code file.storage.tiering.cold-after} (default 30 days) to the cold tier, points
+ * their rows at the cold key with a conditional update, and only then deletes the local
+ * copy. A reader holding stale metadata finds the local file gone and re-reads the row.
+ * Reading a cold file promotes it: the content is copied back to its local location before
+ * the download is served, concurrent reads of the same file wait for a single copy, and the
+ * cold copy is removed once the row points at local disk again.</p>
+ *
+ * <p>In cluster mode a file is demoted by its primary node, which then has the copies on the
+ * other nodes removed, and is copied to them again when it is promoted.</p>
+ */
+@Slf4j
+@Service
+public class TieredStorage {
+
+    private static final int ACCESS_UPDATE_BATCH_SIZE = 500;
+
+    private final FileRepository fileRepository;
+    private final FileMetadataCache metadataCache;
+    private final TransactionTemplate transactionTemplate;
+    private final LocalStorageBackend hotStorage;
+    private final Cluster cluster;
+    private final Replicator replicator;
+    // Null when no cold tier is configured
+    private final StorageBackend coldStorage;
+    private final boolean enabled;
+    private final Duration coldAfter;
+    private final int batchSize;
+    private final long maxColdFileSize;
+    private final Counter demotedCounter;
+    private final Counter promotedCounter;
+    private final Timer promotionTimer;
+
+    // Files read since the last flush whose recorded access is more than an hour old
+    private final Set<Long> accessed = ConcurrentHashMap.newKeySet();
+    // Promotions in progress, so that concurrent reads of a cold file copy it only once
+    private final Map<Long, CompletableFuture<Path>> promotions = new ConcurrentHashMap<>();
+
+    public TieredStorage(FileRepository fileRepository,
+                         FileMetadataCache metadataCache,
+                         TransactionTemplate transactionTemplate,
+                         LocalStorageBackend hotStorage,
+                         Cluster cluster,
+                         Replicator replicator,
+                         @Qualifier("coldStorage") ObjectProvider<StorageBackend> coldStorage,
+                         MeterRegistry meterRegistry,
+                         @Value("${file.storage.tiering.enabled:true}") boolean enabled,
+                         @Value("${file.storage.tiering.cold-after:30d}") Duration coldAfter,
+                         @Value("${file.storage.tiering.batch-size:100}") int batchSize) {
+        this.fileRepository = fileRepository;
+        this.metadataCache = metadataCache;
+        this.transactionTemplate = transactionTemplate;
+        this.hotStorage = hotStorage;
+        this.cluster = cluster;
+        this.replicator = replicator;
+        this.coldStorage = coldStorage.getIfAvailable();
+        this.enabled = enabled && this.coldStorage != null;
+        this.coldAfter = coldAfter;
+        this.batchSize = batchSize;
+        this.maxColdFileSize = this.coldStorage instanceof S3StorageBackend ? S3StorageBackend.MAX_OBJECT_SIZE : Long.MAX_VALUE;
+        this.demotedCounter = Counter.builder("droplite.tiering.demoted")
+                .description("Files moved to the cold tier")
+                .register(meterRegistry);
+        this.promotedCounter = Counter.builder("droplite.tiering.promoted")
+                .description("Files moved back to local disk because they were read")
+                .register(meterRegistry);
+        this.promotionTimer = Timer.builder("droplite.tiering.promotion")
+                .description("Time to copy a cold file back to local disk before serving it")
+                .register(meterRegistry);
+
+        if (this.enabled) {
+            log.info("Moving files not read for {} from {} to {}", coldAfter, hotStorage, this.coldStorage);
+        }
+    }
+
+    /**
+     * Notes that a file was read, which keeps it on local disk.
+     */
+    public void recordAccess(FileEntity fileEntity) {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime lastAccessedAt = fileEntity.getLastAccessedAt();
+        if (lastAccessedAt == null || lastAccessedAt.isBefore(LocalDateTime.now().minusHours(1))) {
+            accessed.add(fileEntity.getId());
+        }
+    }
+
+    /**
+     * Writes the reads noted since the last run to the database.
+     */
+    @Scheduled(fixedDelayString = "${file.storage.tiering.access-flush-interval:PT1M}")
+    public void flushAccesses() {
+        if (accessed.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(accessed);
+        ids.forEach(accessed::remove);
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int from = 0; from < ids.size(); from += ACCESS_UPDATE_BATCH_SIZE) {
+                fileRepository.updateLastAccessed(ids.subList(from, Math.min(from + ACCESS_UPDATE_BATCH_SIZE, ids.size())), now);
+            }
+        });
+        // Cached metadata would otherwise keep reporting the old access time for its TTL
+        ids.forEach(metadataCache::invalidate);
+    }
+
+    /**
+     * Moves every file that has not been read for the configured period to the cold tier.
+     */
+    @Scheduled(fixedDelayString = "${file.storage.tiering.interval:PT1H}",
+            initialDelayString = "${file.storage.tiering.initial-delay:PT5M}")
+    public void demoteIdleFiles() {
+        if (!enabled) {
+            return;
+        }
+        // Reads still waiting to be written must count
+        flushAccesses();
+
+        LocalDateTime cutoff = LocalDateTime.now().minus(coldAfter);
+        long lastId = 0;
+        int demoted = 0;
+        List<FileEntity> batch;
+        do {
+            batch = fileRepository.findIdleFiles(cutoff, maxColdFileSize, lastId, PageRequest.of(0, batchSize));
+            for (FileEntity fileEntity : batch) {
+                if (cluster.isPrimary(fileEntity.getFilename()) && demote(fileEntity)) {
+                    demoted++;
+                }
+            }
+            if (!batch.isEmpty()) {
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+        } while (batch.size() == batchSize);
+
+        if (demoted > 0) {
+            log.info("Moved {} files not read since {} to {}", demoted, cutoff, coldStorage);
+        }
+    }
+
+    /**
+     * Copies a cold file back to local disk and points its row there.
+     *
+     * @return The local file holding the content
+     * @throws ResourceNotFoundException if the file was deleted meanwhile
+     * @throws FileStorageException if the content cannot be copied from the cold tier
+     */
+    public Path promote(FileEntity fileEntity) {
+        CompletableFuture<Path> promotion = new CompletableFuture<>();
+        CompletableFuture<Path> inProgress = promotions.putIfAbsent(fileEntity.getId(), promotion);
+        if (inProgress != null) {
+            try {
+                return inProgress.join();
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+            }
+        }
+
+        try {
+            Path file = copyToHotTier(fileEntity);
+            promotion.complete(file);
+            return file;
+        } catch (RuntimeException ex) {
+            promotion.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            promotions.remove(fileEntity.getId(), promotion);
+        }
+    }
+
+    /**
+     * Deletes the content of a file. The file may have changed tier since its metadata was
+     * read, so the other tier's location is removed as well.
+     *
+     * @return Whether content was found in the tier the metadata points at
+     */
+    public boolean deleteContent(FileEntity fileEntity) throws IOException {
+        String key = ShardedLayout.relativePath(fileEntity.getFilename());
+        if (fileEntity.getStorageTier() == StorageTier.COLD) {
+            // A concurrent promotion may have just copied it back
+            Files.deleteIfExists(hotStorage.resolve(key));
+            if (coldStorage == null) {
+                log.warn("Cannot delete {}: no cold storage is configured", fileEntity.getPath());
+                return false;
+            }
+            coldStorage.delete(fileEntity.getPath());
+            return true;
+        }
+
+        boolean deleted = Files.deleteIfExists(Path.of(fileEntity.getPath()));
+        if (enabled) {
+            // A concurrent demotion may have just copied it to the cold tier
+            try {
+                coldStorage.delete(key);
+            } catch (IOException ex) {
+                log.warn("Could not delete {} from {}", key, coldStorage, ex);
+            }
+        }
+        return deleted;
+    }
+
+    private boolean demote(FileEntity fileEntity) {
+        String key = ShardedLayout.relativePath(fileEntity.getFilename());
+        // This node's copy, which may be a replica; the row's path is the storing node's
+        Path file = hotStorage.resolve(key);
+        try {
+            coldStorage.put(key, file);
+        } catch (NoSuchFileException ex) {
+            // Deleted meanwhile
+            return false;
+        } catch (IOException ex) {
+            log.warn("Could not move {} to {}", file, coldStorage, ex);
+            return false;
+        }
+
+        // Only a row that still points at the local file is updated; a concurrent delete wins
+        boolean updated = transactionTemplate.execute(status ->
+                fileRepository.markCold(fileEntity.getId(), fileEntity.getPath(), key) == 1);
+        if (!updated) {
+            deleteQuietly(coldStorage, key);
+            return false;
+        }
+        metadataCache.invalidate(fileEntity.getId());
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Could not delete {} after moving it to {}", file, coldStorage, ex);
+        }
+        replicator.dropReplicas(fileEntity.getFilename());
+        demotedCounter.increment();
+        return true;
+    }
+
+    private Path copyToHotTier(FileEntity fileEntity) {
+        if (coldStorage == null) {
+            throw new FileStorageException("File " + fileEntity.getFilename() +
+                    " is in the cold tier, but no cold storage is configured");
+        }
+        long startNanos = System.nanoTime();
+        String key = fileEntity.getPath();
+        String hotKey = ShardedLayout.relativePath(fileEntity.getFilename());
+        Path file = hotStorage.resolve(hotKey);
+
+        try (InputStream content = coldStorage.get(key)) {
+            hotStorage.put(hotKey, content);
+        } catch (NoSuchFileException ex) {
+            // Promoted and removed from the cold tier by another reader since the row was read
+            metadataCache.invalidate(fileEntity.getId());
+            FileEntity current = fileRepository.findById(fileEntity.getId())
+                    .orElseThrow(() -> new ResourceNotFoundException("File not found " + fileEntity.getFilename()));
+            if (current.getStorageTier() == StorageTier.HOT && Files.isReadable(Path.of(current.getPath()))) {
+                return Path.of(current.getPath());
+            }
+            throw new FileStorageException("File " + fileEntity.getFilename() + " is missing from " + coldStorage, ex);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not copy " + fileEntity.getFilename() + " from " + coldStorage, ex);
+        }
+
+        boolean updated = transactionTemplate.execute(status -> fileRepository.markHot(
+                fileEntity.getId(), key, file.toString(), LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS)) == 1);
+        metadataCache.invalidate(fileEntity.getId());
+        if (updated) {
+            deleteQuietly(coldStorage, key);
+            replicator.replicate(fileEntity.getFilename());
+        } else if (!fileRepository.existsById(fileEntity.getId())) {
+            // Deleted while it was being copied
+            deleteQuietly(hotStorage, hotKey);
+            throw new ResourceNotFoundException("File not found " + fileEntity.getFilename());
+        }
+        // Otherwise another node promoted it to the same location first
+
+        promotionTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        promotedCounter.increment();
+        log.debug("Moved {} back from {}", fileEntity.getFilename(), coldStorage);
+        return file;
+    }
+
+    private static void deleteQuietly(StorageBackend storage, String key) {
+        try {
+            storage.delete(key);
+        } catch (IOException ex) {
+            log.warn("Could not delete {} from {}", key, storage, ex);
+        }
+    }
+}
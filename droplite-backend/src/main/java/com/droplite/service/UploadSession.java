@@ -0,0 +1,175 @@
+package com.droplite.service;
+
+import com.droplite.model.UploadStatus;
+import com.droplite.quota.UsageTracker;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * State of a single chunked upload. Chunk bookkeeping is guarded by the session monitor,
+ * while the chunk bytes themselves are written with positional writes on the shared
+ * {@link FileChannel}, which allows several chunks to be written concurrently.
+ *
+ * <p>A session ends when it completes, is aborted or expires. Chunks are admitted under the
+ * same monitor that ends the session, so no chunk starts on an ended session, and an idle
+ * session never expires while a chunk is being written.</p>
+ */
+final class UploadSession {
+
+    private final String id;
+    private final String originalFilename;
+    private final long size;
+    private final long chunkSize;
+    private final int chunkCount;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final String owner;
+    // Quota taken by the upload until it completes or is discarded
+    private final UsageTracker.Reservation reservation;
+
+    // Chunks fully written to disk, and chunks currently being written by a request
+    private final BitSet received;
+    private final BitSet inFlight;
+    private boolean ended;
+    private volatile long lastAccessed;
+
+    UploadSession(String id, String originalFilename, long size, long chunkSize,
+                  Path partFile, FileChannel channel, String owner, UsageTracker.Reservation reservation) {
+        this.id = id;
+        this.originalFilename = originalFilename;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.partFile = partFile;
+        this.channel = channel;
+        this.owner = owner;
+        this.reservation = reservation;
+        this.received = new BitSet(chunkCount);
+        this.inFlight = new BitSet(chunkCount);
+        this.lastAccessed = System.currentTimeMillis();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getOriginalFilename() {
+        return originalFilename;
+    }
+
+    Path getPartFile() {
+        return partFile;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    UsageTracker.Reservation getReservation() {
+        return reservation;
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void touch() {
+        this.lastAccessed = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the index of the chunk starting at the given offset, or -1 if no chunk starts there.
+     */
+    int chunkIndexAt(long offset) {
+        if (offset < 0 || offset >= size || offset % chunkSize != 0) {
+            return -1;
+        }
+        return (int) (offset / chunkSize);
+    }
+
+    long chunkLength(int index) {
+        long start = index * chunkSize;
+        return Math.min(chunkSize, size - start);
+    }
+
+    /**
+     * Claims a chunk for writing.
+     *
+     * @return {@code false} if the session has ended, or the chunk is already received or is
+     *         being written by another request
+     */
+    synchronized boolean tryBeginChunk(int index) {
+        if (ended || received.get(index) || inFlight.get(index)) {
+            return false;
+        }
+        inFlight.set(index);
+        return true;
+    }
+
+    synchronized void finishChunk(int index, boolean written) {
+        inFlight.clear(index);
+        if (written) {
+            received.set(index);
+        }
+    }
+
+    /**
+     * Ends the session; chunks are no longer admitted. Chunks being written when it ends fail
+     * once the channel is closed.
+     */
+    synchronized void end() {
+        ended = true;
+    }
+
+    /**
+     * Ends the session if it has not been touched since the given time and no chunk is being
+     * written.
+     *
+     * @return Whether the session ended
+     */
+    synchronized boolean endIfIdleSince(long cutoff) {
+        if (ended || lastAccessed >= cutoff || !inFlight.isEmpty()) {
+            return false;
+        }
+        ended = true;
+        return true;
+    }
+
+    synchronized boolean isEnded() {
+        return ended;
+    }
+
+    synchronized boolean isReceived(int index) {
+        return received.get(index);
+    }
+
+    synchronized int missingChunkCount() {
+        return chunkCount - received.cardinality();
+    }
+
+    synchronized UploadStatus toStatus() {
+        List<Long> missingOffsets = new ArrayList<>();
+        long receivedBytes = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (received.get(i)) {
+                receivedBytes += chunkLength(i);
+            } else {
+                missingOffsets.add(i * chunkSize);
+            }
+        }
+        return new UploadStatus(id, originalFilename, size, chunkSize, receivedBytes, missingOffsets);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,128 @@
+package com.droplite.storage;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * {@link StorageBackend} on an S3-compatible object store (AWS S3, MinIO, ...).
+ *
+ * <p>Each key is stored as one object, under an optional prefix, in a single bucket. Range
+ * reads use HTTP {@code Range} requests, so only the requested bytes are transferred.
+ * Objects are uploaded with a single {@code PutObject} request, which limits them to 5GB.</p>
+ */
+public class S3StorageBackend implements StorageBackend, AutoCloseable {
+
+    /**
+     * Largest object a single {@code PutObject} request can upload.
+     */
+    public static final long MAX_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final S3Client client;
+    private final String bucket;
+    // Prepended to every key, e.g. "droplite/"; empty to store keys at the bucket root
+    private final String prefix;
+
+    public S3StorageBackend(S3Client client, String bucket, String prefix) {
+        this.client = client;
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    @Override
+    public String name() {
+        return "s3";
+    }
+
+    @Override
+    public void put(String key, Path source) throws IOException {
+        try {
+            client.putObject(PutObjectRequest.builder().bucket(bucket).key(prefix + key).build(),
+                    RequestBody.fromFile(source));
+        } catch (SdkException ex) {
+            throw failure("store", key, ex);
+        }
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        try {
+            return client.getObject(GetObjectRequest.builder().bucket(bucket).key(prefix + key).build());
+        } catch (SdkException ex) {
+            throw failure("read", key, ex);
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        try {
+            return client.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(prefix + key)
+                    .range("bytes=" + offset + "-" + (offset + length - 1))
+                    .build());
+        } catch (SdkException ex) {
+            throw failure("read", key, ex);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        try {
+            client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(prefix + key).build());
+        } catch (SdkException ex) {
+            throw failure("delete", key, ex);
+        }
+    }
+
+    @Override
+    public Optional<StoredObject> stat(String key) throws IOException {
+        try {
+            HeadObjectResponse head = client.headObject(HeadObjectRequest.builder().bucket(bucket).key(prefix + key).build());
+            return Optional.of(new StoredObject(key, head.contentLength(), head.lastModified()));
+        } catch (SdkException ex) {
+            if (isNotFound(ex)) {
+                return Optional.empty();
+            }
+            throw failure("stat", key, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + bucket + "/" + prefix;
+    }
+
+    private IOException failure(String operation, String key, SdkException ex) {
+        if (isNotFound(ex)) {
+            NoSuchFileException notFound = new NoSuchFileException(toString() + key);
+            notFound.initCause(ex);
+            return notFound;
+        }
+        return new IOException("Could not " + operation + " " + toString() + key + ": " + ex.getMessage(), ex);
+    }
+
+    private static boolean isNotFound(SdkException ex) {
+        return ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404;
+    }
+}
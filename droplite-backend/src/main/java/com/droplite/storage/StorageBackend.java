@@ -0,0 +1,62 @@
+package com.droplite.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * A place where file content is kept, addressed by key.
+ *
+ * <p>Keys are relative, slash-separated paths in the {@link com.droplite.util.ShardedLayout},
+ * e.g. {@code 3f/a2/3fa2c1d0-....png}. Stored content is immutable: a key is written once,
+ * read any number of times and deleted, so implementations never need to handle partial
+ * updates. A key is either absent or holds complete content.</p>
+ *
+ * <p>{@link LocalStorageBackend} keeps content on the local filesystem and is the hot tier
+ * that downloads are served from. {@link S3StorageBackend} keeps it in an S3-compatible
+ * object store and serves as the cold tier.</p>
+ */
+public interface StorageBackend {
+
+    /**
+     * Short name of the backend for logs, e.g. {@code local} or {@code s3}.
+     */
+    String name();
+
+    /**
+     * Stores the content of a file under a key, replacing any content stored under it.
+     *
+     * @param key The key to store the content under
+     * @param source The file to read the content from; it is left in place
+     */
+    void put(String key, Path source) throws IOException;
+
+    /**
+     * Opens the content stored under a key. The caller must close the stream.
+     *
+     * @throws java.nio.file.NoSuchFileException if nothing is stored under the key
+     */
+    InputStream get(String key) throws IOException;
+
+    /**
+     * Opens a byte range of the content stored under a key. The caller must close the stream.
+     *
+     * @param offset Position of the first byte to read
+     * @param length Number of bytes to read; fewer are returned if the content ends first
+     * @throws java.nio.file.NoSuchFileException if nothing is stored under the key
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    /**
+     * Deletes the content stored under a key. Deleting an absent key is not an error.
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Returns the size and modification time of the content stored under a key.
+     *
+     * @return The stored object, or empty if nothing is stored under the key
+     */
+    Optional<StoredObject> stat(String key) throws IOException;
+}
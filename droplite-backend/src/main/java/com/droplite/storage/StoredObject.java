@@ -0,0 +1,13 @@
+package com.droplite.storage;
+
+import java.time.Instant;
+
+/**
+ * Content stored under a key of a {@link StorageBackend}.
+ *
+ * @param key The key
+ * @param size Size of the stored bytes, which is the compressed size for encoded files
+ * @param lastModified When the content was stored
+ */
+public record StoredObject(String key, long size, Instant lastModified) {
+}
@@ -0,0 +1,69 @@
+package com.droplite.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crash-safe file replacement. Content is written to a temporary sibling of its target, forced
+ * to disk, renamed over the target and the rename forced by syncing the directory. After a
+ * crash the target holds either its previous content or the complete new content, never a
+ * prefix of it, and a file whose metadata was committed is known to be on disk.
+ *
+ * <p>Temporary files end in {@link #TEMP_SUFFIX}; those left behind by a crash are removed by
+ * the {@code StorageReconciler}.</p>
+ */
+public final class DurableFiles {
+
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private DurableFiles() {
+    }
+
+    /**
+     * Returns the temporary file that content for a target is written to before it is moved
+     * into place.
+     */
+    public static Path tempFor(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Forces a written file to disk and atomically renames it to its target, replacing any
+     * existing file.
+     */
+    public static void moveIntoPlace(Path source, Path target) throws IOException {
+        force(source);
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(target.getParent());
+    }
+
+    /**
+     * Forces the content and size of a file to disk.
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces the entries of a directory, i.e. files created, renamed or deleted in it, to disk.
+     * Platforms that cannot open a directory (Windows) make directory updates durable on their
+     * own, so this is a no-op there.
+     */
+    public static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException ex) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+}
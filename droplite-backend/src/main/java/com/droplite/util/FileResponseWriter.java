@@ -0,0 +1,512 @@
+package com.droplite.util;
+
+import com.droplite.model.FileEntity;
+import com.droplite.ratelimit.ThrottledResponse;
+import com.droplite.service.ContentCompressor;
+import com.droplite.service.StorageMetrics;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Writes stored files to HTTP responses with support for conditional and range requests.
+ *
+ * <p>Responses carry a strong ETag (the content digest when known, otherwise size and
+ * modification time) and {@code Last-Modified}, so {@code If-None-Match} and
+ * {@code If-Modified-Since} are answered with 304. {@code Range} requests are answered
+ * with 206, using {@code multipart/byteranges} for multiple ranges. A known SHA-256 is also
+ * sent as {@code Repr-Digest} and {@code Digest}, so clients can verify what they
+ * received.</p>
+ *
+ * <p>On Tomcat's NIO connector a single uncompressed region of 48KB or more is handed to the
+ * connector as a sendfile request, so its bytes never enter the JVM. Everything else is
+ * copied: smaller regions, the parts of a {@code multipart/byteranges} body and responses
+ * under a bandwidth limit ({@link com.droplite.ratelimit.RateLimitFilter}) go through
+ * {@link FileChannel#transferTo} into a channel over the servlet output stream, which copies
+ * through a temporary buffer into Tomcat's output buffer, and decompressed gzip content goes
+ * through an 8KB heap buffer. Content already held in a (direct) {@link ByteBuffer} is
+ * written from a read-only view, without a per-request copy of the cached bytes.</p>
+ *
+ * <p>Files stored gzip-compressed are sent as stored, with {@code Content-Encoding: gzip}, to
+ * clients that accept gzip; other clients get them decompressed as a stream. The two
+ * representations have distinct ETags and responses carry {@code Vary: Accept-Encoding}.</p>
+ */
+@Slf4j
+@Component
+public class FileResponseWriter {
+
+    // Request attributes of Tomcat's sendfile support (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    // Digest of the whole representation, also on partial responses (RFC 9530), and its predecessor (RFC 3230)
+    private static final String REPR_DIGEST = "Repr-Digest";
+    private static final String DIGEST = "Digest";
+
+    // Below this size a plain write is cheaper than setting up sendfile (Tomcat uses the same default)
+    private static final long SENDFILE_THRESHOLD = 48 * 1024;
+
+    private final StorageMetrics storageMetrics;
+
+    public FileResponseWriter(StorageMetrics storageMetrics) {
+        this.storageMetrics = storageMetrics;
+    }
+
+    /**
+     * Writes a file, or the requested ranges of it, to the response.
+     *
+     * @param request The current request, consulted for conditional and range headers
+     * @param response The response to write to
+     * @param fileEntity Metadata of the file being served
+     * @param file Location of the file content
+     * @param headers Content type, disposition and other headers to send with the content
+     * @throws IOException If the file cannot be read or the client disconnects
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, FileEntity fileEntity,
+                      Path file, HttpHeaders headers) throws IOException {
+        if (!ContentCompressor.GZIP.equals(fileEntity.getContentEncoding())) {
+            write(request, response, fileEntity, new FileContent(file), headers, null);
+            return;
+        }
+
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip(request)) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, ContentCompressor.GZIP);
+            write(request, response, fileEntity, new FileContent(file), headers, ContentCompressor.GZIP);
+        } else {
+            write(request, response, fileEntity, new DecompressedContent(file, fileEntity.getSize()), headers, null);
+        }
+    }
+
+    /**
+     * Writes in-memory file content, or the requested ranges of it, to the response.
+     *
+     * @param request The current request, consulted for conditional and range headers
+     * @param response The response to write to
+     * @param fileEntity Metadata of the file being served
+     * @param content The complete file content; its position and limit are not modified
+     * @param lastModified Modification time of the file the content was read from, in millis
+     * @param headers Content type, disposition and other headers to send with the content
+     * @throws IOException If the client disconnects
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, FileEntity fileEntity,
+                      ByteBuffer content, long lastModified, HttpHeaders headers) throws IOException {
+        write(request, response, fileEntity, new BufferContent(content, lastModified), headers, null);
+    }
+
+    /**
+     * @param encoding The content coding of the bytes sent, which distinguishes their ETag from
+     *                 that of the decoded content; {@code null} for the content as uploaded
+     */
+    private void write(HttpServletRequest request, HttpServletResponse response, FileEntity fileEntity,
+                       Content content, HttpHeaders headers, String encoding) throws IOException {
+        long startNanos = System.nanoTime();
+        long bytesSent = writeResponse(request, response, fileEntity, content, headers, encoding);
+        // With sendfile the connector sends the bytes after this returns, so only the hand-off is timed
+        storageMetrics.recordDownload(fileEntity.getContentType(), content.length(), bytesSent,
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Writes the response for a request and returns the number of content bytes in its body.
+     */
+    private long writeResponse(HttpServletRequest request, HttpServletResponse response, FileEntity fileEntity,
+                               Content content, HttpHeaders headers, String encoding) throws IOException {
+        long length = content.length();
+        long lastModified = content.lastModified();
+        String etag = etagFor(fileEntity, length, lastModified);
+        if (encoding != null) {
+            etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        // Let clients cache and revalidate; otherwise Spring Security's default no-store applies
+        if (!headers.containsKey(HttpHeaders.CACHE_CONTROL)) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        }
+
+        // Spring checks If-Match for unsafe methods only, but it applies to GET too
+        if (preconditionFailed(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return 0;
+        }
+        // Handles If-None-Match / If-Modified-Since (304)
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return 0;
+        }
+
+        headers.forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        // The digest is of the content as uploaded, so it does not describe gzip-encoded bytes
+        if (fileEntity.getDigest() != null && encoding == null) {
+            String sha256 = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(fileEntity.getDigest()));
+            response.setHeader(REPR_DIGEST, "sha-256=:" + sha256 + ":");
+            response.setHeader(DIGEST, "SHA-256=" + sha256);
+        }
+
+        List<HttpRange> ranges = requestedRanges(request, etag, lastModified);
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            writeRegion(request, response, content, 0, length);
+            return length;
+        }
+
+        long[][] regions;
+        try {
+            regions = toRegions(ranges, length);
+        } catch (IllegalArgumentException ex) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return 0;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (regions.length == 1) {
+            long start = regions[0][0];
+            long end = regions[0][1];
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            writeRegion(request, response, content, start, end - start + 1);
+        } else {
+            writeMultipart(request, response, content, headers.getFirst(HttpHeaders.CONTENT_TYPE), regions, length);
+        }
+
+        long bytesSent = 0;
+        for (long[] region : regions) {
+            bytesSent += region[1] - region[0] + 1;
+        }
+        return bytesSent;
+    }
+
+    /**
+     * Builds a strong ETag; the content digest identifies the bytes exactly, and size plus
+     * modification time is the usual fallback for files stored without one.
+     */
+    static String etagFor(FileEntity fileEntity, long length, long lastModified) {
+        if (fileEntity.getDigest() != null) {
+            return "\"" + fileEntity.getDigest() + "\"";
+        }
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Evaluates {@code If-Match} (strong comparison) or, without it, {@code If-Unmodified-Since}.
+     */
+    private static boolean preconditionFailed(HttpServletRequest request, String etag, long lastModified) {
+        Enumeration<String> ifMatch = request.getHeaders(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && ifMatch.hasMoreElements()) {
+            while (ifMatch.hasMoreElements()) {
+                for (String candidate : ifMatch.nextElement().split(",")) {
+                    // Weak tags (W/"...") never match strongly
+                    String tag = candidate.trim();
+                    if (tag.equals("*") || tag.equals(etag)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        long ifUnmodifiedSince;
+        try {
+            ifUnmodifiedSince = request.getDateHeader(HttpHeaders.IF_UNMODIFIED_SINCE);
+        } catch (IllegalArgumentException ex) {
+            // An invalid date is ignored
+            return false;
+        }
+        return ifUnmodifiedSince != -1 && lastModified / 1000 > ifUnmodifiedSince / 1000;
+    }
+
+    private List<HttpRange> requestedRanges(HttpServletRequest request, String etag, long lastModified) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (!StringUtils.hasText(rangeHeader)) {
+            return List.of();
+        }
+
+        // A Range request is only honoured if the If-Range validator still matches
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (StringUtils.hasText(ifRange)) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(etag)) {
+                    return List.of();
+                }
+            } else {
+                long ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+                if (ifRangeDate == -1 || lastModified / 1000 != ifRangeDate / 1000) {
+                    return List.of();
+                }
+            }
+        }
+
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+            // Syntactically invalid ranges are ignored and the full content is sent
+            log.debug("Ignoring invalid Range header '{}': {}", rangeHeader, ex.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Converts ranges to inclusive [start, end] pairs. Ranges starting past the end are left out,
+     * and requests with none left, or whose ranges add up to more than the file itself (so
+     * overlapping ranges cannot amplify a response), are rejected.
+     */
+    private static long[][] toRegions(List<HttpRange> ranges, long length) {
+        List<long[]> regions = new ArrayList<>(ranges.size());
+        long total = 0;
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            if (start >= length || start > end) {
+                continue;
+            }
+            total += end - start + 1;
+            regions.add(new long[]{start, end});
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("No requested range is satisfiable");
+        }
+        if (regions.size() > 1 && total > length) {
+            throw new IllegalArgumentException("Requested ranges exceed the content length");
+        }
+        return regions.toArray(long[][]::new);
+    }
+
+    private void writeRegion(HttpServletRequest request, HttpServletResponse response, Content content,
+                             long start, long count) throws IOException {
+        response.setContentLengthLong(count);
+        if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+            return;
+        }
+
+        Path file = content.file();
+        if (file != null && count >= SENDFILE_THRESHOLD
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            // The connector streams the region from the page cache to the socket after we return
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, start + count);
+            return;
+        }
+
+        content.transferTo(start, count, response);
+        response.flushBuffer();
+    }
+
+    private void writeMultipart(HttpServletRequest request, HttpServletResponse response, Content content,
+                                String contentType, long[][] regions, long length) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        for (long[] region : regions) {
+            StringBuilder partHeader = new StringBuilder()
+                    .append("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                partHeader.append(HttpHeaders.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+            }
+            partHeader.append(HttpHeaders.CONTENT_RANGE).append(": ")
+                    .append(contentRange(region[0], region[1], length)).append("\r\n\r\n");
+            out.write(partHeader.toString().getBytes(StandardCharsets.US_ASCII));
+            content.transferTo(region[0], region[1] - region[0] + 1, response);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Writes a buffer to the connector's output buffer. Tomcat's output stream accepts a
+     * {@link ByteBuffer} directly; it is reached by unwrapping the response after committing
+     * it through the wrappers, so that headers added on commit (e.g. by Spring Security) are
+     * still written. Responses under a bandwidth limit are written through their wrapper.
+     */
+    private static void writeBuffer(HttpServletResponse response, ByteBuffer buffer) throws IOException {
+        ServletResponse raw = response;
+        while (raw instanceof ServletResponseWrapper wrapper && !(raw instanceof ThrottledResponse)) {
+            raw = wrapper.getResponse();
+        }
+        ServletOutputStream rawOut = raw.getOutputStream();
+        if (rawOut instanceof CoyoteOutputStream coyoteOut) {
+            response.flushBuffer();
+            coyoteOut.write(buffer);
+        } else {
+            Channels.newChannel(response.getOutputStream()).write(buffer);
+        }
+    }
+
+    /**
+     * Whether the request's {@code Accept-Encoding} allows gzip, explicitly or through
+     * {@code *}, with a non-zero quality.
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        double gzip = -1;
+        double any = -1;
+        Enumeration<String> values = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (values != null && values.hasMoreElements()) {
+            for (String coding : values.nextElement().split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim();
+                if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                    gzip = Math.max(gzip, quality(parts));
+                } else if (name.equals("*")) {
+                    any = quality(parts);
+                }
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    private static double quality(String[] codingParts) {
+        for (int i = 1; i < codingParts.length; i++) {
+            String parameter = codingParts[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    /**
+     * Source of the bytes of a response.
+     */
+    private interface Content {
+
+        long length() throws IOException;
+
+        long lastModified() throws IOException;
+
+        /**
+         * The backing file, if the content can be sent with sendfile; {@code null} otherwise.
+         */
+        Path file();
+
+        void transferTo(long start, long count, HttpServletResponse response) throws IOException;
+    }
+
+    private record FileContent(Path file) implements Content {
+
+        @Override
+        public long length() throws IOException {
+            return Files.size(file);
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+
+        @Override
+        public void transferTo(long start, long count, HttpServletResponse response) throws IOException {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long position = start;
+                long remaining = count;
+                while (remaining > 0) {
+                    long transferred = source.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+        }
+    }
+
+    /**
+     * The original content of a gzip-compressed file, decompressed as it is sent. Ranges are
+     * served by decompressing and skipping the bytes before them.
+     */
+    private record DecompressedContent(Path compressed, long length) implements Content {
+
+        @Override
+        public long lastModified() throws IOException {
+            return Files.getLastModifiedTime(compressed).toMillis();
+        }
+
+        @Override
+        public Path file() {
+            // The bytes on disk are not the bytes sent, so sendfile cannot be used
+            return null;
+        }
+
+        @Override
+        public void transferTo(long start, long count, HttpServletResponse response) throws IOException {
+            OutputStream out = response.getOutputStream();
+            try (InputStream in = ContentCompressor.decompress(Files.newInputStream(compressed))) {
+                in.skipNBytes(start);
+                byte[] buffer = new byte[8192];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    private record BufferContent(ByteBuffer buffer, long lastModified) implements Content {
+
+        @Override
+        public long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public Path file() {
+            return null;
+        }
+
+        @Override
+        public void transferTo(long start, long count, HttpServletResponse response) throws IOException {
+            // A read-only view over the shared buffer; the bytes themselves are not copied
+            ByteBuffer region = buffer.asReadOnlyBuffer();
+            region.position(region.position() + (int) start);
+            region.limit(region.position() + (int) count);
+            writeBuffer(response, region);
+        }
+    }
+}
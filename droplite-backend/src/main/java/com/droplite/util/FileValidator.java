@@ -1,65 +1,435 @@
 package com.droplite.util;
 
+import com.droplite.exception.BadRequestException;
+import com.droplite.model.FileEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.InvalidMimeTypeException;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.util.Arrays;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Decides which files may be stored and what type they really are.
+ *
+ * <p>The allowed types come from {@code file.validation.types}, a list of
+ * {@code extension=media type} pairs. Everything derived from it is computed once at startup:
+ * extensions are looked up by length and compared in place, ignoring case, so checking a
+ * filename allocates nothing; the {@link MediaType} of each type, and the variant with a UTF-8
+ * charset used to display text inline, are parsed once and shared by all responses.</p>
+ *
+ * <p>An upload is checked once, when its content is first read. The extension must be allowed,
+ * and the first {@value #HEAD_SIZE} bytes must agree with it: JPEG and PNG files must start with
+ * their signature, JSON with a JSON value, and text must not contain binary control bytes.
+ * An image whose signature names another allowed image type is stored as what it really is.
+ * The stored content type always comes from this check, never from the client.</p>
+ */
+@Slf4j
+@Component
 public class FileValidator {
-    
-    private static final List<String> ALLOWED_EXTENSIONS = Arrays.asList(
-            "txt", "jpg", "jpeg", "png", "json"
-    );
-    
-    public static List<String> getAllowedExtensions() {
-        return List.copyOf(ALLOWED_EXTENSIONS);
-    }
-    
+
+    public static final String DEFAULT_TYPES =
+            "txt=text/plain,json=application/json,jpg=image/jpeg,jpeg=image/jpeg,png=image/png";
+    public static final int HEAD_SIZE = 4096;
+
     private static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB
-    
-    public static boolean isValidFileType(MultipartFile file) {
+    private static final int MAX_CACHED_MEDIA_TYPES = 256;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] JPEG_SIGNATURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+
+    // Allowed types indexed by extension length, so a lookup compares only same-length extensions
+    private final FileType[][] typesByExtensionLength;
+    private final Map<String, FileType> typesByMediaType;
+    private final String allowedExtensions;
+    // Parsed content types of files stored before their type was checked
+    private final Map<String, MediaType> legacyMediaTypes = new ConcurrentHashMap<>();
+
+    // Rejections by reason
+    private final Counter emptyRejections;
+    private final Counter typeRejections;
+    private final Counter contentRejections;
+    private final Counter sizeRejections;
+
+    public FileValidator(MeterRegistry meterRegistry,
+                         @Value("${file.validation.types:" + DEFAULT_TYPES + "}")
+                         List<String> types) {
+        Map<String, FileType> byExtension = new LinkedHashMap<>();
+        for (String entry : types) {
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("file.validation.types entries must be extension=type: " + entry);
+            }
+            String extension = entry.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            MediaType mediaType = MediaType.parseMediaType(entry.substring(separator + 1).trim());
+            byExtension.put(extension, new FileType(extension, mediaType, viewType(mediaType), Signature.of(mediaType)));
+        }
+
+        int maxLength = byExtension.keySet().stream().mapToInt(String::length).max().orElse(0);
+        List<List<FileType>> byLength = new ArrayList<>();
+        for (int length = 0; length <= maxLength; length++) {
+            byLength.add(new ArrayList<>());
+        }
+        Map<String, FileType> byMediaType = new HashMap<>();
+        for (FileType type : byExtension.values()) {
+            byLength.get(type.extension().length()).add(type);
+            byMediaType.putIfAbsent(type.contentType(), type);
+        }
+        this.typesByExtensionLength = byLength.stream()
+                .map(sameLength -> sameLength.toArray(FileType[]::new))
+                .toArray(FileType[][]::new);
+        this.typesByMediaType = Map.copyOf(byMediaType);
+        this.allowedExtensions = String.join(", ", byExtension.keySet());
+
+        this.emptyRejections = rejectionCounter(meterRegistry, "empty");
+        this.typeRejections = rejectionCounter(meterRegistry, "type");
+        this.contentRejections = rejectionCounter(meterRegistry, "content");
+        this.sizeRejections = rejectionCounter(meterRegistry, "size");
+    }
+
+    /**
+     * The allowed extensions, for error messages.
+     */
+    public String getAllowedExtensions() {
+        return allowedExtensions;
+    }
+
+    /**
+     * Whether the extension of a filename is allowed, for requests that announce an upload
+     * whose content arrives later.
+     */
+    public boolean isValidFileType(String originalFilename) {
+        return lookupFilename(originalFilename) != null;
+    }
+
+    /**
+     * Checks the extension of a filename, for upload paths that have not seen the content yet.
+     *
+     * @return The type the extension stands for
+     * @throws BadRequestException If the extension is not allowed
+     */
+    public FileType checkFilename(String originalFilename) {
+        FileType type = lookupFilename(originalFilename);
+        if (type == null) {
+            throw new BadRequestException("File type not allowed: " + originalFilename +
+                    ". Allowed types: " + allowedExtensions);
+        }
+        return type;
+    }
+
+    /**
+     * Checks an uploaded file and opens its content. The first {@value #HEAD_SIZE} bytes are
+     * inspected and then replayed, so the content is read only once.
+     *
+     * @return The real type of the file and a stream of its complete content
+     * @throws BadRequestException If the file is empty, not allowed, or not what its extension says
+     */
+    public CheckedContent check(MultipartFile file) throws IOException {
         if (file == null || file.isEmpty()) {
-            System.err.println("File is null or empty");
-            return false;
+            log.debug("Rejected upload: file is null or empty");
+            emptyRejections.increment();
+            throw new BadRequestException("File is empty");
         }
-        
-        String originalFilename = file.getOriginalFilename();
-        if (originalFilename == null || originalFilename.isEmpty()) {
-            System.err.println("Original filename is null or empty");
-            return false;
+        FileType declared = checkFilename(file.getOriginalFilename());
+        BufferedInputStream content = new BufferedInputStream(file.getInputStream(), HEAD_SIZE);
+        content.mark(HEAD_SIZE);
+        byte[] head = content.readNBytes(HEAD_SIZE);
+        content.reset();
+        try {
+            return new CheckedContent(checkContent(file.getOriginalFilename(), declared, head, head.length), content);
+        } catch (BadRequestException ex) {
+            content.close();
+            throw ex;
         }
-        
-        String extension = getFileExtension(originalFilename);
-        boolean isValid = ALLOWED_EXTENSIONS.contains(extension.toLowerCase());
-        
-        if (!isValid) {
-            System.err.println("File extension not allowed: " + extension);
-            System.err.println("Allowed extensions: " + ALLOWED_EXTENSIONS);
+    }
+
+    /**
+     * Checks a file whose content is already on disk.
+     *
+     * @return The real type of the file
+     * @throws BadRequestException If the file is not allowed or not what its extension says
+     */
+    public FileType check(String originalFilename, Path content) throws IOException {
+        FileType declared = checkFilename(originalFilename);
+        byte[] head;
+        try (InputStream in = Files.newInputStream(content)) {
+            head = in.readNBytes(HEAD_SIZE);
         }
-        
-        return isValid;
+        if (head.length == 0) {
+            emptyRejections.increment();
+            throw new BadRequestException("File is empty");
+        }
+        return checkContent(originalFilename, declared, head, head.length);
     }
-    
-    public static boolean isValidFileSize(MultipartFile file) {
+
+    public boolean isValidFileSize(MultipartFile file) {
         if (file == null) {
-            System.err.println("File is null");
+            log.debug("Rejected upload: file is null");
+            emptyRejections.increment();
             return false;
         }
-        
+
         long fileSize = file.getSize();
         boolean isValid = fileSize <= MAX_FILE_SIZE;
-        
+
         if (!isValid) {
-            System.err.println("File size " + fileSize + " exceeds maximum allowed size " + MAX_FILE_SIZE);
+            log.debug("Rejected upload: size {} exceeds maximum allowed size {}", fileSize, MAX_FILE_SIZE);
+            sizeRejections.increment();
         }
-        
+
         return isValid;
     }
-    
-    private static String getFileExtension(String filename) {
-        if (filename == null || !filename.contains(".")) {
-            return "";
+
+    /**
+     * Returns the content type to display a stored file inline with. Text types carry a UTF-8
+     * charset so that browsers do not guess the encoding.
+     */
+    public MediaType viewMediaType(FileEntity fileEntity) {
+        String contentType = fileEntity.getContentType();
+        FileType type = contentType == null ? null : typesByMediaType.get(contentType);
+        if (type == null) {
+            // Files stored before types were checked may carry whatever the client sent
+            type = findByExtension(fileEntity.getFilename());
+        }
+        if (type != null) {
+            return type.viewType();
+        }
+        return legacyMediaType(contentType);
+    }
+
+    private FileType lookupFilename(String originalFilename) {
+        if (originalFilename == null || originalFilename.isEmpty()) {
+            log.debug("Rejected upload: original filename is null or empty");
+            emptyRejections.increment();
+            return null;
+        }
+        FileType type = findByExtension(originalFilename);
+        if (type == null) {
+            log.debug("Rejected upload: extension of '{}' is not one of {}", originalFilename, allowedExtensions);
+            typeRejections.increment();
+        }
+        return type;
+    }
+
+    private FileType checkContent(String originalFilename, FileType declared, byte[] head, int length) {
+        FileType actual = declared;
+        if (startsWith(head, length, PNG_SIGNATURE)) {
+            actual = sameFamily(declared, typesByMediaType.get(MediaType.IMAGE_PNG_VALUE));
+        } else if (startsWith(head, length, JPEG_SIGNATURE)) {
+            actual = sameFamily(declared, typesByMediaType.get(MediaType.IMAGE_JPEG_VALUE));
+        } else if (!declared.signature().matches(head, length)) {
+            actual = null;
+        }
+        if (actual == null) {
+            log.debug("Rejected upload: content of '{}' is not {}", originalFilename, declared.contentType());
+            contentRejections.increment();
+            throw new BadRequestException("File content does not match its type: " + originalFilename +
+                    " is not " + declared.contentType());
+        }
+        return actual;
+    }
+
+    /**
+     * Returns the type an image signature identifies if the declared type is an image too, and
+     * otherwise the declared type if it expects that signature; {@code null} means a mismatch.
+     */
+    private static FileType sameFamily(FileType declared, FileType detected) {
+        if (detected == null) {
+            return null;
+        }
+        if (detected == declared || declared.mediaType().getType().equals(detected.mediaType().getType())) {
+            return detected;
+        }
+        return null;
+    }
+
+    private FileType findByExtension(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int dot = filename.lastIndexOf('.');
+        int length = filename.length() - dot - 1;
+        if (dot < 0 || length >= typesByExtensionLength.length) {
+            return null;
+        }
+        for (FileType type : typesByExtensionLength[length]) {
+            if (filename.regionMatches(true, dot + 1, type.extension(), 0, length)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private MediaType legacyMediaType(String contentType) {
+        if (contentType == null) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+        MediaType cached = legacyMediaTypes.get(contentType);
+        if (cached != null) {
+            return cached;
+        }
+        MediaType parsed;
+        try {
+            parsed = MediaType.parseMediaType(contentType);
+        } catch (InvalidMimeTypeException ex) {
+            parsed = MediaType.APPLICATION_OCTET_STREAM;
+        }
+        // Stored types come from a small set; the bound only guards against odd client values
+        if (legacyMediaTypes.size() < MAX_CACHED_MEDIA_TYPES) {
+            legacyMediaTypes.put(contentType, parsed);
+        }
+        return parsed;
+    }
+
+    private static MediaType viewType(MediaType mediaType) {
+        String subtype = mediaType.getSubtype();
+        boolean text = mediaType.getType().equals("text")
+                || subtype.equals("json") || subtype.endsWith("+json")
+                || subtype.equals("xml") || subtype.endsWith("+xml")
+                || subtype.equals("javascript");
+        return text && mediaType.getCharset() == null
+                ? new MediaType(mediaType, StandardCharsets.UTF_8)
+                : mediaType;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (head[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Counter rejectionCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("droplite.validation.rejections")
+                .description("Uploads rejected by file validation")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * An allowed file type.
+     *
+     * @param extension The lowercase extension, without the dot
+     * @param mediaType The media type files of this type are stored with
+     * @param viewType  The media type to display them inline with
+     * @param signature What their content must look like
+     */
+    public record FileType(String extension, MediaType mediaType, MediaType viewType, Signature signature) {
+
+        /**
+         * The media type as stored in {@link FileEntity#getContentType()}.
+         */
+        public String contentType() {
+            return mediaType.toString();
+        }
+    }
+
+    /**
+     * The content of a checked upload.
+     *
+     * @param type    The real type of the file
+     * @param content The complete content, positioned at the start
+     */
+    public record CheckedContent(FileType type, InputStream content) {
+    }
+
+    /**
+     * What the first bytes of a file must look like for its type.
+     */
+    public enum Signature {
+        PNG {
+            @Override
+            boolean matches(byte[] head, int length) {
+                return startsWith(head, length, PNG_SIGNATURE);
+            }
+        },
+        JPEG {
+            @Override
+            boolean matches(byte[] head, int length) {
+                return startsWith(head, length, JPEG_SIGNATURE);
+            }
+        },
+        JSON {
+            @Override
+            boolean matches(byte[] head, int length) {
+                if (!TEXT.matches(head, length)) {
+                    return false;
+                }
+                int i = hasUtf8Bom(head, length) ? 3 : 0;
+                while (i < length && (head[i] == ' ' || head[i] == '\t' || head[i] == '\r' || head[i] == '\n')) {
+                    i++;
+                }
+                if (i == length) {
+                    // Only whitespace so far; the value starts beyond the inspected bytes
+                    return length == HEAD_SIZE;
+                }
+                byte first = head[i];
+                return first == '{' || first == '[' || first == '"' || first == '-'
+                        || (first >= '0' && first <= '9') || first == 't' || first == 'f' || first == 'n';
+            }
+        },
+        TEXT {
+            @Override
+            boolean matches(byte[] head, int length) {
+                for (int i = 0; i < length; i++) {
+                    // Control bytes other than tab, line breaks, form feed and escape only occur in binary data
+                    int b = head[i] & 0xff;
+                    if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1b) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        },
+        ANY {
+            @Override
+            boolean matches(byte[] head, int length) {
+                return true;
+            }
+        };
+
+        abstract boolean matches(byte[] head, int length);
+
+        static Signature of(MediaType mediaType) {
+            if (MediaType.IMAGE_PNG.equalsTypeAndSubtype(mediaType)) {
+                return PNG;
+            }
+            if (MediaType.IMAGE_JPEG.equalsTypeAndSubtype(mediaType)) {
+                return JPEG;
+            }
+            String subtype = mediaType.getSubtype();
+            if (subtype.equals("json") || subtype.endsWith("+json")) {
+                return JSON;
+            }
+            if (mediaType.getType().equals("text")) {
+                return TEXT;
+            }
+            return ANY;
+        }
+
+        private static boolean hasUtf8Bom(byte[] head, int length) {
+            return length >= 3 && head[0] == (byte) 0xef && head[1] == (byte) 0xbb && head[2] == (byte) 0xbf;
         }
-        return filename.substring(filename.lastIndexOf(".") + 1);
     }
 }
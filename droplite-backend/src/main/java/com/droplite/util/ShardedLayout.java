@@ -0,0 +1,34 @@
+package com.droplite.util;
+
+import java.nio.file.Path;
+
+/**
+ * Directory layout for stored files. Files are spread over two levels of subdirectories
+ * named after the first four characters of their storage filename, which is a random UUID,
+ * e.g. {@code uploads/3f/a2/3fa2c1d0-...png}. With 65536 leaf directories a directory holds a
+ * few hundred entries even at millions of files, keeping lookups, listings and backups fast.
+ */
+public final class ShardedLayout {
+
+    private ShardedLayout() {
+    }
+
+    /**
+     * Returns the location of a stored file relative to the storage directory.
+     *
+     * @param fileName The UUID-based storage filename
+     */
+    public static String relativePath(String fileName) {
+        return fileName.substring(0, 2) + "/" + fileName.substring(2, 4) + "/" + fileName;
+    }
+
+    /**
+     * Returns the location of a stored file within a storage directory.
+     *
+     * @param root The storage directory
+     * @param fileName The UUID-based storage filename
+     */
+    public static Path resolve(Path root, String fileName) {
+        return root.resolve(relativePath(fileName));
+    }
+}
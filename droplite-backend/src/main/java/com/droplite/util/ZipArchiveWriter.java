@@ -0,0 +1,140 @@
+package com.droplite.util;
+
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.service.ContentCompressor;
+import com.droplite.service.FileStorageService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams stored files into a ZIP archive.
+ *
+ * <p>Each file is read from storage straight into the archive entry, so neither the archive
+ * nor any file is held in memory or spooled to a temporary file; the response starts as soon
+ * as the first entry is written. JPEG and PNG files are already compressed and are added with
+ * the {@code STORED} method, which needs the CRC up front: it is computed by one extra
+ * sequential read of the file, which is cheaper than deflating it for no gain. Everything
+ * else is deflated. Files stored gzip-compressed are added with their original content.</p>
+ *
+ * <p>Entries are named after the original filenames; repeated names get a {@code " (n)"}
+ * suffix. Files that have disappeared from storage by the time they are reached are skipped,
+ * since the response has already started.</p>
+ */
+@Slf4j
+@Component
+public class ZipArchiveWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> STORED_TYPES = Set.of("image/jpeg", "image/png");
+    private static final Set<String> STORED_EXTENSIONS = Set.of("jpg", "jpeg", "png");
+
+    private final FileStorageService fileStorageService;
+
+    public ZipArchiveWriter(FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+    }
+
+    /**
+     * Writes the given files as a ZIP archive. The stream is finished but not closed.
+     *
+     * @param files Metadata of the files to include, in archive order
+     * @param out The stream to write the archive to
+     * @return The number of files written to the archive
+     * @throws IOException If a file cannot be read or the client disconnects
+     */
+    public int write(List<FileEntity> files, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        Set<String> usedNames = new HashSet<>();
+        int written = 0;
+        for (FileEntity fileEntity : files) {
+            Path file;
+            try {
+                file = fileStorageService.getContentPath(fileEntity);
+            } catch (ResourceNotFoundException ex) {
+                log.warn("Leaving {} out of the archive: {}", fileEntity.getFilename(), ex.getMessage());
+                continue;
+            }
+
+            ZipEntry entry = new ZipEntry(entryName(fileEntity.getOriginalFilename(), usedNames));
+            if (fileEntity.getCreatedAt() != null) {
+                entry.setTimeLocal(fileEntity.getCreatedAt());
+            }
+            boolean encoded = ContentCompressor.GZIP.equals(fileEntity.getContentEncoding());
+            if (!encoded && isCompressed(fileEntity)) {
+                long size = Files.size(file);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(size);
+                entry.setCompressedSize(size);
+                entry.setCrc(crc32(file));
+            }
+
+            zip.putNextEntry(entry);
+            try (InputStream content = encoded
+                    ? ContentCompressor.decompress(Files.newInputStream(file))
+                    : Files.newInputStream(file)) {
+                content.transferTo(zip);
+            }
+            zip.closeEntry();
+            written++;
+        }
+        zip.finish();
+        return written;
+    }
+
+    private static boolean isCompressed(FileEntity fileEntity) {
+        String contentType = fileEntity.getContentType();
+        if (contentType != null && STORED_TYPES.contains(contentType.toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        String filename = fileEntity.getFilename();
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && STORED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns a flat entry name for a file that no earlier entry uses.
+     */
+    private static String entryName(String originalFilename, Set<String> usedNames) {
+        String name = originalFilename == null || originalFilename.isBlank()
+                ? "file"
+                : originalFilename.replace('/', '_').replace('\\', '_');
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String candidate = name;
+        for (int n = 1; !usedNames.add(candidate.toLowerCase(Locale.ROOT)); n++) {
+            candidate = base + " (" + n + ")" + extension;
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,22 @@
+-- Baseline schema. Databases created earlier by Hibernate's ddl-auto are baselined at this
+-- version (spring.flyway.baseline-on-migrate) and skip this script.
+
+CREATE TABLE files (
+    id BIGSERIAL PRIMARY KEY,
+    filename VARCHAR(255) NOT NULL,
+    original_filename VARCHAR(255) NOT NULL,
+    path VARCHAR(512) NOT NULL,
+    content_type VARCHAR(100) NOT NULL,
+    size BIGINT NOT NULL,
+    digest VARCHAR(64),
+    deduplicated BOOLEAN NOT NULL DEFAULT FALSE,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE blobs (
+    digest VARCHAR(64) PRIMARY KEY,
+    path VARCHAR(512) NOT NULL,
+    size BIGINT NOT NULL,
+    ref_count BIGINT NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
@@ -0,0 +1,12 @@
+-- Keyset pagination of GET /files/page walks files newest first by (created_at, id);
+-- the same index serves the created_at range filter.
+CREATE INDEX idx_files_created_at_id ON files (created_at DESC, id DESC);
+
+-- Content type filter combined with the listing order
+CREATE INDEX idx_files_content_type_created_at_id ON files (content_type, created_at DESC, id DESC);
+
+-- Size range filter
+CREATE INDEX idx_files_size ON files (size);
+
+-- Case-insensitive prefix search: lower(original_filename) LIKE 'abc%'
+CREATE INDEX idx_files_original_filename_prefix ON files (lower(original_filename) text_pattern_ops);
@@ -0,0 +1,3 @@
+-- FileEntity allocates IDs from files_id_seq in blocks of 50 (pooled optimizer), which
+-- allows JDBC batching of inserts. The sequence increment has to match the allocation size.
+ALTER SEQUENCE files_id_seq INCREMENT BY 50;
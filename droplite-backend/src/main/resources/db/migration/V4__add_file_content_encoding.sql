@@ -0,0 +1,2 @@
+-- Codec of the stored bytes (e.g. 'gzip'); NULL when the file is stored as uploaded
+ALTER TABLE files ADD COLUMN content_encoding VARCHAR(16);
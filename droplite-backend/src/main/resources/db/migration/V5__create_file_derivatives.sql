@@ -0,0 +1,14 @@
+-- Artifacts generated from a stored file, such as image thumbnails. Rows go away with their
+-- file; the generated files are removed by the application.
+CREATE TABLE file_derivatives (
+    id BIGSERIAL PRIMARY KEY,
+    file_id BIGINT NOT NULL REFERENCES files (id) ON DELETE CASCADE,
+    kind VARCHAR(16) NOT NULL,
+    path VARCHAR(512) NOT NULL,
+    content_type VARCHAR(100) NOT NULL,
+    width INT NOT NULL,
+    height INT NOT NULL,
+    size BIGINT NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    CONSTRAINT uk_file_derivatives_file_kind UNIQUE (file_id, kind)
+);
@@ -0,0 +1,4 @@
+-- Tier holding the content: 'HOT' (local disk, path is a file) or 'COLD' (path is the key in
+-- the cold backend). last_accessed_at is maintained to the hour and drives demotion.
+ALTER TABLE files ADD COLUMN storage_tier VARCHAR(8) NOT NULL DEFAULT 'HOT';
+ALTER TABLE files ADD COLUMN last_accessed_at TIMESTAMP;
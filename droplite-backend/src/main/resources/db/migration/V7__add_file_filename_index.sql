@@ -0,0 +1,3 @@
+-- The storage reconciler looks up the files on disk by their storage filename, a few hundred
+-- at a time, and crash recovery checks single filenames.
+CREATE INDEX idx_files_filename ON files (filename);
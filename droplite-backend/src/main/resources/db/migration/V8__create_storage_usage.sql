@@ -0,0 +1,17 @@
+-- Owner of a file, as identified by the X-Owner request header; files stored before quotas
+-- existed belong to 'anonymous'.
+ALTER TABLE files ADD COLUMN owner VARCHAR(64) NOT NULL DEFAULT 'anonymous';
+
+-- Running totals per owner, plus the totals of all files under owner '*'. The application
+-- adds its accumulated changes every few seconds, so reading usage never scans files.
+CREATE TABLE storage_usage (
+    owner VARCHAR(64) PRIMARY KEY,
+    file_count BIGINT NOT NULL,
+    bytes BIGINT NOT NULL,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+INSERT INTO storage_usage (owner, file_count, bytes)
+SELECT owner, COUNT(*), SUM(size) FROM files GROUP BY owner
+UNION ALL
+SELECT '*', COUNT(*), COALESCE(SUM(size), 0) FROM files;
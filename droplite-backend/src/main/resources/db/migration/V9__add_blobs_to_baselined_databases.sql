@@ -0,0 +1,14 @@
+-- Databases baselined at V1 skipped it, but their schema predates content-addressed storage:
+-- add what V1 creates for it. Databases created by V1, or updated by Hibernate before
+-- Flyway took over, already have these and are left as they are.
+
+ALTER TABLE files ADD COLUMN IF NOT EXISTS digest VARCHAR(64);
+ALTER TABLE files ADD COLUMN IF NOT EXISTS deduplicated BOOLEAN NOT NULL DEFAULT FALSE;
+
+CREATE TABLE IF NOT EXISTS blobs (
+    digest VARCHAR(64) PRIMARY KEY,
+    path VARCHAR(512) NOT NULL,
+    size BIGINT NOT NULL,
+    ref_count BIGINT NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
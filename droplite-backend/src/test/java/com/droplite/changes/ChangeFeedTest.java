@@ -0,0 +1,193 @@
+package com.droplite.changes;
+
+import com.droplite.model.FileChange;
+import com.droplite.model.FileEntity;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChangeFeedTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	// Subscribers that cannot be written to are dropped at the first heartbeat
+	private final ChangeFeed feed = new ChangeFeed(meterRegistry, new ObjectMapper().findAndRegisterModules(),
+			4, 1, Duration.ofMinutes(1), Duration.ZERO, 10);
+	private final HttpServletRequest request = mock(HttpServletRequest.class);
+	private final HttpServletResponse response = mock(HttpServletResponse.class);
+	private final AsyncContext asyncContext = mock(AsyncContext.class);
+	private final ServletOutputStream out = mock(ServletOutputStream.class);
+	private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+	private final long start = feed.lastSequence();
+
+	@AfterEach
+	void tearDown() {
+		feed.shutdown();
+	}
+
+	@Test
+	void changesAfterACursorAreReturnedInOrder() {
+		feed.created(file(1L));
+		feed.deleted(2L);
+
+		List<FileChange> changes = feed.changesAfter(start, 256);
+
+		assertEquals(2, changes.size());
+		assertEquals(start + 1, changes.get(0).sequence());
+		assertEquals(FileChange.Type.CREATED, changes.get(0).type());
+		assertEquals("file-1.txt", changes.get(0).file().filename());
+		assertEquals(start + 2, changes.get(1).sequence());
+		assertEquals(FileChange.Type.DELETED, changes.get(1).type());
+		assertEquals(2L, changes.get(1).id());
+	}
+
+	@Test
+	void subscriberThatIsCaughtUpGetsNothing() {
+		assertTrue(feed.changesAfter(start, 256).isEmpty());
+
+		feed.deleted(1L);
+
+		assertTrue(feed.changesAfter(start + 1, 256).isEmpty());
+	}
+
+	@Test
+	void changesAreLimitedPerCall() {
+		feed.deletedAll(List.of(1L, 2L, 3L));
+
+		List<FileChange> changes = feed.changesAfter(start, 2);
+
+		assertEquals(2, changes.size());
+		assertEquals(start + 2, changes.get(1).sequence());
+		assertEquals(start + 3, feed.changesAfter(start + 2, 2).get(0).sequence());
+	}
+
+	@Test
+	void bufferKeepsTheLatestChangesAfterWrappingAround() {
+		feed.deletedAll(List.of(1L, 2L, 3L, 4L, 5L, 6L));
+
+		List<FileChange> changes = feed.changesAfter(start + 2, 256);
+
+		assertEquals(4, changes.size());
+		for (int i = 0; i < changes.size(); i++) {
+			assertEquals(start + 3 + i, changes.get(i).sequence());
+			assertEquals(3L + i, changes.get(i).id());
+		}
+	}
+
+	@Test
+	void subscriberThatFellBehindTheBufferIsReset() {
+		feed.deletedAll(List.of(1L, 2L, 3L, 4L, 5L, 6L));
+
+		// Change start + 2 was overwritten
+		assertNull(feed.changesAfter(start + 1, 256));
+		assertNull(feed.changesAfter(start, 256));
+	}
+
+	@Test
+	void cursorFromAnotherRunIsReset() {
+		feed.deleted(1L);
+
+		// Issued before this feed started, or by a later run
+		assertNull(feed.changesAfter(start - 1, 256));
+		assertNull(feed.changesAfter(start + 2, 256));
+	}
+
+	@Test
+	void subscriberIsSentReadyAndThenTheChanges() throws IOException {
+		when(out.isReady()).thenReturn(true);
+		WriteListener listener = subscribe();
+
+		// Called by the container once the stream can be written to
+		listener.onWritePossible();
+		verify(out, timeout(5000)).flush();
+		feed.created(file(1L));
+
+		await(() -> written().contains("event:created"));
+		String events = written();
+		assertTrue(events.startsWith("id:" + start + "\nevent:ready\ndata:" + start + "\n\n"), events);
+		assertTrue(events.contains("id:" + (start + 1) + "\nevent:created\ndata:{"), events);
+		assertTrue(events.contains("\"filename\":\"file-1.txt\""), events);
+	}
+
+	@Test
+	void subscriberWhoseSocketStaysFullIsDisconnectedWithoutBlocking() throws IOException {
+		when(out.isReady()).thenReturn(false);
+		WriteListener listener = subscribe();
+
+		listener.onWritePossible();
+		feed.deleted(1L);
+
+		await(() -> {
+			feed.heartbeat();
+			return meterRegistry.get("droplite.changes.stalled").counter().count() == 1;
+		});
+		verify(asyncContext).complete();
+		verify(out, never()).write(any(byte[].class));
+		assertEquals(0, meterRegistry.get("droplite.changes.subscribers").gauge().value());
+	}
+
+	/**
+	 * Subscribes from the start, and returns the listener the feed gave the output stream.
+	 */
+	private WriteListener subscribe() throws IOException {
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		when(response.getOutputStream()).thenReturn(out);
+		doAnswer(invocation -> {
+			written.write(invocation.<byte[]>getArgument(0));
+			return null;
+		}).when(out).write(any(byte[].class));
+
+		feed.subscribe(request, response, null);
+
+		ArgumentCaptor<WriteListener> listener = ArgumentCaptor.forClass(WriteListener.class);
+		verify(out).setWriteListener(listener.capture());
+		return listener.getValue();
+	}
+
+	private String written() {
+		return written.toString(StandardCharsets.UTF_8);
+	}
+
+	private static void await(BooleanSupplier condition) {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for the feed");
+			Thread.onSpinWait();
+		}
+	}
+
+	private static FileEntity file(Long id) {
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(id);
+		fileEntity.setFilename("file-" + id + ".txt");
+		fileEntity.setOriginalFilename("file.txt");
+		fileEntity.setContentType("text/plain");
+		fileEntity.setSize(10L);
+		return fileEntity;
+	}
+
+}
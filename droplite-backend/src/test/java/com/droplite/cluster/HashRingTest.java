@@ -0,0 +1,49 @@
+package com.droplite.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+
+	private static final List<ClusterNode> NODES = List.of(node("node1"), node("node2"), node("node3"));
+
+	@Test
+	void ownersAreDistinctAndCappedAtClusterSize() {
+		HashRing ring = new HashRing(NODES, 128);
+
+		List<ClusterNode> owners = ring.owners("3f2b8c1e-0d4a-4c5e-9b7a-2e6f1d0c8a94", 5);
+
+		assertEquals(3, owners.size());
+		assertEquals(3, owners.stream().distinct().count());
+		assertEquals(owners.get(0), ring.primary("3f2b8c1e-0d4a-4c5e-9b7a-2e6f1d0c8a94"));
+	}
+
+	@Test
+	void addingANodeMovesAboutItsShareOfKeys() {
+		HashRing before = new HashRing(NODES, 128);
+		HashRing after = new HashRing(List.of(node("node1"), node("node2"), node("node3"), node("node4")), 128);
+
+		int keys = 10000;
+		int moved = 0;
+		for (int i = 0; i < keys; i++) {
+			String key = "key-" + i;
+			ClusterNode primary = after.primary(key);
+			if (!primary.equals(before.primary(key))) {
+				// Keys only ever move to the new node
+				assertEquals("node4", primary.id());
+				moved++;
+			}
+		}
+		assertTrue(moved > keys / 8 && moved < keys / 2, "moved " + moved + " of " + keys);
+	}
+
+	private static ClusterNode node(String id) {
+		return new ClusterNode(id, URI.create("http://" + id + ":8080/api"));
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.droplite.controller;
+
+import com.droplite.changes.ChangeFeed;
+import com.droplite.model.FileEntity;
+import com.droplite.quota.UsageTracker;
+import com.droplite.search.SearchIndex;
+import com.droplite.service.DerivativePipeline;
+import com.droplite.service.FileContentCache;
+import com.droplite.service.FileStorageService;
+import com.droplite.service.StorageMetrics;
+import com.droplite.util.FileResponseWriter;
+import com.droplite.util.FileValidator;
+import com.droplite.util.ZipArchiveWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class FileControllerDownloadTest {
+
+	private static final String CONTENT = "abcdefghijklmnopqrstuvwxyz";
+	// SHA-256 of CONTENT
+	private static final String DIGEST = "71c480df93d6ae2f1efad1447c66c9525e316218cf51fc8d9ed832f2daf18b73";
+	private static final String ETAG = "\"" + DIGEST + "\"";
+
+	@TempDir
+	Path root;
+
+	private MockMvc mockMvc;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		Path file = Files.writeString(root.resolve("alphabet.txt"), CONTENT);
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(1L);
+		fileEntity.setFilename("alphabet.txt");
+		fileEntity.setContentType("text/plain");
+		fileEntity.setSize((long) CONTENT.length());
+		fileEntity.setPath(file.toString());
+		fileEntity.setDigest(DIGEST);
+
+		FileStorageService fileStorageService = mock(FileStorageService.class);
+		when(fileStorageService.getFileById(1L)).thenReturn(fileEntity);
+		when(fileStorageService.getContentPath(fileEntity)).thenReturn(file);
+		FileController controller = new FileController(fileStorageService, mock(FileContentCache.class),
+				new FileResponseWriter(mock(StorageMetrics.class)), mock(DerivativePipeline.class),
+				mock(ZipArchiveWriter.class), mock(FileValidator.class), mock(SearchIndex.class),
+				mock(UsageTracker.class), mock(ChangeFeed.class), new ObjectMapper());
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	@Test
+	void fullDownloadCarriesValidatorsAndDigest() throws Exception {
+		mockMvc.perform(get("/files/download/1"))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, ETAG))
+				.andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+				.andExpect(header().string("Repr-Digest", "sha-256=:ccSA35PWri8e+tFEfGbJUl4xYhjPUfyNntgy8trxi3M=:"))
+				.andExpect(content().string(CONTENT));
+	}
+
+	@Test
+	void singleRangeIsPartialContent() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=2-5"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/26"))
+				.andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 4))
+				.andExpect(content().string("cdef"));
+	}
+
+	@Test
+	void suffixRangeServesTheEnd() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=-3"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 23-25/26"))
+				.andExpect(content().string("xyz"));
+	}
+
+	@Test
+	void rangePastTheEndIsNotSatisfiable() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=30-40"))
+				.andExpect(status().isRequestedRangeNotSatisfiable())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */26"));
+	}
+
+	@Test
+	void unsatisfiableRangesAreLeftOutOfASatisfiableSet() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=0-1,30-40"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 0-1/26"))
+				.andExpect(content().string("ab"));
+	}
+
+	@Test
+	void overlappingRangesLargerThanTheFileAreNotSatisfiable() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=0-20,5-25"))
+				.andExpect(status().isRequestedRangeNotSatisfiable());
+	}
+
+	@Test
+	void matchingIfNoneMatchIsNotModified() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.IF_NONE_MATCH, ETAG))
+				.andExpect(status().isNotModified())
+				.andExpect(content().string(""));
+	}
+
+	@Test
+	void failedIfMatchIsPreconditionFailed() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.IF_MATCH, "\"something-else\""))
+				.andExpect(status().isPreconditionFailed());
+	}
+
+	@Test
+	void fileModifiedSinceIfUnmodifiedSinceIsPreconditionFailed() throws Exception {
+		mockMvc.perform(get("/files/download/1").header(HttpHeaders.IF_UNMODIFIED_SINCE, "Mon, 01 Jan 2001 00:00:00 GMT"))
+				.andExpect(status().isPreconditionFailed());
+	}
+
+	@Test
+	void staleIfRangeSendsTheWholeFile() throws Exception {
+		mockMvc.perform(get("/files/download/1")
+						.header(HttpHeaders.RANGE, "bytes=2-5")
+						.header(HttpHeaders.IF_RANGE, "\"stale\""))
+				.andExpect(status().isOk())
+				.andExpect(content().string(CONTENT));
+	}
+
+	@Test
+	void currentIfRangeHonoursTheRange() throws Exception {
+		mockMvc.perform(get("/files/download/1")
+						.header(HttpHeaders.RANGE, "bytes=2-5")
+						.header(HttpHeaders.IF_RANGE, ETAG))
+				.andExpect(status().isPartialContent())
+				.andExpect(content().string("cdef"));
+	}
+
+	@Test
+	void multipleRangesAreMultipartByteranges() throws Exception {
+		MvcResult result = mockMvc.perform(get("/files/download/1").header(HttpHeaders.RANGE, "bytes=0-1,24-25"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("multipart/byteranges; boundary=")))
+				.andReturn();
+
+		String contentType = result.getResponse().getContentType();
+		String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+		String body = result.getResponse().getContentAsString(StandardCharsets.US_ASCII);
+		String[] parts = body.split("\r\n--" + boundary);
+		// Preamble, two parts and the closing delimiter
+		assertEquals(4, parts.length);
+		assertTrue(parts[1].contains("Content-Range: bytes 0-1/26\r\n\r\nab"));
+		assertTrue(parts[2].contains("Content-Range: bytes 24-25/26\r\n\r\nyz"));
+		assertEquals("--\r\n", parts[3]);
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.droplite.model;
+
+import com.droplite.exception.BadRequestException;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileCursorTest {
+
+	@Test
+	void encodedCursorRoundTrips() {
+		FileCursor cursor = new FileCursor(LocalDateTime.of(2025, 6, 13, 10, 15, 30, 123456000), 42L);
+
+		assertEquals(cursor, FileCursor.decode(cursor.encode()));
+	}
+
+	@Test
+	void malformedCursorIsRejected() {
+		assertThrows(BadRequestException.class, () -> FileCursor.decode("not-a-cursor"));
+	}
+
+}
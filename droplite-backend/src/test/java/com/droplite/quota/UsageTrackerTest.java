@@ -0,0 +1,247 @@
+package com.droplite.quota;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.exception.BadRequestException;
+import com.droplite.exception.QuotaExceededException;
+import com.droplite.model.Usage;
+import com.droplite.model.UsageEntity;
+import com.droplite.repository.UsageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UsageTrackerTest {
+
+	// Usage rows by owner, standing in for the storage_usage table
+	private final Map<String, UsageEntity> rows = new HashMap<>();
+	// What the files table adds up to, per owner and under "*"
+	private final Map<String, long[]> files = new HashMap<>();
+	private final UsageRepository usageRepository = mock(UsageRepository.class);
+	private final Cluster cluster = mock(Cluster.class);
+	private TransactionTemplate transactionTemplate;
+
+	@BeforeEach
+	void setUp() {
+		when(usageRepository.findById(anyString()))
+				.thenAnswer(invocation -> Optional.ofNullable(rows.get(invocation.<String>getArgument(0))));
+		when(usageRepository.findAllById(any())).thenAnswer(invocation -> {
+			List<UsageEntity> found = new ArrayList<>();
+			invocation.<Iterable<String>>getArgument(0).forEach(owner -> {
+				if (rows.containsKey(owner)) {
+					found.add(rows.get(owner));
+				}
+			});
+			return found;
+		});
+		when(usageRepository.addUsage(anyString(), anyLong(), anyLong())).thenAnswer(invocation -> {
+			UsageEntity row = rows.get(invocation.<String>getArgument(0));
+			if (row == null) {
+				return 0;
+			}
+			row.setFileCount(row.getFileCount() + invocation.<Long>getArgument(1));
+			row.setBytes(row.getBytes() + invocation.<Long>getArgument(2));
+			return 1;
+		});
+		when(usageRepository.save(any(UsageEntity.class))).thenAnswer(invocation -> {
+			UsageEntity row = invocation.getArgument(0);
+			rows.put(row.getOwner(), row);
+			return row;
+		});
+		when(usageRepository.deleteAllUsage()).thenAnswer(invocation -> {
+			int deleted = rows.size();
+			rows.clear();
+			return deleted;
+		});
+		when(usageRepository.recountUsage("*")).thenAnswer(invocation -> {
+			files.forEach((owner, counts) -> rows.put(owner, row(owner, counts[0], counts[1])));
+			return files.size();
+		});
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+		transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@Test
+	void storedAndDeletedFilesCountBeforeTheyAreFlushed() {
+		UsageTracker tracker = tracker(0, 0, false);
+
+		tracker.recordStored("alice", 100);
+		tracker.recordStored("alice", 50);
+		tracker.recordDeleted("alice", 100);
+
+		assertEquals(new Usage(1, 50, null), tracker.usage("alice"));
+		assertEquals(new Usage(1, 50, null), tracker.totalUsage());
+		verify(usageRepository, never()).addUsage(anyString(), anyLong(), anyLong());
+	}
+
+	@Test
+	void flushAddsPendingChangesToTheTableOnce() {
+		rows.put("alice", row("alice", 2, 200));
+		rows.put("*", row("*", 2, 200));
+		UsageTracker tracker = tracker(0, 0, false);
+		tracker.recordStored("alice", 100);
+		tracker.recordStored("bob", 10);
+
+		tracker.flush();
+		tracker.flush();
+
+		assertEquals(3L, rows.get("alice").getFileCount());
+		assertEquals(300L, rows.get("alice").getBytes());
+		// An owner without a row gets one
+		assertEquals(10L, rows.get("bob").getBytes());
+		assertEquals(310L, rows.get("*").getBytes());
+		assertEquals(new Usage(3, 300, null), tracker.usage("alice"));
+		assertEquals(new Usage(4, 310, null), tracker.totalUsage());
+	}
+
+	@Test
+	void usageOfAnOwnerWithoutChangesIsReadFromTheTable() {
+		rows.put("alice", row("alice", 2, 200));
+		UsageTracker tracker = tracker(1000, 0, false);
+
+		assertEquals(new Usage(2, 200, 1000L), tracker.usage("alice"));
+		assertEquals(new Usage(0, 0, 1000L), tracker.usage("nobody"));
+		// Neither is tracked, so the next read sees the table again
+		rows.put("nobody", row("nobody", 1, 10));
+		assertEquals(new Usage(1, 10, 1000L), tracker.usage("nobody"));
+	}
+
+	@Test
+	void uploadOverTheOwnerQuotaIsRejected() {
+		UsageTracker tracker = tracker(100, 0, false);
+		tracker.recordStored("alice", 60);
+
+		assertThrows(QuotaExceededException.class, () -> tracker.reserve("alice", 50));
+		// Other owners have quotas of their own
+		tracker.reserve("bob", 50).release();
+	}
+
+	@Test
+	void reservationsCountUntilReleased() {
+		UsageTracker tracker = tracker(0, 100, false);
+
+		UsageTracker.Reservation first = tracker.reserve("alice", 60);
+		assertThrows(QuotaExceededException.class, () -> tracker.reserve("bob", 60));
+
+		first.release();
+		// Releasing twice gives nothing back twice
+		first.release();
+		tracker.reserve("bob", 60);
+		assertThrows(QuotaExceededException.class, () -> tracker.reserve("carol", 60));
+	}
+
+	@Test
+	void recountReplacesTheTableWithTheFilesTable() {
+		// Changes lost in a crash left the table behind the files
+		rows.put("alice", row("alice", 1, 100));
+		rows.put("*", row("*", 1, 100));
+		files.put("alice", new long[]{2, 300});
+		files.put("*", new long[]{2, 300});
+
+		UsageTracker tracker = tracker(0, 0, true);
+		tracker.afterSingletonsInstantiated();
+
+		assertEquals(new Usage(2, 300, null), tracker.usage("alice"));
+		assertEquals(new Usage(2, 300, null), tracker.totalUsage());
+	}
+
+	@Test
+	void recountKeepsChangesRecordedBeforeIt() {
+		files.put("alice", new long[]{1, 100});
+		files.put("*", new long[]{1, 100});
+		UsageTracker tracker = tracker(0, 0, true);
+		// Recorded, and committed to the files table, before the recount
+		tracker.recordStored("alice", 100);
+
+		tracker.recount();
+
+		assertEquals(new Usage(1, 100, null), tracker.usage("alice"));
+		assertEquals(new Usage(1, 100, null), tracker.totalUsage());
+	}
+
+	@Test
+	void recountCanBeTurnedOff() {
+		UsageTracker tracker = tracker(0, 0, false);
+
+		tracker.afterSingletonsInstantiated();
+
+		verify(usageRepository, never()).recountUsage(anyString());
+	}
+
+	@Test
+	void clusteredNodeDoesNotRecount() {
+		when(cluster.isEnabled()).thenReturn(true);
+		UsageTracker tracker = tracker(0, 0, true);
+
+		tracker.afterSingletonsInstantiated();
+
+		verify(usageRepository, never()).deleteAllUsage();
+		verify(usageRepository, never()).recountUsage(anyString());
+	}
+
+	@Test
+	void clusteredNodeSeesTheChangesOfOtherNodesOnFlush() {
+		when(cluster.isEnabled()).thenReturn(true);
+		rows.put("alice", row("alice", 1, 100));
+		rows.put("*", row("*", 1, 100));
+		UsageTracker tracker = tracker(0, 0, false);
+		tracker.recordStored("alice", 10);
+
+		// Another node flushes its own upload of alice
+		rows.get("alice").setBytes(150);
+		rows.get("alice").setFileCount(2);
+		rows.get("*").setBytes(150);
+		rows.get("*").setFileCount(2);
+		tracker.flush();
+
+		assertEquals(new Usage(3, 160, null), tracker.usage("alice"));
+		assertEquals(new Usage(3, 160, null), tracker.totalUsage());
+		// Without changes of its own it still reloads
+		rows.get("alice").setBytes(0);
+		rows.get("alice").setFileCount(0);
+		tracker.flush();
+		assertEquals(new Usage(0, 0, null), tracker.usage("alice"));
+	}
+
+	@Test
+	void ownerNamesAreChecked() {
+		assertEquals(UsageTracker.DEFAULT_OWNER, UsageTracker.ownerOf(null));
+		assertEquals("alice@example.com", UsageTracker.ownerOf(" alice@example.com "));
+		assertThrows(BadRequestException.class, () -> UsageTracker.ownerOf("*"));
+		assertThrows(BadRequestException.class, () -> UsageTracker.ownerOf("a/b"));
+	}
+
+	private UsageTracker tracker(long perOwnerQuota, long totalQuota, boolean recountOnStartup) {
+		return new UsageTracker(usageRepository, transactionTemplate, new SimpleMeterRegistry(), cluster,
+				DataSize.ofBytes(perOwnerQuota), DataSize.ofBytes(totalQuota), recountOnStartup);
+	}
+
+	private static UsageEntity row(String owner, long fileCount, long bytes) {
+		UsageEntity row = new UsageEntity();
+		row.setOwner(owner);
+		row.setFileCount(fileCount);
+		row.setBytes(bytes);
+		return row;
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.droplite.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+	// Slow enough that no token is refilled while a test runs
+	private static final double ONE_PER_HOUR = 1d / 3600;
+
+	@Test
+	void fullBucketAdmitsItsBurstAndNoMore() {
+		TokenBucket bucket = new TokenBucket(ONE_PER_HOUR, 5);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bucket.tryAcquire(1));
+		}
+		assertFalse(bucket.tryAcquire(1));
+	}
+
+	@Test
+	void rejectedAcquireTakesNothing() {
+		TokenBucket bucket = new TokenBucket(ONE_PER_HOUR, 5);
+
+		assertFalse(bucket.tryAcquire(6));
+		assertTrue(bucket.tryAcquire(5));
+	}
+
+	@Test
+	void emptyBucketReportsTheTimeToTheNextToken() {
+		TokenBucket bucket = new TokenBucket(1, 2);
+		assertEquals(0, bucket.nanosUntilAvailable(1));
+
+		assertTrue(bucket.tryAcquire(2));
+
+		long waitNanos = bucket.nanosUntilAvailable(1);
+		assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(900) && waitNanos <= TimeUnit.SECONDS.toNanos(1),
+				"waits " + waitNanos + "ns");
+	}
+
+	@Test
+	void bucketRefillsAtItsRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100, 1);
+		assertTrue(bucket.tryAcquire(1));
+		assertFalse(bucket.tryAcquire(1));
+
+		// One token every 10ms
+		Thread.sleep(30);
+
+		assertTrue(bucket.tryAcquire(1));
+	}
+
+	@Test
+	void reserveGoesIntoDebtAndReportsTheWait() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+
+		assertEquals(0, bucket.reserve(1000));
+		long waitNanos = bucket.reserve(500);
+
+		// 500 tokens at 1000 per second, less whatever refilled in between
+		assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(450) && waitNanos <= TimeUnit.MILLISECONDS.toNanos(500),
+				"waits " + waitNanos + "ns");
+		// The debt must be paid off before anything can be acquired
+		assertFalse(bucket.tryAcquire(1));
+	}
+
+	@Test
+	void concurrentAcquiresNeverExceedTheCapacity() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(ONE_PER_HOUR, 1000);
+		AtomicInteger acquired = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				for (int i = 0; i < 500; i++) {
+					if (bucket.tryAcquire(1)) {
+						acquired.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1000, acquired.get());
+	}
+
+}
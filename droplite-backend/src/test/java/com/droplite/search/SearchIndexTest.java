@@ -0,0 +1,168 @@
+package com.droplite.search;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.SearchHit;
+import com.droplite.model.SearchResults;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SearchIndexTest {
+
+	@TempDir
+	Path root;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+	// The rows that exist, by ID
+	private final Map<Long, FileEntity> rows = new ConcurrentHashMap<>();
+	private SearchIndex index;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		when(fileRepository.findAllById(any())).thenAnswer(invocation -> {
+			List<FileEntity> found = new ArrayList<>();
+			for (Long id : invocation.<Iterable<Long>>getArgument(0)) {
+				if (rows.containsKey(id)) {
+					found.add(rows.get(id));
+				}
+			}
+			return found;
+		});
+		index = open();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		index.shutdown();
+	}
+
+	@Test
+	void submittedFileIsFoundByNameAndContent() throws IOException {
+		index.submit(stored(1L, "q3_report-final.txt", "Quarterly revenue grew in every region.\n"));
+
+		awaitIndexed("revenue");
+
+		SearchHit hit = search("revenue").hits().get(0);
+		assertEquals(1L, hit.id());
+		assertEquals("q3_report-final.txt", hit.originalFilename());
+		assertTrue(hit.snippet().contains("<mark>revenue</mark>"), hit.snippet());
+		// Filenames are split on punctuation, and prefixes match
+		assertEquals(1, search("report").total());
+		assertEquals(1, search("quart*").total());
+		assertEquals(0, search("revenue -region").total());
+	}
+
+	@Test
+	void deletedFileIsNoLongerFound() throws IOException {
+		index.submit(stored(1L, "notes.txt", "meeting notes\n"));
+		awaitIndexed("meeting");
+
+		rows.remove(1L);
+		index.delete(List.of(1L));
+		index.refresh();
+
+		assertEquals(0, search("meeting").total());
+	}
+
+	@Test
+	void hitWhoseRowIsGoneIsLeftOutAndRemoved() throws IOException {
+		index.submit(stored(1L, "draft.txt", "unpublished draft\n"));
+		awaitIndexed("draft");
+		// Deleted without the index being told
+		rows.remove(1L);
+
+		assertTrue(search("draft").hits().isEmpty());
+
+		index.refresh();
+		assertEquals(0, search("draft").total());
+	}
+
+	@Test
+	void coldFileIsIndexedByNameOnly() throws IOException {
+		FileEntity fileEntity = stored(1L, "archive.txt", "old content\n");
+		fileEntity.setStorageTier(StorageTier.COLD);
+		fileEntity.setPath("ar/ch/archive.txt");
+		index.submit(fileEntity);
+
+		awaitIndexed("archive");
+
+		assertNull(search("archive").hits().get(0).snippet());
+		assertEquals(0, search("content").total());
+	}
+
+	@Test
+	void backfillIndexesMissingFilesAndResumesAfterARestart() throws Exception {
+		FileEntity first = stored(1L, "first.txt", "backfilled text\n");
+		FileEntity second = stored(2L, "second.json", "{\"backfilled\": true}\n");
+		when(fileRepository.findAfter(eq(0L), any())).thenReturn(List.of(first, second));
+
+		index.backfill();
+		index.refresh();
+
+		assertEquals(2, search("backfilled").total());
+
+		// Committed on shutdown with the position reached
+		index.shutdown();
+		index = open();
+		index.backfill();
+
+		verify(fileRepository).findAfter(eq(2L), any());
+		assertEquals(2, search("backfilled").total());
+	}
+
+	private SearchIndex open() throws IOException {
+		return new SearchIndex(fileRepository, new SimpleMeterRegistry(), true, root.resolve("index").toString(),
+				1_000_000, 16, 100, 100);
+	}
+
+	private FileEntity stored(Long id, String originalFilename, String content) throws IOException {
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(id);
+		fileEntity.setFilename(id + "-" + originalFilename);
+		fileEntity.setOriginalFilename(originalFilename);
+		fileEntity.setContentType("text/plain");
+		fileEntity.setSize((long) content.length());
+		fileEntity.setStorageTier(StorageTier.HOT);
+		fileEntity.setPath(Files.writeString(root.resolve(fileEntity.getFilename()), content).toString());
+		rows.put(id, fileEntity);
+		return fileEntity;
+	}
+
+	private SearchResults search(String query) throws IOException {
+		return index.search(query, 0, 20);
+	}
+
+	/**
+	 * Waits until the background thread has indexed the one file a query matches.
+	 */
+	private void awaitIndexed(String query) throws IOException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		do {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for the index");
+			index.refresh();
+		} while (search(query).total() == 0);
+	}
+
+}
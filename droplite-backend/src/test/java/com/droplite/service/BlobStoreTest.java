@@ -0,0 +1,136 @@
+package com.droplite.service;
+
+import com.droplite.model.BlobEntity;
+import com.droplite.repository.BlobRepository;
+import com.droplite.storage.LocalStorageBackend;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BlobStoreTest {
+
+	@TempDir
+	Path root;
+
+	// Blob rows by digest, standing in for the blobs table
+	private final Map<String, BlobEntity> rows = new HashMap<>();
+	private final BlobRepository blobRepository = mock(BlobRepository.class);
+	private BlobStore blobStore;
+
+	@BeforeEach
+	void setUp() {
+		when(blobRepository.insertIfAbsent(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+			String digest = invocation.getArgument(0);
+			if (rows.containsKey(digest)) {
+				return 0;
+			}
+			BlobEntity blob = new BlobEntity();
+			blob.setDigest(digest);
+			blob.setPath(invocation.getArgument(1));
+			blob.setSize(invocation.getArgument(2));
+			blob.setRefCount(0L);
+			rows.put(digest, blob);
+			return 1;
+		});
+		when(blobRepository.findByDigestForUpdate(anyString()))
+				.thenAnswer(invocation -> Optional.ofNullable(rows.get(invocation.<String>getArgument(0))));
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+		blobStore = new BlobStore(blobRepository, new LocalStorageBackend(root), new TransactionTemplate(transactionManager));
+		TransactionSynchronizationManager.initSynchronization();
+	}
+
+	@AfterEach
+	void tearDown() {
+		TransactionSynchronizationManager.clearSynchronization();
+	}
+
+	@Test
+	void identicalContentIsStoredOnce() throws Exception {
+		BlobEntity first = blobStore.acquire(blobStore.stage(content("same bytes")));
+		BlobStore.StagedBlob second = blobStore.stage(content("same bytes"));
+		BlobEntity blob = blobStore.acquire(second);
+
+		assertEquals(first.getDigest(), blob.getDigest());
+		assertEquals(2L, blob.getRefCount());
+		assertEquals("same bytes", Files.readString(Path.of(blob.getPath())));
+		assertFalse(Files.exists(second.file()));
+	}
+
+	@Test
+	void blobIsDeletedOnlyAfterTheLastReleaseCommits() throws Exception {
+		BlobEntity blob = blobStore.acquire(blobStore.stage(content("bytes")));
+		blobStore.acquire(blobStore.stage(content("bytes")));
+
+		blobStore.release(blob.getDigest());
+		assertTrue(TransactionSynchronizationManager.getSynchronizations().isEmpty());
+		blobStore.release(blob.getDigest());
+
+		assertEquals(0L, blob.getRefCount());
+		assertTrue(Files.exists(Path.of(blob.getPath())));
+		commit();
+		assertFalse(Files.exists(Path.of(blob.getPath())));
+		verify(blobRepository).delete(blob);
+	}
+
+	@Test
+	void releaseThatRollsBackKeepsTheContent() throws Exception {
+		BlobEntity blob = blobStore.acquire(blobStore.stage(content("bytes")));
+
+		blobStore.release(blob.getDigest());
+		// Rolled back: no afterCommit, and the count is restored
+		blob.setRefCount(1L);
+		TransactionSynchronizationManager.clearSynchronization();
+
+		assertTrue(Files.exists(Path.of(blob.getPath())));
+		verify(blobRepository, never()).delete(any());
+		TransactionSynchronizationManager.initSynchronization();
+	}
+
+	@Test
+	void blobReferencedAgainBeforeThePurgeIsKept() throws Exception {
+		BlobEntity blob = blobStore.acquire(blobStore.stage(content("bytes")));
+
+		blobStore.release(blob.getDigest());
+		blobStore.acquire(blobStore.stage(content("bytes")));
+		commit();
+
+		assertEquals(1L, blob.getRefCount());
+		assertEquals("bytes", Files.readString(Path.of(blob.getPath())));
+		verify(blobRepository, never()).delete(any());
+	}
+
+	private static void commit() {
+		TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+	}
+
+	private static ByteArrayInputStream content(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.exception.BadRequestException;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.UploadStatus;
+import com.droplite.quota.UsageTracker;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.FileValidator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChunkedUploadServiceImplTest {
+
+	@TempDir
+	Path root;
+
+	private final FileStorageService fileStorageService = mock(FileStorageService.class);
+	private final UsageTracker usageTracker = mock(UsageTracker.class);
+
+	@BeforeEach
+	void reserveEverything() {
+		when(usageTracker.reserve(anyString(), anyLong())).thenReturn(mock(UsageTracker.Reservation.class));
+	}
+
+	@Test
+	void chunksMustStartOnAChunkBoundaryAndHaveTheChunkLength() {
+		ChunkedUploadServiceImpl service = service(Duration.ofHours(1));
+		String uploadId = service.initiate("notes.txt", 10, "anonymous").uploadId();
+
+		assertThrows(BadRequestException.class, () -> service.writeChunk(uploadId, 2, 4, content("abcd")));
+		assertThrows(BadRequestException.class, () -> service.writeChunk(uploadId, 12, 4, content("abcd")));
+		assertThrows(BadRequestException.class, () -> service.writeChunk(uploadId, 0, 3, content("abc")));
+		// The last chunk is shorter
+		UploadStatus status = service.writeChunk(uploadId, 8, 2, content("ij"));
+
+		assertEquals(2, status.receivedBytes());
+		assertEquals(List.of(0L, 4L), status.missingOffsets());
+	}
+
+	@Test
+	void retriedChunkIsAcknowledgedWithoutRewritingIt() throws Exception {
+		ChunkedUploadServiceImpl service = service(Duration.ofHours(1));
+		String uploadId = service.initiate("notes.txt", 8, "anonymous").uploadId();
+
+		service.writeChunk(uploadId, 0, 4, content("abcd"));
+		UploadStatus status = service.writeChunk(uploadId, 0, 4, content("wxyz"));
+
+		assertEquals(4, status.receivedBytes());
+		assertEquals("abcd", Files.readString(partFile(uploadId)).substring(0, 4));
+	}
+
+	@Test
+	void completionNeedsEveryChunk() {
+		ChunkedUploadServiceImpl service = service(Duration.ofHours(1));
+		String uploadId = service.initiate("notes.txt", 8, "anonymous").uploadId();
+		service.writeChunk(uploadId, 4, 4, content("efgh"));
+
+		assertThrows(BadRequestException.class, () -> service.complete(uploadId));
+	}
+
+	@Test
+	void lateChunkOfAnExpiredUploadIsNotFound() throws Exception {
+		ChunkedUploadServiceImpl service = service(Duration.ZERO);
+		String uploadId = service.initiate("notes.txt", 8, "anonymous").uploadId();
+		Thread.sleep(5);
+
+		service.expireIdleSessions();
+
+		assertThrows(ResourceNotFoundException.class, () -> service.writeChunk(uploadId, 0, 4, content("abcd")));
+		assertFalse(Files.exists(partFile(uploadId)));
+	}
+
+	@Test
+	void uploadDoesNotExpireWhileAChunkIsBeingWritten() throws Exception {
+		ChunkedUploadServiceImpl service = service(Duration.ZERO);
+		String uploadId = service.initiate("notes.txt", 8, "anonymous").uploadId();
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		InputStream slowContent = new InputStream() {
+			private final ByteArrayInputStream delegate = new ByteArrayInputStream("abcd".getBytes(StandardCharsets.UTF_8));
+
+			@Override
+			public int read() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) {
+				reading.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return delegate.read(buffer, offset, length);
+			}
+		};
+		CompletableFuture<UploadStatus> chunk =
+				CompletableFuture.supplyAsync(() -> service.writeChunk(uploadId, 0, 4, slowContent));
+		assertTrue(reading.await(5, TimeUnit.SECONDS));
+		Thread.sleep(5);
+
+		service.expireIdleSessions();
+		release.countDown();
+
+		assertEquals(4, chunk.get(5, TimeUnit.SECONDS).receivedBytes());
+		assertEquals(4, service.getStatus(uploadId).receivedBytes());
+	}
+
+	private ChunkedUploadServiceImpl service(Duration sessionTimeout) {
+		FileValidator fileValidator = new FileValidator(new SimpleMeterRegistry(), List.of(FileValidator.DEFAULT_TYPES.split(",")));
+		Cluster cluster = new Cluster(false, "", "", 2, 128, "", false);
+		return new ChunkedUploadServiceImpl(fileStorageService, fileValidator, usageTracker, cluster,
+				new LocalStorageBackend(root), DataSize.ofBytes(4), DataSize.ofMegabytes(1), sessionTimeout);
+	}
+
+	private Path partFile(String uploadId) {
+		return root.resolve(".incoming").resolve(uploadId + ".part");
+	}
+
+	private static InputStream content(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.droplite.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentCompressorTest {
+
+	@TempDir
+	Path root;
+
+	private final ContentCompressor compressor = new ContentCompressor(true, DataSize.ofKilobytes(1), 6);
+
+	@Test
+	void textLikeTypesAreCompressed() {
+		assertTrue(compressor.shouldCompress("text/plain", 4096));
+		assertTrue(compressor.shouldCompress("text/csv; charset=UTF-8", 4096));
+		assertTrue(compressor.shouldCompress("Application/JSON", 4096));
+		assertTrue(compressor.shouldCompress("application/ld+json", 4096));
+		assertTrue(compressor.shouldCompress("application/atom+xml", 4096));
+		assertTrue(compressor.shouldCompress("image/svg+xml", 4096));
+	}
+
+	@Test
+	void binaryTypesAreNotCompressed() {
+		assertFalse(compressor.shouldCompress("image/png", 4096));
+		assertFalse(compressor.shouldCompress("image/jpeg", 4096));
+		assertFalse(compressor.shouldCompress("application/octet-stream", 4096));
+		assertFalse(compressor.shouldCompress(null, 4096));
+	}
+
+	@Test
+	void smallContentIsNotCompressed() {
+		assertFalse(compressor.shouldCompress("text/plain", 1023));
+		assertTrue(compressor.shouldCompress("text/plain", 1024));
+	}
+
+	@Test
+	void compressionCanBeTurnedOff() {
+		ContentCompressor disabled = new ContentCompressor(false, DataSize.ofKilobytes(1), 6);
+
+		assertFalse(disabled.shouldCompress("text/plain", 4096));
+	}
+
+	@Test
+	void compressedContentDecompressesToTheOriginal() throws IOException {
+		byte[] content = "line of text\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+		Path file = root.resolve("text.txt");
+
+		long size = compressor.writeCompressed(new ByteArrayInputStream(content), file);
+
+		assertEquals(Files.size(file), size);
+		assertTrue(size < content.length);
+		try (InputStream in = ContentCompressor.decompress(Files.newInputStream(file))) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+	}
+
+	@Test
+	void decompressingResourceReportsTheOriginalSize() throws IOException {
+		byte[] content = "{\"key\": \"value\"}\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+		Path file = root.resolve("data.json");
+		compressor.writeCompressed(new ByteArrayInputStream(content), file);
+
+		Resource resource = ContentCompressor.decompressingResource(file, content.length);
+
+		assertEquals(content.length, resource.contentLength());
+		try (InputStream in = resource.getInputStream()) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+	}
+
+}
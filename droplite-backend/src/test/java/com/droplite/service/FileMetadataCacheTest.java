@@ -0,0 +1,85 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileMetadataCacheTest {
+
+	private final FileMetadataCache cache = new FileMetadataCache(100, Duration.ofMinutes(10), new SimpleMeterRegistry());
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Test
+	void hitDoesNotLoadAgain() {
+		cache.get(1L, this::load);
+		FileEntity cached = cache.get(1L, this::load);
+
+		assertEquals(1, loads.get());
+		assertEquals("file-1.txt", cached.getFilename());
+	}
+
+	@Test
+	void invalidationDuringALoadKeepsItsResultOutOfTheCache() {
+		FileEntity stale = cache.get(1L, id -> {
+			// A delete or tier change commits while the row is being read
+			cache.invalidate(id);
+			return load(id);
+		});
+		assertEquals("file-1.txt", stale.getFilename());
+
+		cache.get(1L, this::load);
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	void callersGetCopiesOfTheCachedEntity() {
+		FileEntity first = cache.get(1L, this::load);
+		first.setPath("changed");
+
+		FileEntity second = cache.get(1L, this::load);
+
+		assertNotSame(first, second);
+		assertEquals("/uploads/file-1.txt", second.getPath());
+	}
+
+	@Test
+	void missingFileIsNotCached() {
+		assertNull(cache.get(1L, id -> {
+			loads.incrementAndGet();
+			return null;
+		}));
+
+		cache.get(1L, this::load);
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	void failedLoadIsRethrownAndNotCached() {
+		assertThrows(IllegalStateException.class, () -> cache.get(1L, id -> {
+			throw new IllegalStateException("database unavailable");
+		}));
+
+		assertEquals("file-1.txt", cache.get(1L, this::load).getFilename());
+	}
+
+	private FileEntity load(Long id) {
+		loads.incrementAndGet();
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(id);
+		fileEntity.setFilename("file-" + id + ".txt");
+		fileEntity.setPath("/uploads/file-" + id + ".txt");
+		fileEntity.setSize(10L);
+		return fileEntity;
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IntegrityScrubberTest {
+
+	private static final byte[] CONTENT = "stored content\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	Path root;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+	private final FileMetadataCache metadataCache = mock(FileMetadataCache.class);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private IntegrityScrubber scrubber;
+
+	@BeforeEach
+	void setUp() {
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+		scrubber = new IntegrityScrubber(fileRepository, metadataCache, new TransactionTemplate(transactionManager),
+				meterRegistry, true, 1, 100, DataSize.ofMegabytes(32), Duration.ofDays(7));
+	}
+
+	@AfterEach
+	void tearDown() {
+		scrubber.shutdown();
+	}
+
+	@Test
+	void intactFileIsVerified() throws IOException {
+		FileEntity fileEntity = stored(1L, Files.write(root.resolve("intact.txt"), CONTENT), digestOf(CONTENT));
+
+		scrub(fileEntity);
+
+		await(() -> count("droplite.scrub.verified") == 1);
+		assertEquals(CONTENT.length, count("droplite.scrub.bytes"));
+		assertEquals(0, count("droplite.scrub.mismatches"));
+	}
+
+	@Test
+	void damagedFileIsReported() throws IOException {
+		byte[] damaged = CONTENT.clone();
+		damaged[10] ^= 1;
+		FileEntity fileEntity = stored(1L, Files.write(root.resolve("damaged.txt"), damaged), digestOf(CONTENT));
+		when(fileRepository.findById(1L)).thenReturn(Optional.of(fileEntity));
+
+		scrub(fileEntity);
+
+		await(() -> count("droplite.scrub.mismatches") == 1);
+	}
+
+	@Test
+	void fileReplacedWhileItWasReadIsNotReported() throws IOException {
+		byte[] damaged = CONTENT.clone();
+		damaged[10] ^= 1;
+		FileEntity fileEntity = stored(1L, Files.write(root.resolve("replaced.txt"), damaged), digestOf(CONTENT));
+		// Deleted meanwhile
+		when(fileRepository.findById(1L)).thenReturn(Optional.empty());
+
+		scrub(fileEntity);
+
+		verify(fileRepository, timeout(5000)).findById(1L);
+		await(() -> count("droplite.scrub.verified") == 1);
+		assertEquals(0, count("droplite.scrub.mismatches"));
+	}
+
+	@Test
+	void compressedFileIsCheckedAgainstItsOriginalContent() throws IOException {
+		Path file = root.resolve("compressed.txt");
+		new ContentCompressor(true, DataSize.ofBytes(0), 6).writeCompressed(new ByteArrayInputStream(CONTENT), file);
+		FileEntity fileEntity = stored(1L, file, digestOf(CONTENT));
+		fileEntity.setContentEncoding(ContentCompressor.GZIP);
+
+		scrub(fileEntity);
+
+		await(() -> count("droplite.scrub.verified") == 1);
+		assertEquals(0, count("droplite.scrub.mismatches"));
+	}
+
+	@Test
+	void fileWithoutADigestGetsTheOneReadBack() throws IOException {
+		FileEntity fileEntity = stored(1L, Files.write(root.resolve("chunked.txt"), CONTENT), null);
+		when(fileRepository.recordDigest(anyLong(), anyString(), anyString())).thenReturn(1);
+
+		scrub(fileEntity);
+
+		verify(fileRepository, timeout(5000)).recordDigest(1L, fileEntity.getPath(), digestOf(CONTENT));
+		verify(metadataCache, timeout(5000)).invalidate(1L);
+	}
+
+	@Test
+	void coldAndMissingFilesAreSkipped() {
+		FileEntity cold = stored(1L, root.resolve("cold.txt"), digestOf(CONTENT));
+		cold.setStorageTier(StorageTier.COLD);
+		FileEntity missing = stored(2L, root.resolve("missing.txt"), digestOf(CONTENT));
+		when(fileRepository.findAfter(eq(0L), any())).thenReturn(List.of(cold, missing));
+
+		scrubber.scrub();
+		// The next batch is only taken once the missing file was tried
+		awaitBatchAfter(2L);
+
+		assertEquals(0, count("droplite.scrub.verified"));
+		verify(fileRepository, never()).findById(anyLong());
+	}
+
+	@Test
+	void passEndsAndTheNextWaitsForThePassInterval() throws IOException {
+		FileEntity fileEntity = stored(1L, Files.write(root.resolve("intact.txt"), CONTENT), digestOf(CONTENT));
+		scrub(fileEntity);
+		// Finds nothing after the last ID, which ends the pass
+		awaitBatchAfter(1L);
+
+		// Too soon for the next pass
+		scrubber.scrub();
+
+		verify(fileRepository, times(1)).findAfter(eq(0L), any());
+	}
+
+	private void scrub(FileEntity fileEntity) {
+		when(fileRepository.findAfter(eq(0L), any())).thenReturn(List.of(fileEntity));
+		scrubber.scrub();
+	}
+
+	/**
+	 * Runs the scrubber until it takes the batch after an ID, i.e. once the previous batch was
+	 * verified. That batch is empty.
+	 */
+	private void awaitBatchAfter(long id) {
+		AtomicBoolean taken = new AtomicBoolean();
+		when(fileRepository.findAfter(eq(id), any())).thenAnswer(invocation -> {
+			taken.set(true);
+			return List.of();
+		});
+		await(() -> {
+			scrubber.scrub();
+			return taken.get();
+		});
+	}
+
+	private double count(String name) {
+		return meterRegistry.get(name).counter().count();
+	}
+
+	private static FileEntity stored(Long id, Path file, String digest) {
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(id);
+		fileEntity.setFilename(file.getFileName().toString());
+		fileEntity.setPath(file.toString());
+		fileEntity.setSize((long) CONTENT.length);
+		fileEntity.setDigest(digest);
+		fileEntity.setStorageTier(StorageTier.HOT);
+		return fileEntity;
+	}
+
+	private static String digestOf(byte[] content) {
+		return HexFormat.of().formatHex(BlobStore.newDigest().digest(content));
+	}
+
+	private static void await(BooleanSupplier condition) {
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for the scrubber");
+			Thread.onSpinWait();
+		}
+	}
+
+}
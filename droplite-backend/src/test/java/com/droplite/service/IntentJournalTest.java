@@ -0,0 +1,122 @@
+package com.droplite.service;
+
+import com.droplite.storage.LocalStorageBackend;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IntentJournalTest {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void intentsBegunButNotEndedAreRecoveredAfterARestart() {
+		IntentJournal journal = open();
+		long stored = journal.begin(IntentJournal.Kind.STORE, root.resolve("stored.txt"));
+		long deleted = journal.begin(IntentJournal.Kind.DELETE, root.resolve("deleted.txt"));
+		journal.end(stored);
+		// A crash: the journal is not closed
+		List<IntentJournal.Intent> recovered = open().recoveredIntents();
+
+		assertEquals(List.of(new IntentJournal.Intent(deleted, IntentJournal.Kind.DELETE, root.resolve("deleted.txt"))),
+				recovered);
+	}
+
+	@Test
+	void recoveredIntentsStayOpenUntilEnded() {
+		IntentJournal journal = open();
+		journal.begin(IntentJournal.Kind.STORE, root.resolve("a.txt"));
+		journal.close();
+
+		IntentJournal restarted = open();
+		assertEquals(1, restarted.recoveredIntents().size());
+		restarted.close();
+		// Not resolved before this restart either
+		IntentJournal again = open();
+		assertEquals(1, again.recoveredIntents().size());
+
+		again.end(again.recoveredIntents().get(0).sequence());
+		again.close();
+		assertTrue(open().recoveredIntents().isEmpty());
+	}
+
+	@Test
+	void tornLastRecordIsSkipped() throws IOException {
+		writeJournal("B 1 STORE " + root.resolve("complete.txt") + "\n"
+				+ "B 2 STO");
+
+		IntentJournal journal = open();
+
+		assertEquals(List.of(new IntentJournal.Intent(1, IntentJournal.Kind.STORE, root.resolve("complete.txt"))),
+				journal.recoveredIntents());
+		// Sequence numbers are not reused, even those of torn records
+		assertTrue(journal.begin(IntentJournal.Kind.STORE, root.resolve("next.txt")) > 2);
+	}
+
+	@Test
+	void malformedRecordsAreSkipped() throws IOException {
+		writeJournal("garbage\n"
+				+ "B x STORE /nowhere\n"
+				+ "B 3 UNKNOWN /nowhere\n"
+				+ "B 4 DELETE " + root.resolve("kept.txt") + "\n"
+				+ "E\n");
+
+		assertEquals(List.of(new IntentJournal.Intent(4, IntentJournal.Kind.DELETE, root.resolve("kept.txt"))),
+				open().recoveredIntents());
+	}
+
+	@Test
+	void pathsWithSpacesSurviveAReplay() {
+		Path file = root.resolve("with space").resolve("a b.txt");
+		open().begin(IntentJournal.Kind.STORE, file);
+
+		assertEquals(file, open().recoveredIntents().get(0).file());
+	}
+
+	@Test
+	void rotationKeepsOnlyOpenIntents() throws IOException {
+		IntentJournal journal = new IntentJournal(new LocalStorageBackend(root), true, DataSize.ofBytes(512));
+		long open = journal.begin(IntentJournal.Kind.DELETE, root.resolve("open.txt"));
+		for (int i = 0; i < 50; i++) {
+			journal.end(journal.begin(IntentJournal.Kind.STORE, root.resolve("file-" + i + ".txt")));
+		}
+
+		assertTrue(Files.size(journalFile()) <= 512);
+		List<IntentJournal.Intent> recovered = open().recoveredIntents();
+		assertEquals(1, recovered.size());
+		assertEquals(open, recovered.get(0).sequence());
+	}
+
+	@Test
+	void disabledJournalRecordsNothing() {
+		IntentJournal journal = new IntentJournal(new LocalStorageBackend(root), false, DataSize.ofMegabytes(4));
+
+		assertEquals(IntentJournal.NO_INTENT, journal.begin(IntentJournal.Kind.STORE, root.resolve("a.txt")));
+		journal.end(IntentJournal.NO_INTENT);
+		assertTrue(Files.notExists(journalFile()));
+	}
+
+	private IntentJournal open() {
+		return new IntentJournal(new LocalStorageBackend(root), true, DataSize.ofMegabytes(4));
+	}
+
+	private Path journalFile() {
+		return root.resolve(".journal").resolve("intents.log");
+	}
+
+	private void writeJournal(String records) throws IOException {
+		Files.createDirectories(journalFile().getParent());
+		Files.writeString(journalFile(), records, StandardCharsets.UTF_8);
+	}
+
+}
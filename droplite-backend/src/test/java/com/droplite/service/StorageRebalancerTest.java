@@ -0,0 +1,142 @@
+package com.droplite.service;
+
+import com.droplite.model.FileEntity;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.ShardedLayout;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StorageRebalancerTest {
+
+	private static final String FILENAME = "3fa2c1d0-5b7e-4c1a-9d2f-0e8b6a4c2d10.txt";
+
+	@TempDir
+	Path root;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+	private final FileMetadataCache metadataCache = mock(FileMetadataCache.class);
+	private Path storage;
+	private String flatPrefix;
+	private StorageRebalancer rebalancer;
+
+	@BeforeEach
+	void setUp() {
+		LocalStorageBackend hotStorage = new LocalStorageBackend(root.resolve("uploads"));
+		storage = hotStorage.root();
+		flatPrefix = storage + File.separator;
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+		rebalancer = new StorageRebalancer(fileRepository, metadataCache, new TransactionTemplate(transactionManager),
+				hotStorage, true, 100);
+	}
+
+	@Test
+	void flatFileIsLinkedThenUnlinkedByTheNextRun() throws IOException {
+		FileEntity fileEntity = flat();
+		Path flat = Path.of(fileEntity.getPath());
+		Path sharded = ShardedLayout.resolve(storage, FILENAME);
+		batch(0L, fileEntity);
+		when(fileRepository.updatePath(1L, flat.toString(), sharded.toString())).thenReturn(1);
+
+		rebalancer.rebalance();
+
+		// Both paths work for readers holding either
+		assertTrue(Files.isSameFile(flat, sharded));
+		verify(metadataCache).invalidate(1L);
+
+		when(fileRepository.findAllById(List.of(1L))).thenReturn(List.of(fileEntity));
+		batch(1L);
+		rebalancer.rebalance();
+
+		assertFalse(Files.exists(flat));
+		assertEquals("content", Files.readString(sharded));
+
+		// Completed
+		rebalancer.rebalance();
+		verify(fileRepository, times(2)).findFlatFiles(eq(flatPrefix), anyLong(), any());
+	}
+
+	@Test
+	void fileDeletedBeforeItsPathWasUpdatedLosesItsShardedLink() throws IOException {
+		FileEntity fileEntity = flat();
+		batch(0L, fileEntity);
+		// The row no longer points at the flat path
+		when(fileRepository.updatePath(eq(1L), anyString(), anyString())).thenReturn(0);
+
+		rebalancer.rebalance();
+
+		assertFalse(Files.exists(ShardedLayout.resolve(storage, FILENAME)));
+		verify(metadataCache, never()).invalidate(anyLong());
+	}
+
+	@Test
+	void fileDeletedBeforeItsFlatLinkWasRemovedLosesBothLinks() throws IOException {
+		FileEntity fileEntity = flat();
+		Path sharded = ShardedLayout.resolve(storage, FILENAME);
+		batch(0L, fileEntity);
+		when(fileRepository.updatePath(eq(1L), anyString(), anyString())).thenReturn(1);
+		rebalancer.rebalance();
+
+		// The delete removed the flat path it had read
+		when(fileRepository.findAllById(List.of(1L))).thenReturn(List.of());
+		batch(1L);
+		rebalancer.rebalance();
+
+		assertFalse(Files.exists(Path.of(fileEntity.getPath())));
+		assertFalse(Files.exists(sharded));
+	}
+
+	@Test
+	void flatLinksLeftByAnInterruptedRunAreRemovedAtTheEnd() throws IOException {
+		Path sharded = ShardedLayout.resolve(storage, FILENAME);
+		Files.createDirectories(sharded.getParent());
+		Files.writeString(sharded, "content");
+		Path leftover = Files.createLink(storage.resolve(FILENAME), sharded);
+		Path unrelated = Files.writeString(storage.resolve("4b1e9f2a-unrelated.txt"), "other content");
+		batch(0L);
+
+		rebalancer.rebalance();
+
+		assertFalse(Files.exists(leftover));
+		assertTrue(Files.exists(sharded));
+		assertTrue(Files.exists(unrelated));
+	}
+
+	private FileEntity flat() throws IOException {
+		Path file = Files.writeString(storage.resolve(FILENAME), "content");
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(1L);
+		fileEntity.setFilename(FILENAME);
+		fileEntity.setPath(file.toString());
+		return fileEntity;
+	}
+
+	private void batch(long afterId, FileEntity... files) {
+		when(fileRepository.findFlatFiles(eq(flatPrefix), eq(afterId), any())).thenReturn(List.of(files));
+	}
+
+}
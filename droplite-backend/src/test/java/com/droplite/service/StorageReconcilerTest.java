@@ -0,0 +1,147 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
+import com.droplite.repository.BlobRepository;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.util.DurableFiles;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StorageReconcilerTest {
+
+	@TempDir
+	Path root;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+
+	@Test
+	void storeWhoseRowWasCommittedKeepsItsFile() throws IOException {
+		Path file = write("committed.txt");
+		begin(IntentJournal.Kind.STORE, file);
+		when(fileRepository.existsByFilename("committed.txt")).thenReturn(true);
+
+		recoverAfterCrash();
+
+		assertTrue(Files.exists(file));
+		assertTrue(openIntents().isEmpty());
+	}
+
+	@Test
+	void storeWhoseRowIsMissingLosesItsFile() throws IOException {
+		Path file = write("uncommitted.txt");
+		Path temp = Files.writeString(DurableFiles.tempFor(file), "partial");
+		begin(IntentJournal.Kind.STORE, file);
+		when(fileRepository.existsByFilename("uncommitted.txt")).thenReturn(false);
+
+		recoverAfterCrash();
+
+		assertFalse(Files.exists(file));
+		assertFalse(Files.exists(temp));
+		assertTrue(openIntents().isEmpty());
+	}
+
+	@Test
+	void storeInterruptedBeforeTheMoveLosesItsTemporaryFile() throws IOException {
+		Path file = root.resolve("ab").resolve("cd").resolve("unmoved.txt");
+		Files.createDirectories(file.getParent());
+		Path temp = Files.writeString(DurableFiles.tempFor(file), "partial");
+		begin(IntentJournal.Kind.STORE, file);
+
+		recoverAfterCrash();
+
+		assertFalse(Files.exists(temp));
+		assertTrue(openIntents().isEmpty());
+	}
+
+	@Test
+	void deleteWhoseRowIsGoneFinishesUnlinking() throws IOException {
+		Path file = write("deleted.txt");
+		begin(IntentJournal.Kind.DELETE, file);
+		when(fileRepository.existsByFilename("deleted.txt")).thenReturn(false);
+
+		recoverAfterCrash();
+
+		assertFalse(Files.exists(file));
+		assertTrue(openIntents().isEmpty());
+	}
+
+	@Test
+	void deleteWhoseRowIsStillThereKeepsItsFile() throws IOException {
+		Path file = write("rolled-back.txt");
+		begin(IntentJournal.Kind.DELETE, file);
+		when(fileRepository.existsByFilename("rolled-back.txt")).thenReturn(true);
+
+		recoverAfterCrash();
+
+		assertTrue(Files.exists(file));
+		assertTrue(openIntents().isEmpty());
+	}
+
+	@Test
+	void intentStaysOpenWhenTheDatabaseCannotBeAsked() throws IOException {
+		Path file = write("unknown.txt");
+		long sequence = begin(IntentJournal.Kind.STORE, file);
+		when(fileRepository.existsByFilename("unknown.txt"))
+				.thenThrow(new DataAccessResourceFailureException("database unavailable"));
+
+		recoverAfterCrash();
+
+		assertTrue(Files.exists(file));
+		List<IntentJournal.Intent> open = openIntents();
+		assertEquals(1, open.size());
+		assertEquals(sequence, open.get(0).sequence());
+	}
+
+	private Path write(String filename) throws IOException {
+		Path file = root.resolve("ab").resolve("cd").resolve(filename);
+		Files.createDirectories(file.getParent());
+		return Files.writeString(file, "content");
+	}
+
+	/**
+	 * Begins an intent and never ends it, as if the application stopped in between.
+	 */
+	private long begin(IntentJournal.Kind kind, Path file) {
+		IntentJournal journal = journal();
+		long sequence = journal.begin(kind, file);
+		journal.close();
+		return sequence;
+	}
+
+	private void recoverAfterCrash() {
+		IntentJournal journal = journal();
+		StorageReconciler reconciler = new StorageReconciler(fileRepository, mock(BlobRepository.class),
+				mock(FileStorageService.class), journal, mock(Cluster.class), mock(Replicator.class),
+				new LocalStorageBackend(root), new SimpleMeterRegistry(), true, 64, 500, Duration.ofHours(1));
+		reconciler.recover();
+		journal.close();
+	}
+
+	private List<IntentJournal.Intent> openIntents() {
+		IntentJournal journal = journal();
+		journal.close();
+		return journal.recoveredIntents();
+	}
+
+	private IntentJournal journal() {
+		return new IntentJournal(new LocalStorageBackend(root), true, DataSize.ofMegabytes(4));
+	}
+
+}
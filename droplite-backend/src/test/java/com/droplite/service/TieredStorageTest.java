@@ -0,0 +1,202 @@
+package com.droplite.service;
+
+import com.droplite.cluster.Cluster;
+import com.droplite.cluster.Replicator;
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.model.StorageTier;
+import com.droplite.repository.FileRepository;
+import com.droplite.storage.LocalStorageBackend;
+import com.droplite.storage.StorageBackend;
+import com.droplite.util.ShardedLayout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TieredStorageTest {
+
+	private static final byte[] CONTENT = "tiered content\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+	private static final String FILENAME = "3fa2c1d0-5b7e-4c1a-9d2f-0e8b6a4c2d10.txt";
+	private static final String KEY = ShardedLayout.relativePath(FILENAME);
+
+	@TempDir
+	Path root;
+
+	private final FileRepository fileRepository = mock(FileRepository.class);
+	private final FileMetadataCache metadataCache = mock(FileMetadataCache.class);
+	private final Cluster cluster = mock(Cluster.class);
+	private final Replicator replicator = mock(Replicator.class);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private LocalStorageBackend hotStorage;
+	private LocalStorageBackend coldStorage;
+	private TieredStorage tieredStorage;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		hotStorage = new LocalStorageBackend(root.resolve("hot"));
+		coldStorage = new LocalStorageBackend(root.resolve("cold"));
+		ObjectProvider<StorageBackend> coldProvider = mock(ObjectProvider.class);
+		when(coldProvider.getIfAvailable()).thenReturn(coldStorage);
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+		when(cluster.isPrimary(anyString())).thenReturn(true);
+		tieredStorage = new TieredStorage(fileRepository, metadataCache, new TransactionTemplate(transactionManager),
+				hotStorage, cluster, replicator, coldProvider, meterRegistry, true, Duration.ofDays(30), 100);
+	}
+
+	@Test
+	void idleFileIsDemotedAndPromotedWhenItIsRead() throws IOException {
+		FileEntity fileEntity = hot();
+		Path file = Path.of(fileEntity.getPath());
+		idle(fileEntity);
+		when(fileRepository.markCold(1L, file.toString(), KEY)).thenReturn(1);
+
+		tieredStorage.demoteIdleFiles();
+
+		assertFalse(Files.exists(file));
+		assertArrayEquals(CONTENT, Files.readAllBytes(coldStorage.resolve(KEY)));
+		verify(metadataCache).invalidate(1L);
+		verify(replicator).dropReplicas(FILENAME);
+		assertEquals(1, count("droplite.tiering.demoted"));
+
+		// As the row now reads
+		fileEntity.setStorageTier(StorageTier.COLD);
+		fileEntity.setPath(KEY);
+		when(fileRepository.markHot(eq(1L), eq(KEY), eq(file.toString()), any())).thenReturn(1);
+
+		assertEquals(file, tieredStorage.promote(fileEntity));
+
+		assertArrayEquals(CONTENT, Files.readAllBytes(file));
+		assertFalse(Files.exists(coldStorage.resolve(KEY)));
+		verify(replicator).replicate(FILENAME);
+		assertEquals(1, count("droplite.tiering.promoted"));
+	}
+
+	@Test
+	void concurrentReadsOfAColdFileShareOneCopy() throws Exception {
+		FileEntity fileEntity = cold();
+		CountDownLatch copied = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		when(fileRepository.markHot(eq(1L), eq(KEY), anyString(), any())).thenAnswer(invocation -> {
+			copied.countDown();
+			assertTrue(release.await(5, TimeUnit.SECONDS));
+			return 1;
+		});
+
+		CompletableFuture<Path> first = CompletableFuture.supplyAsync(() -> tieredStorage.promote(fileEntity));
+		assertTrue(copied.await(5, TimeUnit.SECONDS));
+		// Starts while the first copy is still in progress, and waits for it
+		CompletableFuture<Path> second = new CompletableFuture<>();
+		Thread reader = new Thread(() -> second.complete(tieredStorage.promote(fileEntity)));
+		reader.start();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (reader.getState() != Thread.State.WAITING) {
+			assertTrue(System.nanoTime() < deadline, "Timed out waiting for the second reader");
+			Thread.onSpinWait();
+		}
+		release.countDown();
+
+		Path file = first.get(5, TimeUnit.SECONDS);
+		assertEquals(file, second.get(5, TimeUnit.SECONDS));
+		assertArrayEquals(CONTENT, Files.readAllBytes(file));
+		verify(fileRepository, times(1)).markHot(anyLong(), anyString(), anyString(), any());
+		assertEquals(1, count("droplite.tiering.promoted"));
+	}
+
+	@Test
+	void fileDeletedWhileItWasPromotedIsNotLeftOnDisk() throws IOException {
+		FileEntity fileEntity = cold();
+		// The row was deleted after its metadata was read
+		when(fileRepository.markHot(eq(1L), eq(KEY), anyString(), any())).thenReturn(0);
+		when(fileRepository.existsById(1L)).thenReturn(false);
+
+		assertThrows(ResourceNotFoundException.class, () -> tieredStorage.promote(fileEntity));
+
+		assertFalse(Files.exists(hotStorage.resolve(KEY)));
+		verify(replicator, never()).replicate(anyString());
+		assertEquals(0, count("droplite.tiering.promoted"));
+	}
+
+	@Test
+	void demotionLosingToAConcurrentDeleteLeavesNothingInTheColdTier() throws IOException {
+		FileEntity fileEntity = hot();
+		idle(fileEntity);
+		// The row no longer points at the local file
+		when(fileRepository.markCold(1L, fileEntity.getPath(), KEY)).thenReturn(0);
+
+		tieredStorage.demoteIdleFiles();
+
+		assertFalse(Files.exists(coldStorage.resolve(KEY)));
+		// Left to the delete, which is removing it
+		assertTrue(Files.exists(Path.of(fileEntity.getPath())));
+		verify(metadataCache, never()).invalidate(anyLong());
+		verify(replicator, never()).dropReplicas(anyString());
+		assertEquals(0, count("droplite.tiering.demoted"));
+	}
+
+	private FileEntity hot() throws IOException {
+		Path file = hotStorage.resolve(KEY);
+		Files.createDirectories(file.getParent());
+		Files.write(file, CONTENT);
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(1L);
+		fileEntity.setFilename(FILENAME);
+		fileEntity.setPath(file.toString());
+		fileEntity.setSize((long) CONTENT.length);
+		fileEntity.setStorageTier(StorageTier.HOT);
+		return fileEntity;
+	}
+
+	private FileEntity cold() throws IOException {
+		Path file = coldStorage.resolve(KEY);
+		Files.createDirectories(file.getParent());
+		Files.write(file, CONTENT);
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(1L);
+		fileEntity.setFilename(FILENAME);
+		fileEntity.setPath(KEY);
+		fileEntity.setSize((long) CONTENT.length);
+		fileEntity.setStorageTier(StorageTier.COLD);
+		return fileEntity;
+	}
+
+	private void idle(FileEntity fileEntity) {
+		when(fileRepository.findIdleFiles(any(), anyLong(), eq(0L), any())).thenReturn(List.of(fileEntity));
+	}
+
+	private double count(String name) {
+		return meterRegistry.get(name).counter().count();
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.droplite.util;
+
+import com.droplite.exception.BadRequestException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileValidatorTest {
+
+	private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R'};
+	private static final byte[] JPEG = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F'};
+
+	@TempDir
+	Path root;
+
+	private final FileValidator validator = new FileValidator(new SimpleMeterRegistry(),
+			List.of(FileValidator.DEFAULT_TYPES.split(",")));
+
+	@Test
+	void pngIsAcceptedAsPng() throws IOException {
+		assertEquals("image/png", check("image.png", PNG));
+	}
+
+	@Test
+	void jpegIsAcceptedUnderEitherExtension() throws IOException {
+		assertEquals("image/jpeg", check("photo.jpg", JPEG));
+		assertEquals("image/jpeg", check("photo.JPEG", JPEG));
+	}
+
+	@Test
+	void imageIsStoredAsWhatItReallyIs() throws IOException {
+		assertEquals("image/jpeg", check("photo.png", JPEG));
+	}
+
+	@Test
+	void jsonValuesAreAccepted() throws IOException {
+		assertEquals("application/json", check("data.json", "{\"a\": 1}".getBytes(StandardCharsets.UTF_8)));
+		assertEquals("application/json", check("list.json", " \r\n\t[1, 2]".getBytes(StandardCharsets.UTF_8)));
+		byte[] withBom = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf, 't', 'r', 'u', 'e'};
+		assertEquals("application/json", check("flag.json", withBom));
+	}
+
+	@Test
+	void jsonMustStartWithAValue() {
+		assertThrows(BadRequestException.class,
+				() -> check("data.json", "hello".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	void textMayContainWhitespaceControls() throws IOException {
+		assertEquals("text/plain", check("notes.txt", "a\tb\r\nc\fd".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	void textWithABinaryControlByteIsRejected() {
+		assertThrows(BadRequestException.class,
+				() -> check("notes.txt", new byte[]{'a', 'b', 0, 'c'}));
+	}
+
+	@Test
+	void binaryDisguisedByItsExtensionIsRejected() {
+		assertThrows(BadRequestException.class, () -> check("image.txt", PNG));
+		assertThrows(BadRequestException.class, () -> check("image.json", PNG));
+		assertThrows(BadRequestException.class,
+				() -> check("image.png", "not an image".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	void disallowedExtensionIsRejected() {
+		assertThrows(BadRequestException.class,
+				() -> check("script.exe", "MZ".getBytes(StandardCharsets.US_ASCII)));
+		assertThrows(BadRequestException.class,
+				() -> check("no-extension", "text".getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	@Test
+	void emptyFileIsRejected() {
+		assertThrows(BadRequestException.class, () -> check("empty.txt", new byte[0]));
+	}
+
+	@Test
+	void checkedContentReplaysTheInspectedBytes() throws IOException {
+		byte[] content = new byte[FileValidator.HEAD_SIZE * 3];
+		Arrays.fill(content, (byte) 'x');
+
+		FileValidator.CheckedContent checked = validator.check(
+				new MockMultipartFile("file", "long.txt", "text/plain", content));
+
+		try (InputStream in = checked.content()) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+	}
+
+	@Test
+	void storedContentIsCheckedTheSameWay() throws IOException {
+		Path file = Files.write(root.resolve("upload.part"), JPEG);
+
+		assertEquals("image/jpeg", validator.check("photo.png", file).contentType());
+		assertThrows(BadRequestException.class, () -> validator.check("photo.txt", file));
+	}
+
+	private String check(String filename, byte[] content) throws IOException {
+		// The client's content type is ignored
+		FileValidator.CheckedContent checked = validator.check(
+				new MockMultipartFile("file", filename, "application/octet-stream", content));
+		checked.content().close();
+		return checked.type().contentType();
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.droplite.util;
+
+import com.droplite.exception.ResourceNotFoundException;
+import com.droplite.model.FileEntity;
+import com.droplite.service.ContentCompressor;
+import com.droplite.service.FileStorageService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ZipArchiveWriterTest {
+
+	private static final byte[] TEXT = "archived text\n".repeat(200).getBytes(StandardCharsets.UTF_8);
+	private static final byte[] IMAGE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 1, 2, 3};
+
+	@TempDir
+	Path root;
+
+	private final FileStorageService fileStorageService = mock(FileStorageService.class);
+	private final ZipArchiveWriter writer = new ZipArchiveWriter(fileStorageService);
+
+	@Test
+	void imagesAreStoredWithTheirCrcAndOtherFilesDeflated() throws IOException {
+		FileEntity image = stored(1L, "a1.jpg", "photo.jpg", "image/jpeg", IMAGE);
+		FileEntity text = stored(2L, "b2.txt", "notes.txt", "text/plain", TEXT);
+
+		ZipInputStream zip = archive(List.of(image, text), 2);
+
+		ZipEntry entry = zip.getNextEntry();
+		assertEquals("photo.jpg", entry.getName());
+		assertEquals(ZipEntry.STORED, entry.getMethod());
+		assertEquals(IMAGE.length, entry.getSize());
+		assertEquals(crcOf(IMAGE), entry.getCrc());
+		// Checked against the CRC as it is read
+		assertArrayEquals(IMAGE, zip.readAllBytes());
+
+		entry = zip.getNextEntry();
+		assertEquals("notes.txt", entry.getName());
+		assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+		assertArrayEquals(TEXT, zip.readAllBytes());
+		assertNull(zip.getNextEntry());
+	}
+
+	@Test
+	void imageIsRecognizedByItsExtension() throws IOException {
+		FileEntity image = stored(1L, "a1.PNG", "scan.png", "application/octet-stream", IMAGE);
+
+		ZipInputStream zip = archive(List.of(image), 1);
+
+		assertEquals(ZipEntry.STORED, zip.getNextEntry().getMethod());
+		assertArrayEquals(IMAGE, zip.readAllBytes());
+	}
+
+	@Test
+	void repeatedNamesGetASuffix() throws IOException {
+		List<FileEntity> files = List.of(
+				stored(1L, "a1.txt", "report.txt", "text/plain", TEXT),
+				stored(2L, "b2.txt", "report.txt", "text/plain", TEXT),
+				stored(3L, "c3.txt", "REPORT.TXT", "text/plain", TEXT),
+				stored(4L, "d4.txt", "dir/report.txt", "text/plain", TEXT),
+				stored(5L, "e5", null, null, TEXT));
+
+		ZipInputStream zip = archive(files, 5);
+
+		assertEquals("report.txt", zip.getNextEntry().getName());
+		assertEquals("report (1).txt", zip.getNextEntry().getName());
+		assertEquals("REPORT (2).TXT", zip.getNextEntry().getName());
+		assertEquals("dir_report.txt", zip.getNextEntry().getName());
+		assertEquals("file", zip.getNextEntry().getName());
+		assertNull(zip.getNextEntry());
+	}
+
+	@Test
+	void compressedFileIsAddedWithItsOriginalContent() throws IOException {
+		Path file = root.resolve("c3.txt");
+		new ContentCompressor(true, DataSize.ofBytes(0), 6).writeCompressed(new ByteArrayInputStream(TEXT), file);
+		FileEntity text = entity(3L, "c3.txt", "notes.txt", "text/plain");
+		text.setContentEncoding(ContentCompressor.GZIP);
+		when(fileStorageService.getContentPath(text)).thenReturn(file);
+
+		ZipInputStream zip = archive(List.of(text), 1);
+
+		assertEquals("notes.txt", zip.getNextEntry().getName());
+		assertArrayEquals(TEXT, zip.readAllBytes());
+	}
+
+	@Test
+	void fileMissingFromStorageIsLeftOut() throws IOException {
+		FileEntity missing = entity(1L, "a1.txt", "gone.txt", "text/plain");
+		when(fileStorageService.getContentPath(missing)).thenThrow(new ResourceNotFoundException("File not found a1.txt"));
+		FileEntity text = stored(2L, "b2.txt", "notes.txt", "text/plain", TEXT);
+
+		ZipInputStream zip = archive(List.of(missing, text), 1);
+
+		assertEquals("notes.txt", zip.getNextEntry().getName());
+		assertNull(zip.getNextEntry());
+	}
+
+	/**
+	 * Writes an archive of the files, checks how many were written, and opens it for reading.
+	 */
+	private ZipInputStream archive(List<FileEntity> files, int expectedCount) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(expectedCount, writer.write(files, out));
+		return new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private FileEntity stored(Long id, String filename, String originalFilename, String contentType, byte[] content)
+			throws IOException {
+		FileEntity fileEntity = entity(id, filename, originalFilename, contentType);
+		when(fileStorageService.getContentPath(fileEntity)).thenReturn(Files.write(root.resolve(filename), content));
+		return fileEntity;
+	}
+
+	private static FileEntity entity(Long id, String filename, String originalFilename, String contentType) {
+		FileEntity fileEntity = new FileEntity();
+		fileEntity.setId(id);
+		fileEntity.setFilename(filename);
+		fileEntity.setOriginalFilename(originalFilename);
+		fileEntity.setContentType(contentType);
+		return fileEntity;
+	}
+
+	private static long crcOf(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+
+}
@@ -16,7 +16,7 @@ import { AppLogo } from './components/AppLogo';
 import { Provider } from 'react-redux';
 import { store, RootState } from './app/store';
 import { useAppDispatch, useAppSelector } from './app/hooks';
-import { uploadFile, deleteFile, fetchFiles } from './features/files/fileSlice';
+import { uploadFile, deleteFile, fetchFiles, fileChanged } from './features/files/fileSlice';
 import { fileService, FileInfo } from './services/api';
 
 const theme = createTheme({
@@ -52,8 +52,12 @@ const AppContent = () => {
     deletingId: state.files.deletingId
   }));
 
+  // The list is fetched once subscribed, then kept current by the change feed
   useEffect(() => {
-    dispatch(fetchFiles());
+    return fileService.subscribeToChanges({
+      onChange: (change) => dispatch(fileChanged(change)),
+      onResync: () => dispatch(fetchFiles()),
+    });
   }, [dispatch]);
 
   const handleUpload = async (file: File) => {
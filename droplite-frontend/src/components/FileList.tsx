@@ -139,7 +139,13 @@ export const FileList: React.FC<FileListProps> = ({
                 <TableRow key={file.id} hover>
                   <TableCell>
                     <Box display="flex" alignItems="center">
-                      <Avatar sx={{ bgcolor: 'transparent', mr: 1 }}>
+                      {/* Images show their thumbnail; the icon remains while it is missing */}
+                      <Avatar
+                        variant="rounded"
+                        src={file.contentType.startsWith('image/') ? fileService.thumbnailUrl(file.id) : undefined}
+                        slotProps={{ img: { loading: 'lazy' } }}
+                        sx={{ bgcolor: 'transparent', mr: 1 }}
+                      >
                         {getFileIcon(file.contentType)}
                       </Avatar>
                       <Typography variant="body2" noWrap>
@@ -29,6 +29,12 @@ export const FilePreviewModal: React.FC<FilePreviewModalProps> = ({
   const [fileContent, setFileContent] = useState<string | null>(null);
   const [error, setError] = useState<string | null>(null);
   const [isLoading, setIsLoading] = useState(false);
+  // Images load the downscaled preview first and fall back to the original
+  const [imageSrc, setImageSrc] = useState<string | null>(null);
+
+  useEffect(() => {
+    setImageSrc(file ? fileService.previewUrl(file.id) : null);
+  }, [file]);
 
   // Fetch file content when the modal is opened with a file
   useEffect(() => {
@@ -77,7 +83,8 @@ export const FilePreviewModal: React.FC<FilePreviewModalProps> = ({
       return (
         <Box sx={{ display: 'flex', justifyContent: 'center', p: 2 }}>
           <img
-            src={fileService.viewFile(file.id)}
+            src={imageSrc ?? fileService.viewFile(file.id)}
+            onError={() => setImageSrc(fileService.viewFile(file.id))}
             alt={file.originalFilename}
             style={{ maxWidth: '100%', maxHeight: '70vh', objectFit: 'contain' }}
           />
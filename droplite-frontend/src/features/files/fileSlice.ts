@@ -1,5 +1,5 @@
 import { createSlice, createAsyncThunk, PayloadAction } from '@reduxjs/toolkit';
-import { fileService, FileInfo } from '../../services/api';
+import { fileService, FileChange, FileInfo } from '../../services/api';
 
 interface FileState {
   files: FileInfo[];
@@ -9,6 +9,8 @@ interface FileState {
   uploadProgress: number;
   downloadingId: number | null;
   deletingId: number | null;
+  // Changes received while the file list is being fetched; applied again once it arrives
+  pendingChanges: FileChange[] | null;
 }
 
 const initialState: FileState = {
@@ -19,6 +21,15 @@ const initialState: FileState = {
   uploadProgress: 0,
   downloadingId: null,
   deletingId: null,
+  pendingChanges: null,
+};
+
+const applyChange = (files: FileInfo[], change: FileChange): FileInfo[] => {
+  if (change.type === 'created') {
+    // Our own uploads also arrive as events
+    return files.some(file => file.id === change.file.id) ? files : [change.file, ...files];
+  }
+  return files.filter(file => file.id !== change.id);
 };
 
 // Async thunks
@@ -71,20 +82,28 @@ const fileSlice = createSlice({
     clearError: (state) => {
       state.error = null;
     },
+    fileChanged: (state, action: PayloadAction<FileChange>) => {
+      state.files = applyChange(state.files, action.payload);
+      state.pendingChanges?.push(action.payload);
+    },
   },
   extraReducers: (builder) => {
     // Fetch files
     builder.addCase(fetchFiles.pending, (state) => {
       state.loading = true;
       state.error = null;
+      state.pendingChanges = [];
     });
     builder.addCase(fetchFiles.fulfilled, (state, action) => {
       state.loading = false;
-      state.files = action.payload;
+      // The list may have been read before some of the changes received meanwhile
+      state.files = (state.pendingChanges ?? []).reduce(applyChange, action.payload);
+      state.pendingChanges = null;
     });
     builder.addCase(fetchFiles.rejected, (state, action) => {
       state.loading = false;
       state.error = action.payload as string;
+      state.pendingChanges = null;
     });
 
     // Upload file
@@ -95,7 +114,7 @@ const fileSlice = createSlice({
     });
     builder.addCase(uploadFile.fulfilled, (state, action) => {
       state.loading = false;
-      state.files = [action.payload, ...state.files];
+      state.files = applyChange(state.files, { type: 'created', file: action.payload });
       state.uploadProgress = 100;
     });
     builder.addCase(uploadFile.rejected, (state, action) => {
@@ -120,5 +139,5 @@ const fileSlice = createSlice({
   },
 });
 
-export const { setUploadProgress, clearError } = fileSlice.actions;
+export const { setUploadProgress, clearError, fileChanged } = fileSlice.actions;
 export default fileSlice.reducer;
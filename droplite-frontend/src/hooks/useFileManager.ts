@@ -1,4 +1,4 @@
-import { useState, useCallback } from 'react';
+import { useState, useCallback, useEffect } from 'react';
 import { fileService, FileInfo } from '../services/api';
 
 export const useFileManager = () => {
@@ -25,7 +25,8 @@ export const useFileManager = () => {
     setError(null);
     try {
       const newFile = await fileService.uploadFile(file);
-      setFiles(prevFiles => [newFile, ...prevFiles]);
+      // The change feed may have added it already
+      setFiles(prevFiles => prevFiles.some(file => file.id === newFile.id) ? prevFiles : [newFile, ...prevFiles]);
       return newFile;
     } catch (err) {
       const errorMessage = err instanceof Error ? err.message : 'Failed to upload file';
@@ -51,6 +52,19 @@ export const useFileManager = () => {
     }
   }, []);
 
+  // Keeps the list current from the change feed instead of fetching it after every change
+  useEffect(() => {
+    return fileService.subscribeToChanges({
+      onChange: (change) => setFiles(prevFiles => {
+        if (change.type === 'deleted') {
+          return prevFiles.filter(file => file.id !== change.id);
+        }
+        return prevFiles.some(file => file.id === change.file.id) ? prevFiles : [change.file, ...prevFiles];
+      }),
+      onResync: fetchFiles,
+    });
+  }, [fetchFiles]);
+
   const downloadFile = useCallback(async (file: FileInfo) => {
     try {
       await fileService.downloadFile(file.id, file.originalFilename);
@@ -48,8 +48,8 @@ export interface FileInfo {
   filename: string;
   /** Original filename provided by the user */
   originalFilename: string;
-  /** Server path to the stored file */
-  path: string;
+  /** Download URI; only returned for a file just uploaded */
+  path?: string;
   /** MIME type of the file */
   contentType: string;
   /** File size in bytes */
@@ -58,6 +58,38 @@ export interface FileInfo {
   createdAt: string;
 }
 
+/**
+ * One page of the file listing, newest first
+ */
+export interface FilePage {
+  items: FileInfo[];
+  /** Cursor of the following page; null on the last one */
+  nextCursor: string | null;
+}
+
+/**
+ * A file created or deleted, as published by the server's change feed
+ */
+export type FileChange =
+  | { type: 'created'; file: FileInfo }
+  | { type: 'deleted'; id: number };
+
+/**
+ * Callbacks of a change feed subscription
+ */
+export interface ChangeHandlers {
+  /** Called for every file created or deleted after the subscription started */
+  onChange: (change: FileChange) => void;
+  /** Called when the file list must be (re)loaded: once subscribed, and after missed changes */
+  onResync: () => void;
+}
+
+// Files listed at most; the largest page the server returns
+const FILE_LIST_LIMIT = 500;
+
+// Delay before reconnecting when the server refused or ended the event stream for good
+const CHANGES_RETRY_DELAY_MS = 5000;
+
 /**
  * Service for interacting with the file-related API endpoints
  */
@@ -87,13 +119,13 @@ export const fileService = {
   },
 
   /**
-   * Fetches metadata for all files
+   * Fetches metadata of the newest files
    * @returns Promise resolving to an array of file metadata objects
    */
   getFiles: async (): Promise<FileInfo[]> => {
     try {
-      const response = await api.get<FileInfo[]>('/files');
-      return response.data;
+      const response = await api.get<FilePage>('/files/page', { params: { limit: FILE_LIST_LIMIT } });
+      return response.data.items;
     } catch (error) {
       console.error('Failed to fetch files:', error);
       throw new Error('Failed to load files. Please refresh the page to try again.');
@@ -151,4 +183,69 @@ export const fileService = {
   viewFile: (id: number): string => {
     return `${API_BASE_URL}/files/view/${id}`;
   },
+
+  /**
+   * Generates a URL for an image's thumbnail
+   * @param id The ID of the image file
+   * @returns The full URL of the thumbnail; it responds with 404 until the thumbnail is generated
+   */
+  thumbnailUrl: (id: number): string => {
+    return `${API_BASE_URL}/files/${id}/thumbnail`;
+  },
+
+  /**
+   * Generates a URL for a downscaled preview of an image
+   * @param id The ID of the image file
+   * @returns The full URL of the preview; it responds with 404 for images that need no preview
+   */
+  previewUrl: (id: number): string => {
+    return `${API_BASE_URL}/files/${id}/preview`;
+  },
+
+  /**
+   * Subscribes to the files created and deleted on the server, over server-sent events.
+   * The browser reconnects on its own after network errors and receives the changes it
+   * missed; if the server cannot replay them, onResync is called again.
+   * @param handlers Callbacks for changes and for reloading the file list
+   * @returns A function that ends the subscription
+   */
+  subscribeToChanges: (handlers: ChangeHandlers): (() => void) => {
+    let source: EventSource | null = null;
+    let retryTimer: ReturnType<typeof setTimeout> | undefined;
+    let lastEventId: string | null = null;
+
+    const connect = () => {
+      const query = lastEventId ? `?after=${encodeURIComponent(lastEventId)}` : '';
+      source = new EventSource(`${API_BASE_URL}/files/changes${query}`);
+
+      const track = (listener: (data: any) => void) => (event: Event) => {
+        const message = event as MessageEvent;
+        lastEventId = message.lastEventId || lastEventId;
+        listener(JSON.parse(message.data));
+      };
+      source.addEventListener('ready', track(() => handlers.onResync()));
+      source.addEventListener('reset', track(() => handlers.onResync()));
+      source.addEventListener('created', track((change) => handlers.onChange({
+        type: 'created',
+        // Events carry no path; it is the download URL, as in upload responses
+        file: { ...change.file, path: `${API_BASE_URL}/files/download/${change.id}` },
+      })));
+      source.addEventListener('deleted', track((change) => handlers.onChange({
+        type: 'deleted',
+        id: change.id,
+      })));
+      source.onerror = () => {
+        // A closed source is not retried by the browser, e.g. after a 503
+        if (source?.readyState === EventSource.CLOSED) {
+          retryTimer = setTimeout(connect, CHANGES_RETRY_DELAY_MS);
+        }
+      };
+    };
+
+    connect();
+    return () => {
+      clearTimeout(retryTimer);
+      source?.close();
+    };
+  },
 };
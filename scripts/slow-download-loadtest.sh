@@ -0,0 +1,56 @@
+#!/usr/bin/env bash
+#
+# Holds many slow downloads open while probing a cheap metadata endpoint, to compare how
+# the platform-thread and virtual-thread deployments behave when workers are tied up by
+# slow clients.
+#
+# Usage: scripts/slow-download-loadtest.sh [clients] [rate] [probes]
+#   clients  concurrent slow downloads (default 500)
+#   rate     per-client transfer rate passed to curl --limit-rate (default 32k)
+#   probes   number of sequential /files/page probes (default 50)
+#
+# Run it once against each deployment:
+#   docker-compose up --build -d
+#   docker-compose -f docker-compose.yml -f docker-compose.virtual-threads.yml up --build -d
+
+set -euo pipefail
+
+API_URL="${API_URL:-http://localhost:8080/api}"
+CLIENTS="${1:-500}"
+RATE="${2:-32k}"
+PROBES="${3:-50}"
+WORKDIR="$(mktemp -d)"
+trap 'kill $(jobs -p) 2>/dev/null || true; rm -rf "$WORKDIR"' EXIT
+
+# 4MB of incompressible data keeps each client busy for ~2 minutes at 32k/s
+head -c 4194304 /dev/urandom > "$WORKDIR/sample.png"
+FILE_ID=$(curl -sf -F "file=@$WORKDIR/sample.png" "$API_URL/files/upload" \
+    | sed -E 's/.*"id":([0-9]+).*/\1/')
+echo "Uploaded test file $FILE_ID; starting $CLIENTS clients at $RATE"
+
+for i in $(seq 1 "$CLIENTS"); do
+    curl -s -o /dev/null --limit-rate "$RATE" -w '%{http_code}\n' \
+        "$API_URL/files/download/$FILE_ID" > "$WORKDIR/client-$i.status" &
+done
+
+# Give the clients time to connect and occupy request threads
+sleep 5
+
+for i in $(seq 1 "$PROBES"); do
+    curl -s -o /dev/null --max-time 30 -w '%{http_code} %{time_total}\n' \
+        "$API_URL/files/page?limit=20" >> "$WORKDIR/probes.txt" || echo "000 30" >> "$WORKDIR/probes.txt"
+done
+
+echo "Probe latency while $CLIENTS downloads are in flight (seconds):"
+awk '$1 != 200 { failed++ } { print $2 }
+     END { if (failed) print "failed probes: " failed > "/dev/stderr" }' "$WORKDIR/probes.txt" \
+    | sort -n \
+    | awk '{ t[NR] = $1 }
+           END { printf "  p50 %.3f  p95 %.3f  max %.3f\n", t[int(NR * 0.5)], t[int(NR * 0.95)], t[NR] }'
+
+echo "Waiting for downloads to finish..."
+wait
+echo "Download status codes:"
+cat "$WORKDIR"/client-*.status | sort | uniq -c
+
+curl -s -o /dev/null -X DELETE "$API_URL/files/$FILE_ID"
@@ -0,0 +1,79 @@
+#!/usr/bin/env bash
+#
+# Builds the backend as a plain JVM image, a Spring AOT + AppCDS image and a GraalVM native
+# image, starts each against the compose PostgreSQL, and reports startup time and resident
+# memory side by side.
+#
+# Usage: scripts/startup-footprint.sh [runs] [requests]
+#   runs      starts per variant; the table shows the median (default 3)
+#   requests  /files/page requests sent before the second RSS sample (default 200)
+#
+# Pass VARIANTS="Dockerfile Dockerfile.cds" to skip the native build, which is slow.
+
+set -euo pipefail
+
+API_URL="${API_URL:-http://localhost:8080/api}"
+VARIANTS="${VARIANTS:-Dockerfile Dockerfile.cds Dockerfile.native}"
+RUNS="${1:-3}"
+REQUESTS="${2:-200}"
+CONTAINER=droplite-backend
+WORKDIR="$(mktemp -d)"
+trap 'rm -rf "$WORKDIR"' EXIT
+
+docker-compose up -d postgres
+
+rss_mb() {
+    # The application is PID 1 in every variant
+    docker exec "$CONTAINER" cat /proc/1/status | awk '/^VmRSS:/ { printf "%.0f", $2 / 1024 }'
+}
+
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+for variant in $VARIANTS; do
+    echo "Building $variant..."
+    BACKEND_DOCKERFILE="$variant" docker-compose build backend > /dev/null
+
+    for run in $(seq 1 "$RUNS"); do
+        BACKEND_DOCKERFILE="$variant" docker-compose up -d --no-build --force-recreate backend > /dev/null
+        until docker logs "$CONTAINER" 2>&1 | grep -q 'Started DropliteBackendApplication'; do
+            if ! docker ps -q -f "name=^${CONTAINER}$" | grep -q .; then
+                echo "$variant exited during startup:" >&2
+                docker logs --tail 50 "$CONTAINER" >&2
+                exit 1
+            fi
+            sleep 0.2
+        done
+        # "Started DropliteBackendApplication in 4.1 seconds (process running for 4.6)"
+        docker logs "$CONTAINER" 2>&1 | grep 'Started DropliteBackendApplication' \
+            | sed -E 's/.* in ([0-9.]+) seconds \(process running for ([0-9.]+)\).*/\1 \2/' \
+            > "$WORKDIR/started"
+        read -r context process < "$WORKDIR/started"
+        idle=$(rss_mb)
+        for i in $(seq 1 "$REQUESTS"); do
+            curl -sf -o /dev/null "$API_URL/files/page?limit=20"
+        done
+        warm=$(rss_mb)
+        echo "$context" >> "$WORKDIR/$variant.context"
+        echo "$process" >> "$WORKDIR/$variant.process"
+        echo "$idle" >> "$WORKDIR/$variant.idle"
+        echo "$warm" >> "$WORKDIR/$variant.warm"
+        echo "  run $run: started in ${process}s, RSS ${idle}MB idle, ${warm}MB after $REQUESTS requests"
+    done
+done
+
+docker-compose stop backend > /dev/null
+
+echo
+echo "Median of $RUNS runs:"
+echo
+echo "| Build | Context refresh (s) | Process start (s) | RSS idle (MB) | RSS after $REQUESTS requests (MB) |"
+echo "|---|---|---|---|---|"
+for variant in $VARIANTS; do
+    printf '| %s | %s | %s | %s | %s |\n' "$variant" \
+        "$(median < "$WORKDIR/$variant.context")" \
+        "$(median < "$WORKDIR/$variant.process")" \
+        "$(median < "$WORKDIR/$variant.idle")" \
+        "$(median < "$WORKDIR/$variant.warm")"
+done